@@ -0,0 +1,176 @@
+package org.whispersystems.dispatch;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs dispatch callbacks on a fixed set of serial lanes. Every channel is
+ * pinned to one lane by hash, so callbacks for a channel run one at a time
+ * and in the order they were read off the wire.
+ *
+ * Lane capacity only applies to other threads. A callback that queues more
+ * work on its own lane (say, an unsubscribe notice) never waits, since
+ * nothing else could make room for it.
+ */
+public class DispatchExecutor {
+
+  public enum OverflowPolicy {
+    /** Wait for room in the lane, pushing back on the pub/sub reader. */
+    BLOCK,
+    /** Refuse the message so that the caller can hand it to the dead letter channel. */
+    SPILL
+  }
+
+  private final Logger logger = LoggerFactory.getLogger(DispatchExecutor.class);
+
+  private final Lane[]         lanes;
+  private final OverflowPolicy overflowPolicy;
+  private final Timer          waitTimer     = new Timer();
+  private final Meter          overflowMeter = new Meter();
+
+  public DispatchExecutor(int laneCount, int laneCapacity, OverflowPolicy overflowPolicy) {
+    if (laneCount < 1 || laneCapacity < 1) {
+      throw new IllegalArgumentException("Lane count and capacity must be positive");
+    }
+
+    this.lanes          = new Lane[laneCount];
+    this.overflowPolicy = overflowPolicy;
+
+    for (int i=0;i<laneCount;i++) {
+      lanes[i] = new Lane(i, laneCapacity);
+      lanes[i].start();
+    }
+  }
+
+  /**
+   * Queues a callback that must not be dropped, waiting for room if the lane is full.
+   */
+  public void execute(String channel, Runnable task) {
+    Lane lane = getLane(channel);
+
+    if (Thread.currentThread() == lane) {
+      lane.queue.add(new QueuedTask(task, false));
+      return;
+    }
+
+    try {
+      lane.permits.acquire();
+      lane.queue.add(new QueuedTask(task, true));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      logger.warn("Interrupted while queueing dispatch for " + channel);
+    }
+  }
+
+  /**
+   * Queues a callback without waiting for room in the lane. Only for work the
+   * caller bounds itself, like one coalesced notice per channel.
+   */
+  public void executeUnbounded(String channel, Runnable task) {
+    getLane(channel).queue.add(new QueuedTask(task, false));
+  }
+
+  /**
+   * Queues a message callback, applying the overflow policy if the lane is full.
+   *
+   * @return false if the lane was full and the task was refused.
+   */
+  public boolean offer(String channel, Runnable task) {
+    if (overflowPolicy == OverflowPolicy.BLOCK) {
+      execute(channel, task);
+      return true;
+    }
+
+    Lane lane = getLane(channel);
+
+    if (Thread.currentThread() == lane) {
+      lane.queue.add(new QueuedTask(task, false));
+      return true;
+    }
+
+    if (!lane.permits.tryAcquire()) {
+      overflowMeter.mark();
+      return false;
+    }
+
+    lane.queue.add(new QueuedTask(task, true));
+    return true;
+  }
+
+  public void shutdown() {
+    for (Lane lane : lanes) {
+      lane.interrupt();
+    }
+  }
+
+  public int getLaneCount() {
+    return lanes.length;
+  }
+
+  public int getLaneDepth(int lane) {
+    return lanes[lane].queue.size();
+  }
+
+  public Timer getWaitTimer() {
+    return waitTimer;
+  }
+
+  public Meter getOverflowMeter() {
+    return overflowMeter;
+  }
+
+  private Lane getLane(String channel) {
+    return lanes[(channel.hashCode() & Integer.MAX_VALUE) % lanes.length];
+  }
+
+  private static class QueuedTask {
+
+    private final Runnable task;
+    private final boolean  permit;
+    private final long     queuedAt;
+
+    private QueuedTask(Runnable task, boolean permit) {
+      this.task     = task;
+      this.permit   = permit;
+      this.queuedAt = System.nanoTime();
+    }
+  }
+
+  private class Lane extends Thread {
+
+    private final BlockingQueue<QueuedTask> queue;
+    private final Semaphore                 permits;
+
+    private Lane(int index, int capacity) {
+      super("DispatchExecutor-" + index);
+      this.queue   = new LinkedBlockingQueue<>();
+      this.permits = new Semaphore(capacity);
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      while (!isInterrupted()) {
+        try {
+          QueuedTask queued = queue.take();
+          if (queued.permit) permits.release();
+
+          waitTimer.update(System.nanoTime() - queued.queuedAt, TimeUnit.NANOSECONDS);
+
+          queued.task.run();
+        } catch (InterruptedException e) {
+          break;
+        } catch (Throwable t) {
+          logger.warn("Dispatch callback failed", t);
+        }
+      }
+    }
+  }
+}
@@ -7,52 +7,127 @@ import org.whispersystems.dispatch.redis.PubSubConnection;
 import org.whispersystems.dispatch.redis.PubSubReply;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Multiplexes channel subscriptions over a set of pub/sub connections. Each
+ * channel is pinned to one shard by consistent hash, and each shard has its
+ * own connection and reader thread, so a dropped socket only has to
+ * resubscribe the channels that lived on it. Channels subscribed before
+ * {@link #start()} are sent once the connections are up.
+ */
 @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
-public class DispatchManager extends Thread {
+public class DispatchManager {
+
+  private static final int VIRTUAL_NODES_PER_SHARD = 64;
+  private static final int DEFAULT_LANE_COUNT      = 16;
+  private static final int DEFAULT_LANE_CAPACITY   = 1000;
 
   private final Logger                       logger        = LoggerFactory.getLogger(DispatchManager.class);
-  private final Executor                     executor      = Executors.newCachedThreadPool();
   private final Map<String, DispatchChannel> subscriptions = new ConcurrentHashMap<>();
+  private final Map<String, Shard>           pinned        = new ConcurrentHashMap<>();
+  private final Set<String>                  spillNotices  = ConcurrentHashMap.newKeySet();
+  private final NavigableMap<Long, Shard>    ring          = new TreeMap<>();
 
   private final Optional<DispatchChannel>    deadLetterChannel;
   private final RedisPubSubConnectionFactory redisPubSubConnectionFactory;
+  private final DispatchExecutor             executor;
+  private final Shard[]                      shards;
 
-  private          PubSubConnection pubSubConnection;
-  private volatile boolean          running;
+  private volatile boolean running;
 
   public DispatchManager(RedisPubSubConnectionFactory redisPubSubConnectionFactory,
                          Optional<DispatchChannel> deadLetterChannel)
   {
+    this(redisPubSubConnectionFactory, deadLetterChannel, 1);
+  }
+
+  public DispatchManager(RedisPubSubConnectionFactory redisPubSubConnectionFactory,
+                         Optional<DispatchChannel> deadLetterChannel,
+                         int shardCount)
+  {
+    this(redisPubSubConnectionFactory, deadLetterChannel, shardCount,
+         new DispatchExecutor(DEFAULT_LANE_COUNT, DEFAULT_LANE_CAPACITY, DispatchExecutor.OverflowPolicy.BLOCK));
+  }
+
+  public DispatchManager(RedisPubSubConnectionFactory redisPubSubConnectionFactory,
+                         Optional<DispatchChannel> deadLetterChannel,
+                         int shardCount,
+                         DispatchExecutor executor)
+  {
+    if (shardCount < 1) {
+      throw new IllegalArgumentException("Shard count must be positive: " + shardCount);
+    }
+
     this.redisPubSubConnectionFactory = redisPubSubConnectionFactory;
     this.deadLetterChannel            = deadLetterChannel;
+    this.executor                     = executor;
+    this.shards                       = new Shard[shardCount];
+
+    for (int i=0;i<shardCount;i++) {
+      shards[i] = new Shard(i);
+
+      for (int j=0;j<VIRTUAL_NODES_PER_SHARD;j++) {
+        ring.put(hash("shard-" + i + "-" + j), shards[i]);
+      }
+    }
   }
 
-  @Override
-  public void start() {
-    this.pubSubConnection = redisPubSubConnectionFactory.connect();
-    this.running          = true;
-    super.start();
+  public synchronized void start() {
+    this.running = true;
+
+    for (Shard shard : shards) {
+      shard.pubSubConnection = redisPubSubConnectionFactory.connect();
+
+      for (String name : shard.channels) {
+        try {
+          shard.pubSubConnection.subscribe(name);
+        } catch (IOException e) {
+          logger.warn("Subscription error", e);
+        }
+      }
+    }
+
+    for (Shard shard : shards) {
+      shard.start();
+    }
   }
 
   public void shutdown() {
     this.running = false;
-    this.pubSubConnection.close();
+
+    for (Shard shard : shards) {
+      shard.pubSubConnection.close();
+    }
+
+    executor.shutdown();
   }
 
-  public synchronized void subscribe(String name, DispatchChannel dispatchChannel) {
-    Optional<DispatchChannel> previous = Optional.ofNullable(subscriptions.get(name));
-    subscriptions.put(name, dispatchChannel);
+  // Notices are queued after the monitor is released: a full lane can block
+  // the caller, and the callback it's waiting on may need the monitor itself.
+  public void subscribe(String name, DispatchChannel dispatchChannel) {
+    Optional<DispatchChannel> previous;
 
-    try {
-      pubSubConnection.subscribe(name);
-    } catch (IOException e) {
-      logger.warn("Subscription error", e);
+    synchronized (this) {
+      Shard shard = getShard(name);
+
+      previous = Optional.ofNullable(subscriptions.put(name, dispatchChannel));
+      shard.channels.add(name);
+
+      try {
+        if (shard.pubSubConnection != null) shard.pubSubConnection.subscribe(name);
+      } catch (IOException e) {
+        logger.warn("Subscription error", e);
+      }
     }
 
     if (previous.isPresent()) {
@@ -60,49 +135,76 @@ public class DispatchManager extends Thread {
     }
   }
 
-  public synchronized void unsubscribe(String name, DispatchChannel channel) {
-    Optional<DispatchChannel> subscription = Optional.ofNullable(subscriptions.get(name));
+  /**
+   * Subscribes a channel on a specific shard rather than the one its name
+   * hashes to, for traffic that has to reach every shard.
+   */
+  public void subscribe(int shard, String name, DispatchChannel dispatchChannel) {
+    pinned.put(name, shards[shard]);
+    subscribe(name, dispatchChannel);
+  }
+
+  public void unsubscribe(String name, DispatchChannel channel) {
+    synchronized (this) {
+      if (subscriptions.get(name) != channel) {
+        return;
+      }
+
+      Shard shard = getShard(name);
 
-    if (subscription.isPresent() && subscription.get() == channel) {
       subscriptions.remove(name);
+      pinned.remove(name);
+      shard.channels.remove(name);
 
       try {
-        pubSubConnection.unsubscribe(name);
+        if (shard.pubSubConnection != null) shard.pubSubConnection.unsubscribe(name);
       } catch (IOException e) {
         logger.warn("Unsubscribe error", e);
       }
-
-      dispatchUnsubscription(name, subscription.get());
     }
+
+    dispatchUnsubscription(name, channel);
   }
 
   public boolean hasSubscription(String name) {
     return subscriptions.containsKey(name);
   }
-  
-  @Override
-  public void run() {
-    while (running) {
-      try {
-        PubSubReply reply = pubSubConnection.read();
 
-        switch (reply.getType()) {
-          case UNSUBSCRIBE:                             break;
-          case SUBSCRIBE:   dispatchSubscribe(reply);   break;
-          case MESSAGE:     dispatchMessage(reply);     break;
-          default:          throw new AssertionError("Unknown pubsub reply type! " + reply.getType());
-        }
-      } catch (IOException e) {
-        logger.warn("***** PubSub Connection Error *****", e);
-        if (running) {
-          this.pubSubConnection.close();
-          this.pubSubConnection = redisPubSubConnectionFactory.connect();
-          resubscribeAll();
-        }
-      }
-    }
+  public Optional<DispatchChannel> getSubscription(String name) {
+    return Optional.ofNullable(subscriptions.get(name));
+  }
+
+  public int getShardCount() {
+    return shards.length;
+  }
+
+  public int getSubscriptionCount(int shard) {
+    return shards[shard].channels.size();
+  }
 
-    logger.warn("DispatchManager Shutting Down...");
+  /**
+   * @return milliseconds since the shard's reader last received a reply.
+   */
+  public long getReadLag(int shard) {
+    return System.currentTimeMillis() - shards[shard].lastRead;
+  }
+
+  public long getReconnectCount(int shard) {
+    return shards[shard].reconnects.get();
+  }
+
+  public DispatchExecutor getExecutor() {
+    return executor;
+  }
+
+  private Shard getShard(String name) {
+    if (shards.length == 1) return shards[0];
+
+    Shard pin = pinned.get(name);
+    if (pin != null) return pin;
+
+    Map.Entry<Long, Shard> entry = ring.ceilingEntry(hash(name));
+    return entry != null ? entry.getValue() : ring.firstEntry().getValue();
   }
 
   private void dispatchSubscribe(final PubSubReply reply) {
@@ -127,34 +229,51 @@ public class DispatchManager extends Thread {
     }
   }
 
-  private void resubscribeAll() {
-    new Thread() {
-      @Override
-      public void run() {
-        synchronized (DispatchManager.this) {
-          try {
-            for (String name : subscriptions.keySet()) {
-              pubSubConnection.subscribe(name);
-            }
-          } catch (IOException e) {
-            logger.warn("***** RESUBSCRIPTION ERROR *****", e);
-          }
-        }
-      }
-    }.start();
-  }
-
   private void dispatchMessage(final String name, final DispatchChannel channel, final byte[] message) {
-    executor.execute(new Runnable() {
+    Runnable task = new Runnable() {
       @Override
       public void run() {
         channel.onDispatchMessage(name, message);
       }
-    });
+    };
+
+    if (!executor.offer(name, task)) {
+      if (canSpill(name, channel, message)) {
+        logger.warn("Dispatch lane full, spilling message for " + name + " to dead letter handler");
+        deadLetterChannel.get().onDispatchMessage(name, message);
+        dispatchSpillNotice(name, channel, message);
+      } else {
+        executor.execute(name, task);
+      }
+    }
+  }
+
+  private boolean canSpill(String name, DispatchChannel channel, byte[] message) {
+    return deadLetterChannel.isPresent()                   &&
+           deadLetterChannel.get() != channel              &&
+           deadLetterChannel.get() instanceof SpillChannel &&
+           ((SpillChannel)deadLetterChannel.get()).canSpill(name, message);
+  }
+
+  // The lane is full, so the notice skips the capacity check. It's coalesced
+  // to one per channel, and is cleared as it starts so that a spill after
+  // that gets a notice of its own.
+  private void dispatchSpillNotice(final String name, final DispatchChannel channel, final byte[] message) {
+    Optional<byte[]> notice = ((SpillChannel)deadLetterChannel.get()).getSpillNotice(name, message);
+
+    if (notice.isPresent() && spillNotices.add(name)) {
+      executor.executeUnbounded(name, new Runnable() {
+        @Override
+        public void run() {
+          spillNotices.remove(name);
+          channel.onDispatchMessage(name, notice.get());
+        }
+      });
+    }
   }
 
   private void dispatchSubscription(final String name, final DispatchChannel channel) {
-    executor.execute(new Runnable() {
+    executor.execute(name, new Runnable() {
       @Override
       public void run() {
         channel.onDispatchSubscribed(name);
@@ -163,11 +282,83 @@ public class DispatchManager extends Thread {
   }
 
   private void dispatchUnsubscription(final String name, final DispatchChannel channel) {
-    executor.execute(new Runnable() {
+    executor.execute(name, new Runnable() {
       @Override
       public void run() {
         channel.onDispatchUnsubscribed(name);
       }
     });
   }
+
+  private static long hash(String value) {
+    try {
+      byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes(StandardCharsets.UTF_8));
+      long   result = 0;
+
+      for (int i=0;i<8;i++) {
+        result = (result << 8) | (digest[i] & 0xff);
+      }
+
+      return result;
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private class Shard extends Thread {
+
+    private final Set<String> channels   = ConcurrentHashMap.newKeySet();
+    private final AtomicLong  reconnects = new AtomicLong();
+
+    private volatile PubSubConnection pubSubConnection;
+    private volatile long             lastRead = System.currentTimeMillis();
+
+    private Shard(int index) {
+      super("DispatchManager-" + index);
+    }
+
+    @Override
+    public void run() {
+      while (running) {
+        try {
+          PubSubReply reply = pubSubConnection.read();
+          lastRead = System.currentTimeMillis();
+
+          switch (reply.getType()) {
+            case UNSUBSCRIBE:                             break;
+            case SUBSCRIBE:   dispatchSubscribe(reply);   break;
+            case MESSAGE:     dispatchMessage(reply);     break;
+            default:          throw new AssertionError("Unknown pubsub reply type! " + reply.getType());
+          }
+        } catch (IOException e) {
+          logger.warn("***** PubSub Connection Error on " + getName() + " *****", e);
+          if (running) {
+            this.pubSubConnection.close();
+            this.pubSubConnection = redisPubSubConnectionFactory.connect();
+            this.reconnects.incrementAndGet();
+            resubscribeAll();
+          }
+        }
+      }
+
+      logger.warn(getName() + " Shutting Down...");
+    }
+
+    private void resubscribeAll() {
+      new Thread() {
+        @Override
+        public void run() {
+          synchronized (DispatchManager.this) {
+            try {
+              for (String name : channels) {
+                pubSubConnection.subscribe(name);
+              }
+            } catch (IOException e) {
+              logger.warn("***** RESUBSCRIPTION ERROR *****", e);
+            }
+          }
+        }
+      }.start();
+    }
+  }
 }
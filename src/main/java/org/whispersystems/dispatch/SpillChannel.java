@@ -0,0 +1,19 @@
+package org.whispersystems.dispatch;
+
+import java.util.Optional;
+
+/**
+ * A dead letter channel that can also take messages refused by a full
+ * dispatch lane. Only messages it can fully handle on behalf of the
+ * subscriber should be spilled; everything else waits for the lane.
+ */
+public interface SpillChannel extends DispatchChannel {
+  public boolean canSpill(String channel, byte[] message);
+
+  /**
+   * @return a message to queue for the subscriber once a spilled message has
+   *         been handled, so that it knows to look for what it missed. At
+   *         most one is pending per channel at a time.
+   */
+  public Optional<byte[]> getSpillNotice(String channel, byte[] message);
+}
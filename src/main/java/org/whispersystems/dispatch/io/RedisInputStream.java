@@ -1,59 +1,122 @@
 package org.whispersystems.dispatch.io;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 
+/**
+ * Buffered RESP reader. Replies are parsed directly out of a single reused
+ * read buffer, so headers and integers never allocate, and bulk strings are
+ * copied exactly once into their destination.
+ */
 public class RedisInputStream {
 
   private static final byte CR = 0x0D;
   private static final byte LF = 0x0A;
 
+  private static final int BUFFER_SIZE = 8192;
+
   private final InputStream inputStream;
+  private final byte[]      buffer;
+
+  private int position;
+  private int limit;
 
   public RedisInputStream(InputStream inputStream) {
     this.inputStream = inputStream;
+    this.buffer      = new byte[BUFFER_SIZE];
   }
 
-  public String readLine() throws IOException {
-    ByteArrayOutputStream boas = new ByteArrayOutputStream();
+  public int readInt(char prefix) throws IOException {
+    byte type = readByte();
 
-    boolean foundCr = false;
+    if (type != prefix) {
+      throw new IOException("Invalid reply, expected '" + prefix + "' but got '" + (char)type + "'");
+    }
 
-    while (true) {
-      int character = inputStream.read();
+    boolean negative = false;
+    boolean digits   = false;
+    int     value    = 0;
+    byte    character;
 
-      if (character == -1) {
-        throw new IOException("Stream closed!");
+    if ((character = readByte()) == '-') {
+      negative  = true;
+      character = readByte();
+    }
+
+    while (character != CR) {
+      if (character < '0' || character > '9') {
+        throw new IOException("Invalid integer in '" + prefix + "' reply");
       }
 
-      boas.write(character);
+      int digit = character - '0';
+
+      if (value > (Integer.MAX_VALUE - digit) / 10) {
+        throw new IOException("Integer overflow in '" + prefix + "' reply");
+      }
 
-      if      (foundCr && character == LF) break;
-      else if (character == CR)            foundCr = true;
-      else if (foundCr)                    foundCr = false;
+      value     = value * 10 + digit;
+      digits    = true;
+      character = readByte();
     }
 
-    byte[] data = boas.toByteArray();
-    return new String(data, 0, data.length-2);
+    if (!digits || readByte() != LF) {
+      throw new IOException("Invalid integer in '" + prefix + "' reply");
+    }
+
+    return negative ? -value : value;
   }
 
-  public byte[] readFully(int size) throws IOException {
-    byte[] result    = new byte[size];
-    int    offset    = 0;
-    int    remaining = result.length;
+  public byte[] readBulkString() throws IOException {
+    byte[] result = readFully(readBulkStringLength());
+    readCrLf();
+
+    return result;
+  }
 
-    while (remaining > 0) {
-      int read = inputStream.read(result, offset, remaining);
+  public String readBulkStringAsString() throws IOException {
+    int length = readBulkStringLength();
 
-      if (read < 0) {
-        throw new IOException("Stream closed!");
-      }
+    if (length <= buffer.length) {
+      ensureAvailable(length);
 
-      offset    += read;
-      remaining -= read;
+      String result = new String(buffer, position, length, StandardCharsets.UTF_8);
+      position += length;
+      readCrLf();
+
+      return result;
     }
 
+    String result = new String(readFully(length), StandardCharsets.UTF_8);
+    readCrLf();
+
+    return result;
+  }
+
+  /**
+   * Reads a bulk string into the caller's scratch array without allocating.
+   *
+   * @return the length of the bulk string, or -1 if it didn't fit (in which case it is skipped).
+   */
+  public int readBulkString(byte[] destination) throws IOException {
+    int length = readBulkStringLength();
+
+    if (length > destination.length) {
+      skip(length);
+      readCrLf();
+      return -1;
+    }
+
+    readFully(destination, 0, length);
+    readCrLf();
+
+    return length;
+  }
+
+  public byte[] readFully(int size) throws IOException {
+    byte[] result = new byte[size];
+    readFully(result, 0, size);
+
     return result;
   }
 
@@ -61,4 +124,96 @@ public class RedisInputStream {
     inputStream.close();
   }
 
+  private void readFully(byte[] destination, int offset, int length) throws IOException {
+    int buffered = Math.min(limit - position, length);
+
+    System.arraycopy(buffer, position, destination, offset, buffered);
+    position += buffered;
+    offset   += buffered;
+    length   -= buffered;
+
+    if (length >= buffer.length) {
+      while (length > 0) {
+        int read = inputStream.read(destination, offset, length);
+
+        if (read < 0) {
+          throw new IOException("Stream closed!");
+        }
+
+        offset += read;
+        length -= read;
+      }
+    } else if (length > 0) {
+      ensureAvailable(length);
+      System.arraycopy(buffer, position, destination, offset, length);
+      position += length;
+    }
+  }
+
+  private int readBulkStringLength() throws IOException {
+    int length = readInt('$');
+
+    if (length < 0) {
+      throw new IOException("Unexpected null bulk string");
+    }
+
+    return length;
+  }
+
+  private void readCrLf() throws IOException {
+    if (readByte() != CR || readByte() != LF) {
+      throw new IOException("Expected CRLF");
+    }
+  }
+
+  private void skip(int length) throws IOException {
+    while (length > 0) {
+      if (position == limit) fill();
+
+      int skipped = Math.min(limit - position, length);
+      position += skipped;
+      length   -= skipped;
+    }
+  }
+
+  private byte readByte() throws IOException {
+    if (position == limit) fill();
+    return buffer[position++];
+  }
+
+  private void ensureAvailable(int length) throws IOException {
+    if (limit - position >= length) return;
+
+    if (position > 0) {
+      System.arraycopy(buffer, position, buffer, 0, limit - position);
+      limit    -= position;
+      position  = 0;
+    }
+
+    while (limit < length) {
+      int read = inputStream.read(buffer, limit, buffer.length - limit);
+
+      if (read < 0) {
+        throw new IOException("Stream closed!");
+      }
+
+      limit += read;
+    }
+  }
+
+  private void fill() throws IOException {
+    int read;
+
+    do {
+      read = inputStream.read(buffer, 0, buffer.length);
+    } while (read == 0);
+
+    if (read < 0) {
+      throw new IOException("Stream closed!");
+    }
+
+    position = 0;
+    limit    = read;
+  }
+
 }
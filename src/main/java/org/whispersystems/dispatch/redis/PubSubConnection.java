@@ -3,16 +3,11 @@ package org.whispersystems.dispatch.redis;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.whispersystems.dispatch.io.RedisInputStream;
-import org.whispersystems.dispatch.redis.protocol.ArrayReplyHeader;
-import org.whispersystems.dispatch.redis.protocol.IntReply;
-import org.whispersystems.dispatch.redis.protocol.StringReplyHeader;
 import org.whispersystems.dispatch.util.Util;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.Socket;
-import java.util.Arrays;
 import java.util.Optional;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -32,12 +27,14 @@ public class PubSubConnection {
   private final RedisInputStream inputStream;
   private final Socket           socket;
   private final AtomicBoolean    closed;
+  private final byte[]           replyType;
 
   public PubSubConnection(Socket socket) throws IOException {
     this.socket       = socket;
     this.outputStream = socket.getOutputStream();
-    this.inputStream  = new RedisInputStream(new BufferedInputStream(socket.getInputStream()));
+    this.inputStream  = new RedisInputStream(socket.getInputStream());
     this.closed       = new AtomicBoolean(false);
+    this.replyType    = new byte[UNSUBSCRIBE_TYPE.length];
   }
 
   public void subscribe(String channelName) throws IOException {
@@ -57,20 +54,18 @@ public class PubSubConnection {
   public PubSubReply read() throws IOException {
     if (closed.get()) throw new IOException("Connection closed!");
 
-    ArrayReplyHeader replyHeader = new ArrayReplyHeader(inputStream.readLine());
+    int elementCount = inputStream.readInt('*');
 
-    if (replyHeader.getElementCount() != 3) {
-      throw new IOException("Received array reply header with strange count: " + replyHeader.getElementCount());
+    if (elementCount != 3) {
+      throw new IOException("Received array reply header with strange count: " + elementCount);
     }
 
-    StringReplyHeader replyTypeHeader = new StringReplyHeader(inputStream.readLine());
-    byte[]            replyType       = inputStream.readFully(replyTypeHeader.getStringLength());
-    inputStream.readLine();
+    int replyTypeLength = inputStream.readBulkString(replyType);
 
-    if      (Arrays.equals(SUBSCRIBE_TYPE, replyType))   return readSubscribeReply();
-    else if (Arrays.equals(UNSUBSCRIBE_TYPE, replyType)) return readUnsubscribeReply();
-    else if (Arrays.equals(MESSAGE_TYPE, replyType))     return readMessageReply();
-    else throw new IOException("Unknown reply type: " + new String(replyType));
+    if      (Util.equals(SUBSCRIBE_TYPE, replyType, replyTypeLength))   return readSubscribeReply();
+    else if (Util.equals(UNSUBSCRIBE_TYPE, replyType, replyTypeLength)) return readUnsubscribeReply();
+    else if (Util.equals(MESSAGE_TYPE, replyType, replyTypeLength))     return readMessageReply();
+    else throw new IOException("Unknown reply type: " + (replyTypeLength < 0 ? "<too long>" : new String(replyType, 0, replyTypeLength)));
   }
 
   public void close() {
@@ -85,15 +80,10 @@ public class PubSubConnection {
   }
 
   private PubSubReply readMessageReply() throws IOException {
-    StringReplyHeader channelNameHeader = new StringReplyHeader(inputStream.readLine());
-    byte[]            channelName       = inputStream.readFully(channelNameHeader.getStringLength());
-    inputStream.readLine();
+    String channelName = inputStream.readBulkStringAsString();
+    byte[] message     = inputStream.readBulkString();
 
-    StringReplyHeader messageHeader = new StringReplyHeader(inputStream.readLine());
-    byte[]            message       = inputStream.readFully(messageHeader.getStringLength());
-    inputStream.readLine();
-
-    return new PubSubReply(PubSubReply.Type.MESSAGE, new String(channelName), Optional.of(message));
+    return new PubSubReply(PubSubReply.Type.MESSAGE, channelName, Optional.of(message));
   }
 
   private PubSubReply readUnsubscribeReply() throws IOException {
@@ -107,13 +97,10 @@ public class PubSubConnection {
   }
 
   private String readSubscriptionReply() throws IOException {
-    StringReplyHeader channelNameHeader = new StringReplyHeader(inputStream.readLine());
-    byte[]            channelName       = inputStream.readFully(channelNameHeader.getStringLength());
-    inputStream.readLine();
-
-    IntReply subscriptionCount = new IntReply(inputStream.readLine());
+    String channelName       = inputStream.readBulkStringAsString();
+    int    subscriptionCount = inputStream.readInt(':');
 
-    return new String(channelName);
+    return channelName;
   }
 
 }
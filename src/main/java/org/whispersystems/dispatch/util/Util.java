@@ -25,6 +25,15 @@ public class Util {
     }
   }
 
+  public static boolean equals(byte[] expected, byte[] actual, int actualLength) {
+    if (expected.length != actualLength) return false;
+
+    for (int i=0;i<actualLength;i++) {
+      if (expected[i] != actual[i]) return false;
+    }
+
+    return true;
+  }
 
   public static void sleep(long millis) {
     try {
@@ -111,6 +111,26 @@ public class WhisperServerConfiguration extends Configuration {
   @JsonProperty
   private RateLimitsConfiguration limits = new RateLimitsConfiguration();
 
+  @Valid
+  @NotNull
+  @JsonProperty
+  private DispatchConfiguration dispatch = new DispatchConfiguration();
+
+  @Valid
+  @NotNull
+  @JsonProperty
+  private AccountNearCacheConfiguration accountNearCache = new AccountNearCacheConfiguration();
+
+  @Valid
+  @NotNull
+  @JsonProperty
+  private LastSeenConfiguration lastSeen = new LastSeenConfiguration();
+
+  @Valid
+  @NotNull
+  @JsonProperty
+  private PreKeysConfiguration preKeys = new PreKeysConfiguration();
+
   @Valid
   @NotNull
   @JsonProperty
@@ -221,6 +241,22 @@ public class WhisperServerConfiguration extends Configuration {
     return limits;
   }
 
+  public DispatchConfiguration getDispatchConfiguration() {
+    return dispatch;
+  }
+
+  public AccountNearCacheConfiguration getAccountNearCacheConfiguration() {
+    return accountNearCache;
+  }
+
+  public LastSeenConfiguration getLastSeenConfiguration() {
+    return lastSeen;
+  }
+
+  public PreKeysConfiguration getPreKeysConfiguration() {
+    return preKeys;
+  }
+
   public TurnConfiguration getTurnConfiguration() {
     return turn;
   }
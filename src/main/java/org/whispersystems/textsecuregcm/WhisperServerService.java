@@ -24,11 +24,13 @@ import com.fasterxml.jackson.databind.DeserializationFeature;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.eclipse.jetty.servlets.CrossOriginFilter;
 import org.jdbi.v3.core.Jdbi;
+import org.whispersystems.dispatch.DispatchExecutor;
 import org.whispersystems.dispatch.DispatchManager;
 import org.whispersystems.textsecuregcm.auth.AccountAuthenticator;
 import org.whispersystems.textsecuregcm.auth.CertificateGenerator;
 import org.whispersystems.textsecuregcm.auth.DirectoryCredentialsGenerator;
 import org.whispersystems.textsecuregcm.auth.TurnTokenGenerator;
+import org.whispersystems.textsecuregcm.configuration.DirectoryIndexConfiguration;
 import org.whispersystems.textsecuregcm.controllers.AccountController;
 import org.whispersystems.textsecuregcm.controllers.AttachmentController;
 import org.whispersystems.textsecuregcm.controllers.CertificateController;
@@ -52,6 +54,7 @@ import org.whispersystems.textsecuregcm.metrics.FileDescriptorGauge;
 import org.whispersystems.textsecuregcm.metrics.FreeMemoryGauge;
 import org.whispersystems.textsecuregcm.metrics.NetworkReceivedGauge;
 import org.whispersystems.textsecuregcm.metrics.NetworkSentGauge;
+import org.whispersystems.textsecuregcm.providers.AccountRequestContextFilter;
 import org.whispersystems.textsecuregcm.providers.RedisClientFactory;
 import org.whispersystems.textsecuregcm.providers.RedisHealthCheck;
 import org.whispersystems.textsecuregcm.push.APNSender;
@@ -86,6 +89,8 @@ import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static com.codahale.metrics.MetricRegistry.name;
 import io.dropwizard.Application;
@@ -167,20 +172,29 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
     ReplicatedJedisPool messagesClient      = messagesClientFactory.getRedisClientPool();
     ReplicatedJedisPool pushSchedulerClient = pushSchedulerClientFactory.getRedisClientPool();
 
-    DirectoryManager           directory                  = new DirectoryManager(directoryClient);
+    DirectoryIndexConfiguration directoryIndexConfig = config.getDirectoryConfiguration().getDirectoryIndexConfiguration();
+
+    Optional<DirectoryIndex>   directoryIndex             = directoryIndexConfig.isEnabled() ? Optional.of(new DirectoryIndex(directoryClient, new DispatchManager(directoryClientFactory, Optional.empty(), 1, new DispatchExecutor(1, directoryIndexConfig.getDispatchLaneCapacity(), DispatchExecutor.OverflowPolicy.BLOCK)), directoryIndexConfig.getRefreshIntervalMinutes(), TimeUnit.MINUTES, directoryIndexConfig.getScanCount(), directoryIndexConfig.getMaxOverlaySize())) : Optional.empty();
+    ExecutorService            directoryLookupExecutor    = environment.lifecycle().executorService("directory-lookup-%d").minThreads(config.getDirectoryConfiguration().getDirectoryLookupConfiguration().getThreads()).maxThreads(config.getDirectoryConfiguration().getDirectoryLookupConfiguration().getThreads()).build();
+    DirectoryManager           directory                  = new DirectoryManager(directoryClient, directoryIndex, directoryLookupExecutor, config.getDirectoryConfiguration().getDirectoryLookupConfiguration().getChunkSize(), config.getDirectoryConfiguration().isCompactValues());
     DirectoryQueue             directoryQueue             = new DirectoryQueue(config.getDirectoryConfiguration().getSqsConfiguration());
     PendingAccountsManager     pendingAccountsManager     = new PendingAccountsManager(pendingAccounts, cacheClient);
     PendingDevicesManager      pendingDevicesManager      = new PendingDevicesManager (pendingDevices, cacheClient );
-    AccountsManager            accountsManager            = new AccountsManager(accounts, directory, cacheClient);
-    MessagesCache              messagesCache              = new MessagesCache(messagesClient, messages, accountsManager, config.getMessageCacheConfiguration().getPersistDelayMinutes());
+    Optional<AccountNearCache> accountNearCache           = config.getAccountNearCacheConfiguration().getMaximumSize() > 0 ? Optional.of(new AccountNearCache(config.getAccountNearCacheConfiguration().getMaximumSize(), config.getAccountNearCacheConfiguration().getExpirationSeconds(), config.getAccountNearCacheConfiguration().getMissingExpirationSeconds(), TimeUnit.SECONDS)) : Optional.empty();
+    AccountsManager            accountsManager            = new AccountsManager(accounts, directory, cacheClient, accountNearCache);
+    MessagesCache              messagesCache              = new MessagesCache(messagesClient, messages, accountsManager, config.getMessageCacheConfiguration().getPersistDelayMinutes(), config.getMessageCacheConfiguration().getPersistWorkers(), config.getMessageCacheConfiguration().getPersistLeaseSeconds());
+    KeysCache                  keysCache                  = new KeysCache(messagesClient, keys);
+    KeysManager                keysManager                = new KeysManager(keys, keysCache, config.getPreKeysConfiguration().getMaxKeys());
     MessagesManager            messagesManager            = new MessagesManager(messages, messagesCache);
     DeadLetterHandler          deadLetterHandler          = new DeadLetterHandler(messagesManager);
-    DispatchManager            dispatchManager            = new DispatchManager(cacheClientFactory, Optional.of(deadLetterHandler));
+    DispatchExecutor           dispatchExecutor           = new DispatchExecutor(config.getDispatchConfiguration().getLanes(), config.getDispatchConfiguration().getLaneCapacity(), config.getDispatchConfiguration().getOverflowPolicy());
+    DispatchManager            dispatchManager            = new DispatchManager(cacheClientFactory, Optional.of(deadLetterHandler), config.getCacheConfiguration().getPubSubConnections(), dispatchExecutor);
     PubSubManager              pubSubManager              = new PubSubManager(cacheClient, dispatchManager);
     APNSender                  apnSender                  = new APNSender(accountsManager, config.getApnConfiguration());
     GCMSender                  gcmSender                  = new GCMSender(accountsManager, config.getGcmConfiguration().getApiKey(), directoryQueue);
     WebsocketSender            websocketSender            = new WebsocketSender(messagesManager, pubSubManager);
-    AccountAuthenticator       deviceAuthenticator        = new AccountAuthenticator(accountsManager                 );
+    LastSeenWriter             lastSeenWriter             = new LastSeenWriter(accountsManager, config.getLastSeenConfiguration().getMaxPending(), config.getLastSeenConfiguration().getBatchSize(), config.getLastSeenConfiguration().getFlushIntervalMs());
+    AccountAuthenticator       deviceAuthenticator        = new AccountAuthenticator(accountsManager, Optional.of(lastSeenWriter));
     RateLimiters               rateLimiters               = new RateLimiters(config.getLimitsConfiguration(), cacheClient);
 
     ApnFallbackManager       apnFallbackManager  = new ApnFallbackManager(pushSchedulerClient, apnSender, accountsManager);
@@ -201,20 +215,24 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
     //List<AccountDatabaseCrawlerListener>       accountDatabaseCrawlerListeners = Arrays.asList(activeUserCounter, directoryReconciler);
     //
     //AccountDatabaseCrawlerCache accountDatabaseCrawlerCache = new AccountDatabaseCrawlerCache(cacheClient);
-    //AccountDatabaseCrawler      accountDatabaseCrawler      = new AccountDatabaseCrawler(accounts, accountDatabaseCrawlerCache, accountDatabaseCrawlerListeners, config.getAccountDatabaseCrawlerConfiguration().getChunkSize(), config.getAccountDatabaseCrawlerConfiguration().getChunkIntervalMs());
+    //AccountDatabaseCrawler      accountDatabaseCrawler      = new AccountDatabaseCrawler(accounts, accountDatabaseCrawlerCache, accountDatabaseCrawlerListeners, config.getAccountDatabaseCrawlerConfiguration().getChunkSize(), config.getAccountDatabaseCrawlerConfiguration().getChunkIntervalMs(), config.getAccountDatabaseCrawlerConfiguration().getPartitions(), config.getAccountDatabaseCrawlerConfiguration().getRangeWorkers());
 
     messagesCache.setPubSubManager(pubSubManager, pushSender);
+    accountNearCache.ifPresent(cache -> pubSubManager.subscribe(AccountNearCache.INVALIDATION_ADDRESS, cache));
 
     apnSender.setApnFallbackManager(apnFallbackManager);
     environment.lifecycle().manage(apnFallbackManager);
     environment.lifecycle().manage(pubSubManager);
     environment.lifecycle().manage(pushSender);
     environment.lifecycle().manage(messagesCache);
+    environment.lifecycle().manage(keysCache);
+    environment.lifecycle().manage(lastSeenWriter);
+    directoryIndex.ifPresent(index -> environment.lifecycle().manage(index));
     //environment.lifecycle().manage(directoryReconciler);
     //environment.lifecycle().manage(accountDatabaseCrawler);
 
     AttachmentController attachmentController = new AttachmentController(rateLimiters, urlSigner);
-    KeysController       keysController       = new KeysController(rateLimiters, keys, accountsManager, directoryQueue);
+    KeysController       keysController       = new KeysController(rateLimiters, keysManager, accountsManager, directoryQueue);
     MessageController    messageController    = new MessageController(rateLimiters, pushSender, receiptSender, accountsManager, messagesManager, apnFallbackManager);
     ProfileController    profileController    = new ProfileController(rateLimiters , accountsManager, config.getProfilesConfiguration());
 
@@ -222,6 +240,7 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
                                                              .setAuthenticator(deviceAuthenticator)
                                                              .buildAuthFilter()));
     environment.jersey().register(new AuthValueFactoryProvider.Binder<>(Account.class));
+    environment.jersey().register(new AccountRequestContextFilter());
 
     environment.jersey().register(new AccountController(pendingAccountsManager, accountsManager, null, rateLimiters, smsSender, messagesManager, turnTokenGenerator, config.getTestDevices(), recaptchaClient));
     environment.jersey().register(new DeviceController(pendingDevicesManager, accountsManager, messagesManager, rateLimiters, config.getMaxDevices()));
@@ -240,6 +259,7 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
     WebSocketEnvironment webSocketEnvironment = new WebSocketEnvironment(environment, config.getWebSocketConfiguration(), 90000);
     webSocketEnvironment.setAuthenticator(new WebSocketAccountAuthenticator(deviceAuthenticator));
     webSocketEnvironment.setConnectListener(new AuthenticatedConnectListener(pushSender, receiptSender, messagesManager, pubSubManager, apnFallbackManager));
+    webSocketEnvironment.jersey().register(new AccountRequestContextFilter());
     webSocketEnvironment.jersey().register(new KeepAliveController(pubSubManager));
     webSocketEnvironment.jersey().register(messageController);
     webSocketEnvironment.jersey().register(profileController);
@@ -24,6 +24,7 @@ import org.slf4j.LoggerFactory;
 import org.whispersystems.textsecuregcm.storage.Account;
 import org.whispersystems.textsecuregcm.storage.AccountsManager;
 import org.whispersystems.textsecuregcm.storage.Device;
+import org.whispersystems.textsecuregcm.storage.LastSeenWriter;
 import org.whispersystems.textsecuregcm.util.Constants;
 import org.whispersystems.textsecuregcm.util.Util;
 
@@ -42,10 +43,16 @@ public class AccountAuthenticator implements Authenticator<BasicCredentials, Acc
 
   private final Logger logger = LoggerFactory.getLogger(AccountAuthenticator.class);
 
-  private final AccountsManager accountsManager;
+  private final AccountsManager          accountsManager;
+  private final Optional<LastSeenWriter> lastSeenWriter;
 
   public AccountAuthenticator(AccountsManager accountsManager) {
+    this(accountsManager, Optional.empty());
+  }
+
+  public AccountAuthenticator(AccountsManager accountsManager, Optional<LastSeenWriter> lastSeenWriter) {
     this.accountsManager = accountsManager;
+    this.lastSeenWriter  = lastSeenWriter;
   }
 
   @Override
@@ -85,9 +92,13 @@ public class AccountAuthenticator implements Authenticator<BasicCredentials, Acc
   }
 
   private void updateLastSeen(Account account, Device device) {
-    if (device.getLastSeen() != Util.todayInMillis()) {
-      device.setLastSeen(Util.todayInMillis());
-      accountsManager.update(account);
+    long today = Util.todayInMillis();
+
+    if (device.getLastSeen() != today) {
+      device.setLastSeen(today);
+
+      if (lastSeenWriter.isPresent()) lastSeenWriter.get().update(account.getNumber(), device.getId(), today);
+      else                            accountsManager.update(account);
     }
   }
 
@@ -16,22 +16,29 @@
  */
 package org.whispersystems.textsecuregcm.auth;
 
+import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
-import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 
 public class AuthenticationCredentials {
 
-  private final Logger logger = LoggerFactory.getLogger(AuthenticationCredentials.class);
+  private static final ThreadLocal<MessageDigest> digest = ThreadLocal.withInitial(() -> {
+    try {
+      return MessageDigest.getInstance("SHA1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  });
 
   private final String hashedAuthenticationToken;
   private final String salt;
 
+  private volatile byte[] hashedAuthenticationTokenBytes;
+
   public AuthenticationCredentials(String hashedAuthenticationToken, String salt) {
     this.hashedAuthenticationToken = hashedAuthenticationToken;
     this.salt                      = salt;
@@ -39,7 +46,7 @@ public class AuthenticationCredentials {
 
   public AuthenticationCredentials(String authenticationToken) {
     this.salt                      = Math.abs(new SecureRandom().nextInt()) + "";
-    this.hashedAuthenticationToken = getHashedValue(salt, authenticationToken);
+    this.hashedAuthenticationToken = new String(Hex.encodeHex(getHashedValue(salt, authenticationToken)));
   }
 
   public String getHashedAuthenticationToken() {
@@ -51,22 +58,39 @@ public class AuthenticationCredentials {
   }
 
   public boolean verify(String authenticationToken) {
-    String theirValue = getHashedValue(salt, authenticationToken);
+    if (hashedAuthenticationToken == null) {
+      return false;
+    }
+
+    byte[] ourValue = getHashedAuthenticationTokenBytes();
 
-    logger.debug("Comparing: " + theirValue + " , " + this.hashedAuthenticationToken);
+    if (ourValue == null) {
+      return false;
+    }
 
-    return theirValue.equals(this.hashedAuthenticationToken);
+    return MessageDigest.isEqual(getHashedValue(salt, authenticationToken), ourValue);
   }
 
-  private static String getHashedValue(String salt, String token) {
-    Logger logger = LoggerFactory.getLogger(AuthenticationCredentials.class);
-    logger.debug("Getting hashed token: " + salt + " , " + token);
+  private byte[] getHashedAuthenticationTokenBytes() {
+    byte[] value = hashedAuthenticationTokenBytes;
 
-    try {
-      return new String(Hex.encodeHex(MessageDigest.getInstance("SHA1").digest((salt + token).getBytes("UTF-8"))));
-    } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
-      throw new AssertionError(e);
+    if (value == null) {
+      try {
+        value = Hex.decodeHex(hashedAuthenticationToken.toCharArray());
+        hashedAuthenticationTokenBytes = value;
+      } catch (DecoderException e) {
+        return null;
+      }
     }
+
+    return value;
+  }
+
+  private static byte[] getHashedValue(String salt, String token) {
+    MessageDigest messageDigest = digest.get();
+
+    messageDigest.update(String.valueOf(salt).getBytes(StandardCharsets.UTF_8));
+    return messageDigest.digest(String.valueOf(token).getBytes(StandardCharsets.UTF_8));
   }
 
 }
@@ -18,6 +18,8 @@ package org.whispersystems.textsecuregcm.configuration;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 
+import javax.validation.constraints.Min;
+
 public class AccountDatabaseCrawlerConfiguration {
 
   @JsonProperty
@@ -26,6 +28,16 @@ public class AccountDatabaseCrawlerConfiguration {
   @JsonProperty
   private long chunkIntervalMs = 8000L;
 
+  /** Ranges the account table is split into for listeners that can take chunks concurrently; 1 crawls in order. */
+  @JsonProperty
+  @Min(1)
+  private int partitions = 1;
+
+  /** Threads per node crawling ranges, each waiting chunkIntervalMs between chunks. */
+  @JsonProperty
+  @Min(1)
+  private int rangeWorkers = 1;
+
   public int getChunkSize() {
     return chunkSize;
   }
@@ -33,4 +45,12 @@ public class AccountDatabaseCrawlerConfiguration {
   public long getChunkIntervalMs() {
     return chunkIntervalMs;
   }
+
+  public int getPartitions() {
+    return partitions;
+  }
+
+  public int getRangeWorkers() {
+    return rangeWorkers;
+  }
 }
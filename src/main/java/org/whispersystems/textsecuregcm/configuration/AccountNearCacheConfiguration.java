@@ -0,0 +1,34 @@
+package org.whispersystems.textsecuregcm.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import javax.validation.constraints.Min;
+
+public class AccountNearCacheConfiguration {
+
+  /** Maximum number of accounts held in process; 0 disables the near cache. */
+  @JsonProperty
+  @Min(0)
+  private long maximumSize = 100_000;
+
+  @JsonProperty
+  @Min(1)
+  private long expirationSeconds = 60;
+
+  /** How long a number with no account is remembered as missing; 0 disables this. */
+  @JsonProperty
+  @Min(0)
+  private long missingExpirationSeconds = 5;
+
+  public long getMaximumSize() {
+    return maximumSize;
+  }
+
+  public long getExpirationSeconds() {
+    return expirationSeconds;
+  }
+
+  public long getMissingExpirationSeconds() {
+    return missingExpirationSeconds;
+  }
+}
@@ -43,6 +43,20 @@ public class DirectoryConfiguration {
   @Valid
   private DirectoryServerConfiguration server;
 
+  @JsonProperty
+  @NotNull
+  @Valid
+  private DirectoryIndexConfiguration index = new DirectoryIndexConfiguration();
+
+  @JsonProperty
+  @NotNull
+  @Valid
+  private DirectoryLookupConfiguration lookup = new DirectoryLookupConfiguration();
+
+  /** Write directory values as a flags byte instead of JSON; either is read. */
+  @JsonProperty
+  private boolean compactValues = false;
+
   public RedisConfiguration getRedisConfiguration() {
     return redis;
   }
@@ -59,4 +73,16 @@ public class DirectoryConfiguration {
     return server;
   }
 
+  public DirectoryIndexConfiguration getDirectoryIndexConfiguration() {
+    return index;
+  }
+
+  public DirectoryLookupConfiguration getDirectoryLookupConfiguration() {
+    return lookup;
+  }
+
+  public boolean isCompactValues() {
+    return compactValues;
+  }
+
 }
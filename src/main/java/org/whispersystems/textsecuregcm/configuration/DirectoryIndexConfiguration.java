@@ -0,0 +1,50 @@
+package org.whispersystems.textsecuregcm.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import javax.validation.constraints.Min;
+
+public class DirectoryIndexConfiguration {
+
+  /** Serve contact intersection from an in-process copy of the directory. */
+  @JsonProperty
+  private boolean enabled = false;
+
+  /** How often the copy is reloaded even if no update was missed. */
+  @JsonProperty
+  @Min(1)
+  private long refreshIntervalMinutes = 60;
+
+  @JsonProperty
+  @Min(1)
+  private int scanCount = 10000;
+
+  /** Updates held on top of the copy before it's reloaded early. */
+  @JsonProperty
+  @Min(1)
+  private int maxOverlaySize = 100000;
+
+  @JsonProperty
+  @Min(1)
+  private int dispatchLaneCapacity = 1000;
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public long getRefreshIntervalMinutes() {
+    return refreshIntervalMinutes;
+  }
+
+  public int getScanCount() {
+    return scanCount;
+  }
+
+  public int getMaxOverlaySize() {
+    return maxOverlaySize;
+  }
+
+  public int getDispatchLaneCapacity() {
+    return dispatchLaneCapacity;
+  }
+}
@@ -0,0 +1,26 @@
+package org.whispersystems.textsecuregcm.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import javax.validation.constraints.Min;
+
+public class DirectoryLookupConfiguration {
+
+  /** Tokens per HMGET when the directory is read from redis. */
+  @JsonProperty
+  @Min(1)
+  private int chunkSize = 100;
+
+  /** Threads, shared by all requests, that look up chunks in parallel across the read replicas. */
+  @JsonProperty
+  @Min(1)
+  private int threads = 4;
+
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  public int getThreads() {
+    return threads;
+  }
+}
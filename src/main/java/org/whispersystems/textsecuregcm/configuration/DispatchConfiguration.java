@@ -0,0 +1,34 @@
+package org.whispersystems.textsecuregcm.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.whispersystems.dispatch.DispatchExecutor;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+public class DispatchConfiguration {
+
+  @JsonProperty
+  @Min(1)
+  private int lanes = 16;
+
+  @JsonProperty
+  @Min(1)
+  private int laneCapacity = 1000;
+
+  @JsonProperty
+  @NotNull
+  private DispatchExecutor.OverflowPolicy overflowPolicy = DispatchExecutor.OverflowPolicy.BLOCK;
+
+  public int getLanes() {
+    return lanes;
+  }
+
+  public int getLaneCapacity() {
+    return laneCapacity;
+  }
+
+  public DispatchExecutor.OverflowPolicy getOverflowPolicy() {
+    return overflowPolicy;
+  }
+}
@@ -0,0 +1,34 @@
+package org.whispersystems.textsecuregcm.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import javax.validation.constraints.Min;
+
+public class LastSeenConfiguration {
+
+  /** Devices awaiting a lastSeen write beyond which new sightings are dropped. */
+  @JsonProperty
+  @Min(1)
+  private int maxPending = 500_000;
+
+  /** Devices written per flush; with flushIntervalMs this caps the write rate. */
+  @JsonProperty
+  @Min(1)
+  private int batchSize = 500;
+
+  @JsonProperty
+  @Min(1)
+  private long flushIntervalMs = 250;
+
+  public int getMaxPending() {
+    return maxPending;
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  public long getFlushIntervalMs() {
+    return flushIntervalMs;
+  }
+}
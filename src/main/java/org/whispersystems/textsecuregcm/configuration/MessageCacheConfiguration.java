@@ -3,6 +3,7 @@ package org.whispersystems.textsecuregcm.configuration;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import javax.validation.Valid;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 
 public class MessageCacheConfiguration {
@@ -15,6 +16,14 @@ public class MessageCacheConfiguration {
   @JsonProperty
   private int persistDelayMinutes = 10;
 
+  @JsonProperty
+  @Min(1)
+  private int persistWorkers = 1;
+
+  @JsonProperty
+  @Min(1)
+  private int persistLeaseSeconds = 60;
+
   public RedisConfiguration getRedisConfiguration() {
     return redis;
   }
@@ -23,4 +32,12 @@ public class MessageCacheConfiguration {
     return persistDelayMinutes;
   }
 
+  public int getPersistWorkers() {
+    return persistWorkers;
+  }
+
+  public int getPersistLeaseSeconds() {
+    return persistLeaseSeconds;
+  }
+
 }
@@ -0,0 +1,17 @@
+package org.whispersystems.textsecuregcm.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import javax.validation.constraints.Min;
+
+public class PreKeysConfiguration {
+
+  /** Keys kept per device after an append; the oldest uploads are trimmed first. */
+  @JsonProperty
+  @Min(1)
+  private int maxKeys = 1000;
+
+  public int getMaxKeys() {
+    return maxKeys;
+  }
+}
@@ -132,6 +132,16 @@ public class RateLimitsConfiguration {
     @JsonProperty
     private double leakRatePerMinute;
 
+    /**
+     * Tokens a node may take from the shared bucket at once and spend locally,
+     * for limiters that support it. 0 checks redis on every call.
+     */
+    @JsonProperty
+    private int localLease;
+
+    @JsonProperty
+    private int localLeaseSeconds = 10;
+
     public RateLimitConfiguration(int bucketSize, double leakRatePerMinute) {
       this.bucketSize        = bucketSize;
       this.leakRatePerMinute = leakRatePerMinute;
@@ -146,5 +156,13 @@ public class RateLimitsConfiguration {
     public double getLeakRatePerMinute() {
       return leakRatePerMinute;
     }
+
+    public int getLocalLease() {
+      return localLease;
+    }
+
+    public int getLocalLeaseSeconds() {
+      return localLeaseSeconds;
+    }
   }
 }
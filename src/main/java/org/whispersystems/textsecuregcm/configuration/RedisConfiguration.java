@@ -22,6 +22,7 @@ import org.hibernate.validator.constraints.NotEmpty;
 import org.hibernate.validator.constraints.URL;
 
 import javax.validation.Valid;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 import java.util.List;
 
@@ -40,6 +41,10 @@ public class RedisConfiguration {
   @Valid
   private CircuitBreakerConfiguration circuitBreaker = new CircuitBreakerConfiguration();
 
+  @JsonProperty
+  @Min(1)
+  private int pubSubConnections = 1;
+
   public String getUrl() {
     return url;
   }
@@ -51,4 +56,8 @@ public class RedisConfiguration {
   public CircuitBreakerConfiguration getCircuitBreakerConfiguration() {
     return circuitBreaker;
   }
+
+  public int getPubSubConnections() {
+    return pubSubConnections;
+  }
 }
@@ -46,12 +46,18 @@ import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 
 import static com.codahale.metrics.MetricRegistry.name;
 import io.dropwizard.auth.Auth;
@@ -66,6 +72,11 @@ public class DirectoryController {
       "unexpected-error",
   };
 
+  private static final int TOKEN_LENGTH = 10;
+
+  // A multiple of eight, so every block but the last fills whole bitmap bytes.
+  private static final int BINARY_LOOKUP_BLOCK_SIZE = 1024;
+
   private final Logger         logger            = LoggerFactory.getLogger(DirectoryController.class);
   private final MetricRegistry metricRegistry    = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
   private final Histogram      contactsHistogram = metricRegistry.histogram(name(getClass(), "contacts"));
@@ -193,6 +204,63 @@ public class DirectoryController {
     }
   }
 
+  /**
+   * The same intersection as {@link #getContactIntersection}, without JSON or
+   * base64. The request is the 10-byte tokens back to back. The response is a
+   * bitmap with one bit per requested token, in request order and most
+   * significant bit first, set if the token is registered. It is streamed
+   * as each block of tokens is looked up.
+   *
+   * Voice and video are always set for registered accounts and relays are no
+   * longer used, so the bitmap carries everything the JSON response does.
+   */
+  @Timed
+  @PUT
+  @Path("/tokens")
+  @Produces(MediaType.APPLICATION_OCTET_STREAM)
+  @Consumes(MediaType.APPLICATION_OCTET_STREAM)
+  public StreamingOutput getContactIntersectionBitmap(@Auth Account account, byte[] contacts)
+      throws RateLimitExceededException
+  {
+    if (contacts == null || contacts.length % TOKEN_LENGTH != 0) {
+      throw new WebApplicationException(Response.status(400).build());
+    }
+
+    int count = contacts.length / TOKEN_LENGTH;
+
+    rateLimiters.getContactsLimiter().validate(account.getNumber(), count);
+    contactsHistogram.update(count);
+
+    return output -> {
+      for (int offset=0;offset<count;offset+=BINARY_LOOKUP_BLOCK_SIZE) {
+        int          blockSize = Math.min(BINARY_LOOKUP_BLOCK_SIZE, count - offset);
+        List<byte[]> tokens    = new ArrayList<>(blockSize);
+
+        for (int i=0;i<blockSize;i++) {
+          int start = (offset + i) * TOKEN_LENGTH;
+          tokens.add(Arrays.copyOfRange(contacts, start, start + TOKEN_LENGTH));
+        }
+
+        Set<ByteBuffer> registered = new HashSet<>();
+
+        for (ClientContact contact : directory.get(tokens)) {
+          registered.add(ByteBuffer.wrap(contact.getToken()));
+        }
+
+        byte[] bitmap = new byte[(blockSize + 7) / 8];
+
+        for (int i=0;i<blockSize;i++) {
+          if (registered.contains(ByteBuffer.wrap(tokens.get(i)))) {
+            bitmap[i / 8] |= 0x80 >>> (i % 8);
+          }
+        }
+
+        output.write(bitmap);
+        output.flush();
+      }
+    };
+  }
+
   private byte[] decodeToken(String encoded) throws IOException {
     return Base64.decodeWithoutPadding(encoded.replace('-', '+').replace('_', '/'));
   }
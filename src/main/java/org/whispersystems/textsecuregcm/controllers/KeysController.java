@@ -22,6 +22,10 @@ import org.slf4j.LoggerFactory;
 import org.whispersystems.textsecuregcm.auth.Anonymous;
 import org.whispersystems.textsecuregcm.auth.OptionalAccess;
 import org.whispersystems.textsecuregcm.entities.PreKey;
+import org.whispersystems.textsecuregcm.entities.PreKeyBatchRequest;
+import org.whispersystems.textsecuregcm.entities.PreKeyBatchRequestItem;
+import org.whispersystems.textsecuregcm.entities.PreKeyBatchResponse;
+import org.whispersystems.textsecuregcm.entities.PreKeyBatchResponseItem;
 import org.whispersystems.textsecuregcm.entities.PreKeyCount;
 import org.whispersystems.textsecuregcm.entities.PreKeyResponse;
 import org.whispersystems.textsecuregcm.entities.PreKeyResponseItem;
@@ -33,22 +37,28 @@ import org.whispersystems.textsecuregcm.storage.Account;
 import org.whispersystems.textsecuregcm.storage.AccountsManager;
 import org.whispersystems.textsecuregcm.storage.Device;
 import org.whispersystems.textsecuregcm.storage.KeyRecord;
-import org.whispersystems.textsecuregcm.storage.Keys;
+import org.whispersystems.textsecuregcm.storage.KeysManager;
+import org.whispersystems.textsecuregcm.util.Pair;
 
 import javax.validation.Valid;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
 import javax.ws.rs.HeaderParam;
+import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 
 import io.dropwizard.auth.Auth;
 
@@ -59,11 +69,11 @@ public class KeysController {
   private static final Logger logger = LoggerFactory.getLogger(KeysController.class);
 
   private final RateLimiters    rateLimiters;
-  private final Keys            keys;
+  private final KeysManager     keys;
   private final AccountsManager accounts;
   private final DirectoryQueue  directoryQueue;
 
-  public KeysController(RateLimiters rateLimiters, Keys keys, AccountsManager accounts, DirectoryQueue directoryQueue) {
+  public KeysController(RateLimiters rateLimiters, KeysManager keys, AccountsManager accounts, DirectoryQueue directoryQueue) {
     this.rateLimiters   = rateLimiters;
     this.keys           = keys;
     this.accounts       = accounts;
@@ -85,10 +95,11 @@ public class KeysController {
   @Timed
   @PUT
   @Consumes(MediaType.APPLICATION_JSON)
-  public void setKeys(@Auth Account account, @Valid PreKeyState preKeys)  {
+  public void setKeys(@Auth Account account, @Valid PreKeyState preKeys, @QueryParam("append") boolean append)  {
     Device  device           = account.getAuthenticatedDevice().get();
     boolean wasAccountActive = account.isActive();
     boolean updateAccount    = false;
+    boolean identityChanged  = false;
 
     if (!preKeys.getSignedPreKey().equals(device.getSignedPreKey())) {
       device.setSignedPreKey(preKeys.getSignedPreKey());
@@ -97,7 +108,8 @@ public class KeysController {
 
     if (!preKeys.getIdentityKey().equals(account.getIdentityKey())) {
       account.setIdentityKey(preKeys.getIdentityKey());
-      updateAccount = true;
+      updateAccount   = true;
+      identityChanged = true;
     }
 
     if (updateAccount) {
@@ -108,7 +120,9 @@ public class KeysController {
       }
     }
 
-    keys.store(account.getNumber(), device.getId(), preKeys.getPreKeys());
+    // Keys signed under a previous identity are useless, so a new identity always replaces them
+    if (append && !identityChanged) keys.append(account.getNumber(), device.getId(), preKeys.getPreKeys());
+    else                            keys.store(account.getNumber(), device.getId(), preKeys.getPreKeys());
   }
 
   @Timed
@@ -135,27 +149,69 @@ public class KeysController {
     }
 
     List<KeyRecord>          targetKeys = getLocalKeys(target.get(), deviceId);
-    List<PreKeyResponseItem> devices    = new LinkedList<>();
+    List<PreKeyResponseItem> devices    = getResponseItems(target.get(), deviceId, targetKeys);
 
-    for (Device device : target.get().getDevices()) {
-      if (device.isActive() && (deviceId.equals("*") || device.getId() == Long.parseLong(deviceId))) {
-        SignedPreKey signedPreKey = device.getSignedPreKey();
-        PreKey preKey       = null;
+    if (devices.isEmpty()) return Optional.empty();
+    else                   return Optional.of(new PreKeyResponse(target.get().getIdentityKey(), devices));
+  }
+
+  @Timed
+  @POST
+  @Path("/batch")
+  @Consumes(MediaType.APPLICATION_JSON)
+  @Produces(MediaType.APPLICATION_JSON)
+  public PreKeyBatchResponse getBatchKeys(@Auth Account account, @Valid PreKeyBatchRequest request)
+      throws RateLimitExceededException
+  {
+    Set<String> numbers     = new LinkedHashSet<>();
+    Set<String> limiterKeys = new LinkedHashSet<>();
+
+    for (PreKeyBatchRequestItem recipient : request.getRecipients()) {
+      if (!recipient.getDeviceId().equals("*")) {
+        try {
+          Long.parseLong(recipient.getDeviceId());
+        } catch (NumberFormatException e) {
+          throw new WebApplicationException(Response.status(422).build());
+        }
+      }
+
+      numbers.add(recipient.getNumber());
+      limiterKeys.add(account.getNumber() + "__" + recipient.getNumber() + "." + recipient.getDeviceId());
+    }
+
+    rateLimiters.getPreKeysLimiter().validate(limiterKeys);
+
+    Map<String, Account>    targets = accounts.getAll(numbers);
+    Set<Pair<String, Long>> devices = new LinkedHashSet<>();
+
+    for (PreKeyBatchRequestItem recipient : request.getRecipients()) {
+      Account target = targets.get(recipient.getNumber());
 
-        for (KeyRecord keyRecord : targetKeys) {
-          if (keyRecord.getDeviceId() == device.getId()) {
-              preKey = new PreKey(keyRecord.getKeyId(), keyRecord.getPublicKey());
+      if (target != null && target.isActive()) {
+        for (Device device : target.getDevices()) {
+          if (isSelected(device, recipient.getDeviceId())) {
+            devices.add(new Pair<>(target.getNumber(), device.getId()));
           }
         }
+      }
+    }
 
-        if (signedPreKey != null || preKey != null) {
-          devices.add(new PreKeyResponseItem(device.getId(), device.getRegistrationId(), signedPreKey, preKey));
+    List<KeyRecord>               claimed    = keys.get(new LinkedList<>(devices));
+    List<PreKeyBatchResponseItem> recipients = new LinkedList<>();
+
+    for (PreKeyBatchRequestItem recipient : request.getRecipients()) {
+      Account target = targets.get(recipient.getNumber());
+
+      if (target != null && target.isActive()) {
+        List<PreKeyResponseItem> items = getResponseItems(target, recipient.getDeviceId(), claimed);
+
+        if (!items.isEmpty()) {
+          recipients.add(new PreKeyBatchResponseItem(target.getNumber(), target.getIdentityKey(), items));
         }
       }
     }
 
-    if (devices.isEmpty()) return Optional.empty();
-    else                   return Optional.of(new PreKeyResponse(target.get().getIdentityKey(), devices));
+    return new PreKeyBatchResponse(recipients);
   }
 
   @Timed
@@ -186,10 +242,45 @@ public class KeysController {
     else                      return Optional.empty();
   }
 
+  private List<PreKeyResponseItem> getResponseItems(Account target, String deviceIdSelector, List<KeyRecord> claimed) {
+    List<PreKeyResponseItem> devices = new LinkedList<>();
+
+    for (Device device : target.getDevices()) {
+      if (isSelected(device, deviceIdSelector)) {
+        SignedPreKey signedPreKey = device.getSignedPreKey();
+        PreKey       preKey       = null;
+
+        for (KeyRecord keyRecord : claimed) {
+          if (keyRecord.getDeviceId() == device.getId() && keyRecord.getNumber().equals(target.getNumber())) {
+            preKey = new PreKey(keyRecord.getKeyId(), keyRecord.getPublicKey());
+          }
+        }
+
+        if (signedPreKey != null || preKey != null) {
+          devices.add(new PreKeyResponseItem(device.getId(), device.getRegistrationId(), signedPreKey, preKey));
+        }
+      }
+    }
+
+    return devices;
+  }
+
+  private boolean isSelected(Device device, String deviceIdSelector) {
+    return device.isActive() && (deviceIdSelector.equals("*") || device.getId() == Long.parseLong(deviceIdSelector));
+  }
+
   private List<KeyRecord> getLocalKeys(Account destination, String deviceIdSelector) {
     try {
       if (deviceIdSelector.equals("*")) {
-        return keys.get(destination.getNumber());
+        List<Long> deviceIds = new LinkedList<>();
+
+        for (Device device : destination.getDevices()) {
+          if (device.isActive()) {
+            deviceIds.add(device.getId());
+          }
+        }
+
+        return keys.get(destination.getNumber(), deviceIds);
       }
 
       long deviceId = Long.parseLong(deviceIdSelector);
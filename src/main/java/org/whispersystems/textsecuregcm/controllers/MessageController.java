@@ -25,9 +25,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.whispersystems.textsecuregcm.auth.Anonymous;
 import org.whispersystems.textsecuregcm.auth.OptionalAccess;
+import org.whispersystems.textsecuregcm.entities.AcknowledgedMessageList;
 import org.whispersystems.textsecuregcm.entities.IncomingMessage;
 import org.whispersystems.textsecuregcm.entities.IncomingMessageList;
 import org.whispersystems.textsecuregcm.entities.MessageProtos.Envelope;
+import org.whispersystems.textsecuregcm.entities.MessagesCursor;
 import org.whispersystems.textsecuregcm.entities.MismatchedDevices;
 import org.whispersystems.textsecuregcm.entities.OutgoingMessageEntity;
 import org.whispersystems.textsecuregcm.entities.OutgoingMessageEntityList;
@@ -57,13 +59,16 @@ import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
@@ -169,15 +174,27 @@ public class MessageController {
   @Timed
   @GET
   @Produces(MediaType.APPLICATION_JSON)
-  public OutgoingMessageEntityList getPendingMessages(@Auth Account account) {
+  public OutgoingMessageEntityList getPendingMessages(@Auth                Account          account,
+                                                     @QueryParam("cursor") Optional<String> cursor)
+  {
     assert account.getAuthenticatedDevice().isPresent();
 
     if (!Util.isEmpty(account.getAuthenticatedDevice().get().getApnId())) {
       RedisOperation.unchecked(() -> apnFallbackManager.cancel(account, account.getAuthenticatedDevice().get()));
     }
 
-    return messagesManager.getMessagesForDevice(account.getNumber(),
-                                                account.getAuthenticatedDevice().get().getId());
+    if (!cursor.isPresent()) {
+      return messagesManager.getMessagesForDevice(account.getNumber(),
+                                                  account.getAuthenticatedDevice().get().getId());
+    }
+
+    try {
+      return messagesManager.getMessagesForDevice(account.getNumber(),
+                                                  account.getAuthenticatedDevice().get().getId(),
+                                                  Optional.of(MessagesCursor.deserialize(cursor.get())));
+    } catch (IllegalArgumentException e) {
+      throw new WebApplicationException(Response.Status.BAD_REQUEST);
+    }
   }
 
   @Timed
@@ -227,6 +244,36 @@ public class MessageController {
     }
   }
 
+  @Timed
+  @PUT
+  @Path("/acknowledgements")
+  @Consumes(MediaType.APPLICATION_JSON)
+  public void removePendingMessages(@Auth Account account, @Valid AcknowledgedMessageList acknowledged) {
+    List<OutgoingMessageEntity> messages = messagesManager.delete(account.getNumber(),
+                                                                  account.getAuthenticatedDevice().get().getId(),
+                                                                  acknowledged.getGuids());
+
+    Map<String, List<Long>> receipts = new HashMap<>();
+
+    for (OutgoingMessageEntity message : messages) {
+      WebSocketConnection.messageTime.update(System.currentTimeMillis() - message.getTimestamp());
+
+      if (!Util.isEmpty(message.getSource()) && message.getType() != Envelope.Type.RECEIPT_VALUE) {
+        receipts.computeIfAbsent(message.getSource(), source -> new LinkedList<>()).add(message.getTimestamp());
+      }
+    }
+
+    for (Map.Entry<String, List<Long>> receipt : receipts.entrySet()) {
+      try {
+        receiptSender.sendReceipts(account, receipt.getKey(), receipt.getValue());
+      } catch (NoSuchUserException e) {
+        logger.warn("Sending delivery receipt", e);
+      } catch (NotPushRegisteredException e) {
+        logger.info("User no longer push registered for delivery receipt: " + e.getMessage());
+      }
+    }
+  }
+
   private void sendMessage(Optional<Account> source,
                            Account destinationAccount,
                            Device destinationDevice,
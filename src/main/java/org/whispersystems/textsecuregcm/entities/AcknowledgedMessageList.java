@@ -0,0 +1,26 @@
+package org.whispersystems.textsecuregcm.entities;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Size;
+import java.util.List;
+import java.util.UUID;
+
+public class AcknowledgedMessageList {
+
+  @JsonProperty
+  @NotNull
+  @Size(max = 1000)
+  private List<UUID> guids;
+
+  public AcknowledgedMessageList() {}
+
+  public AcknowledgedMessageList(List<UUID> guids) {
+    this.guids = guids;
+  }
+
+  public List<UUID> getGuids() {
+    return guids;
+  }
+}
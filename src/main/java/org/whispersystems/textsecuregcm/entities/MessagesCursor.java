@@ -0,0 +1,70 @@
+package org.whispersystems.textsecuregcm.entities;
+
+/**
+ * Position of the last message handed out from a device's queue. Stored
+ * messages are paged in id order, followed by cached messages in id order,
+ * so the cursor records which of the two it points into.
+ *
+ * It also keeps its place in the other one: the persister can move cached
+ * messages into the database while a queue is being drained, so a cursor
+ * in the cache still knows where the stored messages it has seen end.
+ */
+public class MessagesCursor {
+
+  public static final MessagesCursor START = new MessagesCursor(false, 0, 0);
+
+  private final boolean cached;
+  private final long    id;
+  private final long    cachedId;
+
+  private MessagesCursor(boolean cached, long id, long cachedId) {
+    this.cached   = cached;
+    this.id       = id;
+    this.cachedId = cachedId;
+  }
+
+  public static MessagesCursor deserialize(String serialized) throws IllegalArgumentException {
+    try {
+      String[] parts = serialized.split(":");
+
+      if ("c".equals(parts[0]) && parts.length == 3) {
+        return new MessagesCursor(true, Long.parseLong(parts[2]), Long.parseLong(parts[1]));
+      } else if ("d".equals(parts[0]) && parts.length == 3) {
+        return new MessagesCursor(false, Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+      }
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException(e);
+    }
+
+    throw new IllegalArgumentException("Bad cursor: " + serialized);
+  }
+
+  public MessagesCursor after(OutgoingMessageEntity message) {
+    if (message.isCached()) return new MessagesCursor(true, id, message.getId());
+    else                    return new MessagesCursor(false, message.getId(), cachedId);
+  }
+
+  public String serialize() {
+    if (cached) return "c:" + cachedId + ":" + id;
+    else        return "d:" + id + ":" + cachedId;
+  }
+
+  public boolean isCached() {
+    return cached;
+  }
+
+  /**
+   * @return the id of the last stored message handed out
+   */
+  public long getId() {
+    return id;
+  }
+
+  /**
+   * @return the id of the last cached message handed out
+   */
+  public long getCachedId() {
+    return cachedId;
+  }
+
+}
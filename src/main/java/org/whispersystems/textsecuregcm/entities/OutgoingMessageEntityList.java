@@ -1,9 +1,11 @@
 package org.whispersystems.textsecuregcm.entities;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.util.List;
+import java.util.Optional;
 
 public class OutgoingMessageEntityList {
 
@@ -13,11 +15,23 @@ public class OutgoingMessageEntityList {
   @JsonProperty
   private boolean more;
 
+  @JsonProperty
+  private String cursor;
+
+  @JsonIgnore
+  private MessagesCursor nextCursor;
+
   public OutgoingMessageEntityList() {}
 
   public OutgoingMessageEntityList(List<OutgoingMessageEntity> messages, boolean more) {
-    this.messages = messages;
-    this.more     = more;
+    this(messages, more, null);
+  }
+
+  public OutgoingMessageEntityList(List<OutgoingMessageEntity> messages, boolean more, MessagesCursor nextCursor) {
+    this.messages   = messages;
+    this.more       = more;
+    this.nextCursor = nextCursor;
+    this.cursor     = nextCursor != null ? nextCursor.serialize() : null;
   }
 
   public List<OutgoingMessageEntity> getMessages() {
@@ -27,4 +41,13 @@ public class OutgoingMessageEntityList {
   public boolean hasMore() {
     return more;
   }
+
+  public String getCursor() {
+    return cursor;
+  }
+
+  @JsonIgnore
+  public Optional<MessagesCursor> getNextCursor() {
+    return Optional.ofNullable(nextCursor);
+  }
 }
@@ -0,0 +1,29 @@
+package org.whispersystems.textsecuregcm.entities;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.annotations.VisibleForTesting;
+
+import javax.validation.Valid;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Size;
+import java.util.List;
+
+public class PreKeyBatchRequest {
+
+  @JsonProperty
+  @NotNull
+  @Valid
+  @Size(max = 256)
+  private List<PreKeyBatchRequestItem> recipients;
+
+  public PreKeyBatchRequest() {}
+
+  @VisibleForTesting
+  public PreKeyBatchRequest(List<PreKeyBatchRequestItem> recipients) {
+    this.recipients = recipients;
+  }
+
+  public List<PreKeyBatchRequestItem> getRecipients() {
+    return recipients;
+  }
+}
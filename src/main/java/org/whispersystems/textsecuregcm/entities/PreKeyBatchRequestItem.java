@@ -0,0 +1,33 @@
+package org.whispersystems.textsecuregcm.entities;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.annotations.VisibleForTesting;
+import org.hibernate.validator.constraints.NotEmpty;
+
+public class PreKeyBatchRequestItem {
+
+  @JsonProperty
+  @NotEmpty
+  private String number;
+
+  /** A device id, or "*" for all of the recipient's devices. */
+  @JsonProperty
+  @NotEmpty
+  private String deviceId;
+
+  public PreKeyBatchRequestItem() {}
+
+  @VisibleForTesting
+  public PreKeyBatchRequestItem(String number, String deviceId) {
+    this.number   = number;
+    this.deviceId = deviceId;
+  }
+
+  public String getNumber() {
+    return number;
+  }
+
+  public String getDeviceId() {
+    return deviceId;
+  }
+}
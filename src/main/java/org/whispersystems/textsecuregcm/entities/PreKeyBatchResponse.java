@@ -0,0 +1,23 @@
+package org.whispersystems.textsecuregcm.entities;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.List;
+
+public class PreKeyBatchResponse {
+
+  @JsonProperty
+  private List<PreKeyBatchResponseItem> recipients;
+
+  public PreKeyBatchResponse() {}
+
+  public PreKeyBatchResponse(List<PreKeyBatchResponseItem> recipients) {
+    this.recipients = recipients;
+  }
+
+  @VisibleForTesting
+  public List<PreKeyBatchResponseItem> getRecipients() {
+    return recipients;
+  }
+}
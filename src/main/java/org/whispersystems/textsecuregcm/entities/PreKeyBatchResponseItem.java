@@ -0,0 +1,24 @@
+package org.whispersystems.textsecuregcm.entities;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.List;
+
+public class PreKeyBatchResponseItem extends PreKeyResponse {
+
+  @JsonProperty
+  private String number;
+
+  public PreKeyBatchResponseItem() {}
+
+  public PreKeyBatchResponseItem(String number, String identityKey, List<PreKeyResponseItem> devices) {
+    super(identityKey, devices);
+    this.number = number;
+  }
+
+  @VisibleForTesting
+  public String getNumber() {
+    return number;
+  }
+}
@@ -0,0 +1,107 @@
+package org.whispersystems.textsecuregcm.limits;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.whispersystems.textsecuregcm.controllers.RateLimitExceededException;
+import org.whispersystems.textsecuregcm.redis.ReplicatedJedisPool;
+import org.whispersystems.textsecuregcm.util.Constants;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * A {@link RateLimiter} that takes tokens from the shared bucket a lease at a
+ * time and spends them locally, so most validations never reach redis.
+ *
+ * Leased tokens have already been spent from the shared bucket, so the global
+ * limit is never exceeded. The cost is that a key can be refused while other
+ * nodes hold unspent leases for it: at most (lease - 1) tokens per node per
+ * key, for at most the lease lifetime. When a full lease isn't available the
+ * limiter takes whatever the bucket has left, as long as that covers the
+ * request.
+ */
+public class HybridRateLimiter extends RateLimiter {
+
+  private final Meter localMeter;
+  private final Meter remoteMeter;
+
+  private final int                          leaseSize;
+  private final Cache<String, AtomicInteger> leases;
+
+  public HybridRateLimiter(ReplicatedJedisPool cacheClient, String name,
+                           int bucketSize, double leakRatePerMinute,
+                           int leaseSize, int leaseSeconds, long maximumKeys)
+      throws IOException
+  {
+    super(cacheClient, name, bucketSize, leakRatePerMinute);
+
+    if (leaseSize < 1 || leaseSize > bucketSize) {
+      throw new IllegalArgumentException("Local lease for " + name + " must be between 1 and the bucket size: " + leaseSize);
+    }
+
+    MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+
+    this.localMeter  = metricRegistry.meter(name(getClass(), name, "local" ));
+    this.remoteMeter = metricRegistry.meter(name(getClass(), name, "remote"));
+    this.leaseSize   = leaseSize;
+    this.leases      = CacheBuilder.newBuilder()
+                                   .maximumSize(maximumKeys)
+                                   .expireAfterWrite(leaseSeconds, TimeUnit.SECONDS)
+                                   .build();
+  }
+
+  @Override
+  public void validate(String key, int amount) throws RateLimitExceededException {
+    AtomicInteger lease = leases.getIfPresent(key);
+
+    if (lease != null && spend(lease, amount)) {
+      localMeter.mark();
+      return;
+    }
+
+    remoteMeter.mark();
+
+    int granted = tryAcquire(key, amount, Math.max(amount, leaseSize));
+
+    if (granted == 0) {
+      meter.mark();
+      throw new RateLimitExceededException(key + " , " + amount);
+    }
+
+    // Concurrent misses each bring back a lease; keep all of them rather than
+    // letting the last one overwrite tokens the others already paid for.
+    if (granted > amount) {
+      leases.asMap().merge(key, new AtomicInteger(granted - amount), (existing, leased) -> {
+        existing.addAndGet(leased.get());
+        return existing;
+      });
+    }
+  }
+
+  @Override
+  public void validate(String key) throws RateLimitExceededException {
+    validate(key, 1);
+  }
+
+  @Override
+  public void clear(String key) {
+    leases.invalidate(key);
+    super.clear(key);
+  }
+
+  private static boolean spend(AtomicInteger lease, int amount) {
+    while (true) {
+      int remaining = lease.get();
+
+      if (remaining < amount)                                return false;
+      if (lease.compareAndSet(remaining, remaining - amount)) return true;
+    }
+  }
+
+}
@@ -19,34 +19,39 @@ package org.whispersystems.textsecuregcm.limits;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import org.whispersystems.textsecuregcm.controllers.RateLimitExceededException;
+import org.whispersystems.textsecuregcm.redis.LuaScript;
 import org.whispersystems.textsecuregcm.redis.ReplicatedJedisPool;
 import org.whispersystems.textsecuregcm.util.Constants;
-import org.whispersystems.textsecuregcm.util.SystemMapper;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
 
 import static com.codahale.metrics.MetricRegistry.name;
 import redis.clients.jedis.Jedis;
 
+/**
+ * A leaky bucket kept in redis. The bucket is checked and updated by a single
+ * script call, so concurrent validations of the same key can't both spend the
+ * last of its space.
+ */
 public class RateLimiter {
 
-  private final Logger       logger = LoggerFactory.getLogger(RateLimiter.class);
-  private final ObjectMapper mapper = SystemMapper.getMapper();
-
-  private   final Meter               meter;
+  protected final Meter               meter;
   protected final ReplicatedJedisPool cacheClient;
   protected final String              name;
   private   final int                 bucketSize;
   private   final double              leakRatePerMillis;
   private   final boolean             reportLimits;
+  private   final LuaScript           validateScript;
 
   public RateLimiter(ReplicatedJedisPool cacheClient, String name,
                      int bucketSize, double leakRatePerMinute)
+      throws IOException
   {
     this(cacheClient, name, bucketSize, leakRatePerMinute, false);
   }
@@ -54,6 +59,7 @@ public class RateLimiter {
   public RateLimiter(ReplicatedJedisPool cacheClient, String name,
                      int bucketSize, double leakRatePerMinute,
                      boolean reportLimits)
+      throws IOException
   {
     MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
 
@@ -63,14 +69,11 @@ public class RateLimiter {
     this.bucketSize        = bucketSize;
     this.leakRatePerMillis = leakRatePerMinute / (60.0 * 1000.0);
     this.reportLimits      = reportLimits;
+    this.validateScript    = LuaScript.fromResource(cacheClient, "lua/validate_leaky_bucket.lua");
   }
 
   public void validate(String key, int amount) throws RateLimitExceededException {
-    LeakyBucket bucket = getBucket(key);
-
-    if (bucket.add(amount)) {
-      setBucket(key, bucket);
-    } else {
+    if (!tryAcquire(key, amount)) {
       meter.mark();
       throw new RateLimitExceededException(key + " , " + amount);
     }
@@ -80,36 +83,69 @@ public class RateLimiter {
     validate(key, 1);
   }
 
-  public void clear(String key) {
-    try (Jedis jedis = cacheClient.getWriteResource()) {
-      jedis.del(getBucketName(key));
+  /**
+   * Takes one from each key's bucket, or from none of them if any is full.
+   */
+  public void validate(Collection<String> keys) throws RateLimitExceededException {
+    if (!keys.isEmpty() && tryAcquire(keys, 1, 1) == 0) {
+      meter.mark();
+      throw new RateLimitExceededException(keys + " , " + 1);
     }
   }
 
-  private void setBucket(String key, LeakyBucket bucket) {
+  public void clear(String key) {
     try (Jedis jedis = cacheClient.getWriteResource()) {
-      String serialized = bucket.serialize(mapper);
-      jedis.setex(getBucketName(key), (int) Math.ceil((bucketSize / leakRatePerMillis) / 1000), serialized);
-    } catch (JsonProcessingException e) {
-      throw new IllegalArgumentException(e);
+      jedis.del(getBucketName(key), getLegacyBucketName(key));
     }
   }
 
-  private LeakyBucket getBucket(String key) {
-    try (Jedis jedis = cacheClient.getReadResource()) {
-      String serialized = jedis.get(getBucketName(key));
+  /**
+   * Takes amount from the shared bucket if it has room.
+   */
+  protected boolean tryAcquire(String key, int amount) {
+    return tryAcquire(key, amount, amount) > 0;
+  }
 
-      if (serialized != null) {
-        return LeakyBucket.fromSerialized(mapper, serialized);
-      }
-    } catch (IOException e) {
-      logger.warn("Deserialization error", e);
+  /**
+   * Takes as much as maxAmount from the shared bucket, as long as it has room
+   * for at least amount.
+   *
+   * @return the number taken, or 0 if the bucket couldn't cover amount.
+   */
+  protected int tryAcquire(String key, int amount, int maxAmount) {
+    return tryAcquire(Collections.singletonList(key), amount, maxAmount);
+  }
+
+  private int tryAcquire(Collection<String> bucketKeys, int amount, int maxAmount) {
+    List<byte[]> keys = new ArrayList<>(bucketKeys.size() * 2);
+    List<byte[]> args = new LinkedList<>();
+
+    for (String key : bucketKeys) {
+      keys.add(getBucketName(key).getBytes());
+      keys.add(getLegacyBucketName(key).getBytes());
     }
 
-    return new LeakyBucket(bucketSize, leakRatePerMillis);
+    args.add(String.valueOf(bucketSize).getBytes());
+    args.add(String.valueOf(leakRatePerMillis).getBytes());
+    args.add(String.valueOf(amount).getBytes());
+    args.add(String.valueOf(System.currentTimeMillis()).getBytes());
+    args.add(String.valueOf(getBucketTtlSeconds()).getBytes());
+    args.add(String.valueOf(maxAmount).getBytes());
+
+    return (int)(long)validateScript.execute(keys, args);
+  }
+
+  private int getBucketTtlSeconds() {
+    return (int) Math.ceil((bucketSize / leakRatePerMillis) / 1000);
   }
 
   private String getBucketName(String key) {
+    return "leaky_bucket_hash::" + name + "::" + key;
+  }
+
+  // Earlier releases kept each bucket as a JSON string here. Nodes still
+  // running them go on reading it, so the hash can't reuse the key.
+  private String getLegacyBucketName(String key) {
     return "leaky_bucket::" + name + "::" + key;
   }
 }
@@ -20,8 +20,12 @@ package org.whispersystems.textsecuregcm.limits;
 import org.whispersystems.textsecuregcm.configuration.RateLimitsConfiguration;
 import org.whispersystems.textsecuregcm.redis.ReplicatedJedisPool;
 
+import java.io.IOException;
+
 public class RateLimiters {
 
+  private static final long MAX_LOCAL_LEASE_KEYS = 100_000;
+
   private final RateLimiter smsDestinationLimiter;
   private final RateLimiter voiceDestinationLimiter;
   private final RateLimiter voiceDestinationDailyLimiter;
@@ -42,7 +46,7 @@ public class RateLimiters {
 
   private final RateLimiter profileLimiter;
 
-  public RateLimiters(RateLimitsConfiguration config, ReplicatedJedisPool cacheClient) {
+  public RateLimiters(RateLimitsConfiguration config, ReplicatedJedisPool cacheClient) throws IOException {
     this.smsDestinationLimiter = new RateLimiter(cacheClient, "smsDestination",
                                                  config.getSmsDestination().getBucketSize(),
                                                  config.getSmsDestination().getLeakRatePerMinute());
@@ -83,9 +87,18 @@ public class RateLimiters {
                                           config.getPreKeys().getBucketSize(),
                                           config.getPreKeys().getLeakRatePerMinute());
 
-    this.messagesLimiter = new RateLimiter(cacheClient, "messages",
-                                           config.getMessages().getBucketSize(),
-                                           config.getMessages().getLeakRatePerMinute());
+    if (config.getMessages().getLocalLease() > 0) {
+      this.messagesLimiter = new HybridRateLimiter(cacheClient, "messages",
+                                                   config.getMessages().getBucketSize(),
+                                                   config.getMessages().getLeakRatePerMinute(),
+                                                   config.getMessages().getLocalLease(),
+                                                   config.getMessages().getLocalLeaseSeconds(),
+                                                   MAX_LOCAL_LEASE_KEYS);
+    } else {
+      this.messagesLimiter = new RateLimiter(cacheClient, "messages",
+                                             config.getMessages().getBucketSize(),
+                                             config.getMessages().getLeakRatePerMinute());
+    }
 
     this.allocateDeviceLimiter = new RateLimiter(cacheClient, "allocateDevice",
                                                  config.getAllocateDevice().getBucketSize(),
@@ -0,0 +1,31 @@
+package org.whispersystems.textsecuregcm.providers;
+
+import org.whispersystems.textsecuregcm.storage.AccountRequestContext;
+
+import javax.annotation.Priority;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.PreMatching;
+
+/**
+ * Scopes an {@link AccountRequestContext} to each Jersey request. Pre-matching,
+ * so the context is already open when the authenticator looks up the account.
+ */
+@PreMatching
+@Priority(Priorities.AUTHENTICATION - 1)
+public class AccountRequestContextFilter implements ContainerRequestFilter, ContainerResponseFilter {
+
+  @Override
+  public void filter(ContainerRequestContext requestContext) {
+    AccountRequestContext.open();
+  }
+
+  @Override
+  public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext) {
+    AccountRequestContext.close();
+  }
+
+}
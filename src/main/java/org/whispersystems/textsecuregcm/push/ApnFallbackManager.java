@@ -19,8 +19,12 @@ import org.whispersystems.textsecuregcm.util.Util;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -117,18 +121,30 @@ public class ApnFallbackManager implements Managed, Runnable {
   public void run() {
     while (running.get()) {
       try {
-        List<byte[]> pendingNotifications = getOperation.getPending(100);
+        List<byte[]>                              pendingNotifications = getOperation.getPending(100);
+        Map<String, Optional<Pair<String, Long>>> pending              = new LinkedHashMap<>();
+        Set<String>                               numbers              = new HashSet<>();
 
         for (byte[] pendingNotification : pendingNotifications) {
           String                       numberAndDevice = new String(pendingNotification);
           Optional<Pair<String, Long>> separated       = getSeparated(numberAndDevice);
 
+          separated.ifPresent(pair -> numbers.add(pair.first()));
+          pending.put(numberAndDevice, separated);
+        }
+
+        Map<String, Account> accounts = accountsManager.getAll(numbers);
+
+        for (Map.Entry<String, Optional<Pair<String, Long>>> entry : pending.entrySet()) {
+          String                       numberAndDevice = entry.getKey();
+          Optional<Pair<String, Long>> separated       = entry.getValue();
+
           if (!separated.isPresent()) {
             removeOperation.remove(numberAndDevice);
             continue;
           }
 
-          Optional<Account> account = accountsManager.get(separated.get().first());
+          Optional<Account> account = Optional.ofNullable(accounts.get(separated.get().first()));
 
           if (!account.isPresent()) {
             removeOperation.remove(numberAndDevice);
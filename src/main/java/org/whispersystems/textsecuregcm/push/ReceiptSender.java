@@ -6,6 +6,8 @@ import org.whispersystems.textsecuregcm.storage.Account;
 import org.whispersystems.textsecuregcm.storage.AccountsManager;
 import org.whispersystems.textsecuregcm.storage.Device;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
 import java.util.Set;
 
@@ -24,24 +26,33 @@ public class ReceiptSender {
   public void sendReceipt(Account source, String destination, long messageId)
       throws NoSuchUserException, NotPushRegisteredException
   {
-    if (source.getNumber().equals(destination)) {
+    sendReceipts(source, destination, Collections.singletonList(messageId));
+  }
+
+  public void sendReceipts(Account source, String destination, List<Long> messageIds)
+      throws NoSuchUserException, NotPushRegisteredException
+  {
+    if (source.getNumber().equals(destination) || messageIds.isEmpty()) {
       return;
     }
 
-    Account          destinationAccount = getDestinationAccount(destination);
-    Set<Device>      destinationDevices = destinationAccount.getDevices();
-    Envelope.Builder message            = Envelope.newBuilder()
-                                                  .setSource(source.getNumber())
-                                                  .setSourceDevice((int) source.getAuthenticatedDevice().get().getId())
-                                                  .setTimestamp(messageId)
-                                                  .setType(Envelope.Type.RECEIPT);
+    Account     destinationAccount = getDestinationAccount(destination);
+    Set<Device> destinationDevices = destinationAccount.getDevices();
 
-    if (source.getRelay().isPresent()) {
-      message.setRelay(source.getRelay().get());
-    }
+    for (long messageId : messageIds) {
+      Envelope.Builder message = Envelope.newBuilder()
+                                         .setSource(source.getNumber())
+                                         .setSourceDevice((int) source.getAuthenticatedDevice().get().getId())
+                                         .setTimestamp(messageId)
+                                         .setType(Envelope.Type.RECEIPT);
+
+      if (source.getRelay().isPresent()) {
+        message.setRelay(source.getRelay().get());
+      }
 
-    for (Device destinationDevice : destinationDevices) {
-      pushSender.sendMessage(destinationAccount, destinationDevice, message.build(), false);
+      for (Device destinationDevice : destinationDevices) {
+        pushSender.sendMessage(destinationAccount, destinationDevice, message.build(), false);
+      }
     }
   }
 
@@ -22,14 +22,18 @@ import com.codahale.metrics.SharedMetricRegistries;
 import com.google.protobuf.ByteString;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.whispersystems.dispatch.DispatchChannel;
 import org.whispersystems.textsecuregcm.storage.Account;
 import org.whispersystems.textsecuregcm.storage.Device;
 import org.whispersystems.textsecuregcm.storage.MessagesManager;
 import org.whispersystems.textsecuregcm.storage.PubSubManager;
 import org.whispersystems.textsecuregcm.util.Constants;
 import org.whispersystems.textsecuregcm.websocket.ProvisioningAddress;
+import org.whispersystems.textsecuregcm.websocket.WebSocketConnection;
 import org.whispersystems.textsecuregcm.websocket.WebsocketAddress;
 
+import java.util.Optional;
+
 import static com.codahale.metrics.MetricRegistry.name;
 import static org.whispersystems.textsecuregcm.entities.MessageProtos.Envelope;
 import static org.whispersystems.textsecuregcm.storage.PubSubProtos.PubSubMessage;
@@ -50,6 +54,7 @@ public class WebsocketSender {
   private final Meter websocketRequeueMeter = metricRegistry.meter(name(getClass(), "ws_requeue"));
   private final Meter websocketOnlineMeter  = metricRegistry.meter(name(getClass(), "ws_online"  ));
   private final Meter websocketOfflineMeter = metricRegistry.meter(name(getClass(), "ws_offline" ));
+  private final Meter websocketLocalMeter   = metricRegistry.meter(name(getClass(), "ws_local"   ));
 
   private final Meter apnOnlineMeter        = metricRegistry.meter(name(getClass(), "apn_online" ));
   private final Meter apnOfflineMeter       = metricRegistry.meter(name(getClass(), "apn_offline"));
@@ -69,13 +74,9 @@ public class WebsocketSender {
   }
 
   public DeliveryStatus sendMessage(Account account, Device device, Envelope message, Type channel, boolean online) {
-    WebsocketAddress address       = new WebsocketAddress(account.getNumber(), device.getId());
-    PubSubMessage    pubSubMessage = PubSubMessage.newBuilder()
-                                                  .setType(PubSubMessage.Type.DELIVER)
-                                                  .setContent(message.toByteString())
-                                                  .build();
+    WebsocketAddress address = new WebsocketAddress(account.getNumber(), device.getId());
 
-    if (pubSubManager.publish(address, pubSubMessage)) {
+    if (deliverLocal(address, message) || publish(address, message)) {
       if      (channel == Type.APN) apnOnlineMeter.mark();
       else if (channel == Type.GCM) gcmOnlineMeter.mark();
       else                          websocketOnlineMeter.mark();
@@ -91,6 +92,33 @@ public class WebsocketSender {
     }
   }
 
+  // CONNECTED notifications still travel through redis, so a newer connection on another
+  // host evicts this one as before; anything it fails to deliver is requeued by the connection.
+  // The delivery is queued on the address's dispatch lane, behind any DELIVER, QUERY_DB or
+  // CONNECTED already read for it, so that it can't overtake them.
+  private boolean deliverLocal(WebsocketAddress address, Envelope message) {
+    Optional<DispatchChannel> subscription = pubSubManager.getLocalSubscription(address);
+
+    if (subscription.isPresent() && subscription.get() instanceof WebSocketConnection) {
+      WebSocketConnection connection = (WebSocketConnection)subscription.get();
+
+      pubSubManager.execute(address, () -> connection.deliverLocal(message));
+      websocketLocalMeter.mark();
+      return true;
+    }
+
+    return false;
+  }
+
+  private boolean publish(WebsocketAddress address, Envelope message) {
+    PubSubMessage pubSubMessage = PubSubMessage.newBuilder()
+                                               .setType(PubSubMessage.Type.DELIVER)
+                                               .setContent(message.toByteString())
+                                               .build();
+
+    return pubSubManager.publish(address, pubSubMessage);
+  }
+
   public void queueMessage(Account account, Device device, Envelope message) {
     websocketRequeueMeter.mark();
 
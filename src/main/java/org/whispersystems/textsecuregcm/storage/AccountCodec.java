@@ -0,0 +1,204 @@
+package org.whispersystems.textsecuregcm.storage;
+
+import org.whispersystems.textsecuregcm.entities.SignedPreKey;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+/**
+ * Compact binary encoding of an {@link Account} and its devices for the
+ * account cache. The first byte is a format version, which can never be
+ * '{', so callers can tell an encoded account apart from the JSON format
+ * that preceded it.
+ */
+public class AccountCodec {
+
+  private static final byte VERSION = 1;
+
+  public static boolean isEncoded(byte[] serialized) {
+    return serialized.length > 0 && serialized[0] == VERSION;
+  }
+
+  public static byte[] encode(Account account) {
+    try {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream(512);
+      DataOutputStream      out  = new DataOutputStream(baos);
+
+      out.writeByte(VERSION);
+
+      writeString(out, account.getIdentityKey());
+      writeString(out, account.getProfileName());
+      writeString(out, account.getAvatar());
+      writeString(out, account.getAvatarDigest());
+      writeString(out, account.getPin().orElse(null));
+      writeBytes(out, account.getUnidentifiedAccessKey().orElse(null));
+      out.writeBoolean(account.isUnrestrictedUnidentifiedAccess());
+
+      writeLength(out, account.getDevices().size());
+
+      for (Device device : account.getDevices()) {
+        writeDevice(out, device);
+      }
+
+      out.flush();
+      return baos.toByteArray();
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  public static Account decode(String number, byte[] serialized) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(serialized));
+
+    if (in.readByte() != VERSION) {
+      throw new IOException("Unknown account encoding");
+    }
+
+    Account account = new Account();
+    account.setNumber(number);
+    account.setIdentityKey(readString(in));
+    account.setProfileName(readString(in));
+    account.setAvatar(readString(in));
+    account.setAvatarDigest(readString(in));
+    account.setPin(readString(in));
+    account.setUnidentifiedAccessKey(readBytes(in));
+    account.setUnrestrictedUnidentifiedAccess(in.readBoolean());
+
+    int         deviceCount = readLength(in);
+    Set<Device> devices     = account.getDevices();
+
+    for (int i=0;i<deviceCount;i++) {
+      devices.add(readDevice(in));
+    }
+
+    if (in.available() > 0) {
+      throw new IOException("Trailing data in encoded account");
+    }
+
+    return account;
+  }
+
+  private static void writeDevice(DataOutputStream out, Device device) throws IOException {
+    out.writeLong(device.getId());
+    writeString(out, device.getName());
+    writeString(out, device.getAuthenticationCredentials().getHashedAuthenticationToken());
+    writeString(out, device.getAuthenticationCredentials().getSalt());
+    writeString(out, device.getSignalingKey());
+    writeString(out, device.getGcmId());
+    writeString(out, device.getApnId());
+    writeString(out, device.getVoipApnId());
+    out.writeLong(device.getPushTimestamp());
+    out.writeBoolean(device.getFetchesMessages());
+    out.writeInt(device.getRegistrationId());
+
+    SignedPreKey signedPreKey = device.getSignedPreKey();
+
+    out.writeBoolean(signedPreKey != null);
+
+    if (signedPreKey != null) {
+      out.writeLong(signedPreKey.getKeyId());
+      writeString(out, signedPreKey.getPublicKey());
+      writeString(out, signedPreKey.getSignature());
+    }
+
+    out.writeLong(device.getLastSeen());
+    out.writeLong(device.getCreated());
+    writeString(out, device.getUserAgent());
+    out.writeBoolean(device.isUnauthenticatedDeliverySupported());
+  }
+
+  private static Device readDevice(DataInputStream in) throws IOException {
+    long    id              = in.readLong();
+    String  name            = readString(in);
+    String  authToken       = readString(in);
+    String  salt            = readString(in);
+    String  signalingKey    = readString(in);
+    String  gcmId           = readString(in);
+    String  apnId           = readString(in);
+    String  voipApnId       = readString(in);
+    long    pushTimestamp   = in.readLong();
+    boolean fetchesMessages = in.readBoolean();
+    int     registrationId  = in.readInt();
+
+    SignedPreKey signedPreKey = null;
+
+    if (in.readBoolean()) {
+      signedPreKey = new SignedPreKey(in.readLong(), readString(in), readString(in));
+    }
+
+    long    lastSeen                = in.readLong();
+    long    created                 = in.readLong();
+    String  userAgent               = readString(in);
+    boolean unauthenticatedDelivery = in.readBoolean();
+
+    Device device = new Device(id, name, authToken, salt, signalingKey, gcmId, apnId, voipApnId,
+                               fetchesMessages, registrationId, signedPreKey, lastSeen, created,
+                               userAgent, unauthenticatedDelivery);
+    device.setPushTimestamp(pushTimestamp);
+
+    return device;
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    writeBytes(out, value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] value = readBytes(in);
+    return value == null ? null : new String(value, StandardCharsets.UTF_8);
+  }
+
+  private static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+    if (value == null) {
+      writeLength(out, 0);
+    } else {
+      writeLength(out, value.length + 1);
+      out.write(value);
+    }
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException {
+    int length = readLength(in);
+
+    if (length == 0) {
+      return null;
+    }
+
+    byte[] value = new byte[length - 1];
+    in.readFully(value);
+
+    return value;
+  }
+
+  /** Unsigned varint, so short strings cost a single length byte. */
+  private static void writeLength(DataOutputStream out, int length) throws IOException {
+    while ((length & ~0x7f) != 0) {
+      out.writeByte((length & 0x7f) | 0x80);
+      length >>>= 7;
+    }
+
+    out.writeByte(length);
+  }
+
+  private static int readLength(DataInputStream in) throws IOException {
+    int result = 0;
+
+    for (int shift=0;shift<32;shift+=7) {
+      byte value = in.readByte();
+      result |= (value & 0x7f) << shift;
+
+      if ((value & 0x80) == 0) {
+        if (result < 0) throw new IOException("Bad length");
+        return result;
+      }
+    }
+
+    throw new IOException("Malformed length");
+  }
+
+}
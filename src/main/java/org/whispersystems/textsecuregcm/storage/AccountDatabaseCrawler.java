@@ -22,17 +22,35 @@ import com.codahale.metrics.Timer;
 import com.google.common.annotations.VisibleForTesting;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.whispersystems.textsecuregcm.storage.AccountDatabaseCrawlerCache.RangePlan;
 import org.whispersystems.textsecuregcm.util.Constants;
+import org.whispersystems.textsecuregcm.util.Pair;
 import org.whispersystems.textsecuregcm.util.Util;
 
+import java.security.SecureRandom;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.codahale.metrics.MetricRegistry.name;
 import io.dropwizard.lifecycle.Managed;
 
+/**
+ * Walks the accounts table a chunk at a time, handing each chunk to the
+ * listeners.
+ *
+ * By default one worker in the cluster crawls the whole table in number
+ * order. With more than one partition, the number space is also split into
+ * ranges of about equal size. Workers on every node lease ranges one chunk
+ * at a time, each range with its own cursor, and feed those chunks to the
+ * {@link ConcurrentAccountDatabaseCrawlerListener}s. All other listeners
+ * still get the ordered single-worker crawl, which only runs if there are
+ * any.
+ */
 public class AccountDatabaseCrawler implements Managed, Runnable {
 
   private static final Logger         logger         = LoggerFactory.getLogger(AccountDatabaseCrawler.class);
@@ -40,43 +58,85 @@ public class AccountDatabaseCrawler implements Managed, Runnable {
   private static final Timer          readChunkTimer = metricRegistry.timer(name(AccountDatabaseCrawler.class, "readChunk"));
 
   private static final long   WORKER_TTL_MS              = 120_000L;
+  private static final long   COORDINATOR_TTL_MS         = 1_800_000L;
   private static final long   ACCELERATED_CHUNK_INTERVAL = 10L;
 
-  private final Accounts                             accounts;
-  private final int                                  chunkSize;
-  private final long                                 chunkIntervalMs;
-  private final String                               workerId;
-  private final AccountDatabaseCrawlerCache          cache;
-  private final List<AccountDatabaseCrawlerListener> listeners;
+  private final Accounts                                       accounts;
+  private final int                                            chunkSize;
+  private final long                                           chunkIntervalMs;
+  private final String                                         workerId;
+  private final AccountDatabaseCrawlerCache                    cache;
+  private final List<AccountDatabaseCrawlerListener>           listeners;
+  private final List<ConcurrentAccountDatabaseCrawlerListener> concurrentListeners;
+  private final int                                            partitions;
+  private final int                                            rangeWorkers;
+  private final Random                                         random = new SecureRandom();
 
   private AtomicBoolean running = new AtomicBoolean(false);
-  private boolean finished;
+  private int           activeThreads;
+
+  private volatile RangePlan rangePlan;
+  private volatile long      rangeProcessed;
 
   public AccountDatabaseCrawler(Accounts accounts,
                                 AccountDatabaseCrawlerCache cache,
                                 List<AccountDatabaseCrawlerListener> listeners,
                                 int chunkSize,
                                 long chunkIntervalMs)
+  {
+    this(accounts, cache, listeners, chunkSize, chunkIntervalMs, 1, 1);
+  }
+
+  public AccountDatabaseCrawler(Accounts accounts,
+                                AccountDatabaseCrawlerCache cache,
+                                List<AccountDatabaseCrawlerListener> listeners,
+                                int chunkSize,
+                                long chunkIntervalMs,
+                                int partitions,
+                                int rangeWorkers)
   {
     this.accounts             = accounts;
     this.chunkSize            = chunkSize;
     this.chunkIntervalMs      = chunkIntervalMs;
     this.workerId             = UUID.randomUUID().toString();
     this.cache                = cache;
-    this.listeners            = listeners;
+    this.listeners            = new LinkedList<>();
+    this.concurrentListeners  = new LinkedList<>();
+    this.partitions           = partitions;
+    this.rangeWorkers         = rangeWorkers;
+
+    for (AccountDatabaseCrawlerListener listener : listeners) {
+      if (partitions > 1 && listener instanceof ConcurrentAccountDatabaseCrawlerListener) {
+        this.concurrentListeners.add((ConcurrentAccountDatabaseCrawlerListener)listener);
+      } else {
+        this.listeners.add(listener);
+      }
+    }
+
+    metricRegistry.gauge(name(AccountDatabaseCrawler.class, "rangeProgress"  ), () -> this::getRangeProgress);
+    metricRegistry.gauge(name(AccountDatabaseCrawler.class, "rangeEtaSeconds"), () -> this::getRangeEtaSeconds);
   }
 
   @Override
   public synchronized void start() {
     running.set(true);
-    new Thread(this).start();
+
+    if (!listeners.isEmpty()) {
+      startThread(this);
+    }
+
+    if (!concurrentListeners.isEmpty()) {
+      for (int i=0;i<rangeWorkers;i++) {
+        startThread(this::runRanges);
+      }
+    }
   }
 
   @Override
   public synchronized void stop() {
     running.set(false);
     notifyAll();
-    while (!finished) {
+    while (activeThreads > 0) {
       Util.wait(this);
     }
   }
@@ -93,10 +153,17 @@ public class AccountDatabaseCrawler implements Managed, Runnable {
         logger.warn("error in database crawl: ", t);
       }
     }
+  }
+
+  private void runRanges() {
+    while (running.get()) {
+      try {
+        doRangeWork();
+      } catch (Throwable t) {
+        logger.warn("error in partitioned database crawl: ", t);
+      }
 
-    synchronized (this) {
-      finished = true;
-      notifyAll();
+      sleepWhileRunning(chunkIntervalMs);
     }
   }
 
@@ -119,6 +186,47 @@ public class AccountDatabaseCrawler implements Managed, Runnable {
     return false;
   }
 
+  /**
+   * Crawls one chunk of whichever unleased, unfinished range this worker
+   * claims first, starting or ending the partitioned crawl if needed.
+   *
+   * @return true if a chunk was crawled.
+   */
+  @VisibleForTesting
+  public boolean doRangeWork() {
+    Optional<RangePlan> plan = cache.getRangePlan();
+
+    if (!plan.isPresent()) {
+      startRangeCrawl();
+      return false;
+    }
+
+    Set<Integer> finished   = cache.getFinishedRanges(plan.get());
+    int          rangeCount = plan.get().getRangeCount();
+
+    if (finished.size() >= rangeCount) {
+      endRangeCrawl(plan.get());
+      return false;
+    }
+
+    int offset = random.nextInt(rangeCount);
+
+    for (int i=0;i<rangeCount;i++) {
+      int range = (offset + i) % rangeCount;
+
+      if (!finished.contains(range) && cache.claimRange(range, workerId, WORKER_TTL_MS)) {
+        try {
+          processRangeChunk(plan.get(), range);
+          return true;
+        } finally {
+          cache.releaseRange(range, workerId);
+        }
+      }
+    }
+
+    return false;
+  }
+
   private void processChunk() {
     Optional<String> fromNumber = cache.getLastNumber();
 
@@ -147,6 +255,140 @@ public class AccountDatabaseCrawler implements Managed, Runnable {
 
   }
 
+  private void startRangeCrawl() {
+    if (!cache.claimRangeCoordinator(workerId, COORDINATOR_TTL_MS)) {
+      return;
+    }
+
+    try {
+      if (cache.getRangePlan().isPresent()) {
+        return;
+      }
+
+      Pair<Long, List<String>> boundaries = accounts.getBoundaries(partitions);
+      RangePlan                plan       = new RangePlan(UUID.randomUUID().toString(), System.currentTimeMillis(), boundaries.first(), boundaries.second());
+
+      concurrentListeners.forEach(listener -> { listener.onCrawlStart(); });
+      cache.setRangePlan(plan);
+
+      logger.info("Started partitioned crawl " + plan.getId() + " of " + plan.getAccountCount() + " accounts in " + plan.getRangeCount() + " ranges");
+    } finally {
+      cache.releaseRangeCoordinator(workerId);
+    }
+  }
+
+  private void endRangeCrawl(RangePlan plan) {
+    if (!cache.claimRangeCoordinator(workerId, COORDINATOR_TTL_MS)) {
+      return;
+    }
+
+    try {
+      Optional<RangePlan> current = cache.getRangePlan();
+
+      if (!current.isPresent() || !current.get().getId().equals(plan.getId())) {
+        return;
+      }
+
+      concurrentListeners.forEach(listener -> { listener.onCrawlEnd(Optional.empty()); });
+      cache.clearRangePlan();
+
+      logger.info("Finished partitioned crawl " + plan.getId());
+    } finally {
+      cache.releaseRangeCoordinator(workerId);
+    }
+  }
+
+  // The range lease is renewed before each step, and a worker that finds it
+  // lost gives up the chunk without moving the cursor. The next worker crawls
+  // the chunk again, which listeners are told how to recognize.
+  private void processRangeChunk(RangePlan plan, int range) {
+    Optional<String> cursor        = cache.getRangeCursor(plan, range);
+    Optional<String> fromNumber    = cursor.isPresent() ? cursor : plan.getLowerBound(range);
+    List<Account>    chunkAccounts = readRangeChunk(fromNumber, plan.getUpperBound(range));
+
+    if (chunkAccounts.isEmpty()) {
+      cache.setRangeFinished(plan, range);
+      return;
+    }
+
+    try {
+      for (ConcurrentAccountDatabaseCrawlerListener listener : concurrentListeners) {
+        if (!renewRange(plan, range)) return;
+        listener.onCrawlChunk(plan.getId(), range, fromNumber, chunkAccounts);
+      }
+    } catch (AccountDatabaseCrawlerRestartException e) {
+      logger.warn("Restarting partitioned crawl " + plan.getId(), e);
+      cache.clearRangePlan();
+      return;
+    }
+
+    if (!renewRange(plan, range)) {
+      return;
+    }
+
+    String lastNumber = chunkAccounts.get(chunkAccounts.size() - 1).getNumber();
+
+    this.rangeProcessed = cache.setRangeCursor(plan, range, lastNumber, chunkAccounts.size());
+    this.rangePlan      = plan;
+
+    if (chunkAccounts.size() < chunkSize) {
+      cache.setRangeFinished(plan, range);
+    }
+  }
+
+  private boolean renewRange(RangePlan plan, int range) {
+    if (cache.renewRange(range, workerId, WORKER_TTL_MS)) {
+      return true;
+    }
+
+    logger.warn("Lost the lease on range " + range + " of partitioned crawl " + plan.getId());
+    return false;
+  }
+
+  private List<Account> readRangeChunk(Optional<String> fromNumber, Optional<String> toNumber) {
+    try (Timer.Context timer = readChunkTimer.time()) {
+      return accounts.getRange(fromNumber, toNumber, chunkSize);
+    }
+  }
+
+  private double getRangeProgress() {
+    RangePlan plan = rangePlan;
+
+    if (plan == null || plan.getAccountCount() == 0) return 0;
+    else                                             return Math.min(1.0, (double)rangeProcessed / plan.getAccountCount());
+  }
+
+  /**
+   * Assumes the rest of the crawl goes as fast as it has so far; -1 until
+   * there's anything to go on.
+   */
+  private long getRangeEtaSeconds() {
+    RangePlan plan     = rangePlan;
+    double    progress = getRangeProgress();
+
+    if (plan == null || progress == 0) {
+      return -1;
+    }
+
+    long elapsedMs = System.currentTimeMillis() - plan.getStartTimeMs();
+    return (long)(elapsedMs * (1 - progress) / progress / 1000);
+  }
+
+  private synchronized void startThread(Runnable runnable) {
+    activeThreads++;
+
+    new Thread(() -> {
+      try {
+        runnable.run();
+      } finally {
+        synchronized (AccountDatabaseCrawler.this) {
+          activeThreads--;
+          AccountDatabaseCrawler.this.notifyAll();
+        }
+      }
+    }, AccountDatabaseCrawler.class.getSimpleName()).start();
+  }
+
   private List<Account> readChunk(Optional<String> fromNumber, int chunkSize) {
     try (Timer.Context timer = readChunkTimer.time()) {
       List<Account> chunkAccounts;
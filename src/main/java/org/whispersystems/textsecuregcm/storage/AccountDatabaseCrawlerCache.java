@@ -18,12 +18,20 @@ package org.whispersystems.textsecuregcm.storage;
 
 import org.whispersystems.textsecuregcm.redis.LuaScript;
 import org.whispersystems.textsecuregcm.redis.ReplicatedJedisPool;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 
 public class AccountDatabaseCrawlerCache {
 
@@ -31,14 +39,19 @@ public class AccountDatabaseCrawlerCache {
   private static final String LAST_NUMBER_KEY   = "account_database_crawler_cache_last_number";
   private static final String ACCELERATE_KEY    = "account_database_crawler_cache_accelerate";
 
+  private static final String RANGE_PLAN_KEY        = "account_database_crawler_cache_range_plan";
+  private static final String RANGE_COORDINATOR_KEY = "account_database_crawler_cache_range_coordinator";
+
   private static final long LAST_NUMBER_TTL_MS  = 86400_000L;
 
   private final ReplicatedJedisPool jedisPool;
   private final LuaScript           luaScript;
+  private final LuaScript           renewScript;
 
   public AccountDatabaseCrawlerCache(ReplicatedJedisPool jedisPool) throws IOException {
-    this.jedisPool = jedisPool;
-    this.luaScript = LuaScript.fromResource(jedisPool, "lua/account_database_crawler/unlock.lua");
+    this.jedisPool   = jedisPool;
+    this.luaScript   = LuaScript.fromResource(jedisPool, "lua/account_database_crawler/unlock.lua");
+    this.renewScript = LuaScript.fromResource(jedisPool, "lua/account_database_crawler/renew.lua");
   }
 
   public void clearAccelerate() {
@@ -54,15 +67,123 @@ public class AccountDatabaseCrawlerCache {
   }
 
   public boolean claimActiveWork(String workerId, long ttlMs) {
+    return claim(ACTIVE_WORKER_KEY, workerId, ttlMs);
+  }
+
+  public void releaseActiveWork(String workerId) {
+    release(ACTIVE_WORKER_KEY, workerId);
+  }
+
+  public boolean claimRangeCoordinator(String workerId, long ttlMs) {
+    return claim(RANGE_COORDINATOR_KEY, workerId, ttlMs);
+  }
+
+  public void releaseRangeCoordinator(String workerId) {
+    release(RANGE_COORDINATOR_KEY, workerId);
+  }
+
+  public boolean claimRange(int range, String workerId, long ttlMs) {
+    return claim(getRangeLeaseKey(range), workerId, ttlMs);
+  }
+
+  /**
+   * @return false if the lease expired and another worker may hold it.
+   */
+  public boolean renewRange(int range, String workerId, long ttlMs) {
+    List<byte[]> keys = Arrays.asList(getRangeLeaseKey(range).getBytes());
+    List<byte[]> args = Arrays.asList(workerId.getBytes(), String.valueOf(ttlMs).getBytes());
+
+    return ((Long)renewScript.execute(keys, args)) == 1;
+  }
+
+  public void releaseRange(int range, String workerId) {
+    release(getRangeLeaseKey(range), workerId);
+  }
+
+  public Optional<RangePlan> getRangePlan() {
+    try (Jedis jedis = jedisPool.getWriteResource()) {
+      Map<String, String> fields = jedis.hgetAll(RANGE_PLAN_KEY);
+
+      if (fields.isEmpty()) {
+        return Optional.empty();
+      }
+
+      String       boundaries = fields.get("boundaries");
+      List<String> list       = boundaries.isEmpty() ? Arrays.asList() : Splitter.on(',').splitToList(boundaries);
+
+      return Optional.of(new RangePlan(fields.get("id"), Long.parseLong(fields.get("started")), Long.parseLong(fields.get("accounts")), list));
+    }
+  }
+
+  public void setRangePlan(RangePlan plan) {
+    Map<String, String> fields = new HashMap<>();
+    fields.put("id", plan.getId());
+    fields.put("started", String.valueOf(plan.getStartTimeMs()));
+    fields.put("accounts", String.valueOf(plan.getAccountCount()));
+    fields.put("boundaries", Joiner.on(',').join(plan.getBoundaries()));
+
     try (Jedis jedis = jedisPool.getWriteResource()) {
-      return "OK".equals(jedis.set(ACTIVE_WORKER_KEY, workerId, "NX", "PX", ttlMs));
+      Pipeline pipeline = jedis.pipelined();
+      pipeline.del(RANGE_PLAN_KEY);
+      pipeline.hmset(RANGE_PLAN_KEY, fields);
+      pipeline.pexpire(RANGE_PLAN_KEY, LAST_NUMBER_TTL_MS);
+      pipeline.sync();
     }
   }
 
-  public void releaseActiveWork(String workerId) {
-    List<byte[]> keys = Arrays.asList(ACTIVE_WORKER_KEY.getBytes());
-    List<byte[]> args = Arrays.asList(workerId.getBytes());
-    luaScript.execute(keys, args);
+  public void clearRangePlan() {
+    try (Jedis jedis = jedisPool.getWriteResource()) {
+      jedis.del(RANGE_PLAN_KEY);
+    }
+  }
+
+  public Optional<String> getRangeCursor(RangePlan plan, int range) {
+    try (Jedis jedis = jedisPool.getWriteResource()) {
+      return Optional.ofNullable(jedis.get(getRangeCursorKey(plan, range)));
+    }
+  }
+
+  /**
+   * Advances a range's cursor and keeps the crawl's state alive. If no worker
+   * makes progress for a day the state expires, and the next crawl starts
+   * over.
+   *
+   * @return the number of accounts crawled so far, across all ranges.
+   */
+  public long setRangeCursor(RangePlan plan, int range, String lastNumber, int accounts) {
+    try (Jedis jedis = jedisPool.getWriteResource()) {
+      Pipeline       pipeline  = jedis.pipelined();
+      Response<Long> processed = pipeline.incrBy(getProcessedKey(plan), accounts);
+
+      pipeline.psetex(getRangeCursorKey(plan, range), LAST_NUMBER_TTL_MS, lastNumber);
+      pipeline.pexpire(getProcessedKey(plan), LAST_NUMBER_TTL_MS);
+      pipeline.pexpire(getFinishedKey(plan), LAST_NUMBER_TTL_MS);
+      pipeline.pexpire(RANGE_PLAN_KEY, LAST_NUMBER_TTL_MS);
+      pipeline.sync();
+
+      return processed.get();
+    }
+  }
+
+  public void setRangeFinished(RangePlan plan, int range) {
+    try (Jedis jedis = jedisPool.getWriteResource()) {
+      Pipeline pipeline = jedis.pipelined();
+      pipeline.sadd(getFinishedKey(plan), String.valueOf(range));
+      pipeline.pexpire(getFinishedKey(plan), LAST_NUMBER_TTL_MS);
+      pipeline.sync();
+    }
+  }
+
+  public Set<Integer> getFinishedRanges(RangePlan plan) {
+    try (Jedis jedis = jedisPool.getWriteResource()) {
+      Set<Integer> finished = new HashSet<>();
+
+      for (String range : jedis.smembers(getFinishedKey(plan))) {
+        finished.add(Integer.parseInt(range));
+      }
+
+      return finished;
+    }
   }
 
   public Optional<String> getLastNumber() {
@@ -81,4 +202,81 @@ public class AccountDatabaseCrawlerCache {
     }
   }
 
+  private boolean claim(String key, String workerId, long ttlMs) {
+    try (Jedis jedis = jedisPool.getWriteResource()) {
+      return "OK".equals(jedis.set(key, workerId, "NX", "PX", ttlMs));
+    }
+  }
+
+  private void release(String key, String workerId) {
+    luaScript.execute(Arrays.asList(key.getBytes()), Arrays.asList(workerId.getBytes()));
+  }
+
+  private static String getRangeLeaseKey(int range) {
+    return "account_database_crawler_cache_range_lease::" + range;
+  }
+
+  // Keyed by crawl, so a worker still finishing a chunk of an abandoned crawl
+  // can't move the cursors of the next one.
+  private static String getRangeCursorKey(RangePlan plan, int range) {
+    return "account_database_crawler_cache_range_cursor::" + plan.getId() + "::" + range;
+  }
+
+  private static String getFinishedKey(RangePlan plan) {
+    return "account_database_crawler_cache_range_finished::" + plan.getId();
+  }
+
+  private static String getProcessedKey(RangePlan plan) {
+    return "account_database_crawler_cache_range_processed::" + plan.getId();
+  }
+
+  /**
+   * A partitioned crawl: range i covers numbers in (boundary i-1, boundary i],
+   * with the first range open below and the last open above.
+   */
+  public static class RangePlan {
+
+    private final String       id;
+    private final long         startTimeMs;
+    private final long         accountCount;
+    private final List<String> boundaries;
+
+    public RangePlan(String id, long startTimeMs, long accountCount, List<String> boundaries) {
+      this.id           = id;
+      this.startTimeMs  = startTimeMs;
+      this.accountCount = accountCount;
+      this.boundaries   = boundaries;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public long getStartTimeMs() {
+      return startTimeMs;
+    }
+
+    public long getAccountCount() {
+      return accountCount;
+    }
+
+    public List<String> getBoundaries() {
+      return boundaries;
+    }
+
+    public int getRangeCount() {
+      return boundaries.size() + 1;
+    }
+
+    public Optional<String> getLowerBound(int range) {
+      if (range == 0) return Optional.empty();
+      else            return Optional.of(boundaries.get(range - 1));
+    }
+
+    public Optional<String> getUpperBound(int range) {
+      if (range == boundaries.size()) return Optional.empty();
+      else                            return Optional.of(boundaries.get(range));
+    }
+  }
+
 }
@@ -0,0 +1,154 @@
+package org.whispersystems.textsecuregcm.storage;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispersystems.dispatch.DispatchChannel;
+import org.whispersystems.textsecuregcm.util.Constants;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * In-process cache of serialized accounts, sitting in front of the redis
+ * account cache. Entries are serialized rather than live {@link Account}
+ * objects, since callers mutate the accounts they're handed. Numbers with no
+ * account can also be remembered briefly, so repeated lookups of unknown
+ * numbers don't each reach the database.
+ *
+ * Every node subscribes to {@link #INVALIDATION_ADDRESS}, and
+ * {@link AccountsManager} publishes a number there whenever it writes that
+ * account, so entries are dropped cluster-wide on update. Invalidations
+ * published while the subscription was down are lost, so everything is
+ * dropped whenever it's re-established.
+ */
+public class AccountNearCache implements DispatchChannel {
+
+  public static final PubSubAddress INVALIDATION_ADDRESS = () -> "account_invalidation";
+
+  private static final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+  private static final Meter          hitMeter       = metricRegistry.meter(name(AccountNearCache.class, "hit"     ));
+  private static final Meter          missMeter      = metricRegistry.meter(name(AccountNearCache.class, "miss"    ));
+  private static final Meter          evictionMeter  = metricRegistry.meter(name(AccountNearCache.class, "eviction"));
+  private static final Meter          missingMeter   = metricRegistry.meter(name(AccountNearCache.class, "missing" ));
+
+  private final Logger logger = LoggerFactory.getLogger(AccountNearCache.class);
+
+  private final Cache<String, byte[]>  cache;
+  private final Cache<String, Boolean> missing;
+  private final AtomicLong             generation = new AtomicLong();
+  private final AtomicBoolean          subscribed = new AtomicBoolean(false);
+
+  public AccountNearCache(long maximumSize, long expiration, TimeUnit expirationUnit) {
+    this(maximumSize, expiration, 0, expirationUnit);
+  }
+
+  /**
+   * @param missingExpiration how long a number with no account is remembered as missing; 0 disables this.
+   */
+  public AccountNearCache(long maximumSize, long expiration, long missingExpiration, TimeUnit expirationUnit) {
+    this.cache = CacheBuilder.newBuilder()
+                             .maximumSize(maximumSize)
+                             .expireAfterWrite(expiration, expirationUnit)
+                             .removalListener(notification -> {
+                               if (notification.wasEvicted()) evictionMeter.mark();
+                             })
+                             .build();
+
+    this.missing = CacheBuilder.newBuilder()
+                               .maximumSize(missingExpiration > 0 ? maximumSize : 0)
+                               .expireAfterWrite(missingExpiration, expirationUnit)
+                               .build();
+
+    metricRegistry.gauge(name(AccountNearCache.class, "size"), () -> cache::size);
+  }
+
+  public Optional<byte[]> get(String number) {
+    Optional<byte[]> serialized = Optional.ofNullable(cache.getIfPresent(number));
+
+    if (serialized.isPresent()) hitMeter.mark();
+    else                        missMeter.mark();
+
+    return serialized;
+  }
+
+  /**
+   * @return a token to pass to {@link #put(String, byte[], long)} for a value read after this call.
+   */
+  public long getGeneration() {
+    return generation.get();
+  }
+
+  /**
+   * Caches a value unless an invalidation arrived since the generation was read,
+   * in which case the value may already be stale.
+   */
+  public void put(String number, byte[] serialized, long readGeneration) {
+    cache.put(number, serialized);
+
+    if (generation.get() != readGeneration) {
+      cache.invalidate(number);
+    }
+  }
+
+  /**
+   * Remembers that no account exists for a number, under the same generation
+   * rule as {@link #put(String, byte[], long)}.
+   */
+  public void putMissing(String number, long readGeneration) {
+    missing.put(number, Boolean.TRUE);
+
+    if (generation.get() != readGeneration) {
+      missing.invalidate(number);
+    }
+  }
+
+  public boolean isMissing(String number) {
+    boolean result = missing.getIfPresent(number) != null;
+
+    if (result) missingMeter.mark();
+
+    return result;
+  }
+
+  public void invalidate(String number) {
+    generation.incrementAndGet();
+    cache.invalidate(number);
+    missing.invalidate(number);
+  }
+
+  public void invalidateAll() {
+    generation.incrementAndGet();
+    cache.invalidateAll();
+    missing.invalidateAll();
+  }
+
+  @Override
+  public void onDispatchMessage(String channel, byte[] message) {
+    invalidate(new String(message, StandardCharsets.UTF_8));
+  }
+
+  @Override
+  public void onDispatchSubscribed(String channel) {
+    if (subscribed.compareAndSet(false, true)) {
+      logger.info("Subscribed to account invalidations");
+    } else {
+      logger.info("Resubscribed to account invalidations, dropping cached accounts");
+      invalidateAll();
+    }
+  }
+
+  @Override
+  public void onDispatchUnsubscribed(String channel) {
+    logger.warn("***** ACCOUNT INVALIDATION CHANNEL UNSUBSCRIBED *****");
+  }
+}
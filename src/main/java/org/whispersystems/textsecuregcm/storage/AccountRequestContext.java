@@ -0,0 +1,69 @@
+package org.whispersystems.textsecuregcm.storage;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import org.whispersystems.textsecuregcm.util.Constants;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Memoizes account lookups for the duration of a single request, so that the
+ * authenticator, the resource and anything it calls on the same thread share
+ * one {@link Account} instance instead of each going back to the cache.
+ *
+ * A context is bound to the request thread by {@link #open()} and released by
+ * {@link #close()}. Callers on the thread see each other's changes to a shared
+ * account, and {@link AccountsManager} replaces the memoized instance on every
+ * create or update.
+ */
+public class AccountRequestContext {
+
+  private static final MetricRegistry metricRegistry        = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+  private static final Histogram      lookupsSavedHistogram = metricRegistry.histogram(name(AccountRequestContext.class, "lookupsSaved"));
+
+  private static final ThreadLocal<AccountRequestContext> current = new ThreadLocal<>();
+
+  private final Map<String, Optional<Account>> accounts = new HashMap<>();
+
+  private int lookupsSaved;
+
+  /**
+   * Starts a new context on this thread, discarding any context a previous
+   * request failed to close.
+   */
+  public static void open() {
+    current.set(new AccountRequestContext());
+  }
+
+  public static void close() {
+    AccountRequestContext context = current.get();
+
+    if (context != null) {
+      lookupsSavedHistogram.update(context.lookupsSaved);
+      current.remove();
+    }
+  }
+
+  static Optional<AccountRequestContext> get() {
+    return Optional.ofNullable(current.get());
+  }
+
+  boolean contains(String number) {
+    return accounts.containsKey(number);
+  }
+
+  Optional<Account> lookup(String number) {
+    lookupsSaved++;
+    return accounts.get(number);
+  }
+
+  void put(String number, Optional<Account> account) {
+    accounts.put(number, account);
+  }
+
+}
@@ -22,11 +22,16 @@ import com.codahale.metrics.Timer;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.jdbi.v3.core.Jdbi;
+import org.jdbi.v3.core.statement.PreparedBatch;
 import org.jdbi.v3.core.transaction.TransactionIsolationLevel;
 import org.whispersystems.textsecuregcm.storage.mappers.AccountRowMapper;
 import org.whispersystems.textsecuregcm.util.Constants;
+import org.whispersystems.textsecuregcm.util.Pair;
 import org.whispersystems.textsecuregcm.util.SystemMapper;
 
+import java.sql.Array;
+import java.util.Collection;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Optional;
 
@@ -43,9 +48,13 @@ public class Accounts {
   private final MetricRegistry metricRegistry        = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
   private final Timer          createTimer           = metricRegistry.timer(name(Accounts.class, "create"));
   private final Timer          updateTimer           = metricRegistry.timer(name(Accounts.class, "update"));
+  private final Timer          updateLastSeenTimer   = metricRegistry.timer(name(Accounts.class, "updateLastSeen"));
   private final Timer          getTimer              = metricRegistry.timer(name(Accounts.class, "get"));
+  private final Timer          getAllTimer           = metricRegistry.timer(name(Accounts.class, "getAll"));
   private final Timer          getAllFromTimer       = metricRegistry.timer(name(Accounts.class, "getAllFrom"));
   private final Timer          getAllFromOffsetTimer = metricRegistry.timer(name(Accounts.class, "getAllFromOffset"));
+  private final Timer          getRangeTimer         = metricRegistry.timer(name(Accounts.class, "getRange"));
+  private final Timer          getBoundariesTimer    = metricRegistry.timer(name(Accounts.class, "getBoundaries"));
   private final Timer          vacuumTimer           = metricRegistry.timer(name(Accounts.class, "vacuum"));
 
   private final Jdbi database;
@@ -88,6 +97,38 @@ public class Accounts {
     });
   }
 
+  /**
+   * Rewrites only the lastSeen field of each (number, deviceId) in place, leaving
+   * the rest of the account untouched. A device's lastSeen never moves backwards.
+   */
+  public void updateLastSeen(List<Pair<String, Long>> devices, long lastSeen) {
+    if (devices.isEmpty()) {
+      return;
+    }
+
+    database.useHandle(handle -> {
+      try (Timer.Context timer = updateLastSeenTimer.time()) {
+        PreparedBatch batch = handle.prepareBatch("UPDATE accounts SET " + DATA + " = jsonb_set(" + DATA + "::jsonb, '{devices}', " +
+                                                  "  (SELECT jsonb_agg(CASE WHEN (device->>'id')::bigint = :device_id AND COALESCE((device->>'lastSeen')::bigint, 0) < :last_seen " +
+                                                  "                         THEN jsonb_set(device, '{lastSeen}', to_jsonb(CAST(:last_seen AS bigint))) " +
+                                                  "                         ELSE device END ORDER BY position) " +
+                                                  "   FROM jsonb_array_elements(" + DATA + "::jsonb->'devices') WITH ORDINALITY AS devices(device, position)))::json " +
+                                                  "WHERE " + NUMBER + " = :number " +
+                                                  "AND EXISTS (SELECT 1 FROM json_array_elements(" + DATA + "->'devices') AS device " +
+                                                  "            WHERE (device->>'id')::bigint = :device_id AND COALESCE((device->>'lastSeen')::bigint, 0) < :last_seen)");
+
+        for (Pair<String, Long> device : devices) {
+          batch.bind("number", device.first())
+               .bind("device_id", device.second())
+               .bind("last_seen", lastSeen)
+               .add();
+        }
+
+        batch.execute();
+      }
+    });
+  }
+
   public Optional<Account> get(String number) {
     return database.withHandle(handle -> {
       try (Timer.Context timer = getTimer.time()) {
@@ -99,6 +140,17 @@ public class Accounts {
     });
   }
 
+  public List<Account> getAll(Collection<String> numbers) {
+    return database.withHandle(handle -> {
+      try (Timer.Context timer = getAllTimer.time()) {
+        return handle.createQuery("SELECT * FROM accounts WHERE " + NUMBER + " = ANY(:numbers)")
+                     .registerArrayType(String.class, "varchar")
+                     .bind("numbers", numbers.toArray(new String[0]))
+                     .mapTo(Account.class)
+                     .list();
+      }
+    });
+  }
 
   public List<Account> getAllFrom(String from, int length) {
     return database.withHandle(handle -> {
@@ -123,6 +175,61 @@ public class Accounts {
     });
   }
 
+  /**
+   * Accounts with numbers in (from, to], either end open if absent.
+   */
+  public List<Account> getRange(Optional<String> from, Optional<String> to, int length) {
+    return database.withHandle(handle -> {
+      try (Timer.Context timer = getRangeTimer.time()) {
+        return handle.createQuery("SELECT * FROM accounts " +
+                                  "WHERE (CAST(:from AS TEXT) IS NULL OR " + NUMBER + " > :from) " +
+                                  "AND (CAST(:to AS TEXT) IS NULL OR " + NUMBER + " <= :to) " +
+                                  "ORDER BY " + NUMBER + " LIMIT :limit")
+                     .bind("from", from.orElse(null))
+                     .bind("to", to.orElse(null))
+                     .bind("limit", length)
+                     .mapTo(Account.class)
+                     .list();
+      }
+    });
+  }
+
+  /**
+   * Splits the accounts into the given number of partitions of about equal
+   * size by number.
+   *
+   * @return the account count, and the numbers at which each partition but
+   *         the last ends. There can be fewer boundaries than asked for if
+   *         there are few accounts.
+   */
+  public Pair<Long, List<String>> getBoundaries(int partitions) {
+    return database.withHandle(handle -> {
+      try (Timer.Context timer = getBoundariesTimer.time()) {
+        return handle.createQuery("SELECT COUNT(*) AS count, " +
+                                  "percentile_disc(ARRAY(SELECT i::FLOAT8 / :partitions FROM generate_series(1, :partitions - 1) AS i)) " +
+                                  "WITHIN GROUP (ORDER BY " + NUMBER + ") AS boundaries " +
+                                  "FROM accounts")
+                     .bind("partitions", partitions)
+                     .map((resultSet, context) -> {
+                       long         count      = resultSet.getLong("count");
+                       List<String> boundaries = new LinkedList<>();
+                       Array        array      = resultSet.getArray("boundaries");
+
+                       if (array != null) {
+                         for (String boundary : (String[])array.getArray()) {
+                           if (boundary != null && (boundaries.isEmpty() || boundary.compareTo(boundaries.get(boundaries.size() - 1)) > 0)) {
+                             boundaries.add(boundary);
+                           }
+                         }
+                       }
+
+                       return new Pair<>(count, boundaries);
+                     })
+                     .findOnly();
+      }
+    });
+  }
+
   public void vacuum() {
     database.useHandle(handle -> {
       try (Timer.Context timer = vacuumTimer.time()) {
@@ -17,24 +17,38 @@
 package org.whispersystems.textsecuregcm.storage;
 
 
+import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
 import com.codahale.metrics.Timer;
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.whispersystems.textsecuregcm.entities.ClientContact;
 import org.whispersystems.textsecuregcm.redis.ReplicatedJedisPool;
 import org.whispersystems.textsecuregcm.util.Constants;
+import org.whispersystems.textsecuregcm.util.Pair;
 import org.whispersystems.textsecuregcm.util.SystemMapper;
 import org.whispersystems.textsecuregcm.util.Util;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static com.codahale.metrics.MetricRegistry.name;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Transaction;
 import redis.clients.jedis.exceptions.JedisException;
 
 public class AccountsManager {
@@ -43,29 +57,46 @@ public class AccountsManager {
   private static final Timer          createTimer         = metricRegistry.timer(name(AccountsManager.class, "create"        ));
   private static final Timer          updateTimer         = metricRegistry.timer(name(AccountsManager.class, "update"        ));
   private static final Timer          getTimer            = metricRegistry.timer(name(AccountsManager.class, "get"           ));
+  private static final Timer          getAllTimer         = metricRegistry.timer(name(AccountsManager.class, "getAll"        ));
+  private static final Timer          updateLastSeenTimer = metricRegistry.timer(name(AccountsManager.class, "updateLastSeen"));
+  private static final Meter          coalescedLoadMeter  = metricRegistry.meter(name(AccountsManager.class, "coalescedLoad" ));
+  private static final Meter          lastSeenRaceMeter   = metricRegistry.meter(name(AccountsManager.class, "lastSeenRace"  ));
 
   private static final Timer          redisSetTimer       = metricRegistry.timer(name(AccountsManager.class, "redisSet"      ));
   private static final Timer          redisGetTimer       = metricRegistry.timer(name(AccountsManager.class, "redisGet"      ));
+  private static final Timer          redisGetAllTimer    = metricRegistry.timer(name(AccountsManager.class, "redisGetAll"   ));
+
+  private static final long COALESCED_LOAD_TIMEOUT_MILLIS = 5000;
 
   private final Logger logger = LoggerFactory.getLogger(AccountsManager.class);
 
-  private final Accounts            accounts;
-  private final ReplicatedJedisPool cacheClient;
-  private final DirectoryManager    directory;
-  private final ObjectMapper        mapper;
+  private final Accounts                   accounts;
+  private final ReplicatedJedisPool        cacheClient;
+  private final DirectoryManager           directory;
+  private final ObjectMapper               mapper;
+  private final Optional<AccountNearCache> nearCache;
+
+  private final Map<String, CompletableFuture<Optional<byte[]>>> loadsInFlight = new ConcurrentHashMap<>();
 
   public AccountsManager(Accounts accounts, DirectoryManager directory, ReplicatedJedisPool cacheClient) {
+    this(accounts, directory, cacheClient, Optional.empty());
+  }
+
+  public AccountsManager(Accounts accounts, DirectoryManager directory, ReplicatedJedisPool cacheClient, Optional<AccountNearCache> nearCache) {
     this.accounts    = accounts;
     this.directory   = directory;
     this.cacheClient = cacheClient;
     this.mapper      = SystemMapper.getMapper();
+    this.nearCache   = nearCache;
   }
 
   public boolean create(Account account) {
     try (Timer.Context context = createTimer.time()) {
       boolean freshUser = databaseCreate(account);
       redisSet(account.getNumber(), account, false);
+      invalidate(account.getNumber());
       updateDirectory(account);
+      remember(account);
 
       return freshUser;
     }
@@ -75,23 +106,117 @@ public class AccountsManager {
     try (Timer.Context context = updateTimer.time()) {
       redisSet(account.getNumber(), account, false);
       databaseUpdate(account);
+      invalidate(account.getNumber());
       updateDirectory(account);
+      remember(account);
+    }
+  }
+
+  /**
+   * Writes lastSeen for a batch of devices without rewriting their accounts, then
+   * applies the same change to the cached copies, so that the next read is still
+   * a cache hit rather than a database load.
+   */
+  public void updateLastSeen(List<Pair<String, Long>> devices, long lastSeen) {
+    try (Timer.Context context = updateLastSeenTimer.time()) {
+      accounts.updateLastSeen(devices, lastSeen);
+
+      Map<String, List<Long>> numbers = new HashMap<>();
+      devices.forEach(device -> numbers.computeIfAbsent(device.first(), number -> new LinkedList<>()).add(device.second()));
+
+      redisUpdateLastSeen(numbers, lastSeen);
     }
   }
 
   public Optional<Account> get(String number) {
+    Optional<AccountRequestContext> requestContext = AccountRequestContext.get();
+
+    if (requestContext.isPresent() && requestContext.get().contains(number)) {
+      return requestContext.get().lookup(number);
+    }
+
+    Optional<Account> account = load(number);
+    requestContext.ifPresent(context -> context.put(number, account));
+
+    return account;
+  }
+
+  /**
+   * Looks up several accounts, keyed by number, in input order. Numbers without
+   * an account are left out. Whatever misses the near cache costs one MGET, and
+   * whatever misses redis costs one database query.
+   */
+  public Map<String, Account> getAll(Collection<String> numbers) {
+    try (Timer.Context timer = getAllTimer.time()) {
+      Optional<AccountRequestContext> requestContext = AccountRequestContext.get();
+      Map<String, Optional<Account>>  found          = new LinkedHashMap<>();
+      List<String>                    pending        = new LinkedList<>();
+
+      for (String number : numbers) {
+        if (found.containsKey(number)) {
+          continue;
+        }
+
+        if (requestContext.isPresent() && requestContext.get().contains(number)) {
+          found.put(number, requestContext.get().lookup(number));
+          continue;
+        }
+
+        Optional<Account> account = nearCacheGet(number);
+
+        if (account.isPresent() || nearCache.map(cache -> cache.isMissing(number)).orElse(false)) {
+          found.put(number, account);
+        } else {
+          found.put(number, Optional.empty());
+          pending.add(number);
+        }
+      }
+
+      if (!pending.isEmpty()) {
+        long generation = nearCache.map(AccountNearCache::getGeneration).orElse(0L);
+
+        pending = redisGetAll(pending, found, generation);
+
+        if (!pending.isEmpty()) {
+          databaseGetAll(pending, found, generation);
+        }
+      }
+
+      Map<String, Account> accounts = new LinkedHashMap<>();
+
+      for (Map.Entry<String, Optional<Account>> entry : found.entrySet()) {
+        requestContext.ifPresent(context -> context.put(entry.getKey(), entry.getValue()));
+        entry.getValue().ifPresent(account -> accounts.put(entry.getKey(), account));
+      }
+
+      return accounts;
+    }
+  }
+
+  private Optional<Account> load(String number) {
     try (Timer.Context context = getTimer.time()) {
-      Optional<Account> account = redisGet(number);
+      Optional<Account> account = nearCacheGet(number);
 
-      if (!account.isPresent()) {
-        account = databaseGet(number);
-        account.ifPresent(value -> redisSet(number, value, true));
+      if (account.isPresent() || nearCache.map(cache -> cache.isMissing(number)).orElse(false)) {
+        return account;
       }
 
-      return account;
+      long generation = nearCache.map(AccountNearCache::getGeneration).orElse(0L);
+
+      account = redisGet(number, generation);
+
+      if (account.isPresent()) {
+        return account;
+      }
+
+      return databaseLoad(number, generation);
     }
   }
 
+  private void remember(Account account) {
+    AccountRequestContext.get().ifPresent(context -> context.put(account.getNumber(), Optional.of(account)));
+  }
+
   private void updateDirectory(Account account) {
     if (account.isActive()) {
       byte[]        token         = Util.getContactToken(account.getNumber());
@@ -110,21 +235,19 @@ public class AccountsManager {
     try (Jedis         jedis = cacheClient.getWriteResource();
          Timer.Context timer = redisSetTimer.time())
     {
-      jedis.set(getKey(number), mapper.writeValueAsString(account));
-    } catch (JsonProcessingException e) {
-      throw new IllegalStateException(e);
+      jedis.set(getKey(number).getBytes(), AccountCodec.encode(account));
     }
   }
 
-  private Optional<Account> redisGet(String number) {
+  private Optional<Account> redisGet(String number, long nearCacheGeneration) {
     try (Jedis         jedis = cacheClient.getReadResource();
          Timer.Context timer = redisGetTimer.time())
     {
-      String json = jedis.get(getKey(number));
+      byte[] serialized = jedis.get(getKey(number).getBytes());
 
-      if (json != null) {
-        Account account = mapper.readValue(json, Account.class);
-        account.setNumber(number);
+      if (serialized != null) {
+        Account account = parse(number, serialized);
+        nearCache.ifPresent(cache -> cache.put(number, serialized, nearCacheGeneration));
 
         return Optional.of(account);
       }
@@ -139,6 +262,215 @@ public class AccountsManager {
     }
   }
 
+  /**
+   * @return the numbers that weren't in redis.
+   */
+  private List<String> redisGetAll(List<String> numbers, Map<String, Optional<Account>> found, long nearCacheGeneration) {
+    byte[][] keys = new byte[numbers.size()][];
+
+    for (int i=0;i<keys.length;i++) {
+      keys[i] = getKey(numbers.get(i)).getBytes();
+    }
+
+    try (Jedis         jedis = cacheClient.getReadResource();
+         Timer.Context timer = redisGetAllTimer.time())
+    {
+      List<byte[]> values = jedis.mget(keys);
+      List<String> misses = new LinkedList<>();
+
+      for (int i=0;i<values.size();i++) {
+        String number     = numbers.get(i);
+        byte[] serialized = values.get(i);
+
+        try {
+          if (serialized != null) {
+            found.put(number, Optional.of(parse(number, serialized)));
+            nearCache.ifPresent(cache -> cache.put(number, serialized, nearCacheGeneration));
+            continue;
+          }
+        } catch (IOException e) {
+          logger.warn("Deserialization error", e);
+        }
+
+        misses.add(number);
+      }
+
+      return misses;
+    } catch (JedisException e) {
+      logger.warn("Redis failure", e);
+      return numbers;
+    }
+  }
+
+  private void databaseGetAll(List<String> numbers, Map<String, Optional<Account>> found, long nearCacheGeneration) {
+    Map<String, byte[]> backfill = new HashMap<>();
+
+    for (Account account : accounts.getAll(numbers)) {
+      found.put(account.getNumber(), Optional.of(account));
+      backfill.put(account.getNumber(), AccountCodec.encode(account));
+    }
+
+    for (String number : numbers) {
+      if (!backfill.containsKey(number)) {
+        nearCache.ifPresent(cache -> cache.putMissing(number, nearCacheGeneration));
+      }
+    }
+
+    if (backfill.isEmpty()) {
+      return;
+    }
+
+    try (Jedis         jedis = cacheClient.getWriteResource();
+         Timer.Context timer = redisSetTimer.time())
+    {
+      Pipeline pipeline = jedis.pipelined();
+
+      for (Map.Entry<String, byte[]> entry : backfill.entrySet()) {
+        pipeline.set(getKey(entry.getKey()).getBytes(), entry.getValue());
+      }
+
+      pipeline.sync();
+    } catch (JedisException e) {
+      logger.warn("Failed to backfill cached accounts", e);
+    }
+  }
+
+  private Optional<Account> nearCacheGet(String number) {
+    if (!nearCache.isPresent()) {
+      return Optional.empty();
+    }
+
+    Optional<byte[]> serialized = nearCache.get().get(number);
+
+    try {
+      if (serialized.isPresent()) {
+        return Optional.of(parse(number, serialized.get()));
+      }
+    } catch (IOException e) {
+      logger.warn("Near cache deserialization error", e);
+      nearCache.get().invalidate(number);
+    }
+
+    return Optional.empty();
+  }
+
+  private Account parse(String number, byte[] serialized) throws IOException {
+    if (AccountCodec.isEncoded(serialized)) {
+      return AccountCodec.decode(number, serialized);
+    }
+
+    Account account = mapper.readValue(serialized, Account.class);
+    account.setNumber(number);
+
+    return account;
+  }
+
+  // The cached copies are rewritten under WATCH, so that an account updated in
+  // the meantime isn't overwritten with an older copy. If that happens, the
+  // whole batch is evicted instead.
+  private void redisUpdateLastSeen(Map<String, List<Long>> devices, long lastSeen) {
+    devices.keySet().forEach(number -> nearCache.ifPresent(cache -> cache.invalidate(number)));
+
+    try (Jedis jedis = cacheClient.getWriteResource()) {
+      List<String> numbers = new LinkedList<>(devices.keySet());
+      byte[][]     keys    = new byte[numbers.size()][];
+
+      for (int i=0;i<keys.length;i++) {
+        keys[i] = getKey(numbers.get(i)).getBytes();
+      }
+
+      jedis.watch(keys);
+
+      List<byte[]> values      = jedis.mget(keys);
+      Transaction  transaction = jedis.multi();
+
+      for (int i=0;i<keys.length;i++) {
+        if (values.get(i) == null) continue;
+
+        try {
+          Account account = parse(numbers.get(i), values.get(i));
+
+          for (long deviceId : devices.get(numbers.get(i))) {
+            account.getDevice(deviceId)
+                   .filter(device -> device.getLastSeen() < lastSeen)
+                   .ifPresent(device -> device.setLastSeen(lastSeen));
+          }
+
+          transaction.set(keys[i], AccountCodec.encode(account));
+        } catch (IOException e) {
+          logger.warn("Deserialization error", e);
+          transaction.del(keys[i]);
+        }
+      }
+
+      if (transaction.exec() == null) {
+        lastSeenRaceMeter.mark();
+        jedis.del(keys);
+      }
+
+      Pipeline pipeline = jedis.pipelined();
+
+      for (String number : numbers) {
+        pipeline.publish(AccountNearCache.INVALIDATION_ADDRESS.serialize(), number);
+      }
+
+      pipeline.sync();
+    } catch (JedisException e) {
+      logger.warn("Failed to update cached accounts", e);
+    }
+  }
+
+  private void invalidate(String number) {
+    nearCache.ifPresent(cache -> cache.invalidate(number));
+
+    try (Jedis jedis = cacheClient.getWriteResource()) {
+      jedis.publish(AccountNearCache.INVALIDATION_ADDRESS.serialize(), number);
+    } catch (JedisException e) {
+      logger.warn("Failed to publish account invalidation", e);
+    }
+  }
+
+  /**
+   * Loads an account that missed every cache. Concurrent misses for the same
+   * number share a single database read, and each waiter decodes its own copy
+   * of the result, since callers mutate the accounts they're handed.
+   */
+  private Optional<Account> databaseLoad(String number, long nearCacheGeneration) {
+    CompletableFuture<Optional<byte[]>> loading  = new CompletableFuture<>();
+    CompletableFuture<Optional<byte[]>> existing = loadsInFlight.putIfAbsent(number, loading);
+
+    if (existing != null) {
+      try {
+        Optional<byte[]> serialized = existing.get(COALESCED_LOAD_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        coalescedLoadMeter.mark();
+
+        return serialized.isPresent() ? Optional.of(AccountCodec.decode(number, serialized.get())) : Optional.empty();
+      } catch (InterruptedException | ExecutionException | TimeoutException | IOException e) {
+        logger.warn("Coalesced account load failed, loading directly", e);
+        return databaseGet(number);
+      }
+    }
+
+    try {
+      Optional<Account> account = databaseGet(number);
+
+      if (account.isPresent()) redisSet(number, account.get(), true);
+      else                     nearCache.ifPresent(cache -> cache.putMissing(number, nearCacheGeneration));
+
+      loading.complete(account.map(AccountCodec::encode));
+      return account;
+    } catch (RuntimeException e) {
+      loading.completeExceptionally(e);
+      throw e;
+    } finally {
+      if (!loading.isDone()) {
+        loading.completeExceptionally(new IllegalStateException("Account load abandoned"));
+      }
+
+      loadsInFlight.remove(number, loading);
+    }
+  }
+
   private Optional<Account> databaseGet(String number) {
     return accounts.get(number);
   }
@@ -18,53 +18,67 @@ package org.whispersystems.textsecuregcm.storage;
 
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.MetricRegistry;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import io.dropwizard.metrics.MetricsFactory;
 import io.dropwizard.metrics.ReporterFactory;
-import org.whispersystems.textsecuregcm.entities.ActiveUserTally;
+import org.whispersystems.textsecuregcm.redis.LuaScript;
 import org.whispersystems.textsecuregcm.redis.ReplicatedJedisPool;
-import org.whispersystems.textsecuregcm.util.SystemMapper;
 import org.whispersystems.textsecuregcm.util.Util;
 import redis.clients.jedis.Jedis;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.TimeUnit;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
-public class ActiveUserCounter implements AccountDatabaseCrawlerListener {
+/**
+ * Tallies accounts by platform and country for each activity interval. The
+ * tally is a hash of counters, one per platform or country and interval, that
+ * every chunk adds to with HINCRBY, so chunks can be counted concurrently and
+ * in any order. Each chunk's increments are applied by a script that also
+ * records the chunk, so a chunk crawled twice is only counted once.
+ */
+public class ActiveUserCounter implements ConcurrentAccountDatabaseCrawlerListener {
+
+  private static final String TALLY_KEY        = "active_user_tally_hash";
+  private static final String LEGACY_TALLY_KEY = "active_user_tally";
+  private static final String CHUNKS_KEY       = "active_user_tally_chunks";
+
+  private static final String SEQUENTIAL_CRAWL_ID = "sequential";
 
-  private static final String TALLY_KEY         = "active_user_tally";
+  private static final String PLATFORM_PREFIX = "platform:";
+  private static final String COUNTRY_PREFIX  = "country:";
 
   private static final String PLATFORM_IOS     = "ios";
   private static final String PLATFORM_ANDROID = "android";
 
-  private static final String FIRST_FROM_NUMBER = "+";
-
   private static final String INTERVALS[] = {"daily", "weekly", "monthly", "quarterly", "yearly"};
 
   private final MetricsFactory      metricsFactory;
   private final ReplicatedJedisPool jedisPool;
-  private final ObjectMapper        mapper;
+  private final LuaScript           incrementScript;
 
-  public ActiveUserCounter(MetricsFactory metricsFactory, ReplicatedJedisPool jedisPool) {
+  public ActiveUserCounter(MetricsFactory metricsFactory, ReplicatedJedisPool jedisPool) throws IOException {
     this.metricsFactory  = metricsFactory;
     this.jedisPool       = jedisPool;
-    this.mapper          = SystemMapper.getMapper();
+    this.incrementScript = LuaScript.fromResource(jedisPool, "lua/active_user_counter/increment.lua");
   }
 
   public void onCrawlStart() {
     try (Jedis jedis = jedisPool.getWriteResource()) {
-      jedis.del(TALLY_KEY);
+      jedis.del(TALLY_KEY, CHUNKS_KEY, LEGACY_TALLY_KEY);
     }
   }
 
   public void onCrawlChunk(Optional<String> fromNumber, List<Account> chunkAccounts) {
+    onCrawlChunk(SEQUENTIAL_CRAWL_ID, 0, fromNumber, chunkAccounts);
+  }
+
+  @Override
+  public void onCrawlChunk(String crawlId, int range, Optional<String> fromNumber, List<Account> chunkAccounts) {
     long nowDays  = TimeUnit.MILLISECONDS.toDays(System.currentTimeMillis());
     long agoMs[]  = {TimeUnit.DAYS.toMillis(nowDays - 1),
                      TimeUnit.DAYS.toMillis(nowDays - 7),
@@ -107,15 +121,15 @@ public class ActiveUserCounter implements AccountDatabaseCrawlerListener {
       }
     }
 
-    incrementTallies(fromNumber.orElse(FIRST_FROM_NUMBER), platformIncrements, countryIncrements);
-
+    incrementTallies(crawlId + ":" + range + ":" + fromNumber.orElse(""), platformIncrements, countryIncrements);
   }
 
   public void onCrawlEnd(Optional<String> fromNumber) {
     MetricRegistry metrics = new MetricRegistry();
     long intervalTallies[] = new long[INTERVALS.length];
-    ActiveUserTally activeUserTally = getFinalTallies();
-    Map<String, long[]> platforms = activeUserTally.getPlatforms();
+    Map<String, long[]> platforms = new HashMap<>();
+    Map<String, long[]> countries = new HashMap<>();
+    getFinalTallies(platforms, countries);
     platforms.forEach((platform, platformTallies) -> {
         for (int i = 0; i < INTERVALS.length; i++) {
           final long tally = platformTallies[i];
@@ -128,7 +142,6 @@ public class ActiveUserCounter implements AccountDatabaseCrawlerListener {
         }
       });
 
-    Map<String, long[]> countries = activeUserTally.getCountries();
     countries.forEach((country, countryTallies) -> {
         for (int i = 0; i < INTERVALS.length; i++) {
           final long tally = countryTallies[i];
@@ -162,49 +175,54 @@ public class ActiveUserCounter implements AccountDatabaseCrawlerListener {
     return tally;
   }
 
-  private void incrementTallies(String fromNumber, Map<String, long[]> platformIncrements, Map<String, long[]> countryIncrements) {
-    try (Jedis jedis = jedisPool.getWriteResource()) {
-      String tallyValue = jedis.get(TALLY_KEY);
-      ActiveUserTally activeUserTally;
-      if (tallyValue == null) {
-        activeUserTally = new ActiveUserTally(fromNumber, platformIncrements, countryIncrements);
-      } else {
-        activeUserTally = mapper.readValue(tallyValue, ActiveUserTally.class);
-        if (activeUserTally.getFromNumber() != fromNumber) {
-          activeUserTally.setFromNumber(fromNumber);
-          Map<String, long[]> platformTallies = activeUserTally.getPlatforms();
-          addTallyMaps(platformTallies, platformIncrements);
-          Map<String, long[]> countryTallies = activeUserTally.getCountries();
-          addTallyMaps(countryTallies, countryIncrements);
-        }
-      }
-      jedis.set(TALLY_KEY, mapper.writeValueAsString(activeUserTally));
-    } catch (JsonProcessingException e) {
-      throw new IllegalArgumentException(e);
-    } catch (IOException e) {
-      throw new RuntimeException(e);
+  private void incrementTallies(String chunkId, Map<String, long[]> platformIncrements, Map<String, long[]> countryIncrements) {
+    if (platformIncrements.isEmpty() && countryIncrements.isEmpty()) {
+      return;
     }
+
+    List<byte[]> keys = Arrays.asList(TALLY_KEY.getBytes(), CHUNKS_KEY.getBytes());
+    List<byte[]> args = new ArrayList<>();
+
+    args.add(chunkId.getBytes());
+
+    platformIncrements.forEach((platform, increments) -> addIncrements(args, PLATFORM_PREFIX + platform, increments));
+    countryIncrements.forEach((country, increments) -> addIncrements(args, COUNTRY_PREFIX + country, increments));
+
+    incrementScript.execute(keys, args);
   }
 
-  private void addTallyMaps(Map<String, long[]> tallyMap, Map<String, long[]> incrementMap) {
-    incrementMap.forEach((key, increments) -> {
-        long[] tallies = tallyMap.get(key);
-        if (tallies == null) {
-          tallyMap.put(key, increments);
-        } else {
-          for (int i = 0; i < INTERVALS.length; i++) {
-            tallies[i] += increments[i];
-          }
-        }
-      });
+  private void addIncrements(List<byte[]> args, String name, long[] increments) {
+    for (int i = 0; i < INTERVALS.length; i++) {
+      if (increments[i] > 0) {
+        args.add((name + ":" + INTERVALS[i]).getBytes());
+        args.add(String.valueOf(increments[i]).getBytes());
+      }
+    }
   }
 
-  private ActiveUserTally getFinalTallies() {
+  private void getFinalTallies(Map<String, long[]> platforms, Map<String, long[]> countries) {
+    Map<String, String> fields;
+
     try (Jedis jedis = jedisPool.getReadResource()) {
-      return mapper.readValue(jedis.get(TALLY_KEY), ActiveUserTally.class);
-    } catch (IOException e) {
-      throw new RuntimeException(e);
+      fields = jedis.hgetAll(TALLY_KEY);
     }
+
+    fields.forEach((field, value) -> {
+        int separator = field.lastIndexOf(':');
+        int interval  = separator < 0 ? -1 : Arrays.asList(INTERVALS).indexOf(field.substring(separator + 1));
+
+        if (interval < 0) {
+          return;
+        }
+
+        String name = field.substring(0, separator);
+
+        if (name.startsWith(PLATFORM_PREFIX)) {
+          getTallyFromMap(platforms, name.substring(PLATFORM_PREFIX.length()))[interval] = Long.parseLong(value);
+        } else if (name.startsWith(COUNTRY_PREFIX)) {
+          getTallyFromMap(countries, name.substring(COUNTRY_PREFIX.length()))[interval] = Long.parseLong(value);
+        }
+      });
   }
 
   private String metricKey(String platform, String intervalName) {
@@ -0,0 +1,26 @@
+package org.whispersystems.textsecuregcm.storage;
+
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * A crawler listener that can take chunks from several threads and nodes at
+ * once, in any order. When the crawl is partitioned, listeners like this one
+ * are fed by range workers. Every other listener keeps getting chunks one at
+ * a time, in number order.
+ */
+public interface ConcurrentAccountDatabaseCrawlerListener extends AccountDatabaseCrawlerListener {
+
+  /**
+   * A chunk of one range of a partitioned crawl. A worker that loses its range
+   * lease partway through a chunk leaves the cursor where it was, so the same
+   * chunk can be handed out again; the crawl id, range and starting number
+   * identify it across workers.
+   */
+  default void onCrawlChunk(String crawlId, int range, Optional<String> fromNumber, List<Account> chunkAccounts)
+      throws AccountDatabaseCrawlerRestartException
+  {
+    onCrawlChunk(fromNumber, chunkAccounts);
+  }
+
+}
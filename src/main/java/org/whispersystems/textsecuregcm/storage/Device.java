@@ -17,6 +17,7 @@
 package org.whispersystems.textsecuregcm.storage;
 
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import org.whispersystems.textsecuregcm.auth.AuthenticationCredentials;
 import org.whispersystems.textsecuregcm.entities.SignedPreKey;
@@ -76,6 +77,9 @@ public class Device {
   @JsonProperty
   private boolean unauthenticatedDelivery;
 
+  @JsonIgnore
+  private transient AuthenticationCredentials credentials;
+
   public Device() {}
 
   public Device(long id, String name, String authToken, String salt,
@@ -175,12 +179,20 @@ public class Device {
   }
 
   public void setAuthenticationCredentials(AuthenticationCredentials credentials) {
-    this.authToken = credentials.getHashedAuthenticationToken();
-    this.salt      = credentials.getSalt();
+    this.authToken   = credentials.getHashedAuthenticationToken();
+    this.salt        = credentials.getSalt();
+    this.credentials = credentials;
   }
 
   public AuthenticationCredentials getAuthenticationCredentials() {
-    return new AuthenticationCredentials(authToken, salt);
+    AuthenticationCredentials credentials = this.credentials;
+
+    if (credentials == null) {
+      credentials = new AuthenticationCredentials(authToken, salt);
+      this.credentials = credentials;
+    }
+
+    return credentials;
   }
 
   public String getSignalingKey() {
@@ -234,6 +246,10 @@ public class Device {
     return pushTimestamp;
   }
 
+  void setPushTimestamp(long pushTimestamp) {
+    this.pushTimestamp = pushTimestamp;
+  }
+
   public void setUserAgent(String userAgent) {
     this.userAgent = userAgent;
   }
@@ -0,0 +1,492 @@
+package org.whispersystems.textsecuregcm.storage;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispersystems.dispatch.DispatchChannel;
+import org.whispersystems.dispatch.DispatchManager;
+import org.whispersystems.textsecuregcm.entities.ClientContact;
+import org.whispersystems.textsecuregcm.redis.ReplicatedJedisPool;
+import org.whispersystems.textsecuregcm.util.Constants;
+import org.whispersystems.textsecuregcm.util.Util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import io.dropwizard.lifecycle.Managed;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+
+/**
+ * A local copy of the directory, so contact intersection is a scan of memory
+ * instead of a redis round trip and a JSON parse per token.
+ *
+ * The copy is a snapshot of the directory hash packed into parallel primitive
+ * arrays sorted by token, about 11 bytes per entry, with an overlay of updates
+ * received since the snapshot was taken. {@link DirectoryManager} publishes
+ * every write to {@link #UPDATES_CHANNEL}. Pub/sub can drop messages across a
+ * reconnect, so the snapshot is rebuilt whenever the subscription is
+ * re-established, and periodically regardless. The overlay is capped too: once
+ * it grows past its limit, a rebuild is scheduled to fold it into a new
+ * snapshot. The first snapshot loads in the background, and lookups fall
+ * back to redis until {@link #isReady()}.
+ *
+ * A rebuild holds the old and new snapshots at once, so budget twice the
+ * snapshot size in heap. Entries with a relay, which current clients don't
+ * set, keep it in a side table.
+ */
+public class DirectoryIndex implements Managed, DispatchChannel {
+
+  public static final String UPDATES_CHANNEL   = "directory_updates";
+  public static final String KEEPALIVE_CHANNEL = "directory_keepalive";
+
+  static final int TOKEN_LENGTH = 10;
+
+  private static final Logger         logger         = LoggerFactory.getLogger(DirectoryIndex.class);
+
+  private static final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+  private static final Timer          getTimer       = metricRegistry.timer(name(DirectoryIndex.class, "get"    ));
+  private static final Timer          rebuildTimer   = metricRegistry.timer(name(DirectoryIndex.class, "rebuild"));
+  private static final Meter          updateMeter    = metricRegistry.meter(name(DirectoryIndex.class, "update" ));
+
+  private static final byte OPERATION_REMOVE = 0;
+  private static final byte OPERATION_ADD    = 1;
+
+  private static final long KEEPALIVE_INTERVAL_MILLIS = 20000;
+
+  private final ReplicatedJedisPool           jedisPool;
+  private final DispatchManager               dispatchManager;
+  private final long                          refreshIntervalMillis;
+  private final int                           scanCount;
+  private final int                           maxOverlaySize;
+  private final Map<ByteBuffer, Update>       updates        = new ConcurrentHashMap<>();
+  private final AtomicLong                    updateSequence = new AtomicLong();
+  private final AtomicBoolean                 refreshNeeded  = new AtomicBoolean(false);
+  private final AtomicBoolean                 running        = new AtomicBoolean(false);
+  private final AtomicBoolean                 subscribed     = new AtomicBoolean(false);
+
+  private volatile Snapshot snapshot;
+  private          Thread   refresher;
+  private          Thread   keepaliveSender;
+
+  public DirectoryIndex(ReplicatedJedisPool jedisPool, DispatchManager dispatchManager, long refreshInterval, TimeUnit refreshIntervalUnit, int scanCount, int maxOverlaySize) {
+    this.jedisPool             = jedisPool;
+    this.dispatchManager       = dispatchManager;
+    this.refreshIntervalMillis = refreshIntervalUnit.toMillis(refreshInterval);
+    this.scanCount             = scanCount;
+    this.maxOverlaySize        = maxOverlaySize;
+
+    metricRegistry.gauge(name(DirectoryIndex.class, "size"    ), () -> () -> snapshot == null ? 0 : snapshot.size);
+    metricRegistry.gauge(name(DirectoryIndex.class, "overlay" ), () -> updates::size);
+  }
+
+  /**
+   * @return true once the first snapshot has been loaded.
+   */
+  public boolean isReady() {
+    return snapshot != null;
+  }
+
+  public Optional<ClientContact> get(byte[] token) {
+    List<ClientContact> results = get(Arrays.asList(token));
+
+    if (results.isEmpty()) return Optional.empty();
+    else                   return Optional.of(results.get(0));
+  }
+
+  public List<ClientContact> get(List<byte[]> tokens) {
+    Snapshot snapshot = this.snapshot;
+
+    if (snapshot == null) {
+      throw new IllegalStateException("Directory index isn't loaded");
+    }
+
+    try (Timer.Context timer = getTimer.time()) {
+      List<ClientContact> results = new LinkedList<>();
+
+      for (byte[] token : tokens) {
+        Update update = updates.isEmpty() ? null : updates.get(ByteBuffer.wrap(token));
+
+        if (update != null) {
+          if (update.contact != null) {
+            results.add(update.contact);
+          }
+        } else {
+          ClientContact contact = snapshot.get(token);
+
+          if (contact != null) {
+            results.add(contact);
+          }
+        }
+      }
+
+      return results;
+    }
+  }
+
+  @Override
+  public void start() throws Exception {
+    running.set(true);
+
+    refreshNeeded.set(true);
+
+    dispatchManager.subscribe(UPDATES_CHANNEL, this);
+    dispatchManager.subscribe(KEEPALIVE_CHANNEL, this);
+    dispatchManager.start();
+
+    refresher = new Thread(this::refreshLoop, DirectoryIndex.class.getSimpleName() + "-refresher");
+    refresher.setDaemon(true);
+    refresher.start();
+
+    keepaliveSender = new Thread(this::keepaliveLoop, DirectoryIndex.class.getSimpleName() + "-keepalive");
+    keepaliveSender.setDaemon(true);
+    keepaliveSender.start();
+  }
+
+  @Override
+  public void stop() throws Exception {
+    running.set(false);
+
+    synchronized (refreshNeeded) {
+      refreshNeeded.notifyAll();
+    }
+
+    if (refresher != null) {
+      keepaliveSender.interrupt();
+      refresher.join();
+      dispatchManager.shutdown();
+    }
+  }
+
+  @Override
+  public void onDispatchMessage(String channel, byte[] message) {
+    if (!UPDATES_CHANNEL.equals(channel)) {
+      return;
+    }
+
+    if (message.length < 1 + TOKEN_LENGTH) {
+      logger.warn("Malformed directory update");
+      return;
+    }
+
+    byte[]        token   = Arrays.copyOfRange(message, 1, 1 + TOKEN_LENGTH);
+    ClientContact contact = null;
+
+    if (message[0] == OPERATION_ADD) {
+      try {
+        contact = DirectoryManager.decode(token, message, 1 + TOKEN_LENGTH);
+      } catch (IOException e) {
+        logger.warn("Malformed directory update", e);
+        return;
+      }
+    }
+
+    updates.put(ByteBuffer.wrap(token), new Update(updateSequence.incrementAndGet(), contact));
+    updateMeter.mark();
+
+    if (updates.size() > maxOverlaySize && !refreshNeeded.get()) {
+      logger.info("Directory index overlay is over " + maxOverlaySize + " entries, scheduling rebuild");
+      requestRefresh();
+    }
+  }
+
+  @Override
+  public void onDispatchSubscribed(String channel) {
+    if (UPDATES_CHANNEL.equals(channel) && !subscribed.compareAndSet(false, true)) {
+      logger.info("Resubscribed to directory updates, scheduling rebuild");
+      requestRefresh();
+    }
+  }
+
+  @Override
+  public void onDispatchUnsubscribed(String channel) {
+    logger.warn("***** DIRECTORY INDEX CHANNEL UNSUBSCRIBED: " + channel + " *****");
+  }
+
+  static byte[] encodeAdd(ClientContact contact) {
+    byte[] value   = DirectoryManager.encode(contact);
+    byte[] message = new byte[1 + TOKEN_LENGTH + value.length];
+
+    message[0] = OPERATION_ADD;
+    System.arraycopy(contact.getToken(), 0, message, 1, Math.min(TOKEN_LENGTH, contact.getToken().length));
+    System.arraycopy(value, 0, message, 1 + TOKEN_LENGTH, value.length);
+
+    return message;
+  }
+
+  static byte[] encodeRemove(byte[] token) {
+    byte[] message = new byte[1 + TOKEN_LENGTH];
+
+    message[0] = OPERATION_REMOVE;
+    System.arraycopy(token, 0, message, 1, Math.min(TOKEN_LENGTH, token.length));
+
+    return message;
+  }
+
+  private void requestRefresh() {
+    synchronized (refreshNeeded) {
+      refreshNeeded.set(true);
+      refreshNeeded.notifyAll();
+    }
+  }
+
+  private void refreshLoop() {
+    while (running.get()) {
+      synchronized (refreshNeeded) {
+        if (!refreshNeeded.get()) Util.wait(refreshNeeded, refreshIntervalMillis);
+      }
+
+      if (!running.get()) {
+        break;
+      }
+
+      try {
+        refreshNeeded.set(false);
+        rebuild();
+      } catch (Throwable t) {
+        logger.warn("Directory index rebuild failed", t);
+        refreshNeeded.set(true);
+        Util.sleep(10000);
+      }
+    }
+  }
+
+  // The index has its own pub/sub connection, which would otherwise sit idle
+  // between directory writes.
+  private void keepaliveLoop() {
+    while (running.get()) {
+      try {
+        Thread.sleep(KEEPALIVE_INTERVAL_MILLIS);
+
+        try (Jedis jedis = jedisPool.getWriteResource()) {
+          jedis.publish(KEEPALIVE_CHANNEL.getBytes(), new byte[0]);
+        }
+      } catch (InterruptedException e) {
+        break;
+      } catch (Throwable t) {
+        logger.warn("***** DIRECTORY INDEX KEEPALIVE EXCEPTION *****", t);
+      }
+    }
+  }
+
+  /**
+   * Loads a new snapshot from the directory hash. Updates received before the
+   * scan started are already reflected in it and are dropped from the overlay;
+   * later ones might not be, so they stay. The scan reads from the master, as
+   * a lagging replica could be missing writes whose updates were already
+   * received.
+   */
+  private void rebuild() {
+    try (Timer.Context timer = rebuildTimer.time()) {
+      long            startSequence = updateSequence.get();
+      SnapshotBuilder builder;
+
+      try (Jedis jedis = jedisPool.getWriteResource()) {
+        builder = new SnapshotBuilder((int)Math.min(Integer.MAX_VALUE - 8, jedis.hlen(DirectoryManager.DIRECTORY_KEY)));
+
+        ScanParams params = new ScanParams().count(scanCount);
+        byte[]     cursor = ScanParams.SCAN_POINTER_START_BINARY;
+
+        do {
+          ScanResult<Map.Entry<byte[], byte[]>> result = jedis.hscan(DirectoryManager.DIRECTORY_KEY, cursor, params);
+
+          for (Map.Entry<byte[], byte[]> entry : result.getResult()) {
+            try {
+              builder.add(DirectoryManager.decode(entry.getKey(), entry.getValue()));
+            } catch (IOException e) {
+              logger.warn("Skipping undecodable directory entry", e);
+            }
+          }
+
+          cursor = result.getCursorAsBytes();
+        } while (!Arrays.equals(cursor, ScanParams.SCAN_POINTER_START_BINARY));
+      }
+
+      snapshot = builder.build();
+      updates.values().removeIf(update -> update.sequence <= startSequence);
+
+      logger.info("Loaded directory index with " + snapshot.size + " tokens");
+    }
+  }
+
+  private static class Update {
+    private final long          sequence;
+    private final ClientContact contact;
+
+    private Update(long sequence, ClientContact contact) {
+      this.sequence = sequence;
+      this.contact  = contact;
+    }
+  }
+
+  /**
+   * Tokens split into their first eight bytes and last two, sorted as unsigned
+   * big-endian values, with a flags byte alongside.
+   */
+  static class Snapshot {
+
+    private final long[]                  high;
+    private final short[]                 low;
+    private final byte[]                  flags;
+    private final Map<ByteBuffer, String> relays;
+    private final int                     size;
+
+    private Snapshot(long[] high, short[] low, byte[] flags, Map<ByteBuffer, String> relays, int size) {
+      this.high   = high;
+      this.low    = low;
+      this.flags  = flags;
+      this.relays = relays;
+      this.size   = size;
+    }
+
+    ClientContact get(byte[] token) {
+      if (token.length != TOKEN_LENGTH) {
+        return null;
+      }
+
+      ByteBuffer buffer    = ByteBuffer.wrap(token);
+      long       tokenHigh = buffer.getLong();
+      short      tokenLow  = buffer.getShort();
+      int        index     = find(tokenHigh, tokenLow);
+
+      if (index < 0) {
+        return null;
+      }
+
+      String relay = (flags[index] & DirectoryManager.FLAG_RELAY) != 0 ? relays.get(ByteBuffer.wrap(token)) : null;
+
+      return new ClientContact(token, relay,
+                               (flags[index] & DirectoryManager.FLAG_VOICE) != 0,
+                               (flags[index] & DirectoryManager.FLAG_VIDEO) != 0);
+    }
+
+    int size() {
+      return size;
+    }
+
+    private int find(long tokenHigh, short tokenLow) {
+      int lower = 0;
+      int upper = size - 1;
+
+      while (lower <= upper) {
+        int middle     = (lower + upper) >>> 1;
+        int comparison = compare(high[middle], low[middle], tokenHigh, tokenLow);
+
+        if      (comparison < 0) lower = middle + 1;
+        else if (comparison > 0) upper = middle - 1;
+        else                     return middle;
+      }
+
+      return -1;
+    }
+  }
+
+  static class SnapshotBuilder {
+
+    private long[]                  high;
+    private short[]                 low;
+    private byte[]                  flags;
+    private Map<ByteBuffer, String> relays = new HashMap<>();
+    private int                     size;
+
+    SnapshotBuilder(int expectedSize) {
+      int capacity = Math.max(16, expectedSize + expectedSize / 16);
+
+      this.high  = new long[capacity];
+      this.low   = new short[capacity];
+      this.flags = new byte[capacity];
+    }
+
+    void add(ClientContact contact) {
+      if (contact.getToken().length != TOKEN_LENGTH) {
+        return;
+      }
+
+      if (size == high.length) {
+        int capacity = size + (size >> 1);
+
+        high  = Arrays.copyOf(high, capacity);
+        low   = Arrays.copyOf(low, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+      }
+
+      ByteBuffer buffer = ByteBuffer.wrap(contact.getToken());
+
+      high[size]  = buffer.getLong();
+      low[size]   = buffer.getShort();
+      flags[size] = DirectoryManager.getFlags(contact);
+
+      if (contact.getRelay() != null) {
+        relays.put(ByteBuffer.wrap(contact.getToken()), contact.getRelay());
+      }
+
+      size++;
+    }
+
+    Snapshot build() {
+      sort(0, size - 1);
+      return new Snapshot(high, low, flags, relays, size);
+    }
+
+    // Tokens are hashes, so they arrive in random order and a plain quicksort
+    // won't hit its worst case.
+    private void sort(int from, int to) {
+      while (to - from > 16) {
+        int   middle    = (from + to) >>> 1;
+        long  pivotHigh = high[middle];
+        short pivotLow  = low[middle];
+        int   i         = from;
+        int   j         = to;
+
+        while (i <= j) {
+          while (compare(high[i], low[i], pivotHigh, pivotLow) < 0) i++;
+          while (compare(high[j], low[j], pivotHigh, pivotLow) > 0) j--;
+
+          if (i <= j) swap(i++, j--);
+        }
+
+        if (j - from < to - i) {
+          sort(from, j);
+          from = i;
+        } else {
+          sort(i, to);
+          to = j;
+        }
+      }
+
+      for (int i=from+1;i<=to;i++) {
+        for (int j=i;j>from && compare(high[j - 1], low[j - 1], high[j], low[j]) > 0;j--) {
+          swap(j - 1, j);
+        }
+      }
+    }
+
+    private void swap(int i, int j) {
+      long  swapHigh  = high[i];  high[i]  = high[j];  high[j]  = swapHigh;
+      short swapLow   = low[i];   low[i]   = low[j];   low[j]   = swapLow;
+      byte  swapFlags = flags[i]; flags[i] = flags[j]; flags[j] = swapFlags;
+    }
+  }
+
+  private static int compare(long leftHigh, short leftLow, long rightHigh, short rightLow) {
+    int comparison = Long.compareUnsigned(leftHigh, rightHigh);
+
+    if (comparison != 0) return comparison;
+    else                 return Integer.compare(leftLow & 0xffff, rightLow & 0xffff);
+  }
+}
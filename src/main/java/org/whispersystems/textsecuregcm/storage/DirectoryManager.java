@@ -16,22 +16,34 @@
  */
 package org.whispersystems.textsecuregcm.storage;
 
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.whispersystems.textsecuregcm.entities.ClientContact;
 import org.whispersystems.textsecuregcm.redis.ReplicatedJedisPool;
+import org.whispersystems.textsecuregcm.util.Constants;
 import org.whispersystems.textsecuregcm.util.IterablePair;
 import org.whispersystems.textsecuregcm.util.Pair;
 import org.whispersystems.textsecuregcm.util.Util;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static com.codahale.metrics.MetricRegistry.name;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.Pipeline;
@@ -41,15 +53,50 @@ public class DirectoryManager {
 
   private final Logger logger = LoggerFactory.getLogger(DirectoryManager.class);
 
-  private static final byte[] DIRECTORY_KEY = {'d', 'i', 'r', 'e', 'c', 't', 'o', 'r', 'y'};
+  private static final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+  private static final Timer          getTimer       = metricRegistry.timer(name(DirectoryManager.class, "get"));
+
+  private static final int DEFAULT_LOOKUP_CHUNK_SIZE = 100;
+
+  static final byte[] DIRECTORY_KEY = {'d', 'i', 'r', 'e', 'c', 't', 'o', 'r', 'y'};
+
+  private static final byte[] UPDATES_CHANNEL = DirectoryIndex.UPDATES_CHANNEL.getBytes();
 
-  private final ObjectMapper objectMapper;
-  private final ReplicatedJedisPool redisPool;
+  private static final ObjectMapper objectMapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+  static final byte FLAG_VOICE = 1;
+  static final byte FLAG_VIDEO = 1 << 1;
+  static final byte FLAG_RELAY = 1 << 2;
+
+  private final ReplicatedJedisPool      redisPool;
+  private final Optional<DirectoryIndex> directoryIndex;
+  private final ExecutorService          lookupExecutor;
+  private final int                      lookupChunkSize;
+  private final Timer                    chunkTimer;
+  private final boolean                  compactValues;
 
   public DirectoryManager(ReplicatedJedisPool redisPool) {
-    this.redisPool    = redisPool;
-    this.objectMapper = new ObjectMapper();
-    this.objectMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    this(redisPool, Optional.empty());
+  }
+
+  public DirectoryManager(ReplicatedJedisPool redisPool, Optional<DirectoryIndex> directoryIndex) {
+    this(redisPool, directoryIndex, MoreExecutors.newDirectExecutorService(), DEFAULT_LOOKUP_CHUNK_SIZE, false);
+  }
+
+  /**
+   * @param compactValues write directory values in the one-byte encoding
+   *                      rather than JSON. Both are always readable, so only
+   *                      turn this on once every node can read compact values.
+   */
+  public DirectoryManager(ReplicatedJedisPool redisPool, Optional<DirectoryIndex> directoryIndex,
+                          ExecutorService lookupExecutor, int lookupChunkSize, boolean compactValues)
+  {
+    this.redisPool       = redisPool;
+    this.directoryIndex  = directoryIndex;
+    this.lookupExecutor  = lookupExecutor;
+    this.lookupChunkSize = lookupChunkSize;
+    this.chunkTimer      = metricRegistry.timer(name(DirectoryManager.class, "getChunk", String.valueOf(lookupChunkSize)));
+    this.compactValues   = compactValues;
   }
 
   public void remove(String number) {
@@ -62,20 +109,25 @@ public class DirectoryManager {
 
   public void remove(byte[] token) {
     try (Jedis jedis = redisPool.getWriteResource()) {
-      jedis.hdel(DIRECTORY_KEY, token);
+      Pipeline pipeline = jedis.pipelined();
+      pipeline.hdel(DIRECTORY_KEY, token);
+      pipeline.publish(UPDATES_CHANNEL, DirectoryIndex.encodeRemove(token));
+      pipeline.sync();
     }
   }
 
   public void remove(BatchOperationHandle handle, byte[] token) {
     Pipeline pipeline = handle.pipeline;
     pipeline.hdel(DIRECTORY_KEY, token);
+    pipeline.publish(UPDATES_CHANNEL, DirectoryIndex.encodeRemove(token));
   }
 
   public void add(ClientContact contact) {
-    TokenValue tokenValue = new TokenValue(contact.getRelay(), contact.isVoice(), contact.isVideo());
-
     try (Jedis jedis = redisPool.getWriteResource()) {
-      jedis.hset(DIRECTORY_KEY, contact.getToken(), objectMapper.writeValueAsBytes(tokenValue));
+      Pipeline pipeline = jedis.pipelined();
+      pipeline.hset(DIRECTORY_KEY, contact.getToken(), encodeValue(contact));
+      pipeline.publish(UPDATES_CHANNEL, DirectoryIndex.encodeAdd(contact));
+      pipeline.sync();
     } catch (JsonProcessingException e) {
       logger.warn("JSON Serialization", e);
     }
@@ -83,10 +135,10 @@ public class DirectoryManager {
 
   public void add(BatchOperationHandle handle, ClientContact contact) {
     try {
-      Pipeline   pipeline   = handle.pipeline;
-      TokenValue tokenValue = new TokenValue(contact.getRelay(), contact.isVoice(), contact.isVideo());
+      Pipeline pipeline = handle.pipeline;
 
-      pipeline.hset(DIRECTORY_KEY, contact.getToken(), objectMapper.writeValueAsBytes(tokenValue));
+      pipeline.hset(DIRECTORY_KEY, contact.getToken(), encodeValue(contact));
+      pipeline.publish(UPDATES_CHANNEL, DirectoryIndex.encodeAdd(contact));
     } catch (JsonProcessingException e) {
       logger.warn("JSON Serialization", e);
     }
@@ -94,19 +146,22 @@ public class DirectoryManager {
 
   public PendingClientContact get(BatchOperationHandle handle, byte[] token) {
     Pipeline pipeline = handle.pipeline;
-    return new PendingClientContact(objectMapper, token, pipeline.hget(DIRECTORY_KEY, token));
+    return new PendingClientContact(token, pipeline.hget(DIRECTORY_KEY, token));
   }
 
   public Optional<ClientContact> get(byte[] token) {
-    try (Jedis jedis = redisPool.getWriteResource()) {
+    if (isIndexReady()) {
+      return directoryIndex.get().get(token);
+    }
+
+    try (Jedis jedis = redisPool.getReadResource()) {
       byte[] result = jedis.hget(DIRECTORY_KEY, token);
 
       if (result == null) {
         return Optional.empty();
       }
 
-      TokenValue tokenValue = objectMapper.readValue(result, TokenValue.class);
-      return Optional.of(new ClientContact(token, tokenValue.relay, tokenValue.voice, tokenValue.video));
+      return Optional.of(decode(token, result));
     } catch (IOException e) {
       logger.warn("JSON Error", e);
       return Optional.empty();
@@ -114,38 +169,123 @@ public class DirectoryManager {
   }
 
   public List<ClientContact> get(List<byte[]> tokens) {
-    try (Jedis jedis = redisPool.getWriteResource()) {
-      Pipeline               pipeline = jedis.pipelined();
-      List<Response<byte[]>> futures  = new LinkedList<>();
-      List<ClientContact>    results  = new LinkedList<>();
+    if (isIndexReady()) {
+      return directoryIndex.get().get(tokens);
+    }
 
-      try {
-        for (byte[] token : tokens) {
-          futures.add(pipeline.hget(DIRECTORY_KEY, token));
-        }
-      } finally {
-        pipeline.sync();
+    try (Timer.Context timer = getTimer.time()) {
+      List<List<byte[]>>         chunks  = Lists.partition(tokens, lookupChunkSize);
+      List<Future<List<byte[]>>> futures = new LinkedList<>();
+      List<ClientContact>        results = new LinkedList<>();
+
+      if (chunks.size() == 1) {
+        return decode(tokens, getChunk(tokens));
       }
 
-      IterablePair<byte[], Response<byte[]>> lists = new IterablePair<>(tokens, futures);
+      for (List<byte[]> chunk : chunks) {
+        futures.add(lookupExecutor.submit(() -> getChunk(chunk)));
+      }
 
-      for (Pair<byte[], Response<byte[]>> pair : lists) {
-        try {
-          if (pair.second().get() != null) {
-            TokenValue    tokenValue    = objectMapper.readValue(pair.second().get(), TokenValue.class);
-            ClientContact clientContact = new ClientContact(pair.first(), tokenValue.relay, tokenValue.voice, tokenValue.video);
+      IterablePair<List<byte[]>, Future<List<byte[]>>> lists = new IterablePair<>(chunks, futures);
 
-            results.add(clientContact);
-          }
-        } catch (IOException e) {
-          logger.warn("Deserialization Problem: ", e);
-        }
+      for (Pair<List<byte[]>, Future<List<byte[]>>> pair : lists) {
+        results.addAll(decode(pair.first(), pair.second().get()));
       }
 
       return results;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+      else                                          throw new RuntimeException(e.getCause());
     }
   }
 
+  private List<byte[]> getChunk(List<byte[]> tokens) {
+    try (Jedis         jedis = redisPool.getReadResource();
+         Timer.Context timer = chunkTimer.time())
+    {
+      return jedis.hmget(DIRECTORY_KEY, tokens.toArray(new byte[0][]));
+    }
+  }
+
+  private List<ClientContact> decode(List<byte[]> tokens, List<byte[]> values) {
+    List<ClientContact> results = new LinkedList<>();
+
+    for (Pair<byte[], byte[]> pair : new IterablePair<>(tokens, values)) {
+      try {
+        if (pair.second() != null) {
+          results.add(decode(pair.first(), pair.second()));
+        }
+      } catch (IOException e) {
+        logger.warn("Deserialization Problem: ", e);
+      }
+    }
+
+    return results;
+  }
+
+  private byte[] encodeValue(ClientContact contact) throws JsonProcessingException {
+    if (compactValues) {
+      return encode(contact);
+    }
+
+    return objectMapper.writeValueAsBytes(new TokenValue(contact.getRelay(), contact.isVoice(), contact.isVideo()));
+  }
+
+  /**
+   * The compact value: a flags byte, followed by the relay in UTF-8 if there
+   * is one.
+   */
+  static byte[] encode(ClientContact contact) {
+    byte[] relay = contact.getRelay() == null ? new byte[0] : contact.getRelay().getBytes(StandardCharsets.UTF_8);
+    byte[] value = new byte[1 + relay.length];
+
+    value[0] = getFlags(contact);
+    System.arraycopy(relay, 0, value, 1, relay.length);
+
+    return value;
+  }
+
+  static byte getFlags(ClientContact contact) {
+    byte flags = 0;
+
+    if (contact.isVoice())          flags |= FLAG_VOICE;
+    if (contact.isVideo())          flags |= FLAG_VIDEO;
+    if (contact.getRelay() != null) flags |= FLAG_RELAY;
+
+    return flags;
+  }
+
+  static ClientContact decode(byte[] token, byte[] value) throws IOException {
+    return decode(token, value, 0);
+  }
+
+  /**
+   * Reads either encoding. A JSON value always starts with '{', which is
+   * never a valid flags byte.
+   */
+  static ClientContact decode(byte[] token, byte[] value, int offset) throws IOException {
+    if (value.length <= offset) {
+      throw new IOException("Empty directory value");
+    }
+
+    if (value[offset] == '{') {
+      TokenValue tokenValue = objectMapper.readValue(value, offset, value.length - offset, TokenValue.class);
+      return new ClientContact(token, tokenValue.relay, tokenValue.voice, tokenValue.video);
+    }
+
+    byte   flags = value[offset];
+    String relay = (flags & FLAG_RELAY) != 0 ? new String(value, offset + 1, value.length - offset - 1, StandardCharsets.UTF_8) : null;
+
+    return new ClientContact(token, relay, (flags & FLAG_VOICE) != 0, (flags & FLAG_VIDEO) != 0);
+  }
+
+  private boolean isIndexReady() {
+    return directoryIndex.isPresent() && directoryIndex.get().isReady();
+  }
+
   public BatchOperationHandle startBatchOperation() {
     Jedis jedis = redisPool.getWriteResource();
     return new BatchOperationHandle(jedis, jedis.pipelined());
@@ -191,14 +331,12 @@ public class DirectoryManager {
   }
 
   public static class PendingClientContact {
-    private final ObjectMapper     objectMapper;
     private final byte[]           token;
     private final Response<byte[]> response;
 
-    PendingClientContact(ObjectMapper objectMapper, byte[] token, Response<byte[]> response) {
-      this.objectMapper = objectMapper;
-      this.token        = token;
-      this.response     = response;
+    PendingClientContact(byte[] token, Response<byte[]> response) {
+      this.token    = token;
+      this.response = response;
     }
 
     public Optional<ClientContact> get() throws IOException {
@@ -208,8 +346,7 @@ public class DirectoryManager {
         return Optional.empty();
       }
 
-      TokenValue tokenValue = objectMapper.readValue(result, TokenValue.class);
-      return Optional.of(new ClientContact(token, tokenValue.relay, tokenValue.voice, tokenValue.video));
+      return Optional.of(decode(token, result));
     }
 
   }
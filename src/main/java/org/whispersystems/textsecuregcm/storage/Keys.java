@@ -36,9 +36,12 @@ public class Keys {
 
   private final MetricRegistry metricRegistry  = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
   private final Timer          storeTimer      = metricRegistry.timer(name(Keys.class, "store"    ));
+  private final Timer          appendTimer     = metricRegistry.timer(name(Keys.class, "append"   ));
   private final Timer          getDevicetTimer = metricRegistry.timer(name(Keys.class, "getDevice"));
   private final Timer          getTimer        = metricRegistry.timer(name(Keys.class, "get"      ));
   private final Timer          getCountTimer   = metricRegistry.timer(name(Keys.class, "getCount" ));
+  private final Timer          getAllTimer     = metricRegistry.timer(name(Keys.class, "getAll"   ));
+  private final Timer          deleteTimer     = metricRegistry.timer(name(Keys.class, "delete"   ));
   private final Timer          vacuumTimer     = metricRegistry.timer(name(Keys.class, "vacuum"   ));
 
   private final Jdbi database;
@@ -73,6 +76,46 @@ public class Keys {
     });
   }
 
+  /**
+   * Adds keys to a device without replacing the ones it already has. Key ids
+   * the device already has are left alone, and the oldest uploads beyond
+   * maxKeys are trimmed.
+   *
+   * This runs at READ COMMITTED, so it doesn't conflict with concurrent claims.
+   * Appends for the same device are serialized with an advisory lock instead.
+   */
+  public void append(String number, long deviceId, List<PreKey> keys, int maxKeys) {
+    database.useTransaction(TransactionIsolationLevel.READ_COMMITTED, handle -> {
+      try (Timer.Context timer = appendTimer.time()) {
+        handle.createQuery("SELECT pg_advisory_xact_lock(hashtext(:number), :device_id)")
+              .bind("number", number)
+              .bind("device_id", (int)deviceId)
+              .mapTo(String.class)
+              .findOnly();
+
+        PreparedBatch preparedBatch = handle.prepareBatch("INSERT INTO keys (number, device_id, key_id, public_key) " +
+                                                          "SELECT :number, :device_id, :key_id, :public_key " +
+                                                          "WHERE NOT EXISTS (SELECT 1 FROM keys WHERE number = :number AND device_id = :device_id AND key_id = :key_id)");
+
+        for (PreKey key : keys) {
+          preparedBatch.bind("number", number)
+                       .bind("device_id", deviceId)
+                       .bind("key_id", key.getKeyId())
+                       .bind("public_key", key.getPublicKey())
+                       .add();
+        }
+
+        preparedBatch.execute();
+
+        handle.createUpdate("DELETE FROM keys WHERE id IN (SELECT id FROM keys WHERE number = :number AND device_id = :device_id ORDER BY id DESC OFFSET :max_keys)")
+              .bind("number", number)
+              .bind("device_id", deviceId)
+              .bind("max_keys", maxKeys)
+              .execute();
+      }
+    });
+  }
+
   public List<KeyRecord> get(String number, long deviceId) {
     return database.inTransaction(TransactionIsolationLevel.SERIALIZABLE, handle -> {
       try (Timer.Context timer = getDevicetTimer.time()) {
@@ -97,6 +140,48 @@ public class Keys {
 
   }
 
+  /**
+   * Reads a device's keys, lowest key id first, without claiming any of them.
+   */
+  public List<KeyRecord> getAll(String number, long deviceId) {
+    return database.withHandle(handle -> {
+      try (Timer.Context timer = getAllTimer.time()) {
+        return handle.createQuery("SELECT * FROM keys WHERE number = :number AND device_id = :device_id ORDER BY key_id ASC")
+                     .bind("number", number)
+                     .bind("device_id", deviceId)
+                     .mapTo(KeyRecord.class)
+                     .list();
+      }
+    });
+  }
+
+  /**
+   * Deletes keys that have already been claimed elsewhere. A key is only deleted
+   * if its public key still matches, so a claim can't remove a key that replaced
+   * it under the same id.
+   */
+  public void delete(List<KeyRecord> claimed) {
+    if (claimed.isEmpty()) {
+      return;
+    }
+
+    database.useHandle(handle -> {
+      try (Timer.Context timer = deleteTimer.time()) {
+        PreparedBatch preparedBatch = handle.prepareBatch("DELETE FROM keys WHERE number = :number AND device_id = :device_id AND key_id = :key_id AND public_key = :public_key");
+
+        for (KeyRecord key : claimed) {
+          preparedBatch.bind("number", key.getNumber())
+                       .bind("device_id", key.getDeviceId())
+                       .bind("key_id", key.getKeyId())
+                       .bind("public_key", key.getPublicKey())
+                       .add();
+        }
+
+        preparedBatch.execute();
+      }
+    });
+  }
+
   public int getCount(String number, long deviceId) {
     return database.withHandle(handle -> {
       try (Timer.Context timer = getCountTimer.time()) {
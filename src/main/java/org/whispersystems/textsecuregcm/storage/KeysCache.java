@@ -0,0 +1,316 @@
+package org.whispersystems.textsecuregcm.storage;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispersystems.textsecuregcm.redis.LuaScript;
+import org.whispersystems.textsecuregcm.redis.ReplicatedJedisPool;
+import org.whispersystems.textsecuregcm.util.Constants;
+import org.whispersystems.textsecuregcm.util.Pair;
+import org.whispersystems.textsecuregcm.util.Util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import io.dropwizard.lifecycle.Managed;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Transaction;
+
+/**
+ * Serves one-time pre-keys out of redis, so a claim is a single atomic script
+ * call instead of a serializable DELETE ... RETURNING against the keys table.
+ *
+ * Each device's keys are loaded from the database into a sorted set (scored by
+ * key id) the first time they're needed. A claimed key is moved into the
+ * device's "consumed" set, and a background reconciler deletes consumed keys
+ * from the database. Until that happens the consumed set keeps a reloaded pool
+ * from handing the same key out twice.
+ *
+ * Uploads bump a per-device version and drop the pool, so a load that read the
+ * database before the upload can't install a stale pool afterwards. The
+ * consumed set is left for the reconciler, since an appending upload leaves
+ * claimed keys in the database. The reconciler bumps the same version when it
+ * forgets consumed keys, so a load that read them from the database before they
+ * were deleted can't hand them out again.
+ */
+public class KeysCache implements Managed {
+
+  private static final Logger         logger         = LoggerFactory.getLogger(KeysCache.class);
+
+  private static final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+  private static final Timer          claimTimer     = metricRegistry.timer(name(KeysCache.class, "claim"    ));
+  private static final Timer          loadTimer      = metricRegistry.timer(name(KeysCache.class, "load"     ));
+  private static final Timer          getCountTimer  = metricRegistry.timer(name(KeysCache.class, "getCount" ));
+  private static final Timer          reconcileTimer = metricRegistry.timer(name(KeysCache.class, "reconcile"));
+  private static final Meter          loadLostMeter  = metricRegistry.meter(name(KeysCache.class, "loadLost" ));
+  private static final Meter          exhaustedMeter = metricRegistry.meter(name(KeysCache.class, "exhausted"));
+
+  private static final String CONSUMED_DEVICES  = "prekeys_consumed_devices";
+  private static final int    POOL_TTL_SECONDS  = 3600;
+  private static final int    MAX_LOAD_ATTEMPTS = 3;
+
+  private static final int POOL_NOT_LOADED = 0;
+  private static final int POOL_EMPTY      = 1;
+
+  private final ReplicatedJedisPool jedisPool;
+  private final Keys                database;
+  private final LuaScript           popScript;
+  private final LuaScript           fillScript;
+
+  private KeyReconciler keyReconciler;
+
+  public KeysCache(ReplicatedJedisPool jedisPool, Keys database) throws IOException {
+    this.jedisPool  = jedisPool;
+    this.database   = database;
+    this.popScript  = LuaScript.fromResource(jedisPool, "lua/prekeys/pop.lua");
+    this.fillScript = LuaScript.fromResource(jedisPool, "lua/prekeys/fill.lua");
+  }
+
+  public Optional<KeyRecord> claim(String number, long deviceId) {
+    List<KeyRecord> claimed = claim(Collections.singletonList(new Pair<>(number, deviceId)));
+
+    if (claimed.isEmpty()) return Optional.empty();
+    else                   return Optional.of(claimed.get(0));
+  }
+
+  /**
+   * Claims one key for each device in a single script call. Only devices whose
+   * pools had to be loaded from the database cost another round trip.
+   */
+  public List<KeyRecord> claim(List<Pair<String, Long>> devices) {
+    try (Timer.Context timer = claimTimer.time()) {
+      List<KeyRecord>          claimed = new LinkedList<>();
+      List<Pair<String, Long>> pending = devices;
+
+      for (int i=0;i<MAX_LOAD_ATTEMPTS && !pending.isEmpty();i++) {
+        List<Object>             results   = pop(pending);
+        List<Pair<String, Long>> notLoaded = new LinkedList<>();
+
+        for (int j=0;j<pending.size();j++) {
+          Pair<String, Long> device = pending.get(j);
+          long               status = (Long)results.get(j * 2);
+
+          if (status == POOL_NOT_LOADED) {
+            notLoaded.add(device);
+          } else if (status != POOL_EMPTY) {
+            claimed.add(getKeyRecord(device.first(), device.second(), new String((byte[])results.get(j * 2 + 1))));
+          }
+        }
+
+        for (Pair<String, Long> device : notLoaded) {
+          load(device.first(), device.second());
+        }
+
+        pending = notLoaded;
+      }
+
+      if (!pending.isEmpty()) {
+        exhaustedMeter.mark(pending.size());
+        logger.warn("Couldn't load " + pending.size() + " pre-key pools after " + MAX_LOAD_ATTEMPTS + " attempts");
+      }
+
+      return claimed;
+    }
+  }
+
+  public int getCount(String number, long deviceId) {
+    try (Timer.Context timer = getCountTimer.time()) {
+      for (int i=0;i<MAX_LOAD_ATTEMPTS;i++) {
+        try (Jedis jedis = jedisPool.getWriteResource()) {
+          byte[] pool = getPoolKey(number, deviceId);
+
+          if (jedis.exists(pool)) {
+            return jedis.zcount(pool, "(-inf".getBytes(), "+inf".getBytes()).intValue();
+          }
+        }
+
+        load(number, deviceId);
+      }
+
+      exhaustedMeter.mark();
+      return database.getCount(number, deviceId);
+    }
+  }
+
+  public void invalidate(String number, long deviceId) {
+    try (Jedis jedis = jedisPool.getWriteResource()) {
+      Pipeline pipeline = jedis.pipelined();
+      pipeline.incr(getVersionKey(number, deviceId));
+      pipeline.del(getPoolKey(number, deviceId));
+      pipeline.sync();
+    }
+  }
+
+  @Override
+  public void start() {
+    this.keyReconciler = new KeyReconciler();
+    this.keyReconciler.start();
+  }
+
+  @Override
+  public void stop() {
+    keyReconciler.shutdown();
+    logger.info("Key reconciler shut down...");
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<Object> pop(List<Pair<String, Long>> devices) {
+    List<byte[]> keys = new ArrayList<>(1 + devices.size() * 2);
+    List<byte[]> args = new ArrayList<>(1 + devices.size());
+
+    keys.add(CONSUMED_DEVICES.getBytes());
+    args.add(String.valueOf(POOL_TTL_SECONDS).getBytes());
+
+    for (Pair<String, Long> device : devices) {
+      keys.add(getPoolKey(device.first(), device.second()));
+      keys.add(getConsumedKey(device.first(), device.second()));
+      args.add((device.first() + ":" + device.second()).getBytes());
+    }
+
+    return (List<Object>)popScript.execute(keys, args);
+  }
+
+  private void load(String number, long deviceId) {
+    try (Timer.Context timer = loadTimer.time()) {
+      String version;
+
+      try (Jedis jedis = jedisPool.getWriteResource()) {
+        version = jedis.get(new String(getVersionKey(number, deviceId)));
+      }
+
+      List<KeyRecord> records = database.getAll(number, deviceId);
+      List<byte[]>    args    = new ArrayList<>(2 + records.size() * 2);
+
+      args.add(String.valueOf(POOL_TTL_SECONDS).getBytes());
+      args.add(version == null ? new byte[0] : version.getBytes());
+
+      for (KeyRecord record : records) {
+        args.add(String.valueOf(record.getKeyId()).getBytes());
+        args.add((record.getKeyId() + ":" + record.getPublicKey()).getBytes());
+      }
+
+      List<byte[]> keys = Arrays.asList(getPoolKey(number, deviceId),
+                                        getVersionKey(number, deviceId),
+                                        getConsumedKey(number, deviceId));
+
+      if ((Long)fillScript.execute(keys, args) == 0) {
+        loadLostMeter.mark();
+      }
+    }
+  }
+
+  private static KeyRecord getKeyRecord(String number, long deviceId, String member) {
+    int separator = member.indexOf(':');
+    return new KeyRecord(0, number, deviceId, Long.parseLong(member.substring(0, separator)), member.substring(separator + 1));
+  }
+
+  private static byte[] getPoolKey(String number, long deviceId) {
+    return ("prekeys::" + number + "::" + deviceId).getBytes();
+  }
+
+  private static byte[] getVersionKey(String number, long deviceId) {
+    return ("prekeys_version::" + number + "::" + deviceId).getBytes();
+  }
+
+  private static byte[] getConsumedKey(String number, long deviceId) {
+    return ("prekeys_consumed::" + number + "::" + deviceId).getBytes();
+  }
+
+  private class KeyReconciler extends Thread {
+
+    private final AtomicBoolean running = new AtomicBoolean(true);
+
+    private boolean finished = false;
+
+    KeyReconciler() {
+      super(KeyReconciler.class.getSimpleName());
+    }
+
+    @Override
+    public void run() {
+      while (running.get()) {
+        try {
+          if (!reconcileNext()) {
+            Thread.sleep(1000);
+          }
+        } catch (Throwable t) {
+          logger.error("Exception while reconciling keys: ", t);
+          Util.sleep(1000);
+        }
+      }
+
+      synchronized (this) {
+        finished = true;
+        notifyAll();
+      }
+    }
+
+    synchronized void shutdown() {
+      running.set(false);
+      while (!finished) Util.wait(this);
+    }
+
+    private boolean reconcileNext() {
+      String device;
+
+      try (Jedis jedis = jedisPool.getWriteResource()) {
+        device = jedis.spop(CONSUMED_DEVICES);
+      }
+
+      if (device == null) {
+        return false;
+      }
+
+      try (Timer.Context timer = reconcileTimer.time()) {
+        int    separator = device.lastIndexOf(':');
+        String number    = device.substring(0, separator);
+        long   deviceId  = Long.parseLong(device.substring(separator + 1));
+        byte[] consumed  = getConsumedKey(number, deviceId);
+
+        Set<byte[]>     members;
+        List<KeyRecord> records = new LinkedList<>();
+
+        try (Jedis jedis = jedisPool.getWriteResource()) {
+          members = jedis.smembers(consumed);
+        }
+
+        for (byte[] member : members) {
+          records.add(getKeyRecord(number, deviceId, new String(member)));
+        }
+
+        try {
+          database.delete(records);
+        } catch (RuntimeException e) {
+          try (Jedis jedis = jedisPool.getWriteResource()) {
+            jedis.sadd(CONSUMED_DEVICES, device);
+          }
+
+          throw e;
+        }
+
+        if (!members.isEmpty()) {
+          try (Jedis jedis = jedisPool.getWriteResource()) {
+            Transaction transaction = jedis.multi();
+            transaction.incr(getVersionKey(number, deviceId));
+            transaction.srem(consumed, members.toArray(new byte[0][]));
+            transaction.exec();
+          }
+        }
+
+        return true;
+      }
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package org.whispersystems.textsecuregcm.storage;
+
+import org.whispersystems.textsecuregcm.entities.PreKey;
+import org.whispersystems.textsecuregcm.util.Pair;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Pre-key storage, with uploads written through to the database and claims
+ * served from {@link KeysCache}.
+ */
+public class KeysManager {
+
+  private final Keys      keys;
+  private final KeysCache keysCache;
+  private final int       maxKeys;
+
+  public KeysManager(Keys keys, KeysCache keysCache, int maxKeys) {
+    this.keys      = keys;
+    this.keysCache = keysCache;
+    this.maxKeys   = maxKeys;
+  }
+
+  public void store(String number, long deviceId, List<PreKey> preKeys) {
+    keys.store(number, deviceId, preKeys);
+    keysCache.invalidate(number, deviceId);
+  }
+
+  public void append(String number, long deviceId, List<PreKey> preKeys) {
+    keys.append(number, deviceId, preKeys, maxKeys);
+    keysCache.invalidate(number, deviceId);
+  }
+
+  public List<KeyRecord> get(String number, long deviceId) {
+    List<KeyRecord> results = new LinkedList<>();
+    keysCache.claim(number, deviceId).ifPresent(results::add);
+
+    return results;
+  }
+
+  public List<KeyRecord> get(String number, List<Long> deviceIds) {
+    List<Pair<String, Long>> devices = new LinkedList<>();
+
+    for (long deviceId : deviceIds) {
+      devices.add(new Pair<>(number, deviceId));
+    }
+
+    return get(devices);
+  }
+
+  public List<KeyRecord> get(List<Pair<String, Long>> devices) {
+    if (devices.isEmpty()) return new LinkedList<>();
+    else                   return keysCache.claim(devices);
+  }
+
+  public int getCount(String number, long deviceId) {
+    return keysCache.getCount(number, deviceId);
+  }
+
+}
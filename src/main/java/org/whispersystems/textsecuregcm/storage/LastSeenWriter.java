@@ -0,0 +1,129 @@
+package org.whispersystems.textsecuregcm.storage;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispersystems.textsecuregcm.util.Constants;
+import org.whispersystems.textsecuregcm.util.Pair;
+import org.whispersystems.textsecuregcm.util.Util;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import io.dropwizard.lifecycle.Managed;
+
+/**
+ * Buffers device lastSeen updates off the request path. Repeated sightings of
+ * a device are coalesced, and the buffer is drained at a fixed number of
+ * devices per interval, so the first authentication of every device after
+ * midnight becomes a steady trickle of small batched updates rather than a
+ * burst of full account rewrites.
+ */
+public class LastSeenWriter implements Managed, Runnable {
+
+  private static final Logger logger = LoggerFactory.getLogger(LastSeenWriter.class);
+
+  private static final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+  private static final Meter          queuedMeter    = metricRegistry.meter(name(LastSeenWriter.class, "queued"   ));
+  private static final Meter          coalescedMeter = metricRegistry.meter(name(LastSeenWriter.class, "coalesced"));
+  private static final Meter          droppedMeter   = metricRegistry.meter(name(LastSeenWriter.class, "dropped"  ));
+  private static final Meter          writtenMeter   = metricRegistry.meter(name(LastSeenWriter.class, "written"  ));
+
+  private final AccountsManager                accountsManager;
+  private final Map<Pair<String, Long>, Long>  pending = new ConcurrentHashMap<>();
+  private final int                            maxPending;
+  private final int                            batchSize;
+  private final long                           flushIntervalMs;
+
+  private final AtomicBoolean running = new AtomicBoolean(false);
+  private boolean finished;
+
+  public LastSeenWriter(AccountsManager accountsManager, int maxPending, int batchSize, long flushIntervalMs) {
+    this.accountsManager = accountsManager;
+    this.maxPending      = maxPending;
+    this.batchSize       = batchSize;
+    this.flushIntervalMs = flushIntervalMs;
+
+    metricRegistry.gauge(name(LastSeenWriter.class, "pending"), () -> pending::size);
+  }
+
+  /**
+   * Records that a device was seen on the given day. Best effort: if the buffer is
+   * full the update is dropped, and the device will be queued again on its next
+   * authentication since its stored lastSeen is still old.
+   */
+  public void update(String number, long deviceId, long day) {
+    if (pending.size() >= maxPending) {
+      droppedMeter.mark();
+      return;
+    }
+
+    Long previous = pending.put(new Pair<>(number, deviceId), day);
+
+    if (previous == null) queuedMeter.mark();
+    else                  coalescedMeter.mark();
+  }
+
+  @Override
+  public synchronized void start() {
+    running.set(true);
+    new Thread(this, "LastSeenWriter").start();
+  }
+
+  @Override
+  public synchronized void stop() {
+    running.set(false);
+    while (!finished) Util.wait(this);
+  }
+
+  @Override
+  public void run() {
+    while (running.get()) {
+      try {
+        flush();
+      } catch (Exception e) {
+        logger.warn("Exception while writing lastSeen", e);
+      }
+
+      Util.sleep(flushIntervalMs);
+    }
+
+    try {
+      while (!pending.isEmpty()) flush();
+    } catch (Exception e) {
+      logger.warn("Exception while draining lastSeen", e);
+    }
+
+    synchronized (this) {
+      finished = true;
+      notifyAll();
+    }
+  }
+
+  private void flush() {
+    Map<Long, List<Pair<String, Long>>>           batches  = new HashMap<>();
+    Iterator<Map.Entry<Pair<String, Long>, Long>> iterator = pending.entrySet().iterator();
+
+    for (int i=0;i<batchSize && iterator.hasNext();i++) {
+      Map.Entry<Pair<String, Long>, Long> entry = iterator.next();
+
+      if (pending.remove(entry.getKey(), entry.getValue())) {
+        batches.computeIfAbsent(entry.getValue(), day -> new LinkedList<>()).add(entry.getKey());
+      }
+    }
+
+    for (Map.Entry<Long, List<Pair<String, Long>>> batch : batches.entrySet()) {
+      accountsManager.updateLastSeen(batch.getValue(), batch.getKey());
+      writtenMeter.mark(batch.getValue().size());
+    }
+  }
+
+}
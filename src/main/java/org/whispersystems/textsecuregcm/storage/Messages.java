@@ -4,10 +4,12 @@ import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
 import com.codahale.metrics.Timer;
 import org.jdbi.v3.core.Jdbi;
+import org.jdbi.v3.core.statement.PreparedBatch;
 import org.whispersystems.textsecuregcm.entities.MessageProtos.Envelope;
 import org.whispersystems.textsecuregcm.entities.OutgoingMessageEntity;
 import org.whispersystems.textsecuregcm.storage.mappers.OutgoingMessageEntityRowMapper;
 import org.whispersystems.textsecuregcm.util.Constants;
+import org.whispersystems.textsecuregcm.util.Pair;
 
 import java.security.MessageDigest;
 import java.util.List;
@@ -35,9 +37,12 @@ public class Messages {
 
   private final MetricRegistry metricRegistry      = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
   private final Timer          storeTimer          = metricRegistry.timer(name(Messages.class, "store"         ));
+  private final Timer          storeBatchTimer     = metricRegistry.timer(name(Messages.class, "storeBatch"    ));
   private final Timer          loadTimer           = metricRegistry.timer(name(Messages.class, "load"          ));
+  private final Timer          loadAfterTimer      = metricRegistry.timer(name(Messages.class, "loadAfter"     ));
   private final Timer          removeBySourceTimer = metricRegistry.timer(name(Messages.class, "removeBySource"));
   private final Timer          removeByGuidTimer   = metricRegistry.timer(name(Messages.class, "removeByGuid"  ));
+  private final Timer          removeByGuidsTimer  = metricRegistry.timer(name(Messages.class, "removeByGuids" ));
   private final Timer          removeByIdTimer     = metricRegistry.timer(name(Messages.class, "removeById"    ));
   private final Timer          clearDeviceTimer    = metricRegistry.timer(name(Messages.class, "clearDevice"   ));
   private final Timer          clearTimer          = metricRegistry.timer(name(Messages.class, "clear"         ));
@@ -71,10 +76,40 @@ public class Messages {
     });
   }
 
+  public void store(List<Pair<UUID, Envelope>> messages, String destination, long destinationDevice) {
+    database.useTransaction(handle -> {
+      try (Timer.Context timer = storeBatchTimer.time()) {
+        PreparedBatch preparedBatch = handle.prepareBatch("INSERT INTO messages (" + GUID + ", " + TYPE + ", " + RELAY + ", " + TIMESTAMP + ", " + SERVER_TIMESTAMP + ", " + SOURCE + ", " + SOURCE_DEVICE + ", " + DESTINATION + ", " + DESTINATION_DEVICE + ", " + MESSAGE + ", " + CONTENT + ") " +
+                                                          "VALUES (:guid, :type, :relay, :timestamp, :server_timestamp, :source, :source_device, :destination, :destination_device, :message, :content)");
+
+        for (Pair<UUID, Envelope> pair : messages) {
+          Envelope message = pair.second();
+
+          preparedBatch.bind("guid", pair.first())
+                       .bind("destination", destination)
+                       .bind("destination_device", destinationDevice)
+                       .bind("type", message.getType().getNumber())
+                       .bind("relay", message.getRelay())
+                       .bind("timestamp", message.getTimestamp())
+                       .bind("server_timestamp", message.getServerTimestamp())
+                       .bind("source", message.hasSource() ? message.getSource() : null)
+                       .bind("source_device", message.hasSourceDevice() ? message.getSourceDevice() : null)
+                       .bind("message", message.hasLegacyMessage() ? message.getLegacyMessage().toByteArray() : null)
+                       .bind("content", message.hasContent() ? message.getContent().toByteArray() : null)
+                       .add();
+        }
+
+        if (preparedBatch.size() > 0) {
+          preparedBatch.execute();
+        }
+      }
+    });
+  }
+
   public List<OutgoingMessageEntity> load(String destination, long destinationDevice) {
     return database.withHandle(handle -> {
       try (Timer.Context timer = loadTimer.time()) {
-        return handle.createQuery("SELECT * FROM messages WHERE " + DESTINATION + " = :destination AND " + DESTINATION_DEVICE + " = :destination_device ORDER BY " + TIMESTAMP + " ASC LIMIT " + RESULT_SET_CHUNK_SIZE)
+        return handle.createQuery("SELECT * FROM messages WHERE " + DESTINATION + " = :destination AND " + DESTINATION_DEVICE + " = :destination_device ORDER BY " + ID + " ASC LIMIT " + RESULT_SET_CHUNK_SIZE)
                      .bind("destination", destination)
                      .bind("destination_device", destinationDevice)
                      .mapTo(OutgoingMessageEntity.class)
@@ -83,6 +118,22 @@ public class Messages {
     });
   }
 
+  // Pages on the id alone: it only grows, whereas the timestamp comes from
+  // the sender's clock, so a message persisted mid-drain could sort behind
+  // the cursor.
+  public List<OutgoingMessageEntity> load(String destination, long destinationDevice, long afterId) {
+    return database.withHandle(handle -> {
+      try (Timer.Context timer = loadAfterTimer.time()) {
+        return handle.createQuery("SELECT * FROM messages WHERE " + DESTINATION + " = :destination AND " + DESTINATION_DEVICE + " = :destination_device AND " + ID + " > :id ORDER BY " + ID + " ASC LIMIT " + RESULT_SET_CHUNK_SIZE)
+                     .bind("destination", destination)
+                     .bind("destination_device", destinationDevice)
+                     .bind("id", afterId)
+                     .mapTo(OutgoingMessageEntity.class)
+                     .list();
+      }
+    });
+  }
+
   public Optional<OutgoingMessageEntity> remove(String destination, long destinationDevice, String source, long timestamp) {
     return database.withHandle(handle -> {
       try (Timer.Context timer = removeBySourceTimer.time()) {
@@ -109,6 +160,19 @@ public class Messages {
     });
   }
 
+  public List<OutgoingMessageEntity> remove(String destination, List<UUID> guids) {
+    return database.withHandle(handle -> {
+      try (Timer.Context timer = removeByGuidsTimer.time()) {
+        return handle.createQuery("DELETE FROM messages WHERE " + ID + " IN (SELECT DISTINCT ON (" + GUID + ") " + ID + " FROM messages WHERE " + DESTINATION + " = :destination AND " + GUID + " = ANY(:guids) ORDER BY " + GUID + ", " + ID + ") RETURNING *")
+                     .registerArrayType(UUID.class, "uuid")
+                     .bind("destination", destination)
+                     .bind("guids", guids.toArray(new UUID[0]))
+                     .mapTo(OutgoingMessageEntity.class)
+                     .list();
+      }
+    });
+  }
+
   public void remove(String destination, long id) {
     database.useHandle(handle -> {
       try (Timer.Context timer = removeByIdTimer.time()) {
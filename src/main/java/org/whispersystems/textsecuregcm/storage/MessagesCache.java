@@ -1,6 +1,7 @@
 package org.whispersystems.textsecuregcm.storage;
 
 import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
 import com.codahale.metrics.Timer;
@@ -19,11 +20,14 @@ import org.whispersystems.textsecuregcm.util.Util;
 import org.whispersystems.textsecuregcm.websocket.WebsocketAddress;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
@@ -41,18 +45,21 @@ public class MessagesCache implements Managed {
   private static final Logger         logger         = LoggerFactory.getLogger(MessagesCache.class);
 
   private static final MetricRegistry metricRegistry    = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
-  private static final Timer          insertTimer       = metricRegistry.timer(name(MessagesCache.class, "insert"      ));
-  private static final Timer          removeByIdTimer   = metricRegistry.timer(name(MessagesCache.class, "removeById"  ));
-  private static final Timer          removeByNameTimer = metricRegistry.timer(name(MessagesCache.class, "removeByName"));
-  private static final Timer          removeByGuidTimer = metricRegistry.timer(name(MessagesCache.class, "removeByGuid"));
-  private static final Timer          getTimer          = metricRegistry.timer(name(MessagesCache.class, "get"         ));
-  private static final Timer          clearAccountTimer = metricRegistry.timer(name(MessagesCache.class, "clearAccount"));
-  private static final Timer          clearDeviceTimer  = metricRegistry.timer(name(MessagesCache.class, "clearDevice" ));
+  private static final Timer          insertTimer        = metricRegistry.timer(name(MessagesCache.class, "insert"       ));
+  private static final Timer          removeByIdTimer    = metricRegistry.timer(name(MessagesCache.class, "removeById"   ));
+  private static final Timer          removeByNameTimer  = metricRegistry.timer(name(MessagesCache.class, "removeByName" ));
+  private static final Timer          removeByGuidTimer  = metricRegistry.timer(name(MessagesCache.class, "removeByGuid" ));
+  private static final Timer          removeByGuidsTimer = metricRegistry.timer(name(MessagesCache.class, "removeByGuids"));
+  private static final Timer          getTimer           = metricRegistry.timer(name(MessagesCache.class, "get"          ));
+  private static final Timer          clearAccountTimer  = metricRegistry.timer(name(MessagesCache.class, "clearAccount" ));
+  private static final Timer          clearDeviceTimer   = metricRegistry.timer(name(MessagesCache.class, "clearDevice"  ));
 
   private final ReplicatedJedisPool jedisPool;
   private final Messages            database;
   private final AccountsManager     accountsManager;
   private final int                 delayMinutes;
+  private final int                 persistWorkers;
+  private final int                 persistLeaseSeconds;
 
   private InsertOperation  insertOperation;
   private RemoveOperation  removeOperation;
@@ -60,13 +67,17 @@ public class MessagesCache implements Managed {
 
   private PubSubManager    pubSubManager;
   private PushSender       pushSender;
-  private MessagePersister messagePersister;
-
-  public MessagesCache(ReplicatedJedisPool jedisPool, Messages database, AccountsManager accountsManager, int delayMinutes) {
-    this.jedisPool       = jedisPool;
-    this.database        = database;
-    this.accountsManager = accountsManager;
-    this.delayMinutes    = delayMinutes;
+  private List<MessagePersister> messagePersisters;
+
+  public MessagesCache(ReplicatedJedisPool jedisPool, Messages database, AccountsManager accountsManager,
+                       int delayMinutes, int persistWorkers, int persistLeaseSeconds)
+  {
+    this.jedisPool           = jedisPool;
+    this.database            = database;
+    this.accountsManager     = accountsManager;
+    this.delayMinutes        = delayMinutes;
+    this.persistWorkers      = persistWorkers;
+    this.persistLeaseSeconds = persistLeaseSeconds;
   }
 
   public void insert(UUID guid, String destination, long destinationDevice, Envelope message) {
@@ -129,13 +140,46 @@ public class MessagesCache implements Managed {
     return Optional.empty();
   }
 
+  public Map<UUID, OutgoingMessageEntity> remove(String destination, long destinationDevice, List<UUID> guids) {
+    Map<UUID, OutgoingMessageEntity> removed = new HashMap<>();
+
+    if (guids.isEmpty()) {
+      return removed;
+    }
+
+    Timer.Context timer = removeByGuidsTimer.time();
+
+    try {
+      List<byte[]> serialized = removeOperation.remove(destination, destinationDevice, guids);
+
+      for (int i=0;i<guids.size() && i<serialized.size();i++) {
+        if (serialized.get(i) == null) continue;
+
+        try {
+          Envelope envelope = Envelope.parseFrom(serialized.get(i));
+          removed.put(guids.get(i), constructEntityFromEnvelope(0, envelope));
+        } catch (InvalidProtocolBufferException e) {
+          logger.warn("Failed to parse envelope", e);
+        }
+      }
+    } finally {
+      timer.stop();
+    }
+
+    return removed;
+  }
+
   public List<OutgoingMessageEntity> get(String destination, long destinationDevice, int limit) {
+    return get(destination, destinationDevice, 0, limit);
+  }
+
+  public List<OutgoingMessageEntity> get(String destination, long destinationDevice, long afterId, int limit) {
     Timer.Context timer = getTimer.time();
 
     try {
       List<OutgoingMessageEntity> results = new LinkedList<>();
       Key                         key     = new Key(destination, destinationDevice);
-      List<Pair<byte[], Double>>  items   = getOperation.getItems(key.getUserMessageQueue(), key.getUserMessageQueuePersistInProgress(), limit);
+      List<Pair<byte[], Double>>  items   = getOperation.getItems(key.getUserMessageQueue(), key.getUserMessageQueuePersistInProgress(), afterId, limit);
 
       for (Pair<byte[], Double> item : items) {
         try {
@@ -185,15 +229,25 @@ public class MessagesCache implements Managed {
     this.insertOperation  = new InsertOperation(jedisPool);
     this.removeOperation  = new RemoveOperation(jedisPool);
     this.getOperation     = new GetOperation(jedisPool);
-    this.messagePersister = new MessagePersister(jedisPool, database, pubSubManager, pushSender, accountsManager, delayMinutes, TimeUnit.MINUTES);
 
-    this.messagePersister.start();
+    this.messagePersisters = new LinkedList<>();
+
+    for (int i=0;i<persistWorkers;i++) {
+      MessagePersister messagePersister = new MessagePersister(jedisPool, database, pubSubManager, pushSender, accountsManager,
+                                                               delayMinutes, TimeUnit.MINUTES,
+                                                               persistLeaseSeconds, TimeUnit.SECONDS, i);
+      messagePersister.start();
+      messagePersisters.add(messagePersister);
+    }
   }
 
   @Override
   public void stop() throws Exception {
-    messagePersister.shutdown();
-    logger.info("Message persister shut down...");
+    for (MessagePersister messagePersister : messagePersisters) {
+      messagePersister.shutdown();
+    }
+
+    logger.info("Message persisters shut down...");
   }
 
   private OutgoingMessageEntity constructEntityFromEnvelope(long id, Envelope envelope) {
@@ -214,6 +268,7 @@ public class MessagesCache implements Managed {
     private final byte[] userMessageQueue;
     private final byte[] userMessageQueueMetadata;
     private final byte[] userMessageQueuePersistInProgress;
+    private final byte[] userMessageQueuePersistLease;
 
     private final String address;
     private final long   deviceId;
@@ -224,6 +279,7 @@ public class MessagesCache implements Managed {
       this.userMessageQueue                  = ("user_queue::" + address + "::" + deviceId).getBytes();
       this.userMessageQueueMetadata          = ("user_queue_metadata::" + address + "::" + deviceId).getBytes();
       this.userMessageQueuePersistInProgress = ("user_queue_persisting::" + address + "::" + deviceId).getBytes();
+      this.userMessageQueuePersistLease      = ("user_queue_persist_lease::" + address + "::" + deviceId).getBytes();
     }
 
     String getAddress() {
@@ -246,6 +302,10 @@ public class MessagesCache implements Managed {
       return userMessageQueuePersistInProgress;
     }
 
+    byte[] getUserMessageQueuePersistLease() {
+      return userMessageQueuePersistLease;
+    }
+
     static byte[] getUserMessageQueueIndex() {
       return "user_queue_index".getBytes();
     }
@@ -288,13 +348,17 @@ public class MessagesCache implements Managed {
     private final LuaScript removeById;
     private final LuaScript removeBySender;
     private final LuaScript removeByGuid;
+    private final LuaScript removeByGuids;
     private final LuaScript removeQueue;
+    private final LuaScript removeRange;
 
     RemoveOperation(ReplicatedJedisPool jedisPool) throws IOException {
       this.removeById     = LuaScript.fromResource(jedisPool, "lua/remove_item_by_id.lua"    );
       this.removeBySender = LuaScript.fromResource(jedisPool, "lua/remove_item_by_sender.lua");
       this.removeByGuid   = LuaScript.fromResource(jedisPool, "lua/remove_item_by_guid.lua"  );
+      this.removeByGuids  = LuaScript.fromResource(jedisPool, "lua/remove_items_by_guid.lua" );
       this.removeQueue    = LuaScript.fromResource(jedisPool, "lua/remove_queue.lua"         );
+      this.removeRange    = LuaScript.fromResource(jedisPool, "lua/remove_item_range.lua"    );
     }
 
     public void remove(String destination, long destinationDevice, long id) {
@@ -306,6 +370,15 @@ public class MessagesCache implements Managed {
       this.removeById.execute(keys, args);
     }
 
+    public void remove(String destination, long destinationDevice, long minId, long maxId) {
+      Key key = new Key(destination, destinationDevice);
+
+      List<byte[]> keys = Arrays.asList(key.getUserMessageQueue(), key.getUserMessageQueueMetadata(), Key.getUserMessageQueueIndex());
+      List<byte[]> args = Arrays.asList(String.valueOf(minId).getBytes(), String.valueOf(maxId).getBytes());
+
+      this.removeRange.execute(keys, args);
+    }
+
     public byte[] remove(String destination, long destinationDevice, String sender, long timestamp) {
       Key    key       = new Key(destination, destinationDevice);
       String senderKey = sender + "::" + timestamp;
@@ -325,6 +398,19 @@ public class MessagesCache implements Managed {
       return (byte[])this.removeByGuid.execute(keys, args);
     }
 
+    public List<byte[]> remove(String destination, long destinationDevice, List<UUID> guids) {
+      Key key = new Key(destination, destinationDevice);
+
+      List<byte[]> keys = Arrays.asList(key.getUserMessageQueue(), key.getUserMessageQueueMetadata(), Key.getUserMessageQueueIndex());
+      List<byte[]> args = new LinkedList<>();
+
+      for (UUID guid : guids) {
+        args.add(guid.toString().getBytes());
+      }
+
+      return (List<byte[]>)this.removeByGuids.execute(keys, args);
+    }
+
     public void clear(String destination, long deviceId) {
       Key key = new Key(destination, deviceId);
 
@@ -337,24 +423,15 @@ public class MessagesCache implements Managed {
 
   private static class GetOperation {
 
-    private final LuaScript getQueues;
     private final LuaScript getItems;
 
     GetOperation(ReplicatedJedisPool jedisPool) throws IOException {
-      this.getQueues = LuaScript.fromResource(jedisPool, "lua/get_queues_to_persist.lua");
       this.getItems  = LuaScript.fromResource(jedisPool, "lua/get_items.lua");
     }
 
-    List<byte[]> getQueues(byte[] queue, long maxTimeMillis, int limit) {
-      List<byte[]> keys = Collections.singletonList(queue);
-      List<byte[]> args = Arrays.asList(String.valueOf(maxTimeMillis).getBytes(), String.valueOf(limit).getBytes());
-
-      return (List<byte[]>)getQueues.execute(keys, args);
-    }
-
-    List<Pair<byte[], Double>> getItems(byte[] queue, byte[] lock, int limit) {
+    List<Pair<byte[], Double>> getItems(byte[] queue, byte[] lock, long afterId, int limit) {
       List<byte[]> keys = Arrays.asList(queue, lock);
-      List<byte[]> args = Collections.singletonList(String.valueOf(limit).getBytes());
+      List<byte[]> args = Arrays.asList(String.valueOf(limit).getBytes(), String.valueOf(afterId).getBytes());
 
       Iterator<byte[]>           results = ((List<byte[]>) getItems.execute(keys, args)).iterator();
       List<Pair<byte[], Double>> items   = new LinkedList<>();
@@ -367,15 +444,74 @@ public class MessagesCache implements Managed {
     }
   }
 
+  private static class LeaseOperation {
+
+    private static final int CLAIMED   = 1;
+    private static final int CONTENDED = 0;
+
+    private final ReplicatedJedisPool jedisPool;
+    private final LuaScript           claim;
+    private final LuaScript           renew;
+    private final LuaScript           release;
+
+    LeaseOperation(ReplicatedJedisPool jedisPool) throws IOException {
+      this.jedisPool = jedisPool;
+      this.claim     = LuaScript.fromResource(jedisPool, "lua/claim_persist_lease.lua"  );
+      this.renew     = LuaScript.fromResource(jedisPool, "lua/renew_persist_lease.lua"  );
+      this.release   = LuaScript.fromResource(jedisPool, "lua/release_persist_lease.lua");
+    }
+
+    Set<byte[]> getCandidates(long maxTimeMillis, int limit) {
+      try (Jedis jedis = jedisPool.getWriteResource()) {
+        return jedis.zrangeByScore(Key.getUserMessageQueueIndex(), "0".getBytes(), String.valueOf(maxTimeMillis).getBytes(), 0, limit);
+      }
+    }
+
+    /**
+     * @return {@link #CLAIMED}, {@link #CONTENDED} if another worker holds the
+     *         lease, or -1 if the queue was persisted or rescheduled
+     *         since it was listed.
+     */
+    long claim(Key key, String workerId, long leaseMillis, long leaseScore, long maxTimeMillis) {
+      List<byte[]> keys = Arrays.asList(key.getUserMessageQueue(), key.getUserMessageQueuePersistLease(), Key.getUserMessageQueueIndex());
+      List<byte[]> args = Arrays.asList(workerId.getBytes(), String.valueOf(leaseMillis).getBytes(),
+                                        String.valueOf(leaseScore).getBytes(), String.valueOf(maxTimeMillis).getBytes());
+
+      return (Long)claim.execute(keys, args);
+    }
+
+    boolean renew(Key key, String workerId, long leaseMillis, long leaseScore) {
+      List<byte[]> keys = Arrays.asList(key.getUserMessageQueue(), key.getUserMessageQueuePersistLease(), Key.getUserMessageQueueIndex());
+      List<byte[]> args = Arrays.asList(workerId.getBytes(), String.valueOf(leaseMillis).getBytes(), String.valueOf(leaseScore).getBytes());
+
+      return ((Long)renew.execute(keys, args)) == 1;
+    }
+
+    /**
+     * Drops the lease and the queue's persisting flag, but only if this worker
+     * still holds the lease; otherwise both belong to whoever took it over.
+     */
+    boolean release(Key key, String workerId, long currentTime) {
+      List<byte[]> keys = Arrays.asList(key.getUserMessageQueue(), key.getUserMessageQueuePersistLease(), Key.getUserMessageQueueIndex(), key.getUserMessageQueuePersistInProgress());
+      List<byte[]> args = Arrays.asList(workerId.getBytes(), String.valueOf(currentTime).getBytes());
+
+      return ((Long)release.execute(keys, args)) == 1;
+    }
+  }
+
   private static class MessagePersister extends Thread {
 
     private static final Logger         logger              = LoggerFactory.getLogger(MessagePersister.class);
     private static final MetricRegistry metricRegistry      = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
     private static final Timer          getQueuesTimer      = metricRegistry.timer(name(MessagesCache.class, "getQueues"   ));
     private static final Timer          persistQueueTimer   = metricRegistry.timer(name(MessagesCache.class, "persistQueue"));
+    private static final Timer          persistChunkTimer   = metricRegistry.timer(name(MessagesCache.class, "persistChunk"));
+    private static final Meter          persistMessageMeter = metricRegistry.meter(name(MessagesCache.class, "persistMessage"));
     private static final Timer          notifyTimer         = metricRegistry.timer(name(MessagesCache.class, "notifyUser"  ));
     private static final Histogram      queueSizeHistogram  = metricRegistry.histogram(name(MessagesCache.class, "persistQueueSize" ));
     private static final Histogram      queueCountHistogram = metricRegistry.histogram(name(MessagesCache.class, "persistQueueCount"));
+    private static final Meter          leaseContendedMeter = metricRegistry.meter(name(MessagesCache.class, "persistLeaseContended"));
+    private static final Meter          leaseLostMeter      = metricRegistry.meter(name(MessagesCache.class, "persistLeaseLost"     ));
 
     private static final int CHUNK_SIZE = 100;
 
@@ -385,13 +521,16 @@ public class MessagesCache implements Managed {
     private final Messages            database;
     private final long                delayTime;
     private final TimeUnit            delayTimeUnit;
+    private final long                leaseMillis;
+    private final String              workerId;
+    private final Meter               workerPersistMeter;
 
     private final PubSubManager   pubSubManager;
     private final PushSender      pushSender;
     private final AccountsManager accountsManager;
 
-    private final GetOperation    getOperation;
     private final RemoveOperation removeOperation;
+    private final LeaseOperation  leaseOperation;
 
     private boolean finished = false;
 
@@ -401,10 +540,13 @@ public class MessagesCache implements Managed {
                      PushSender          pushSender,
                      AccountsManager     accountsManager,
                      long                delayTime,
-                     TimeUnit            delayTimeUnit)
+                     TimeUnit            delayTimeUnit,
+                     long                leaseTime,
+                     TimeUnit            leaseTimeUnit,
+                     int                 workerIndex)
         throws IOException
     {
-      super(MessagePersister.class.getSimpleName());
+      super(MessagePersister.class.getSimpleName() + "-" + workerIndex);
       this.jedisPool = jedisPool;
       this.database  = database;
 
@@ -412,29 +554,35 @@ public class MessagesCache implements Managed {
       this.pushSender      = pushSender;
       this.accountsManager = accountsManager;
 
-      this.delayTime       = delayTime;
-      this.delayTimeUnit   = delayTimeUnit;
-      this.getOperation    = new GetOperation(jedisPool);
-      this.removeOperation = new RemoveOperation(jedisPool);
+      this.delayTime          = delayTime;
+      this.delayTimeUnit      = delayTimeUnit;
+      this.leaseMillis        = leaseTimeUnit.toMillis(leaseTime);
+      this.workerId           = UUID.randomUUID().toString();
+      this.workerPersistMeter = metricRegistry.meter(name(MessagesCache.class, "persistMessage", "worker-" + workerIndex));
+      this.removeOperation    = new RemoveOperation(jedisPool);
+      this.leaseOperation     = new LeaseOperation(jedisPool);
     }
 
     @Override
     public void run() {
       while (running.get()) {
         try {
-          List<byte[]> queuesToPersist = getQueuesToPersist(getOperation);
+          List<Key> queuesToPersist = getQueuesToPersist();
           queueCountHistogram.update(queuesToPersist.size());
 
-          for (byte[] queue : queuesToPersist) {
-            Key key = Key.fromUserMessageQueue(queue);
-
-            persistQueue(jedisPool, key);
-            notifyClients(accountsManager, pubSubManager, pushSender, key);
+          // Each lease is claimed right before its queue is persisted, so that
+          // it doesn't run down while the queues ahead of it are worked on.
+          for (Key key : queuesToPersist) {
+            if (claim(key) && persistQueue(jedisPool, key)) {
+              notifyClients(accountsManager, pubSubManager, pushSender, key);
+            }
           }
 
           if (queuesToPersist.isEmpty()) {
             Thread.sleep(10000);
           }
+        } catch (InterruptedException e) {
+          logger.info("Persister interrupted");
         } catch (Throwable t) {
           logger.error("Exception while persisting: ", t);
         }
@@ -448,61 +596,113 @@ public class MessagesCache implements Managed {
 
     synchronized void shutdown() {
       running.set(false);
+      interrupt();
       while (!finished) Util.wait(this);
     }
 
-    private void persistQueue(ReplicatedJedisPool jedisPool, Key key) throws IOException {
+    private boolean persistQueue(ReplicatedJedisPool jedisPool, Key key) throws IOException {
       Timer.Context timer = persistQueueTimer.time();
 
       int messagesPersistedCount = 0;
 
       try (Jedis jedis = jedisPool.getWriteResource()) {
         while (true) {
+          if (!leaseOperation.renew(key, workerId, leaseMillis, getLeaseScore(System.currentTimeMillis()))) {
+            leaseLostMeter.mark();
+            return false;
+          }
+
           jedis.setex(key.getUserMessageQueuePersistInProgress(), 30, "1".getBytes());
 
-          Set<Tuple> messages = jedis.zrangeWithScores(key.getUserMessageQueue(), 0, CHUNK_SIZE);
+          Set<Tuple> messages = jedis.zrangeWithScores(key.getUserMessageQueue(), 0, CHUNK_SIZE - 1);
 
-          for (Tuple message : messages) {
-            persistMessage(key, (long)message.getScore(), message.getBinaryElement());
-            messagesPersistedCount++;
+          if (!messages.isEmpty()) {
+            persistMessages(key, messages);
+            messagesPersistedCount += messages.size();
           }
 
           if (messages.size() < CHUNK_SIZE) {
-            jedis.del(key.getUserMessageQueuePersistInProgress());
-            return;
+            return true;
           }
         }
       } finally {
+        leaseOperation.release(key, workerId, System.currentTimeMillis());
         timer.stop();
         queueSizeHistogram.update(messagesPersistedCount);
       }
     }
 
-    private void persistMessage(Key key, long score, byte[] message) {
+    private void persistMessages(Key key, Set<Tuple> messages) {
+      Timer.Context timer = persistChunkTimer.time();
+
       try {
-        Envelope envelope = Envelope.parseFrom(message);
-        UUID     guid     = envelope.hasServerGuid() ? UUID.fromString(envelope.getServerGuid()) : null;
+        List<Pair<UUID, Envelope>> envelopes = new ArrayList<>(messages.size());
+        long                       minId     = Long.MAX_VALUE;
+        long                       maxId     = Long.MIN_VALUE;
 
-        envelope = envelope.toBuilder().clearServerGuid().build();
+        for (Tuple message : messages) {
+          long id = (long)message.getScore();
 
-        database.store(guid, envelope, key.getAddress(), key.getDeviceId());
-      } catch (InvalidProtocolBufferException e) {
-        logger.error("Error parsing envelope", e);
-      }
+          minId = Math.min(minId, id);
+          maxId = Math.max(maxId, id);
+
+          try {
+            Envelope envelope = Envelope.parseFrom(message.getBinaryElement());
+            UUID     guid     = envelope.hasServerGuid() ? UUID.fromString(envelope.getServerGuid()) : null;
 
-      removeOperation.remove(key.getAddress(), key.getDeviceId(), score);
+            envelopes.add(new Pair<>(guid, envelope.toBuilder().clearServerGuid().build()));
+          } catch (InvalidProtocolBufferException e) {
+            logger.error("Error parsing envelope", e);
+          }
+        }
+
+        database.store(envelopes, key.getAddress(), key.getDeviceId());
+        removeOperation.remove(key.getAddress(), key.getDeviceId(), minId, maxId);
+
+        persistMessageMeter.mark(messages.size());
+        workerPersistMeter.mark(messages.size());
+      } finally {
+        timer.stop();
+      }
     }
 
-    private List<byte[]> getQueuesToPersist(GetOperation getOperation) {
+    private List<Key> getQueuesToPersist() {
       Timer.Context timer = getQueuesTimer.time();
       try {
-        long maxTime = System.currentTimeMillis() - delayTimeUnit.toMillis(delayTime);
-        return getOperation.getQueues(Key.getUserMessageQueueIndex(), maxTime, 100);
+        long      maxTime    = System.currentTimeMillis() - delayTimeUnit.toMillis(delayTime);
+        List<Key> candidates = new LinkedList<>();
+
+        for (byte[] queue : leaseOperation.getCandidates(maxTime, 100)) {
+          try {
+            candidates.add(Key.fromUserMessageQueue(queue));
+          } catch (IOException e) {
+            logger.warn("Skipping malformed queue", e);
+          }
+        }
+
+        return candidates;
       } finally {
         timer.stop();
       }
     }
 
+    private boolean claim(Key key) {
+      long currentTime = System.currentTimeMillis();
+      long result      = leaseOperation.claim(key, workerId, leaseMillis, getLeaseScore(currentTime), currentTime - delayTimeUnit.toMillis(delayTime));
+
+      if (result == LeaseOperation.CONTENDED) {
+        leaseContendedMeter.mark();
+      }
+
+      return result == LeaseOperation.CLAIMED;
+    }
+
+    // Claimed queues stay in the index, pushed out to the point where they become
+    // eligible again exactly when the lease expires if this worker dies.
+    private long getLeaseScore(long currentTime) {
+      return currentTime + leaseMillis - delayTimeUnit.toMillis(delayTime);
+    }
+
     private void notifyClients(AccountsManager accountsManager, PubSubManager pubSubManager, PushSender pushSender, Key key) {
       Timer.Context timer = notifyTimer.time();
 
@@ -5,11 +5,14 @@ import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
 import org.whispersystems.textsecuregcm.entities.MessageProtos.Envelope;
+import org.whispersystems.textsecuregcm.entities.MessagesCursor;
 import org.whispersystems.textsecuregcm.entities.OutgoingMessageEntity;
 import org.whispersystems.textsecuregcm.entities.OutgoingMessageEntityList;
 import org.whispersystems.textsecuregcm.util.Constants;
 
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
 
@@ -40,13 +43,44 @@ public class MessagesManager {
   }
 
   public OutgoingMessageEntityList getMessagesForDevice(String destination, long destinationDevice) {
-    List<OutgoingMessageEntity> messages = this.messages.load(destination, destinationDevice);
+    return getMessagesForDevice(destination, destinationDevice, Optional.empty());
+  }
+
+  public OutgoingMessageEntityList getMessagesForDevice(String destination, long destinationDevice, Optional<MessagesCursor> cursor) {
+    MessagesCursor              position = cursor.orElse(MessagesCursor.START);
+    List<OutgoingMessageEntity> messages;
+
+    if      (!cursor.isPresent())  messages = this.messages.load(destination, destinationDevice);
+    else if (!position.isCached()) messages = this.messages.load(destination, destinationDevice, position.getId());
+    else                           messages = new LinkedList<>();
 
-    if (messages.size() <= Messages.RESULT_SET_CHUNK_SIZE) {
-      messages.addAll(this.messagesCache.get(destination, destinationDevice, Messages.RESULT_SET_CHUNK_SIZE - messages.size()));
+    if (messages.size() < Messages.RESULT_SET_CHUNK_SIZE) {
+      messages.addAll(this.messagesCache.get(destination, destinationDevice, position.getCachedId(), Messages.RESULT_SET_CHUNK_SIZE - messages.size()));
     }
 
-    return new OutgoingMessageEntityList(messages, messages.size() >= Messages.RESULT_SET_CHUNK_SIZE);
+    for (OutgoingMessageEntity message : messages) {
+      position = position.after(message);
+    }
+
+    // Messages the persister moved to the database while we were reading
+    // the cache would otherwise be skipped until the next connection.
+    if (messages.size() < Messages.RESULT_SET_CHUNK_SIZE && position.isCached()) {
+      List<OutgoingMessageEntity> persisted = this.messages.load(destination, destinationDevice, position.getId());
+
+      for (OutgoingMessageEntity message : persisted) {
+        position = position.after(message);
+      }
+
+      messages.addAll(persisted);
+    }
+
+    boolean more = messages.size() >= Messages.RESULT_SET_CHUNK_SIZE;
+
+    if (more) {
+      return new OutgoingMessageEntityList(messages, true, position);
+    } else {
+      return new OutgoingMessageEntityList(messages, false);
+    }
   }
 
   public void clear(String destination) {
@@ -86,6 +120,25 @@ public class MessagesManager {
     return removed;
   }
 
+  public List<OutgoingMessageEntity> delete(String destination, long deviceId, List<UUID> guids) {
+    Map<UUID, OutgoingMessageEntity> cached  = this.messagesCache.remove(destination, deviceId, guids);
+    List<OutgoingMessageEntity>      removed = new LinkedList<>(cached.values());
+    List<UUID>                       missed  = new LinkedList<>();
+
+    for (UUID guid : guids) {
+      if (!cached.containsKey(guid)) missed.add(guid);
+    }
+
+    if (!missed.isEmpty()) {
+      removed.addAll(this.messages.remove(destination, missed));
+    }
+
+    cacheHitByGuidMeter.mark(cached.size());
+    cacheMissByGuidMeter.mark(missed.size());
+
+    return removed;
+  }
+
   public void delete(String destination, long deviceId, long id, boolean cached) {
     if (cached) {
       this.messagesCache.remove(destination, deviceId, id);
@@ -1,11 +1,20 @@
 package org.whispersystems.textsecuregcm.storage;
 
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.whispersystems.dispatch.DispatchChannel;
+import org.whispersystems.dispatch.DispatchExecutor;
 import org.whispersystems.dispatch.DispatchManager;
 import org.whispersystems.textsecuregcm.redis.ReplicatedJedisPool;
+import org.whispersystems.textsecuregcm.util.Constants;
 
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+
+import static com.codahale.metrics.MetricRegistry.name;
 import io.dropwizard.lifecycle.Managed;
 import static org.whispersystems.textsecuregcm.storage.PubSubProtos.PubSubMessage;
 import redis.clients.jedis.Jedis;
@@ -14,12 +23,13 @@ public class PubSubManager implements Managed {
 
   private static final String KEEPALIVE_CHANNEL = "KEEPALIVE";
 
-  private final Logger logger = LoggerFactory.getLogger(PubSubManager.class);
+  private final Logger         logger         = LoggerFactory.getLogger(PubSubManager.class);
+  private final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
 
   private final DispatchManager     dispatchManager;
   private final ReplicatedJedisPool jedisPool;
 
-  private boolean subscribed = false;
+  private final Set<String> subscribedKeepalives = new HashSet<>();
 
   public PubSubManager(ReplicatedJedisPool jedisPool, DispatchManager dispatchManager) {
     this.dispatchManager = dispatchManager;
@@ -30,11 +40,34 @@ public class PubSubManager implements Managed {
   public void start() throws Exception {
     this.dispatchManager.start();
 
+    for (int i=0;i<dispatchManager.getShardCount();i++) {
+      final int shard = i;
+
+      metricRegistry.gauge(name(PubSubManager.class, "shard", String.valueOf(shard), "subscriptions"), () -> () -> dispatchManager.getSubscriptionCount(shard));
+      metricRegistry.gauge(name(PubSubManager.class, "shard", String.valueOf(shard), "read_lag"     ), () -> () -> dispatchManager.getReadLag(shard));
+      metricRegistry.gauge(name(PubSubManager.class, "shard", String.valueOf(shard), "reconnects"   ), () -> () -> dispatchManager.getReconnectCount(shard));
+    }
+
+    DispatchExecutor executor = dispatchManager.getExecutor();
+
+    for (int i=0;i<executor.getLaneCount();i++) {
+      final int lane = i;
+      metricRegistry.gauge(name(PubSubManager.class, "lane", String.valueOf(lane), "depth"), () -> () -> executor.getLaneDepth(lane));
+    }
+
+    metricRegistry.register(name(PubSubManager.class, "lane", "wait"    ), executor.getWaitTimer());
+    metricRegistry.register(name(PubSubManager.class, "lane", "overflow"), executor.getOverflowMeter());
+
+    // One keepalive per shard, so that every connection sees regular traffic
+    // and its read_lag gauge measures a stall rather than an idle socket.
     KeepaliveDispatchChannel keepaliveDispatchChannel = new KeepaliveDispatchChannel();
-    this.dispatchManager.subscribe(KEEPALIVE_CHANNEL, keepaliveDispatchChannel);
+
+    for (int i=0;i<dispatchManager.getShardCount();i++) {
+      this.dispatchManager.subscribe(i, getKeepaliveChannel(i), keepaliveDispatchChannel);
+    }
 
     synchronized (this) {
-      while (!subscribed) wait(0);
+      while (subscribedKeepalives.size() < dispatchManager.getShardCount()) wait(0);
     }
 
     new KeepaliveSender().start();
@@ -57,6 +90,18 @@ public class PubSubManager implements Managed {
     return dispatchManager.hasSubscription(address.serialize());
   }
 
+  public Optional<DispatchChannel> getLocalSubscription(PubSubAddress address) {
+    return dispatchManager.getSubscription(address.serialize());
+  }
+
+  /**
+   * Runs a task on the dispatch lane of an address, in order with the callbacks
+   * for messages already read off the wire for it.
+   */
+  public void execute(PubSubAddress address, Runnable task) {
+    dispatchManager.getExecutor().execute(address.serialize(), task);
+  }
+
   public boolean publish(PubSubAddress address, PubSubMessage message) {
     return publish(address.serialize().getBytes(), message);
   }
@@ -73,6 +118,10 @@ public class PubSubManager implements Managed {
     }
   }
 
+  private static String getKeepaliveChannel(int shard) {
+    return KEEPALIVE_CHANNEL + "::" + shard;
+  }
+
   private class KeepaliveDispatchChannel implements DispatchChannel {
 
     @Override
@@ -82,17 +131,15 @@ public class PubSubManager implements Managed {
 
     @Override
     public void onDispatchSubscribed(String channel) {
-      if (KEEPALIVE_CHANNEL.equals(channel)) {
-        synchronized (PubSubManager.this) {
-          subscribed = true;
-          PubSubManager.this.notifyAll();
-        }
+      synchronized (PubSubManager.this) {
+        subscribedKeepalives.add(channel);
+        PubSubManager.this.notifyAll();
       }
     }
 
     @Override
     public void onDispatchUnsubscribed(String channel) {
-      logger.warn("***** KEEPALIVE CHANNEL UNSUBSCRIBED *****");
+      logger.warn("***** KEEPALIVE CHANNEL UNSUBSCRIBED: " + channel + " *****");
     }
   }
 
@@ -102,9 +149,12 @@ public class PubSubManager implements Managed {
       while (true) {
         try {
           Thread.sleep(20000);
-          publish(KEEPALIVE_CHANNEL.getBytes(), PubSubMessage.newBuilder()
-                                                             .setType(PubSubMessage.Type.KEEPALIVE)
-                                                             .build());
+
+          for (int i=0;i<dispatchManager.getShardCount();i++) {
+            publish(getKeepaliveChannel(i).getBytes(), PubSubMessage.newBuilder()
+                                                                    .setType(PubSubMessage.Type.KEEPALIVE)
+                                                                    .build());
+          }
         } catch (Throwable e) {
           logger.warn("***** KEEPALIVE EXCEPTION ******", e);
         }
@@ -3,12 +3,14 @@ package org.whispersystems.textsecuregcm.websocket;
 import com.google.protobuf.InvalidProtocolBufferException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.whispersystems.dispatch.DispatchChannel;
+import org.whispersystems.dispatch.SpillChannel;
 import org.whispersystems.textsecuregcm.entities.MessageProtos.Envelope;
 import org.whispersystems.textsecuregcm.storage.MessagesManager;
 import org.whispersystems.textsecuregcm.storage.PubSubProtos.PubSubMessage;
 
-public class DeadLetterHandler implements DispatchChannel {
+import java.util.Optional;
+
+public class DeadLetterHandler implements SpillChannel {
 
   private final Logger logger = LoggerFactory.getLogger(DeadLetterHandler.class);
 
@@ -39,6 +41,31 @@ public class DeadLetterHandler implements DispatchChannel {
     }
   }
 
+  /**
+   * Only deliveries can be stored for the device to fetch later. Connection
+   * notices have to reach the subscriber, so they wait for room in the lane.
+   */
+  @Override
+  public boolean canSpill(String channel, byte[] data) {
+    try {
+      return PubSubMessage.parseFrom(data).getType() == PubSubMessage.Type.DELIVER;
+    } catch (InvalidProtocolBufferException e) {
+      return false;
+    }
+  }
+
+  /**
+   * A spilled delivery is stored rather than sent, so the connection is told
+   * to check its queue.
+   */
+  @Override
+  public Optional<byte[]> getSpillNotice(String channel, byte[] data) {
+    return Optional.of(PubSubMessage.newBuilder()
+                                    .setType(PubSubMessage.Type.QUERY_DB)
+                                    .build()
+                                    .toByteArray());
+  }
+
   @Override
   public void onDispatchSubscribed(String channel) {
     logger.warn("DeadLetterHandler subscription notice! " + channel);
@@ -15,6 +15,7 @@ import org.whispersystems.textsecuregcm.controllers.MessageController;
 import org.whispersystems.textsecuregcm.controllers.NoSuchUserException;
 import org.whispersystems.textsecuregcm.entities.CryptoEncodingException;
 import org.whispersystems.textsecuregcm.entities.EncryptedOutgoingMessage;
+import org.whispersystems.textsecuregcm.entities.MessagesCursor;
 import org.whispersystems.textsecuregcm.entities.OutgoingMessageEntity;
 import org.whispersystems.textsecuregcm.entities.OutgoingMessageEntityList;
 import org.whispersystems.textsecuregcm.push.NotPushRegisteredException;
@@ -83,7 +84,7 @@ public class WebSocketConnection implements DispatchChannel {
           processStoredMessages();
           break;
         case PubSubMessage.Type.DELIVER_VALUE:
-          sendMessage(Envelope.parseFrom(pubSubMessage.getContent()), Optional.empty(), false);
+          sendMessage(Envelope.parseFrom(pubSubMessage.getContent()), Optional.empty(), Optional.empty());
           break;
         case PubSubMessage.Type.CONNECTED_VALUE:
           if (pubSubMessage.hasContent() && !new String(pubSubMessage.getContent().toByteArray()).equals(connectionId)) {
@@ -107,9 +108,13 @@ public class WebSocketConnection implements DispatchChannel {
     processStoredMessages();
   }
 
+  public void deliverLocal(Envelope message) {
+    sendMessage(message, Optional.empty(), Optional.empty());
+  }
+
   private void sendMessage(final Envelope                    message,
                            final Optional<StoredMessageInfo> storedMessageInfo,
-                           final boolean                     requery)
+                           final Optional<MessagesCursor>    requery)
   {
     try {
       String           header;
@@ -137,7 +142,7 @@ public class WebSocketConnection implements DispatchChannel {
           if (isSuccessResponse(response)) {
             if (storedMessageInfo.isPresent()) messagesManager.delete(account.getNumber(), device.getId(), storedMessageInfo.get().id, storedMessageInfo.get().cached);
             if (!isReceipt)                    sendDeliveryReceiptFor(message);
-            if (requery)                       processStoredMessages();
+            if (requery.isPresent())           processStoredMessages(requery);
           } else if (!isSuccessResponse(response) && !storedMessageInfo.isPresent()) {
             requeueMessage(message);
           }
@@ -180,8 +185,16 @@ public class WebSocketConnection implements DispatchChannel {
   }
 
   private void processStoredMessages() {
-    OutgoingMessageEntityList       messages = messagesManager.getMessagesForDevice(account.getNumber(), device.getId());
+    processStoredMessages(messagesManager.getMessagesForDevice(account.getNumber(), device.getId()));
+  }
+
+  private void processStoredMessages(Optional<MessagesCursor> cursor) {
+    processStoredMessages(messagesManager.getMessagesForDevice(account.getNumber(), device.getId(), cursor));
+  }
+
+  private void processStoredMessages(OutgoingMessageEntityList messages) {
     Iterator<OutgoingMessageEntity> iterator = messages.getMessages().iterator();
+    Optional<MessagesCursor>        next     = messages.hasMore() ? messages.getNextCursor() : Optional.empty();
 
     while (iterator.hasNext()) {
       OutgoingMessageEntity message = iterator.next();
@@ -207,7 +220,7 @@ public class WebSocketConnection implements DispatchChannel {
         builder.setRelay(message.getRelay());
       }
 
-      sendMessage(builder.build(), Optional.of(new StoredMessageInfo(message.getId(), message.isCached())), !iterator.hasNext() && messages.hasMore());
+      sendMessage(builder.build(), Optional.of(new StoredMessageInfo(message.getId(), message.isCached())), iterator.hasNext() ? Optional.empty() : next);
     }
 
     if (!messages.hasMore()) {
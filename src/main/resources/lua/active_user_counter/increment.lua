@@ -0,0 +1,15 @@
+-- keys: tally (KEYS[1]), counted_chunks (KEYS[2])
+-- argv: chunk_id (ARGV[1]), [field, increment]...
+--
+-- Adds a chunk's counts to the tally, unless that chunk was already counted
+-- by a worker that lost its lease partway through.
+
+if redis.call("SADD", KEYS[2], ARGV[1]) == 0 then
+    return 0
+end
+
+for i = 2, #ARGV, 2 do
+    redis.call("HINCRBY", KEYS[1], ARGV[i], ARGV[i + 1])
+end
+
+return 1
@@ -0,0 +1,17 @@
+-- keys: queue_key, queue_lease_key, queue_total_index
+-- argv: worker_id, lease_millis, lease_score, max_time
+-- returns: 1 if claimed, 0 if another worker holds the lease, -1 if the queue is no longer due
+
+local score = redis.call("ZSCORE", KEYS[3], KEYS[1])
+
+if not score or tonumber(score) > tonumber(ARGV[4]) then
+    return -1
+end
+
+if not redis.call("SET", KEYS[2], ARGV[1], "NX", "PX", ARGV[2]) then
+    return 0
+end
+
+redis.call("ZADD", KEYS[3], "XX", ARGV[3], KEYS[1])
+
+return 1
@@ -0,0 +1,27 @@
+-- keys: pool (KEYS[1]), version (KEYS[2]), consumed (KEYS[3])
+-- argv: pool_ttl_seconds (ARGV[1]), expected_version (ARGV[2]), [key_id, key]...
+--
+-- Loads a pool read from the database, unless another loader got there first or
+-- the version moved since the read, because new keys were stored or consumed
+-- keys were deleted. Keys already claimed but not yet deleted from the database
+-- are left out. A marker member scored -inf means "loaded".
+
+if redis.call("EXISTS", KEYS[1]) == 1 then
+    return 0
+end
+
+if (redis.call("GET", KEYS[2]) or "") ~= ARGV[2] then
+    return 0
+end
+
+redis.call("ZADD", KEYS[1], "-inf", "")
+
+for i = 3, #ARGV, 2 do
+    if redis.call("SISMEMBER", KEYS[3], ARGV[i + 1]) == 0 then
+        redis.call("ZADD", KEYS[1], ARGV[i], ARGV[i + 1])
+    end
+end
+
+redis.call("EXPIRE", KEYS[1], ARGV[1])
+
+return 1
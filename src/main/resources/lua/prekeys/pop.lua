@@ -0,0 +1,37 @@
+-- keys: consumed_devices (KEYS[1]), then pool and consumed for each device
+-- argv: pool_ttl_seconds (ARGV[1]), then the name of each device
+--
+-- returns a status and key for each device, in order: 0 if its pool isn't
+-- loaded, 1 if it is empty, or 2 and the claimed key. Claimed keys are recorded
+-- as consumed until they're deleted from the database.
+
+local results = {}
+
+for i = 2, #ARGV do
+    local pool     = KEYS[(i - 1) * 2]
+    local consumed = KEYS[(i - 1) * 2 + 1]
+    local status   = 0
+    local key      = ""
+
+    if redis.call("EXISTS", pool) == 1 then
+        redis.call("EXPIRE", pool, ARGV[1])
+
+        local claimed = redis.call("ZRANGEBYSCORE", pool, "(-inf", "+inf", "LIMIT", 0, 1)
+
+        if #claimed == 0 then
+            status = 1
+        else
+            redis.call("ZREM", pool, claimed[1])
+            redis.call("SADD", consumed, claimed[1])
+            redis.call("SADD", KEYS[1], ARGV[i])
+
+            status = 2
+            key    = claimed[1]
+        end
+    end
+
+    table.insert(results, status)
+    table.insert(results, key)
+end
+
+return results
@@ -0,0 +1,16 @@
+-- keys: queue_key, queue_lease_key, queue_total_index, queue_persisting_key
+-- argv: worker_id, current_time
+
+if redis.call("GET", KEYS[2]) ~= ARGV[1] then
+    return 0
+end
+
+redis.call("DEL", KEYS[2], KEYS[4])
+
+if (redis.call("ZCARD", KEYS[1]) > 0) then
+    redis.call("ZADD", KEYS[3], ARGV[2], KEYS[1])
+else
+    redis.call("ZREM", KEYS[3], KEYS[1])
+end
+
+return 1
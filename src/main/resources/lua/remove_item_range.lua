@@ -0,0 +1,28 @@
+-- keys: queue_key, queue_metadata_key, queue_index
+-- argv: min_index_to_remove, max_index_to_remove
+
+local items = redis.call("ZRANGEBYSCORE", KEYS[1], ARGV[1], ARGV[2], "WITHSCORES")
+
+for i = 2, #items, 2 do
+    local messageId   = items[i]
+    local senderIndex = redis.call("HGET", KEYS[2], messageId)
+    local guidIndex   = redis.call("HGET", KEYS[2], messageId .. "guid")
+
+    if senderIndex then
+        redis.call("HDEL", KEYS[2], senderIndex)
+        redis.call("HDEL", KEYS[2], messageId)
+    end
+
+    if guidIndex then
+        redis.call("HDEL", KEYS[2], guidIndex)
+        redis.call("HDEL", KEYS[2], messageId .. "guid")
+    end
+end
+
+local removedCount = redis.call("ZREMRANGEBYSCORE", KEYS[1], ARGV[1], ARGV[2])
+
+if (redis.call("ZCARD", KEYS[1]) == 0) then
+    redis.call("ZREM", KEYS[3], KEYS[1])
+end
+
+return removedCount
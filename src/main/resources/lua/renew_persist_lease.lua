@@ -0,0 +1,11 @@
+-- keys: queue_key, queue_lease_key, queue_total_index
+-- argv: worker_id, lease_millis, lease_score
+
+if redis.call("GET", KEYS[2]) ~= ARGV[1] then
+    return 0
+end
+
+redis.call("PEXPIRE", KEYS[2], ARGV[2])
+redis.call("ZADD", KEYS[3], "XX", ARGV[3], KEYS[1])
+
+return 1
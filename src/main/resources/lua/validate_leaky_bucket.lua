@@ -0,0 +1,74 @@
+-- keys: bucket_key, legacy_bucket_key, ... (one pair per bucket)
+-- argv: bucket_size, leak_rate_per_millis, amount, now_millis, ttl_seconds, [max_amount]
+-- returns: the number taken from each bucket, or 0 if any of them is short
+--
+-- Each bucket is a hash of space remaining (s) and last update time (t). A
+-- bucket with no hash yet is seeded from whatever an earlier release left
+-- under its legacy key, which is then deleted. At least amount and as much as
+-- max_amount is taken from every bucket or, if any of them is short, nothing.
+
+local bucketSize        = tonumber(ARGV[1])
+local leakRatePerMillis = tonumber(ARGV[2])
+local amount            = tonumber(ARGV[3])
+local now               = tonumber(ARGV[4])
+local ttl               = tonumber(ARGV[5])
+local maxAmount         = tonumber(ARGV[6]) or amount
+
+local remaining = {}
+local granted   = maxAmount
+
+for i = 1, #KEYS, 2 do
+    local key       = KEYS[i]
+    local legacyKey = KEYS[i + 1]
+
+    local bucket         = redis.call("HMGET", key, "s", "t")
+    local spaceRemaining = tonumber(bucket[1])
+    local lastUpdate     = tonumber(bucket[2])
+
+    if spaceRemaining == nil or lastUpdate == nil then
+        local legacyType = redis.call("TYPE", legacyKey)["ok"]
+
+        if legacyType == "string" then
+            local decoded, legacy = pcall(cjson.decode, redis.call("GET", legacyKey))
+
+            if decoded then
+                spaceRemaining = tonumber(legacy["spaceRemaining"])
+                lastUpdate     = tonumber(legacy["lastUpdateTimeMillis"])
+            end
+        elseif legacyType == "hash" then
+            local legacy = redis.call("HMGET", legacyKey, "s", "t")
+            spaceRemaining = tonumber(legacy[1])
+            lastUpdate     = tonumber(legacy[2])
+        end
+
+        if legacyType ~= "none" then
+            redis.call("DEL", legacyKey)
+        end
+
+        if spaceRemaining ~= nil and lastUpdate ~= nil then
+            redis.call("HMSET", key, "s", spaceRemaining, "t", lastUpdate)
+            redis.call("EXPIRE", key, ttl)
+        end
+    end
+
+    if spaceRemaining == nil or lastUpdate == nil then
+        spaceRemaining = bucketSize
+        lastUpdate     = now
+    end
+
+    spaceRemaining = math.min(bucketSize, math.floor(spaceRemaining + ((now - lastUpdate) * leakRatePerMillis)))
+
+    if spaceRemaining < amount then
+        return 0
+    end
+
+    granted      = math.min(granted, spaceRemaining)
+    remaining[i] = spaceRemaining
+end
+
+for i = 1, #KEYS, 2 do
+    redis.call("HMSET", KEYS[i], "s", remaining[i] - granted, "t", now)
+    redis.call("EXPIRE", KEYS[i], ttl)
+end
+
+return granted
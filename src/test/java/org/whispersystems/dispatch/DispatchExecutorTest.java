@@ -0,0 +1,93 @@
+package org.whispersystems.dispatch;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DispatchExecutorTest {
+
+  @Test
+  public void testChannelOrdering() throws InterruptedException {
+    DispatchExecutor executor = new DispatchExecutor(4, 100, DispatchExecutor.OverflowPolicy.BLOCK);
+    List<Integer>    results  = Collections.synchronizedList(new LinkedList<>());
+    CountDownLatch   latch    = new CountDownLatch(1000);
+
+    for (int i=0;i<1000;i++) {
+      final int value = i;
+
+      executor.offer("foo", () -> {
+        results.add(value);
+        latch.countDown();
+      });
+    }
+
+    assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+    for (int i=0;i<1000;i++) {
+      assertEquals(i, (int)results.get(i));
+    }
+
+    assertEquals(1000, executor.getWaitTimer().getCount());
+    executor.shutdown();
+  }
+
+  @Test
+  public void testSpillWhenFull() throws InterruptedException {
+    DispatchExecutor executor = new DispatchExecutor(1, 1, DispatchExecutor.OverflowPolicy.SPILL);
+    CountDownLatch   running  = new CountDownLatch(1);
+    CountDownLatch   release  = new CountDownLatch(1);
+
+    executor.offer("foo", () -> {
+      running.countDown();
+
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+    });
+
+    assertTrue(running.await(5, TimeUnit.SECONDS));
+
+    assertTrue(executor.offer("foo", () -> {}));
+    assertFalse(executor.offer("foo", () -> {}));
+    assertEquals(1, executor.getLaneDepth(0));
+    assertEquals(1, executor.getOverflowMeter().getCount());
+
+    release.countDown();
+    executor.shutdown();
+  }
+
+  @Test
+  public void testExecuteFromOwnLaneQueuesInOrder() throws InterruptedException {
+    DispatchExecutor executor = new DispatchExecutor(1, 1, DispatchExecutor.OverflowPolicy.BLOCK);
+    List<String>     results  = Collections.synchronizedList(new LinkedList<>());
+    CountDownLatch   latch    = new CountDownLatch(1);
+
+    executor.execute("foo", () -> {
+      executor.execute("bar", () -> results.add("bar"));
+      executor.execute("baz", () -> results.add("baz"));
+      executor.execute("qux", () -> {
+        results.add("qux");
+        latch.countDown();
+      });
+
+      results.add("foo");
+    });
+
+    assertTrue(latch.await(5, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("foo", "bar", "baz", "qux"), results);
+
+    executor.shutdown();
+  }
+
+}
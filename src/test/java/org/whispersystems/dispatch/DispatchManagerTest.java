@@ -5,6 +5,7 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExternalResource;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.whispersystems.dispatch.io.RedisPubSubConnectionFactory;
@@ -14,9 +15,14 @@ import org.whispersystems.dispatch.redis.PubSubReply;
 import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.AdditionalMatchers.aryEq;
 import static org.mockito.Mockito.*;
 
 public class DispatchManagerTest {
@@ -105,14 +111,258 @@ public class DispatchManagerTest {
     assertArrayEquals("there".getBytes(), captor.getValue());
   }
 
+  @Test
+  public void testShardedSubscriptions() throws IOException {
+    List<PubSubConnection>       connections = new LinkedList<>();
+    List<PubSubReplyInputStream> streams     = new LinkedList<>();
+    RedisPubSubConnectionFactory factory     = mock(RedisPubSubConnectionFactory.class);
+
+    when(factory.connect()).thenAnswer(new Answer<PubSubConnection>() {
+      @Override
+      public PubSubConnection answer(InvocationOnMock invocationOnMock) throws Throwable {
+        PubSubConnection       connection = mock(PubSubConnection.class);
+        PubSubReplyInputStream stream     = new PubSubReplyInputStream();
+
+        when(connection.read()).thenAnswer(invocation -> stream.read());
+
+        synchronized (connections) {
+          connections.add(connection);
+          streams.add(stream);
+        }
+
+        return connection;
+      }
+    });
+
+    DispatchManager sharded = new DispatchManager(factory, Optional.empty(), 4);
+    sharded.start();
+
+    assertEquals(4, connections.size());
+    assertEquals(4, sharded.getShardCount());
+
+    DispatchChannel dispatchChannel = mock(DispatchChannel.class);
+
+    for (int i=0;i<40;i++) {
+      sharded.subscribe("channel-" + i, dispatchChannel);
+    }
+
+    int total = 0;
+
+    for (int i=0;i<4;i++) {
+      ArgumentCaptor<String> captor = ArgumentCaptor.forClass(String.class);
+      verify(connections.get(i), atLeastOnce()).subscribe(captor.capture());
+
+      assertEquals(sharded.getSubscriptionCount(i), captor.getAllValues().size());
+      total += captor.getAllValues().size();
+    }
+
+    assertEquals(40, total);
+
+    streams.get(1).write(null);
+
+    verify(factory, timeout(1000).times(5)).connect();
+    verify(connections.get(4), timeout(1000).times(sharded.getSubscriptionCount(1))).subscribe(anyString());
+
+    assertEquals(1, sharded.getReconnectCount(1));
+    assertEquals(0, sharded.getReconnectCount(0));
+
+    streams.get(4).write(new PubSubReply(PubSubReply.Type.SUBSCRIBE, "channel-0", Optional.empty()));
+    verify(dispatchChannel, timeout(1000)).onDispatchSubscribed(eq("channel-0"));
+  }
+
+  @Test
+  public void testPinnedSubscriptions() throws IOException {
+    List<PubSubConnection>       connections = new LinkedList<>();
+    RedisPubSubConnectionFactory factory     = mock(RedisPubSubConnectionFactory.class);
+
+    when(factory.connect()).thenAnswer(new Answer<PubSubConnection>() {
+      @Override
+      public PubSubConnection answer(InvocationOnMock invocationOnMock) throws Throwable {
+        PubSubConnection       connection = mock(PubSubConnection.class);
+        PubSubReplyInputStream stream     = new PubSubReplyInputStream();
+
+        when(connection.read()).thenAnswer(invocation -> stream.read());
+        connections.add(connection);
+
+        return connection;
+      }
+    });
+
+    DispatchManager sharded         = new DispatchManager(factory, Optional.empty(), 4);
+    DispatchChannel dispatchChannel = mock(DispatchChannel.class);
+
+    sharded.start();
+
+    for (int i=0;i<4;i++) {
+      sharded.subscribe(i, "KEEPALIVE::" + i, dispatchChannel);
+    }
+
+    for (int i=0;i<4;i++) {
+      verify(connections.get(i)).subscribe(eq("KEEPALIVE::" + i));
+      assertEquals(1, sharded.getSubscriptionCount(i));
+    }
+
+    sharded.unsubscribe("KEEPALIVE::2", dispatchChannel);
+
+    verify(connections.get(2)).unsubscribe(eq("KEEPALIVE::2"));
+    assertEquals(0, sharded.getSubscriptionCount(2));
+  }
+
+  @Test
+  public void testSpillOnlyWhatDeadLetterAccepts() throws Exception {
+    PubSubConnection             connection = mock(PubSubConnection.class);
+    RedisPubSubConnectionFactory factory    = mock(RedisPubSubConnectionFactory.class);
+    PubSubReplyInputStream       stream     = new PubSubReplyInputStream();
+    SpillChannel                 deadLetter = mock(SpillChannel.class);
+    DispatchChannel              channel    = mock(DispatchChannel.class);
+    CountDownLatch               release    = new CountDownLatch(1);
+
+    when(factory.connect()).thenReturn(connection);
+    when(connection.read()).thenAnswer(invocation -> stream.read());
+
+    when(deadLetter.canSpill(eq("foo"), aryEq("spill".getBytes()))).thenReturn(true);
+    doAnswer(invocation -> release.await(5, TimeUnit.SECONDS)).when(channel).onDispatchMessage(eq("foo"), aryEq("first".getBytes()));
+
+    DispatchManager manager = new DispatchManager(factory, Optional.of(deadLetter), 1,
+                                                  new DispatchExecutor(1, 1, DispatchExecutor.OverflowPolicy.SPILL));
+    manager.start();
+    manager.subscribe("foo", channel);
+
+    stream.write(new PubSubReply(PubSubReply.Type.MESSAGE, "foo", Optional.of("first".getBytes())));
+    verify(channel, timeout(1000)).onDispatchMessage(eq("foo"), aryEq("first".getBytes()));
+
+    stream.write(new PubSubReply(PubSubReply.Type.MESSAGE, "foo", Optional.of("queued".getBytes())));
+    stream.write(new PubSubReply(PubSubReply.Type.MESSAGE, "foo", Optional.of("spill".getBytes())));
+    stream.write(new PubSubReply(PubSubReply.Type.MESSAGE, "foo", Optional.of("control".getBytes())));
+
+    verify(deadLetter, timeout(1000)).onDispatchMessage(eq("foo"), aryEq("spill".getBytes()));
+    verify(deadLetter, timeout(1000)).canSpill(eq("foo"), aryEq("control".getBytes()));
+
+    release.countDown();
+
+    verify(channel, timeout(1000)).onDispatchMessage(eq("foo"), aryEq("queued".getBytes()));
+    verify(channel, timeout(1000)).onDispatchMessage(eq("foo"), aryEq("control".getBytes()));
+    verify(deadLetter, never()).onDispatchMessage(eq("foo"), aryEq("control".getBytes()));
+    verify(channel, never()).onDispatchMessage(eq("foo"), aryEq("spill".getBytes()));
+  }
+
+  @Test
+  public void testSpillNotifiesSubscriber() throws Exception {
+    PubSubConnection             connection = mock(PubSubConnection.class);
+    RedisPubSubConnectionFactory factory    = mock(RedisPubSubConnectionFactory.class);
+    PubSubReplyInputStream       stream     = new PubSubReplyInputStream();
+    SpillChannel                 deadLetter = mock(SpillChannel.class);
+    DispatchChannel              channel    = mock(DispatchChannel.class);
+    CountDownLatch               release    = new CountDownLatch(1);
+
+    when(factory.connect()).thenReturn(connection);
+    when(connection.read()).thenAnswer(invocation -> stream.read());
+
+    when(deadLetter.canSpill(eq("foo"), any(byte[].class))).thenReturn(true);
+    when(deadLetter.getSpillNotice(eq("foo"), any(byte[].class))).thenReturn(Optional.of("notice".getBytes()));
+    doAnswer(invocation -> release.await(5, TimeUnit.SECONDS)).when(channel).onDispatchMessage(eq("foo"), aryEq("first".getBytes()));
+
+    DispatchManager manager = new DispatchManager(factory, Optional.of(deadLetter), 1,
+                                                  new DispatchExecutor(1, 1, DispatchExecutor.OverflowPolicy.SPILL));
+    manager.start();
+    manager.subscribe("foo", channel);
+
+    stream.write(new PubSubReply(PubSubReply.Type.MESSAGE, "foo", Optional.of("first".getBytes())));
+    verify(channel, timeout(1000)).onDispatchMessage(eq("foo"), aryEq("first".getBytes()));
+
+    stream.write(new PubSubReply(PubSubReply.Type.MESSAGE, "foo", Optional.of("queued".getBytes())));
+    stream.write(new PubSubReply(PubSubReply.Type.MESSAGE, "foo", Optional.of("spill1".getBytes())));
+    stream.write(new PubSubReply(PubSubReply.Type.MESSAGE, "foo", Optional.of("spill2".getBytes())));
+
+    verify(deadLetter, timeout(1000)).onDispatchMessage(eq("foo"), aryEq("spill1".getBytes()));
+    verify(deadLetter, timeout(1000)).onDispatchMessage(eq("foo"), aryEq("spill2".getBytes()));
+
+    release.countDown();
+
+    InOrder inOrder = inOrder(channel);
+    inOrder.verify(channel, timeout(1000)).onDispatchMessage(eq("foo"), aryEq("queued".getBytes()));
+    inOrder.verify(channel, timeout(1000)).onDispatchMessage(eq("foo"), aryEq("notice".getBytes()));
+
+    verify(channel, after(100).times(1)).onDispatchMessage(eq("foo"), aryEq("notice".getBytes()));
+  }
+
+  @Test
+  public void testNoticesQueuedOutsideMonitor() throws Exception {
+    PubSubConnection             connection = mock(PubSubConnection.class);
+    RedisPubSubConnectionFactory factory    = mock(RedisPubSubConnectionFactory.class);
+    PubSubReplyInputStream       stream     = new PubSubReplyInputStream();
+    DispatchManager              manager    = new DispatchManager(factory, Optional.empty(), 1,
+                                                                  new DispatchExecutor(1, 1, DispatchExecutor.OverflowPolicy.BLOCK));
+    DispatchChannel              previous   = mock(DispatchChannel.class);
+    DispatchChannel              other      = mock(DispatchChannel.class);
+    CountDownLatch               proceed    = new CountDownLatch(1);
+
+    when(factory.connect()).thenReturn(connection);
+    when(connection.read()).thenAnswer(invocation -> stream.read());
+
+    doAnswer(invocation -> {
+      proceed.await(5, TimeUnit.SECONDS);
+      manager.subscribe("bar", other);
+      return null;
+    }).when(previous).onDispatchMessage(eq("foo"), aryEq("first".getBytes()));
+
+    manager.start();
+    manager.subscribe("foo", previous);
+
+    stream.write(new PubSubReply(PubSubReply.Type.MESSAGE, "foo", Optional.of("first".getBytes())));
+    verify(previous, timeout(1000)).onDispatchMessage(eq("foo"), aryEq("first".getBytes()));
+
+    stream.write(new PubSubReply(PubSubReply.Type.MESSAGE, "foo", Optional.of("queued".getBytes())));
+    verify(previous, after(100).never()).onDispatchMessage(eq("foo"), aryEq("queued".getBytes()));
+
+    // The lane is now full, so replacing the subscription waits to queue the
+    // unsubscribe notice while the running callback waits to subscribe.
+    Thread replace = new Thread(() -> manager.subscribe("foo", mock(DispatchChannel.class)));
+    replace.start();
+
+    proceed.countDown();
+
+    replace.join(5000);
+    assertFalse(replace.isAlive());
+
+    verify(previous, timeout(1000)).onDispatchUnsubscribed(eq("foo"));
+    assertTrue(manager.hasSubscription("bar"));
+  }
+
+  @Test
+  public void testSubscribeBeforeStart() throws IOException {
+    PubSubConnection             connection = mock(PubSubConnection.class);
+    RedisPubSubConnectionFactory factory    = mock(RedisPubSubConnectionFactory.class);
+    PubSubReplyInputStream       stream     = new PubSubReplyInputStream();
+
+    when(factory.connect()).thenReturn(connection);
+    when(connection.read()).thenAnswer(invocation -> stream.read());
+
+    DispatchManager manager         = new DispatchManager(factory, Optional.empty());
+    DispatchChannel dispatchChannel = mock(DispatchChannel.class);
+
+    manager.subscribe("foo", dispatchChannel);
+    verifyZeroInteractions(factory);
+
+    manager.start();
+    verify(connection).subscribe(eq("foo"));
+
+    stream.write(new PubSubReply(PubSubReply.Type.SUBSCRIBE, "foo", Optional.empty()));
+    verify(dispatchChannel, timeout(1000)).onDispatchSubscribed(eq("foo"));
+  }
+
   private static class PubSubReplyInputStream {
 
     private final List<PubSubReply> pubSubReplyList = new LinkedList<>();
 
-    public synchronized PubSubReply read() {
+    public synchronized PubSubReply read() throws IOException {
       try {
         while (pubSubReplyList.isEmpty()) wait();
-        return pubSubReplyList.remove(0);
+
+        PubSubReply reply = pubSubReplyList.remove(0);
+
+        if (reply == null) throw new IOException("Connection reset");
+        return reply;
       } catch (InterruptedException e) {
         throw new AssertionError(e);
       }
@@ -0,0 +1,62 @@
+package org.whispersystems.dispatch.io;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class RedisInputStreamTest {
+
+  @Test(expected = IOException.class)
+  public void testEmpty() throws IOException {
+    stream("").readInt('*');
+  }
+
+  @Test(expected = IOException.class)
+  public void testBadPrefix() throws IOException {
+    stream(":3\r\n").readInt('*');
+  }
+
+  @Test(expected = IOException.class)
+  public void testTruncated() throws IOException {
+    stream("*\r\n").readInt('*');
+  }
+
+  @Test(expected = IOException.class)
+  public void testBadNumber() throws IOException {
+    stream("$100A\r\n").readInt('$');
+  }
+
+  @Test(expected = IOException.class)
+  public void testOverflow() throws IOException {
+    stream("*2147483648\r\n").readInt('*');
+  }
+
+  @Test(expected = IOException.class)
+  public void testLongOverflow() throws IOException {
+    stream("*99999999999999999999\r\n").readInt('*');
+  }
+
+  @Test
+  public void testValid() throws IOException {
+    assertEquals(4, stream("*4\r\n").readInt('*'));
+    assertEquals(1000, stream("$1000\r\n").readInt('$'));
+    assertEquals(-1, stream("$-1\r\n").readInt('$'));
+    assertEquals(Integer.MAX_VALUE, stream("*2147483647\r\n").readInt('*'));
+  }
+
+  @Test
+  public void testBulkString() throws IOException {
+    RedisInputStream stream = stream("$5\r\nhello\r\n$3\r\nfoo\r\n");
+
+    assertEquals("hello", stream.readBulkStringAsString());
+    assertEquals("foo", new String(stream.readBulkString()));
+  }
+
+  private static RedisInputStream stream(String contents) {
+    return new RedisInputStream(new ByteArrayInputStream(contents.getBytes()));
+  }
+
+}
@@ -5,6 +5,7 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -120,6 +121,63 @@ public class PubSubConnectionTest {
     readResponses(pubSubConnection);
   }
 
+  @Test
+  public void testLargeMessageResponse() throws Exception {
+    byte[] small = new byte[8000];
+    byte[] large = new byte[20000];
+
+    new SecureRandom().nextBytes(small);
+    new SecureRandom().nextBytes(large);
+
+    ByteArrayOutputStream reply = new ByteArrayOutputStream();
+    reply.write(("*3\r\n$7\r\nmessage\r\n$5\r\nabcde\r\n$" + small.length + "\r\n").getBytes());
+    reply.write(small);
+    reply.write(("\r\n*3\r\n$7\r\nmessage\r\n$5\r\nfghij\r\n$" + large.length + "\r\n").getBytes());
+    reply.write(large);
+    reply.write("\r\n*3\r\n$11\r\nunsubscribe\r\n$5\r\nabcde\r\n:0\r\n".getBytes());
+
+    for (MockInputStream stub : new MockInputStream[] {new TrickleInputStream(reply.toByteArray()),
+                                                       new FullInputStream(reply.toByteArray()),
+                                                       new RandomInputStream(reply.toByteArray())})
+    {
+      InputStream  inputStream  = mockInputStreamFor(stub);
+      OutputStream outputStream = mock(OutputStream.class);
+      Socket       socket       = mock(Socket.class      );
+      when(socket.getOutputStream()).thenReturn(outputStream);
+      when(socket.getInputStream()).thenReturn(inputStream);
+
+      PubSubConnection pubSubConnection = new PubSubConnection(socket);
+      PubSubReply      result           = pubSubConnection.read();
+
+      assertEquals(result.getType(), PubSubReply.Type.MESSAGE);
+      assertEquals(result.getChannel(), "abcde");
+      assertArrayEquals(result.getContent().get(), small);
+
+      result = pubSubConnection.read();
+
+      assertEquals(result.getType(), PubSubReply.Type.MESSAGE);
+      assertEquals(result.getChannel(), "fghij");
+      assertArrayEquals(result.getContent().get(), large);
+
+      result = pubSubConnection.read();
+
+      assertEquals(result.getType(), PubSubReply.Type.UNSUBSCRIBE);
+      assertEquals(result.getChannel(), "abcde");
+      assertFalse(result.getContent().isPresent());
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testBadReplyType() throws Exception {
+    InputStream  inputStream  = mockInputStreamFor(new FullInputStream("*3\r\n$5\r\npsubs\r\n$5\r\nabcde\r\n:1\r\n".getBytes()));
+    OutputStream outputStream = mock(OutputStream.class);
+    Socket       socket       = mock(Socket.class      );
+    when(socket.getOutputStream()).thenReturn(outputStream);
+    when(socket.getInputStream()).thenReturn(inputStream);
+
+    new PubSubConnection(socket).read();
+  }
+
   private InputStream mockInputStreamFor(final MockInputStream stub) throws IOException {
     InputStream result = mock(InputStream.class);
 
@@ -0,0 +1,53 @@
+package org.whispersystems.textsecuregcm.tests.auth;
+
+import org.apache.commons.codec.binary.Hex;
+import org.junit.Test;
+import org.whispersystems.textsecuregcm.auth.AuthenticationCredentials;
+import org.whispersystems.textsecuregcm.storage.Device;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class AuthenticationCredentialsTest {
+
+  @Test
+  public void testVerify() {
+    AuthenticationCredentials credentials = new AuthenticationCredentials("password");
+
+    assertTrue(credentials.verify("password"));
+    assertFalse(credentials.verify("passwore"));
+    assertFalse(credentials.verify(""));
+    assertFalse(credentials.verify(null));
+  }
+
+  @Test
+  public void testVerifyStoredHash() throws Exception {
+    String storedHash = new String(Hex.encodeHex(MessageDigest.getInstance("SHA1").digest("1234password".getBytes(StandardCharsets.UTF_8))));
+
+    assertTrue(new AuthenticationCredentials(storedHash, "1234").verify("password"));
+    assertFalse(new AuthenticationCredentials(storedHash, "4321").verify("password"));
+    assertFalse(new AuthenticationCredentials("not-hex", "1234").verify("password"));
+    assertFalse(new AuthenticationCredentials(null, "1234").verify("password"));
+  }
+
+  @Test
+  public void testDeviceCredentialsReplaced() {
+    Device device = new Device(1, null, null, null, null, null, null, null, false, 0, null, 0, 0, null, false);
+    device.setAuthenticationCredentials(new AuthenticationCredentials("first"));
+
+    AuthenticationCredentials first = device.getAuthenticationCredentials();
+
+    assertSame(first, device.getAuthenticationCredentials());
+    assertTrue(first.verify("first"));
+
+    device.setAuthenticationCredentials(new AuthenticationCredentials("second"));
+
+    assertFalse(device.getAuthenticationCredentials().verify("first"));
+    assertTrue(device.getAuthenticationCredentials().verify("second"));
+  }
+
+}
@@ -9,6 +9,7 @@ import org.mockito.stubbing.Answer;
 import org.whispersystems.textsecuregcm.auth.DirectoryCredentials;
 import org.whispersystems.textsecuregcm.auth.DirectoryCredentialsGenerator;
 import org.whispersystems.textsecuregcm.controllers.DirectoryController;
+import org.whispersystems.textsecuregcm.entities.ClientContact;
 import org.whispersystems.textsecuregcm.entities.ClientContactTokens;
 import org.whispersystems.textsecuregcm.entities.DirectoryFeedbackRequest;
 import org.whispersystems.textsecuregcm.limits.RateLimiter;
@@ -32,7 +33,10 @@ import io.dropwizard.testing.junit.ResourceTestRule;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.anyListOf;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
 public class DirectoryControllerTest {
@@ -172,4 +176,53 @@ public class DirectoryControllerTest {
     assertThat(response.getStatus()).isEqualTo(200);
     assertThat(response.readEntity(ClientContactTokens.class).getContacts()).isEqualTo(expectedResponse);
   }
+
+  @Test
+  public void testContactIntersectionBitmap() throws Exception {
+    doAnswer(invocation -> {
+      List<byte[]>        query    = invocation.getArgument(0);
+      List<ClientContact> response = new LinkedList<>();
+
+      for (byte[] token : query) {
+        if (token[0] % 3 == 0) response.add(new ClientContact(token, null, true, true));
+      }
+
+      return response;
+    }).when(directoryManager).get(anyListOf(byte[].class));
+
+    byte[] tokens = new byte[10 * 10];
+
+    for (int i=0;i<10;i++) {
+      tokens[i * 10] = (byte)i;
+    }
+
+    Response response =
+        resources.getJerseyTest()
+                 .target("/v1/directory/tokens/")
+                 .request()
+                 .header("Authorization",
+                         AuthHelper.getAuthHeader(AuthHelper.VALID_NUMBER,
+                                                  AuthHelper.VALID_PASSWORD))
+                 .put(Entity.entity(tokens, MediaType.APPLICATION_OCTET_STREAM_TYPE));
+
+    assertThat(response.getStatus()).isEqualTo(200);
+    assertThat(response.readEntity(byte[].class)).isEqualTo(new byte[] {(byte)0b10010010, (byte)0b01000000});
+
+    verify(rateLimiter).validate(AuthHelper.VALID_NUMBER, 10);
+  }
+
+  @Test
+  public void testContactIntersectionBitmapBadLength() throws Exception {
+    Response response =
+        resources.getJerseyTest()
+                 .target("/v1/directory/tokens/")
+                 .request()
+                 .header("Authorization",
+                         AuthHelper.getAuthHeader(AuthHelper.VALID_NUMBER,
+                                                  AuthHelper.VALID_PASSWORD))
+                 .put(Entity.entity(new byte[15], MediaType.APPLICATION_OCTET_STREAM_TYPE));
+
+    assertThat(response.getStatus()).isEqualTo(400);
+    verifyZeroInteractions(rateLimiter);
+  }
 }
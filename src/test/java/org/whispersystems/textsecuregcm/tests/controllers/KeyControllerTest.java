@@ -8,6 +8,9 @@ import org.mockito.ArgumentCaptor;
 import org.whispersystems.textsecuregcm.auth.OptionalAccess;
 import org.whispersystems.textsecuregcm.controllers.KeysController;
 import org.whispersystems.textsecuregcm.entities.PreKey;
+import org.whispersystems.textsecuregcm.entities.PreKeyBatchRequest;
+import org.whispersystems.textsecuregcm.entities.PreKeyBatchRequestItem;
+import org.whispersystems.textsecuregcm.entities.PreKeyBatchResponse;
 import org.whispersystems.textsecuregcm.entities.PreKeyCount;
 import org.whispersystems.textsecuregcm.entities.PreKeyResponse;
 import org.whispersystems.textsecuregcm.entities.PreKeyState;
@@ -19,15 +22,20 @@ import org.whispersystems.textsecuregcm.storage.Account;
 import org.whispersystems.textsecuregcm.storage.AccountsManager;
 import org.whispersystems.textsecuregcm.storage.Device;
 import org.whispersystems.textsecuregcm.storage.KeyRecord;
-import org.whispersystems.textsecuregcm.storage.Keys;
+import org.whispersystems.textsecuregcm.storage.KeysManager;
+import org.whispersystems.textsecuregcm.util.Pair;
 import org.whispersystems.textsecuregcm.tests.util.AuthHelper;
 
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 
@@ -56,7 +64,7 @@ public class KeyControllerTest {
   private final SignedPreKey SAMPLE_SIGNED_KEY3      = new SignedPreKey( 3333, "barfoo", "sig33"    );
   private final SignedPreKey VALID_DEVICE_SIGNED_KEY = new SignedPreKey(89898, "zoofarb", "sigvalid");
 
-  private final Keys            keys           = mock(Keys.class           );
+  private final KeysManager     keys           = mock(KeysManager.class    );
   private final AccountsManager accounts       = mock(AccountsManager.class);
   private final DirectoryQueue  directoryQueue = mock(DirectoryQueue.class);
   private final Account         existsAccount  = mock(Account.class        );
@@ -130,7 +138,7 @@ public class KeyControllerTest {
     multiDevice.add(SAMPLE_KEY2);
     multiDevice.add(SAMPLE_KEY3);
     multiDevice.add(SAMPLE_KEY4);
-    when(keys.get(EXISTS_NUMBER)).thenReturn(multiDevice);
+    when(keys.get(eq(EXISTS_NUMBER), anyList())).thenReturn(multiDevice);
 
     when(keys.getCount(eq(AuthHelper.VALID_NUMBER), eq(1L))).thenReturn(5);
 
@@ -287,7 +295,7 @@ public class KeyControllerTest {
     assertThat(signedPreKey).isNull();
     assertThat(deviceId).isEqualTo(4);
 
-    verify(keys).get(eq(EXISTS_NUMBER));
+    verify(keys).get(eq(EXISTS_NUMBER), argThat(deviceIds -> new HashSet<>(deviceIds).equals(new HashSet<>(Arrays.asList(1L, 2L, 4L)))));
     verifyNoMoreInteractions(keys);
   }
 
@@ -367,5 +375,97 @@ public class KeyControllerTest {
     verify(accounts).update(AuthHelper.VALID_ACCOUNT);
   }
 
+  @Test
+  public void putKeysAppendTestV2() throws Exception {
+    final PreKey       preKey       = new PreKey(31337, "foobar");
+    final SignedPreKey signedPreKey = new SignedPreKey(31338, "foobaz", "myvalidsig");
+    final String       identityKey  = "barbar";
+
+    when(AuthHelper.VALID_ACCOUNT.getIdentityKey()).thenReturn(identityKey);
+
+    PreKeyState preKeyState = new PreKeyState(identityKey, signedPreKey, Collections.singletonList(preKey));
+
+    Response response =
+        resources.getJerseyTest()
+                 .target("/v2/keys")
+                 .queryParam("append", true)
+                 .request()
+                 .header("Authorization", AuthHelper.getAuthHeader(AuthHelper.VALID_NUMBER, AuthHelper.VALID_PASSWORD))
+                 .put(Entity.entity(preKeyState, MediaType.APPLICATION_JSON_TYPE));
+
+    assertThat(response.getStatus()).isEqualTo(204);
+
+    verify(keys).append(eq(AuthHelper.VALID_NUMBER), eq(1L), eq(Collections.singletonList(preKey)));
+    verify(keys, never()).store(anyString(), anyLong(), anyList());
+  }
+
+  @Test
+  public void putKeysAppendNewIdentityTestV2() throws Exception {
+    final PreKey       preKey       = new PreKey(31337, "foobar");
+    final SignedPreKey signedPreKey = new SignedPreKey(31338, "foobaz", "myvalidsig");
+
+    PreKeyState preKeyState = new PreKeyState("barbar", signedPreKey, Collections.singletonList(preKey));
+
+    Response response =
+        resources.getJerseyTest()
+                 .target("/v2/keys")
+                 .queryParam("append", true)
+                 .request()
+                 .header("Authorization", AuthHelper.getAuthHeader(AuthHelper.VALID_NUMBER, AuthHelper.VALID_PASSWORD))
+                 .put(Entity.entity(preKeyState, MediaType.APPLICATION_JSON_TYPE));
+
+    assertThat(response.getStatus()).isEqualTo(204);
+
+    verify(keys).store(eq(AuthHelper.VALID_NUMBER), eq(1L), eq(Collections.singletonList(preKey)));
+    verify(keys, never()).append(anyString(), anyLong(), anyList());
+  }
+
+  @Test
+  public void batchRequestTestV2() throws Exception {
+    Map<String, Account> targets = new HashMap<>();
+    targets.put(EXISTS_NUMBER, existsAccount);
+
+    when(accounts.getAll(anyCollection())).thenReturn(targets);
+    when(keys.get(anyList())).thenReturn(Arrays.asList(SAMPLE_KEY, SAMPLE_KEY2));
+
+    PreKeyBatchRequest request = new PreKeyBatchRequest(Arrays.asList(new PreKeyBatchRequestItem(EXISTS_NUMBER, "1"),
+                                                                      new PreKeyBatchRequestItem(EXISTS_NUMBER, "2"),
+                                                                      new PreKeyBatchRequestItem(NOT_EXISTS_NUMBER, "*")));
+
+    PreKeyBatchResponse response = resources.getJerseyTest()
+                                            .target("/v2/keys/batch")
+                                            .request()
+                                            .header("Authorization", AuthHelper.getAuthHeader(AuthHelper.VALID_NUMBER, AuthHelper.VALID_PASSWORD))
+                                            .post(Entity.entity(request, MediaType.APPLICATION_JSON_TYPE), PreKeyBatchResponse.class);
+
+    assertThat(response.getRecipients()).hasSize(2);
+    assertThat(response.getRecipients().get(0).getNumber()).isEqualTo(EXISTS_NUMBER);
+    assertThat(response.getRecipients().get(0).getIdentityKey()).isEqualTo("existsidentitykey");
+    assertThat(response.getRecipients().get(0).getDevicesCount()).isEqualTo(1);
+    assertThat(response.getRecipients().get(0).getDevice(1).getPreKey().getKeyId()).isEqualTo(SAMPLE_KEY.getKeyId());
+    assertThat(response.getRecipients().get(1).getDevicesCount()).isEqualTo(1);
+    assertThat(response.getRecipients().get(1).getDevice(2).getPreKey().getKeyId()).isEqualTo(SAMPLE_KEY2.getKeyId());
+
+    verify(rateLimiter).validate(eq(new HashSet<>(Arrays.asList(AuthHelper.VALID_NUMBER + "__" + EXISTS_NUMBER + ".1",
+                                                                AuthHelper.VALID_NUMBER + "__" + EXISTS_NUMBER + ".2",
+                                                                AuthHelper.VALID_NUMBER + "__" + NOT_EXISTS_NUMBER + ".*"))));
+    verify(accounts).getAll(eq(new HashSet<>(Arrays.asList(EXISTS_NUMBER, NOT_EXISTS_NUMBER))));
+    verify(keys).get(eq(Arrays.asList(new Pair<>(EXISTS_NUMBER, 1L), new Pair<>(EXISTS_NUMBER, 2L))));
+    verifyNoMoreInteractions(keys);
+  }
+
+  @Test
+  public void batchRequestBadDeviceTestV2() throws Exception {
+    PreKeyBatchRequest request = new PreKeyBatchRequest(Collections.singletonList(new PreKeyBatchRequestItem(EXISTS_NUMBER, "foo")));
+
+    Response response = resources.getJerseyTest()
+                                 .target("/v2/keys/batch")
+                                 .request()
+                                 .header("Authorization", AuthHelper.getAuthHeader(AuthHelper.VALID_NUMBER, AuthHelper.VALID_PASSWORD))
+                                 .post(Entity.entity(request, MediaType.APPLICATION_JSON_TYPE));
+
+    assertThat(response.getStatus()).isEqualTo(422);
+    verifyNoMoreInteractions(keys);
+  }
 
-}
\ No newline at end of file
+}
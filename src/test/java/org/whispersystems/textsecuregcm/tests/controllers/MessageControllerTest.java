@@ -8,8 +8,10 @@ import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import org.whispersystems.textsecuregcm.auth.OptionalAccess;
 import org.whispersystems.textsecuregcm.controllers.MessageController;
+import org.whispersystems.textsecuregcm.entities.AcknowledgedMessageList;
 import org.whispersystems.textsecuregcm.entities.IncomingMessageList;
 import org.whispersystems.textsecuregcm.entities.MessageProtos.Envelope;
+import org.whispersystems.textsecuregcm.entities.MessagesCursor;
 import org.whispersystems.textsecuregcm.entities.MismatchedDevices;
 import org.whispersystems.textsecuregcm.entities.OutgoingMessageEntity;
 import org.whispersystems.textsecuregcm.entities.OutgoingMessageEntityList;
@@ -256,6 +258,49 @@ public class MessageControllerTest {
     assertEquals(response.getMessages().get(1).getGuid(), null);
   }
 
+  @Test
+  public synchronized void testGetMessagesWithCursor() throws Exception {
+    List<OutgoingMessageEntity> messages = new LinkedList<OutgoingMessageEntity>() {{
+      add(new OutgoingMessageEntity(5L, true, UUID.randomUUID(), Envelope.Type.CIPHERTEXT_VALUE, null, 313377, "+14152222222", 2, "hi there".getBytes(), null, 0));
+    }};
+
+    OutgoingMessageEntityList messagesList = new OutgoingMessageEntityList(messages, true, MessagesCursor.START.after(messages.get(0)));
+
+    when(messagesManager.getMessagesForDevice(eq(AuthHelper.VALID_NUMBER), eq(1L), any(Optional.class))).thenReturn(messagesList);
+
+    OutgoingMessageEntityList response =
+        resources.getJerseyTest().target("/v1/messages/")
+                 .queryParam("cursor", "d:4:0")
+                 .request()
+                 .header("Authorization", AuthHelper.getAuthHeader(AuthHelper.VALID_NUMBER, AuthHelper.VALID_PASSWORD))
+                 .accept(MediaType.APPLICATION_JSON_TYPE)
+                 .get(OutgoingMessageEntityList.class);
+
+    assertEquals(response.getMessages().size(), 1);
+    assertTrue(response.hasMore());
+    assertEquals(response.getCursor(), "c:5:0");
+
+    ArgumentCaptor<Optional> cursorCaptor = ArgumentCaptor.forClass(Optional.class);
+    verify(messagesManager).getMessagesForDevice(eq(AuthHelper.VALID_NUMBER), eq(1L), cursorCaptor.capture());
+
+    MessagesCursor cursor = (MessagesCursor)cursorCaptor.getValue().get();
+    assertFalse(cursor.isCached());
+    assertEquals(cursor.getId(), 4);
+  }
+
+  @Test
+  public synchronized void testGetMessagesBadCursor() throws Exception {
+    Response response =
+        resources.getJerseyTest().target("/v1/messages/")
+                 .queryParam("cursor", "garbage")
+                 .request()
+                 .header("Authorization", AuthHelper.getAuthHeader(AuthHelper.VALID_NUMBER, AuthHelper.VALID_PASSWORD))
+                 .accept(MediaType.APPLICATION_JSON_TYPE)
+                 .get();
+
+    assertThat("Bad cursor response", response.getStatus(), is(equalTo(400)));
+  }
+
   @Test
   public synchronized void testGetMessagesBadAuth() throws Exception {
     final long timestampOne = 313377;
@@ -329,4 +374,55 @@ public class MessageControllerTest {
 
   }
 
+  @Test
+  public synchronized void testAcknowledgeMessages() throws Exception {
+    long timestamp = System.currentTimeMillis();
+    UUID first     = UUID.randomUUID();
+    UUID second    = UUID.randomUUID();
+    UUID third     = UUID.randomUUID();
+
+    List<OutgoingMessageEntity> removed = new LinkedList<OutgoingMessageEntity>() {{
+      add(new OutgoingMessageEntity(31337L, true, first, Envelope.Type.CIPHERTEXT_VALUE, null, timestamp, "+14152222222", 1, "hi".getBytes(), null, 0));
+      add(new OutgoingMessageEntity(31338L, true, second, Envelope.Type.CIPHERTEXT_VALUE, null, timestamp + 1, "+14152222222", 1, "hi".getBytes(), null, 0));
+      add(new OutgoingMessageEntity(31339L, false, third, Envelope.Type.RECEIPT_VALUE, null, timestamp + 2, "+14152222222", 1, null, null, 0));
+    }};
+
+    List<UUID> guids = new LinkedList<UUID>() {{
+      add(first);
+      add(second);
+      add(third);
+    }};
+
+    when(messagesManager.delete(AuthHelper.VALID_NUMBER, 1, guids)).thenReturn(removed);
+
+    Response response = resources.getJerseyTest()
+                                 .target("/v1/messages/acknowledgements")
+                                 .request()
+                                 .header("Authorization", AuthHelper.getAuthHeader(AuthHelper.VALID_NUMBER, AuthHelper.VALID_PASSWORD))
+                                 .put(Entity.entity(new AcknowledgedMessageList(guids), MediaType.APPLICATION_JSON_TYPE));
+
+    assertThat("Good Response Code", response.getStatus(), is(equalTo(204)));
+
+    ArgumentCaptor<List> receiptCaptor = ArgumentCaptor.forClass(List.class);
+    verify(receiptSender).sendReceipts(any(Account.class), eq("+14152222222"), receiptCaptor.capture());
+    verifyNoMoreInteractions(receiptSender);
+
+    assertThat(receiptCaptor.getValue(), is(equalTo(new LinkedList<Long>() {{
+      add(timestamp);
+      add(timestamp + 1);
+    }})));
+  }
+
+  @Test
+  public synchronized void testAcknowledgeMessagesMissingGuids() throws Exception {
+    Response response = resources.getJerseyTest()
+                                 .target("/v1/messages/acknowledgements")
+                                 .request(MediaType.APPLICATION_JSON_TYPE)
+                                 .header("Authorization", AuthHelper.getAuthHeader(AuthHelper.VALID_NUMBER, AuthHelper.VALID_PASSWORD))
+                                 .put(Entity.entity("{}", MediaType.APPLICATION_JSON_TYPE));
+
+    assertThat("Bad Response Code", response.getStatus(), is(equalTo(422)));
+    verifyNoMoreInteractions(messagesManager);
+  }
+
 }
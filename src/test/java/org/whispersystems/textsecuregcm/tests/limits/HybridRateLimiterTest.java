@@ -0,0 +1,108 @@
+package org.whispersystems.textsecuregcm.tests.limits;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.whispersystems.textsecuregcm.controllers.RateLimitExceededException;
+import org.whispersystems.textsecuregcm.limits.HybridRateLimiter;
+import org.whispersystems.textsecuregcm.redis.ReplicatedJedisPool;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import redis.clients.jedis.Jedis;
+
+@SuppressWarnings("unchecked")
+public class HybridRateLimiterTest {
+
+  private final ReplicatedJedisPool cacheClient = mock(ReplicatedJedisPool.class);
+  private final Jedis               jedis       = mock(Jedis.class);
+
+  @Before
+  public void setup() {
+    when(cacheClient.getWriteResource()).thenReturn(jedis);
+    when(jedis.scriptLoad(anyString())).thenReturn("sha");
+  }
+
+  @Test
+  public void testLocalLease() throws Exception {
+    when(jedis.evalsha(any(byte[].class), anyList(), anyList())).thenReturn(5L);
+
+    HybridRateLimiter rateLimiter = new HybridRateLimiter(cacheClient, "test", 60, 60, 5, 10, 100);
+
+    for (int i=0;i<5;i++) {
+      rateLimiter.validate("+14152222222");
+    }
+
+    verify(jedis, times(1)).evalsha(any(byte[].class), anyList(), anyList());
+
+    rateLimiter.validate("+14152222222");
+
+    verify(jedis, times(2)).evalsha(any(byte[].class), anyList(), anyList());
+  }
+
+  @Test
+  public void testPartialLease() throws Exception {
+    when(jedis.evalsha(any(byte[].class), anyList(), anyList())).thenReturn(3L);
+
+    HybridRateLimiter rateLimiter = new HybridRateLimiter(cacheClient, "test", 60, 60, 5, 10, 100);
+
+    for (int i=0;i<3;i++) {
+      rateLimiter.validate("+14152222222");
+    }
+
+    ArgumentCaptor<List<byte[]>> args = ArgumentCaptor.forClass(List.class);
+    verify(jedis, times(1)).evalsha(any(byte[].class), anyList(), args.capture());
+
+    assertEquals("1", new String(args.getValue().get(2)));
+    assertEquals("5", new String(args.getValue().get(5)));
+
+    rateLimiter.validate("+14152222222");
+
+    verify(jedis, times(2)).evalsha(any(byte[].class), anyList(), anyList());
+  }
+
+  @Test
+  public void testLeasesMerged() throws Exception {
+    when(jedis.evalsha(any(byte[].class), anyList(), anyList())).thenReturn(5L);
+
+    HybridRateLimiter rateLimiter = new HybridRateLimiter(cacheClient, "test", 60, 60, 5, 10, 100);
+
+    rateLimiter.validate("+14152222222", 1);
+    rateLimiter.validate("+14152222222", 3);
+
+    verify(jedis, times(1)).evalsha(any(byte[].class), anyList(), anyList());
+
+    // One token is left over, so this misses and leases again; the new lease
+    // adds to the remainder instead of replacing it.
+    rateLimiter.validate("+14152222222", 2);
+
+    verify(jedis, times(2)).evalsha(any(byte[].class), anyList(), anyList());
+
+    for (int i=0;i<4;i++) {
+      rateLimiter.validate("+14152222222");
+    }
+
+    verify(jedis, times(2)).evalsha(any(byte[].class), anyList(), anyList());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testLeaseLargerThanBucket() throws Exception {
+    new HybridRateLimiter(cacheClient, "test", 4, 60, 5, 10, 100);
+  }
+
+  @Test(expected = RateLimitExceededException.class)
+  public void testExceeded() throws Exception {
+    when(jedis.evalsha(any(byte[].class), anyList(), anyList())).thenReturn(0L);
+
+    new HybridRateLimiter(cacheClient, "test", 60, 60, 5, 10, 100).validate("+14152222222");
+  }
+
+}
@@ -0,0 +1,93 @@
+package org.whispersystems.textsecuregcm.tests.limits;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.whispersystems.textsecuregcm.controllers.RateLimitExceededException;
+import org.whispersystems.textsecuregcm.limits.RateLimiter;
+import org.whispersystems.textsecuregcm.redis.ReplicatedJedisPool;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import redis.clients.jedis.Jedis;
+
+public class RateLimiterTest {
+
+  private final ReplicatedJedisPool cacheClient = mock(ReplicatedJedisPool.class);
+  private final Jedis               jedis       = mock(Jedis.class);
+
+  @Before
+  public void setup() {
+    when(cacheClient.getWriteResource()).thenReturn(jedis);
+    when(jedis.scriptLoad(anyString())).thenReturn("sha");
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testValidate() throws Exception {
+    when(jedis.evalsha(any(byte[].class), anyList(), anyList())).thenReturn(1L);
+
+    RateLimiter rateLimiter = new RateLimiter(cacheClient, "test", 10, 60);
+    rateLimiter.validate("+14152222222", 3);
+
+    ArgumentCaptor<List<byte[]>> keys = ArgumentCaptor.forClass(List.class);
+    ArgumentCaptor<List<byte[]>> args = ArgumentCaptor.forClass(List.class);
+
+    verify(jedis, times(1)).evalsha(any(byte[].class), keys.capture(), args.capture());
+
+    assertEquals(keys.getValue().size(), 2);
+    assertArrayEquals(keys.getValue().get(0), "leaky_bucket_hash::test::+14152222222".getBytes());
+    assertArrayEquals(keys.getValue().get(1), "leaky_bucket::test::+14152222222".getBytes());
+    assertEquals(new String(args.getValue().get(0)), "10");
+    assertEquals(Double.parseDouble(new String(args.getValue().get(1))), 0.001, 0.0000001);
+    assertEquals(new String(args.getValue().get(2)), "3");
+    assertEquals(new String(args.getValue().get(4)), "10");
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testValidateAll() throws Exception {
+    when(jedis.evalsha(any(byte[].class), anyList(), anyList())).thenReturn(1L);
+
+    RateLimiter rateLimiter = new RateLimiter(cacheClient, "test", 10, 60);
+    rateLimiter.validate(Arrays.asList("+14152222222", "+14153333333"));
+
+    ArgumentCaptor<List<byte[]>> keys = ArgumentCaptor.forClass(List.class);
+    ArgumentCaptor<List<byte[]>> args = ArgumentCaptor.forClass(List.class);
+
+    verify(jedis, times(1)).evalsha(any(byte[].class), keys.capture(), args.capture());
+
+    assertEquals(keys.getValue().size(), 4);
+    assertArrayEquals(keys.getValue().get(0), "leaky_bucket_hash::test::+14152222222".getBytes());
+    assertArrayEquals(keys.getValue().get(1), "leaky_bucket::test::+14152222222".getBytes());
+    assertArrayEquals(keys.getValue().get(2), "leaky_bucket_hash::test::+14153333333".getBytes());
+    assertArrayEquals(keys.getValue().get(3), "leaky_bucket::test::+14153333333".getBytes());
+    assertEquals(new String(args.getValue().get(2)), "1");
+  }
+
+  @Test
+  public void testClear() throws Exception {
+    new RateLimiter(cacheClient, "test", 10, 60).clear("+14152222222");
+
+    verify(jedis).del("leaky_bucket_hash::test::+14152222222", "leaky_bucket::test::+14152222222");
+  }
+
+  @Test(expected = RateLimitExceededException.class)
+  @SuppressWarnings("unchecked")
+  public void testExceeded() throws Exception {
+    when(jedis.evalsha(any(byte[].class), anyList(), anyList())).thenReturn(0L);
+
+    new RateLimiter(cacheClient, "test", 10, 60).validate("+14152222222");
+  }
+
+}
@@ -0,0 +1,86 @@
+package org.whispersystems.textsecuregcm.tests.push;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.whispersystems.textsecuregcm.entities.MessageProtos.Envelope;
+import org.whispersystems.textsecuregcm.push.WebsocketSender;
+import org.whispersystems.textsecuregcm.storage.Account;
+import org.whispersystems.textsecuregcm.storage.Device;
+import org.whispersystems.textsecuregcm.storage.MessagesManager;
+import org.whispersystems.textsecuregcm.storage.PubSubManager;
+import org.whispersystems.textsecuregcm.storage.PubSubProtos.PubSubMessage;
+import org.whispersystems.textsecuregcm.websocket.WebSocketConnection;
+import org.whispersystems.textsecuregcm.websocket.WebsocketAddress;
+
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+public class WebsocketSenderTest {
+
+  private final MessagesManager messagesManager = mock(MessagesManager.class);
+  private final PubSubManager   pubSubManager   = mock(PubSubManager.class  );
+  private final Account         account         = mock(Account.class        );
+  private final Device          device          = mock(Device.class         );
+
+  private final Envelope message = Envelope.newBuilder()
+                                           .setType(Envelope.Type.CIPHERTEXT)
+                                           .setSource("+14152222222")
+                                           .setSourceDevice(1)
+                                           .setTimestamp(31337)
+                                           .build();
+
+  @Test
+  public void testLocalDelivery() {
+    WebSocketConnection connection = mock(WebSocketConnection.class);
+
+    when(account.getNumber()).thenReturn("+14151111111");
+    when(device.getId()).thenReturn(1L);
+    when(pubSubManager.getLocalSubscription(eq(new WebsocketAddress("+14151111111", 1)))).thenReturn(Optional.of(connection));
+
+    new WebsocketSender(messagesManager, pubSubManager).sendMessage(account, device, message, WebsocketSender.Type.WEB, false);
+
+    ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+    verify(pubSubManager).execute(eq(new WebsocketAddress("+14151111111", 1)), task.capture());
+    verify(connection, never()).deliverLocal(any());
+
+    task.getValue().run();
+
+    verify(connection).deliverLocal(eq(message));
+    verify(pubSubManager, never()).publish(any(), any());
+    verifyZeroInteractions(messagesManager);
+  }
+
+  @Test
+  public void testRemoteDelivery() throws Exception {
+    when(account.getNumber()).thenReturn("+14151111111");
+    when(device.getId()).thenReturn(1L);
+    when(pubSubManager.getLocalSubscription(any())).thenReturn(Optional.empty());
+    when(pubSubManager.publish(any(), any())).thenReturn(true);
+
+    new WebsocketSender(messagesManager, pubSubManager).sendMessage(account, device, message, WebsocketSender.Type.WEB, false);
+
+    ArgumentCaptor<PubSubMessage> captor = ArgumentCaptor.forClass(PubSubMessage.class);
+    verify(pubSubManager).publish(eq(new WebsocketAddress("+14151111111", 1)), captor.capture());
+
+    assertThat(captor.getValue().getType()).isEqualTo(PubSubMessage.Type.DELIVER);
+    assertThat(Envelope.parseFrom(captor.getValue().getContent())).isEqualTo(message);
+    verifyZeroInteractions(messagesManager);
+  }
+
+  @Test
+  public void testOfflineQueued() {
+    when(account.getNumber()).thenReturn("+14151111111");
+    when(device.getId()).thenReturn(1L);
+    when(pubSubManager.getLocalSubscription(any())).thenReturn(Optional.empty());
+    when(pubSubManager.publish(any(), any())).thenReturn(false);
+
+    new WebsocketSender(messagesManager, pubSubManager).sendMessage(account, device, message, WebsocketSender.Type.WEB, false);
+
+    verify(messagesManager).insert(eq("+14151111111"), eq(1L), eq(message));
+  }
+
+}
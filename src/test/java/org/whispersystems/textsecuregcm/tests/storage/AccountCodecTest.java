@@ -0,0 +1,99 @@
+package org.whispersystems.textsecuregcm.tests.storage;
+
+import org.junit.Test;
+import org.whispersystems.textsecuregcm.auth.AuthenticationCredentials;
+import org.whispersystems.textsecuregcm.entities.SignedPreKey;
+import org.whispersystems.textsecuregcm.storage.Account;
+import org.whispersystems.textsecuregcm.storage.AccountCodec;
+import org.whispersystems.textsecuregcm.storage.Device;
+import org.whispersystems.textsecuregcm.util.SystemMapper;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AccountCodecTest {
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    Account account = createAccount();
+    Account decoded = AccountCodec.decode("+14152222222", AccountCodec.encode(account));
+
+    assertEquals(decoded.getNumber(), "+14152222222");
+    assertEquals(decoded.getIdentityKey(), account.getIdentityKey());
+    assertEquals(decoded.getProfileName(), account.getProfileName());
+    assertEquals(decoded.getAvatar(), account.getAvatar());
+    assertNull(decoded.getAvatarDigest());
+    assertEquals(decoded.getPin(), account.getPin());
+    assertArrayEquals(decoded.getUnidentifiedAccessKey().get(), account.getUnidentifiedAccessKey().get());
+    assertTrue(decoded.isUnrestrictedUnidentifiedAccess());
+    assertEquals(decoded.getDevices().size(), 2);
+
+    for (Device device : account.getDevices()) {
+      Device decodedDevice = decoded.getDevice(device.getId()).get();
+
+      assertEquals(decodedDevice.getName(), device.getName());
+      assertEquals(decodedDevice.getAuthenticationCredentials().getHashedAuthenticationToken(), device.getAuthenticationCredentials().getHashedAuthenticationToken());
+      assertEquals(decodedDevice.getAuthenticationCredentials().getSalt(), device.getAuthenticationCredentials().getSalt());
+      assertEquals(decodedDevice.getSignalingKey(), device.getSignalingKey());
+      assertEquals(decodedDevice.getGcmId(), device.getGcmId());
+      assertEquals(decodedDevice.getApnId(), device.getApnId());
+      assertEquals(decodedDevice.getVoipApnId(), device.getVoipApnId());
+      assertEquals(decodedDevice.getPushTimestamp(), device.getPushTimestamp());
+      assertEquals(decodedDevice.getFetchesMessages(), device.getFetchesMessages());
+      assertEquals(decodedDevice.getRegistrationId(), device.getRegistrationId());
+      assertEquals(decodedDevice.getSignedPreKey(), device.getSignedPreKey());
+      assertEquals(decodedDevice.getLastSeen(), device.getLastSeen());
+      assertEquals(decodedDevice.getCreated(), device.getCreated());
+      assertEquals(decodedDevice.getUserAgent(), device.getUserAgent());
+      assertEquals(decodedDevice.isUnauthenticatedDeliverySupported(), device.isUnauthenticatedDeliverySupported());
+    }
+  }
+
+  @Test
+  public void testSmallerThanJson() throws IOException {
+    Account account = createAccount();
+    byte[]  binary  = AccountCodec.encode(account);
+    byte[]  json    = SystemMapper.getMapper().writeValueAsBytes(account);
+
+    assertTrue(AccountCodec.isEncoded(binary));
+    assertFalse(AccountCodec.isEncoded(json));
+    assertThat(binary.length).isLessThan(json.length * 3 / 4);
+  }
+
+  @Test(expected = IOException.class)
+  public void testTruncated() throws IOException {
+    byte[] encoded = AccountCodec.encode(createAccount());
+    AccountCodec.decode("+14152222222", Arrays.copyOf(encoded, encoded.length - 5));
+  }
+
+  private Account createAccount() {
+    AuthenticationCredentials credentials = new AuthenticationCredentials("password");
+
+    Device master = new Device(1, "master", credentials.getHashedAuthenticationToken(), credentials.getSalt(),
+                               "signaling-key", "gcm-id", null, null, false, 1234,
+                               new SignedPreKey(42, "public-key", "signature"),
+                               System.currentTimeMillis(), System.currentTimeMillis(), "Signal-Android 4.30 ü", true);
+    master.setGcmId("gcm-id");
+
+    Device linked = new Device(2, null, credentials.getHashedAuthenticationToken(), credentials.getSalt(),
+                               null, null, null, null, true, 5678, null, 0, 0, null, false);
+
+    Account account = new Account("+14152222222", new HashSet<>(Arrays.asList(master, linked)), new byte[16]);
+    account.setIdentityKey("identity-key");
+    account.setProfileName("profile");
+    account.setAvatar("avatar");
+    account.setPin("123456");
+    account.setUnrestrictedUnidentifiedAccess(true);
+
+    return account;
+  }
+
+}
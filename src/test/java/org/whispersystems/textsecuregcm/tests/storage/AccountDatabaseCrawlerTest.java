@@ -22,13 +22,17 @@ import org.whispersystems.textsecuregcm.storage.Accounts;
 import org.whispersystems.textsecuregcm.storage.AccountDatabaseCrawler;
 import org.whispersystems.textsecuregcm.storage.AccountDatabaseCrawlerCache;
 import org.whispersystems.textsecuregcm.storage.AccountDatabaseCrawlerListener;
+import org.whispersystems.textsecuregcm.storage.AccountDatabaseCrawlerCache.RangePlan;
 import org.whispersystems.textsecuregcm.storage.AccountDatabaseCrawlerRestartException;
+import org.whispersystems.textsecuregcm.storage.ConcurrentAccountDatabaseCrawlerListener;
+import org.whispersystems.textsecuregcm.util.Pair;
 
 import org.junit.Before;
 import org.junit.Test;
 
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
 
@@ -36,6 +40,7 @@ import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
@@ -56,6 +61,11 @@ public class AccountDatabaseCrawlerTest {
 
   private final AccountDatabaseCrawler        crawler   = new AccountDatabaseCrawler(accounts, cache, Arrays.asList(listener), CHUNK_SIZE, CHUNK_INTERVAL_MS);
 
+  private final ConcurrentAccountDatabaseCrawlerListener concurrentListener = mock(ConcurrentAccountDatabaseCrawlerListener.class);
+  private final AccountDatabaseCrawler                   rangeCrawler       = new AccountDatabaseCrawler(accounts, cache, Arrays.asList(listener, concurrentListener), CHUNK_SIZE, CHUNK_INTERVAL_MS, 4, 1);
+
+  private final RangePlan plan = new RangePlan("plan", System.currentTimeMillis(), 2, Arrays.asList(ACCOUNT1));
+
   @Before
   public void setup() {
     when(account1.getNumber()).thenReturn(ACCOUNT1);
@@ -67,6 +77,7 @@ public class AccountDatabaseCrawlerTest {
 
     when(cache.claimActiveWork(any(), anyLong())).thenReturn(true);
     when(cache.isAccelerated()).thenReturn(false);
+    when(cache.renewRange(anyInt(), any(String.class), anyLong())).thenReturn(true);
   }
 
   @Test
@@ -200,4 +211,119 @@ public class AccountDatabaseCrawlerTest {
     verifyNoMoreInteractions(cache);
   }
 
+  @Test
+  public void testRangeCrawlStart() {
+    when(cache.getRangePlan()).thenReturn(Optional.empty());
+    when(cache.claimRangeCoordinator(any(String.class), anyLong())).thenReturn(true);
+    when(accounts.getBoundaries(4)).thenReturn(new Pair<>(2L, Arrays.asList(ACCOUNT1)));
+
+    assertThat(rangeCrawler.doRangeWork()).isFalse();
+
+    verify(concurrentListener, times(1)).onCrawlStart();
+    verify(cache, times(1)).setRangePlan(argThat(plan -> plan.getRangeCount() == 2 && plan.getAccountCount() == 2));
+    verify(cache, times(1)).releaseRangeCoordinator(any(String.class));
+
+    verifyNoMoreInteractions(concurrentListener);
+    verifyZeroInteractions(listener);
+  }
+
+  @Test
+  public void testRangeCrawlChunk() throws AccountDatabaseCrawlerRestartException {
+    when(cache.getRangePlan()).thenReturn(Optional.of(plan));
+    when(cache.getFinishedRanges(plan)).thenReturn(new HashSet<>(Arrays.asList(0)));
+    when(cache.claimRange(eq(1), any(String.class), anyLong())).thenReturn(true);
+    when(cache.getRangeCursor(plan, 1)).thenReturn(Optional.empty());
+    when(cache.setRangeCursor(plan, 1, ACCOUNT2, 1)).thenReturn(2L);
+    when(accounts.getRange(Optional.of(ACCOUNT1), Optional.empty(), CHUNK_SIZE)).thenReturn(Arrays.asList(account2));
+
+    assertThat(rangeCrawler.doRangeWork()).isTrue();
+
+    verify(cache, never()).claimRange(eq(0), any(String.class), anyLong());
+    verify(concurrentListener, times(1)).onCrawlChunk(eq("plan"), eq(1), eq(Optional.of(ACCOUNT1)), eq(Arrays.asList(account2)));
+    verify(cache, times(2)).renewRange(eq(1), any(String.class), anyLong());
+    verify(cache, times(1)).setRangeCursor(plan, 1, ACCOUNT2, 1);
+    verify(cache, times(1)).setRangeFinished(plan, 1);
+    verify(cache, times(1)).releaseRange(eq(1), any(String.class));
+
+    verifyNoMoreInteractions(concurrentListener);
+    verifyZeroInteractions(listener);
+  }
+
+  @Test
+  public void testRangeCrawlChunkFromCursor() throws AccountDatabaseCrawlerRestartException {
+    when(cache.getRangePlan()).thenReturn(Optional.of(plan));
+    when(cache.getFinishedRanges(plan)).thenReturn(new HashSet<>(Arrays.asList(1)));
+    when(cache.claimRange(eq(0), any(String.class), anyLong())).thenReturn(true);
+    when(cache.getRangeCursor(plan, 0)).thenReturn(Optional.of("+0"));
+    when(accounts.getRange(Optional.of("+0"), Optional.of(ACCOUNT1), CHUNK_SIZE)).thenReturn(Collections.emptyList());
+
+    assertThat(rangeCrawler.doRangeWork()).isTrue();
+
+    verify(cache, times(1)).setRangeFinished(plan, 0);
+    verify(cache, never()).setRangeCursor(any(RangePlan.class), anyInt(), any(String.class), anyInt());
+    verify(cache, times(1)).releaseRange(eq(0), any(String.class));
+
+    verifyZeroInteractions(concurrentListener);
+  }
+
+  @Test
+  public void testRangeCrawlRestart() throws AccountDatabaseCrawlerRestartException {
+    when(cache.getRangePlan()).thenReturn(Optional.of(plan));
+    when(cache.getFinishedRanges(plan)).thenReturn(new HashSet<>(Arrays.asList(0)));
+    when(cache.claimRange(eq(1), any(String.class), anyLong())).thenReturn(true);
+    when(cache.getRangeCursor(plan, 1)).thenReturn(Optional.empty());
+    when(accounts.getRange(Optional.of(ACCOUNT1), Optional.empty(), CHUNK_SIZE)).thenReturn(Arrays.asList(account2));
+    doThrow(AccountDatabaseCrawlerRestartException.class).when(concurrentListener).onCrawlChunk(any(), anyInt(), any(), any());
+
+    rangeCrawler.doRangeWork();
+
+    verify(cache, times(1)).clearRangePlan();
+    verify(cache, never()).setRangeCursor(any(RangePlan.class), anyInt(), any(String.class), anyInt());
+    verify(cache, times(1)).releaseRange(eq(1), any(String.class));
+  }
+
+  @Test
+  public void testRangeCrawlLeaseLost() throws AccountDatabaseCrawlerRestartException {
+    when(cache.getRangePlan()).thenReturn(Optional.of(plan));
+    when(cache.getFinishedRanges(plan)).thenReturn(new HashSet<>(Arrays.asList(0)));
+    when(cache.claimRange(eq(1), any(String.class), anyLong())).thenReturn(true);
+    when(cache.renewRange(eq(1), any(String.class), anyLong())).thenReturn(false);
+    when(cache.getRangeCursor(plan, 1)).thenReturn(Optional.empty());
+    when(accounts.getRange(Optional.of(ACCOUNT1), Optional.empty(), CHUNK_SIZE)).thenReturn(Arrays.asList(account2));
+
+    rangeCrawler.doRangeWork();
+
+    verify(cache, never()).setRangeCursor(any(RangePlan.class), anyInt(), any(String.class), anyInt());
+    verify(cache, never()).setRangeFinished(any(RangePlan.class), anyInt());
+    verify(cache, times(1)).releaseRange(eq(1), any(String.class));
+
+    verifyZeroInteractions(concurrentListener);
+  }
+
+  @Test
+  public void testRangeCrawlEnd() {
+    when(cache.getRangePlan()).thenReturn(Optional.of(plan));
+    when(cache.getFinishedRanges(plan)).thenReturn(new HashSet<>(Arrays.asList(0, 1)));
+    when(cache.claimRangeCoordinator(any(String.class), anyLong())).thenReturn(true);
+
+    assertThat(rangeCrawler.doRangeWork()).isFalse();
+
+    verify(concurrentListener, times(1)).onCrawlEnd(eq(Optional.empty()));
+    verify(cache, times(1)).clearRangePlan();
+    verify(cache, times(1)).releaseRangeCoordinator(any(String.class));
+    verify(cache, never()).claimRange(anyInt(), any(String.class), anyLong());
+
+    verifyNoMoreInteractions(concurrentListener);
+  }
+
+  @Test
+  public void testRangeCrawlSequentialListener() throws AccountDatabaseCrawlerRestartException {
+    when(cache.getLastNumber()).thenReturn(Optional.of(ACCOUNT1));
+
+    rangeCrawler.doPeriodicWork();
+
+    verify(listener, times(1)).onCrawlChunk(eq(Optional.of(ACCOUNT1)), eq(Arrays.asList(account2)));
+    verifyZeroInteractions(concurrentListener);
+  }
+
 }
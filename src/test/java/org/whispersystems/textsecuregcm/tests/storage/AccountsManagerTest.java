@@ -1,21 +1,45 @@
 package org.whispersystems.textsecuregcm.tests.storage;
 
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.whispersystems.textsecuregcm.redis.ReplicatedJedisPool;
 import org.whispersystems.textsecuregcm.storage.Account;
+import org.whispersystems.textsecuregcm.storage.AccountCodec;
+import org.whispersystems.textsecuregcm.storage.AccountNearCache;
+import org.whispersystems.textsecuregcm.storage.AccountRequestContext;
 import org.whispersystems.textsecuregcm.storage.Accounts;
 import org.whispersystems.textsecuregcm.storage.AccountsManager;
+import org.whispersystems.textsecuregcm.storage.Device;
 import org.whispersystems.textsecuregcm.storage.DirectoryManager;
+import org.whispersystems.textsecuregcm.util.Pair;
 
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertNotSame;
 import static junit.framework.TestCase.assertSame;
 import static junit.framework.TestCase.assertTrue;
 import static org.junit.Assert.assertEquals;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Transaction;
 import redis.clients.jedis.exceptions.JedisException;
 
 public class AccountsManagerTest {
@@ -28,7 +52,7 @@ public class AccountsManagerTest {
     DirectoryManager    directoryManager = mock(DirectoryManager.class   );
 
     when(cacheClient.getReadResource()).thenReturn(jedis);
-    when(jedis.get(eq("Account5+14152222222"))).thenReturn("{\"number\": \"+14152222222\", \"name\": \"test\"}");
+    when(jedis.get(eq("Account5+14152222222".getBytes()))).thenReturn("{\"number\": \"+14152222222\", \"name\": \"test\"}".getBytes());
 
     AccountsManager   accountsManager = new AccountsManager(accounts, directoryManager, cacheClient);
     Optional<Account> account         = accountsManager.get("+14152222222");
@@ -37,7 +61,7 @@ public class AccountsManagerTest {
     assertEquals(account.get().getNumber(), "+14152222222");
     assertEquals(account.get().getProfileName(), "test");
 
-    verify(jedis, times(1)).get(eq("Account5+14152222222"));
+    verify(jedis, times(1)).get(eq("Account5+14152222222".getBytes()));
     verify(jedis, times(1)).close();
     verifyNoMoreInteractions(jedis);
     verifyNoMoreInteractions(accounts);
@@ -53,7 +77,7 @@ public class AccountsManagerTest {
 
     when(cacheClient.getReadResource()).thenReturn(jedis);
     when(cacheClient.getWriteResource()).thenReturn(jedis);
-    when(jedis.get(eq("Account5+14152222222"))).thenReturn(null);
+    when(jedis.get(eq("Account5+14152222222".getBytes()))).thenReturn((byte[])null);
     when(accounts.get(eq("+14152222222"))).thenReturn(Optional.of(account));
 
     AccountsManager   accountsManager = new AccountsManager(accounts, directoryManager, cacheClient);
@@ -62,8 +86,8 @@ public class AccountsManagerTest {
     assertTrue(retrieved.isPresent());
     assertSame(retrieved.get(), account);
 
-    verify(jedis, times(1)).get(eq("Account5+14152222222"));
-    verify(jedis, times(1)).set(eq("Account5+14152222222"), anyString());
+    verify(jedis, times(1)).get(eq("Account5+14152222222".getBytes()));
+    verify(jedis, times(1)).set(eq("Account5+14152222222".getBytes()), any(byte[].class));
     verify(jedis, times(2)).close();
     verifyNoMoreInteractions(jedis);
 
@@ -81,7 +105,7 @@ public class AccountsManagerTest {
 
     when(cacheClient.getReadResource()).thenReturn(jedis);
     when(cacheClient.getWriteResource()).thenReturn(jedis);
-    when(jedis.get(eq("Account5+14152222222"))).thenThrow(new JedisException("Connection lost!"));
+    when(jedis.get(eq("Account5+14152222222".getBytes()))).thenThrow(new JedisException("Connection lost!"));
     when(accounts.get(eq("+14152222222"))).thenReturn(Optional.of(account));
 
     AccountsManager   accountsManager = new AccountsManager(accounts, directoryManager, cacheClient);
@@ -90,8 +114,8 @@ public class AccountsManagerTest {
     assertTrue(retrieved.isPresent());
     assertSame(retrieved.get(), account);
 
-    verify(jedis, times(1)).get(eq("Account5+14152222222"));
-    verify(jedis, times(1)).set(eq("Account5+14152222222"), anyString());
+    verify(jedis, times(1)).get(eq("Account5+14152222222".getBytes()));
+    verify(jedis, times(1)).set(eq("Account5+14152222222".getBytes()), any(byte[].class));
     verify(jedis, times(2)).close();
     verifyNoMoreInteractions(jedis);
 
@@ -99,6 +123,361 @@ public class AccountsManagerTest {
     verifyNoMoreInteractions(accounts);
   }
 
+  @Test
+  public void testGetAccountInNearCache() {
+    ReplicatedJedisPool cacheClient      = mock(ReplicatedJedisPool.class);
+    Jedis               jedis            = mock(Jedis.class              );
+    Accounts            accounts         = mock(Accounts.class           );
+    DirectoryManager    directoryManager = mock(DirectoryManager.class   );
+    AccountNearCache    nearCache        = new AccountNearCache(100, 1, TimeUnit.MINUTES);
+
+    when(cacheClient.getReadResource()).thenReturn(jedis);
+    when(jedis.get(eq("Account5+14152222222".getBytes()))).thenReturn("{\"number\": \"+14152222222\", \"name\": \"test\"}".getBytes());
+
+    AccountsManager   accountsManager = new AccountsManager(accounts, directoryManager, cacheClient, Optional.of(nearCache));
+    Optional<Account> first           = accountsManager.get("+14152222222");
+    Optional<Account> second          = accountsManager.get("+14152222222");
+
+    assertTrue(first.isPresent());
+    assertTrue(second.isPresent());
+    assertNotSame(first.get(), second.get());
+    assertEquals(second.get().getNumber(), "+14152222222");
+    assertEquals(second.get().getProfileName(), "test");
+
+    verify(jedis, times(1)).get(eq("Account5+14152222222".getBytes()));
+    verify(jedis, times(1)).close();
+    verifyNoMoreInteractions(jedis);
+    verifyNoMoreInteractions(accounts);
+  }
+
+  @Test
+  public void testUpdateInvalidatesNearCache() {
+    ReplicatedJedisPool cacheClient      = mock(ReplicatedJedisPool.class);
+    Jedis               jedis            = mock(Jedis.class              );
+    Accounts            accounts         = mock(Accounts.class           );
+    DirectoryManager    directoryManager = mock(DirectoryManager.class   );
+    AccountNearCache    nearCache        = new AccountNearCache(100, 1, TimeUnit.MINUTES);
+    Account             account          = new Account("+14152222222", new HashSet<>(), new byte[16]);
+
+    when(cacheClient.getReadResource()).thenReturn(jedis);
+    when(cacheClient.getWriteResource()).thenReturn(jedis);
+    when(jedis.get(eq("Account5+14152222222".getBytes()))).thenReturn("{\"number\": \"+14152222222\", \"name\": \"test\"}".getBytes());
+
+    AccountsManager accountsManager = new AccountsManager(accounts, directoryManager, cacheClient, Optional.of(nearCache));
+    accountsManager.get("+14152222222");
+
+    assertTrue(nearCache.get("+14152222222").isPresent());
+
+    accountsManager.update(account);
+
+    assertFalse(nearCache.get("+14152222222").isPresent());
+    verify(jedis, times(1)).publish(eq(AccountNearCache.INVALIDATION_ADDRESS.serialize()), eq("+14152222222"));
+  }
+
+  @Test
+  public void testGetAccountInBinaryCache() {
+    ReplicatedJedisPool cacheClient      = mock(ReplicatedJedisPool.class);
+    Jedis               jedis            = mock(Jedis.class              );
+    Accounts            accounts         = mock(Accounts.class           );
+    DirectoryManager    directoryManager = mock(DirectoryManager.class   );
+    Account             account          = new Account("+14152222222", new HashSet<>(), new byte[16]);
+
+    account.setProfileName("test");
+
+    when(cacheClient.getReadResource()).thenReturn(jedis);
+    when(jedis.get(eq("Account5+14152222222".getBytes()))).thenReturn(AccountCodec.encode(account));
+
+    AccountsManager   accountsManager = new AccountsManager(accounts, directoryManager, cacheClient);
+    Optional<Account> retrieved       = accountsManager.get("+14152222222");
+
+    assertTrue(retrieved.isPresent());
+    assertEquals(retrieved.get().getNumber(), "+14152222222");
+    assertEquals(retrieved.get().getProfileName(), "test");
+
+    verifyNoMoreInteractions(accounts);
+  }
+
+  @Test
+  public void testRequestContext() {
+    ReplicatedJedisPool cacheClient      = mock(ReplicatedJedisPool.class);
+    Jedis               jedis            = mock(Jedis.class              );
+    Accounts            accounts         = mock(Accounts.class           );
+    DirectoryManager    directoryManager = mock(DirectoryManager.class   );
+    Account             updated          = new Account("+14152222222", new HashSet<>(), new byte[16]);
+
+    when(cacheClient.getReadResource()).thenReturn(jedis);
+    when(cacheClient.getWriteResource()).thenReturn(jedis);
+    when(jedis.get(eq("Account5+14152222222".getBytes()))).thenReturn("{\"number\": \"+14152222222\", \"name\": \"test\"}".getBytes());
+    when(accounts.get(eq("+14153333333"))).thenReturn(Optional.empty());
+
+    AccountsManager accountsManager = new AccountsManager(accounts, directoryManager, cacheClient);
+
+    AccountRequestContext.open();
+
+    try {
+      Optional<Account> first  = accountsManager.get("+14152222222");
+      Optional<Account> second = accountsManager.get("+14152222222");
+
+      assertSame(first.get(), second.get());
+      assertFalse(accountsManager.get("+14153333333").isPresent());
+      assertFalse(accountsManager.get("+14153333333").isPresent());
+
+      accountsManager.update(updated);
+
+      assertSame(accountsManager.get("+14152222222").get(), updated);
+    } finally {
+      AccountRequestContext.close();
+    }
+
+    assertNotSame(accountsManager.get("+14152222222").get(), updated);
+
+    verify(jedis, times(2)).get(eq("Account5+14152222222".getBytes()));
+    verify(accounts, times(1)).get(eq("+14153333333"));
+  }
+
+  @Test
+  public void testConcurrentMissesCoalesced() throws Exception {
+    ReplicatedJedisPool cacheClient      = mock(ReplicatedJedisPool.class);
+    Jedis               jedis            = mock(Jedis.class              );
+    Accounts            accounts         = mock(Accounts.class           );
+    DirectoryManager    directoryManager = mock(DirectoryManager.class   );
+    Account             account          = new Account("+14152222222", new HashSet<>(), new byte[16]);
+    CountDownLatch      loading          = new CountDownLatch(1);
+    CountDownLatch      release          = new CountDownLatch(1);
+
+    when(cacheClient.getReadResource()).thenReturn(jedis);
+    when(cacheClient.getWriteResource()).thenReturn(jedis);
+    when(accounts.get(eq("+14152222222"))).thenAnswer(invocation -> {
+      loading.countDown();
+      release.await();
+      return Optional.of(account);
+    });
+
+    AccountsManager                   accountsManager = new AccountsManager(accounts, directoryManager, cacheClient);
+    ExecutorService                   executor        = Executors.newFixedThreadPool(4);
+    List<Future<Optional<Account>>>   results         = new LinkedList<>();
+
+    results.add(executor.submit(() -> accountsManager.get("+14152222222")));
+    loading.await();
+
+    for (int i=0;i<3;i++) {
+      results.add(executor.submit(() -> accountsManager.get("+14152222222")));
+    }
+
+    Thread.sleep(200);
+    release.countDown();
+
+    Set<Account> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    for (Future<Optional<Account>> result : results) {
+      Optional<Account> retrieved = result.get();
+      assertEquals(retrieved.get().getNumber(), "+14152222222");
+      distinct.add(retrieved.get());
+    }
+
+    executor.shutdown();
+
+    assertEquals(distinct.size(), 4);
+    verify(accounts, times(1)).get(eq("+14152222222"));
+  }
+
+  @Test
+  public void testAbandonedLoadReleasesWaiters() throws Exception {
+    ReplicatedJedisPool cacheClient      = mock(ReplicatedJedisPool.class);
+    Jedis               jedis            = mock(Jedis.class              );
+    Accounts            accounts         = mock(Accounts.class           );
+    DirectoryManager    directoryManager = mock(DirectoryManager.class   );
+    Account             account          = new Account("+14152222222", new HashSet<>(), new byte[16]);
+    CountDownLatch      loading          = new CountDownLatch(1);
+    CountDownLatch      release          = new CountDownLatch(1);
+
+    when(cacheClient.getReadResource()).thenReturn(jedis);
+    when(cacheClient.getWriteResource()).thenReturn(jedis);
+    when(accounts.get(eq("+14152222222"))).thenAnswer(invocation -> {
+      loading.countDown();
+      release.await();
+      throw new AssertionError("leader failed");
+    }).thenReturn(Optional.of(account));
+
+    AccountsManager           accountsManager = new AccountsManager(accounts, directoryManager, cacheClient);
+    ExecutorService           executor        = Executors.newFixedThreadPool(2);
+    Future<Optional<Account>> leader          = executor.submit(() -> accountsManager.get("+14152222222"));
+
+    loading.await();
+
+    Future<Optional<Account>> waiter = executor.submit(() -> accountsManager.get("+14152222222"));
+
+    Thread.sleep(200);
+    release.countDown();
+
+    try {
+      leader.get();
+      throw new AssertionError();
+    } catch (ExecutionException e) {
+      // good
+    }
+
+    assertEquals(waiter.get(5, TimeUnit.SECONDS).get().getNumber(), "+14152222222");
+    verify(accounts, times(2)).get(eq("+14152222222"));
+
+    executor.shutdown();
+  }
+
+  @Test
+  public void testMissingAccountCached() {
+    ReplicatedJedisPool cacheClient      = mock(ReplicatedJedisPool.class);
+    Jedis               jedis            = mock(Jedis.class              );
+    Accounts            accounts         = mock(Accounts.class           );
+    DirectoryManager    directoryManager = mock(DirectoryManager.class   );
+    AccountNearCache    nearCache        = new AccountNearCache(100, 1, 1, TimeUnit.MINUTES);
+    Account             account          = new Account("+14152222222", new HashSet<>(), new byte[16]);
+
+    when(cacheClient.getReadResource()).thenReturn(jedis);
+    when(cacheClient.getWriteResource()).thenReturn(jedis);
+    when(accounts.get(eq("+14152222222"))).thenReturn(Optional.empty());
+
+    AccountsManager accountsManager = new AccountsManager(accounts, directoryManager, cacheClient, Optional.of(nearCache));
+
+    assertFalse(accountsManager.get("+14152222222").isPresent());
+    assertFalse(accountsManager.get("+14152222222").isPresent());
+
+    verify(accounts, times(1)).get(eq("+14152222222"));
+
+    accountsManager.create(account);
+
+    assertFalse(nearCache.isMissing("+14152222222"));
+  }
+
+  @Test
+  public void testNearCacheInvalidationRace() {
+    AccountNearCache nearCache  = new AccountNearCache(100, 1, TimeUnit.MINUTES);
+    long             generation = nearCache.getGeneration();
+
+    nearCache.onDispatchMessage(AccountNearCache.INVALIDATION_ADDRESS.serialize(), "+14152222222".getBytes());
+    nearCache.put("+14152222222", "{}".getBytes(), generation);
+
+    assertFalse(nearCache.get("+14152222222").isPresent());
+
+    nearCache.put("+14152222222", "{}".getBytes(), nearCache.getGeneration());
+
+    assertTrue(nearCache.get("+14152222222").isPresent());
+  }
+
+  @Test
+  public void testNearCacheClearedOnResubscribe() {
+    AccountNearCache nearCache = new AccountNearCache(100, 1, 1, TimeUnit.MINUTES);
+
+    nearCache.onDispatchSubscribed(AccountNearCache.INVALIDATION_ADDRESS.serialize());
+    nearCache.put("+14152222222", "{}".getBytes(), nearCache.getGeneration());
+    nearCache.putMissing("+14153333333", nearCache.getGeneration());
+
+    long generation = nearCache.getGeneration();
+
+    nearCache.onDispatchSubscribed(AccountNearCache.INVALIDATION_ADDRESS.serialize());
+
+    assertFalse(nearCache.get("+14152222222").isPresent());
+    assertFalse(nearCache.isMissing("+14153333333"));
+
+    nearCache.put("+14154444444", "{}".getBytes(), generation);
+
+    assertFalse(nearCache.get("+14154444444").isPresent());
+  }
+
+  @Test
+  public void testUpdateLastSeenRewritesCache() throws IOException {
+    ReplicatedJedisPool cacheClient      = mock(ReplicatedJedisPool.class);
+    Jedis               jedis            = mock(Jedis.class              );
+    Pipeline            pipeline         = mock(Pipeline.class           );
+    Transaction         transaction      = mock(Transaction.class        );
+    Accounts            accounts         = mock(Accounts.class           );
+    DirectoryManager    directoryManager = mock(DirectoryManager.class   );
+    Device              device           = new Device();
+
+    device.setId(1);
+    device.setLastSeen(1000);
+
+    Account account = new Account("+14152222222", new HashSet<>(Collections.singleton(device)), new byte[16]);
+
+    when(cacheClient.getWriteResource()).thenReturn(jedis);
+    when(jedis.pipelined()).thenReturn(pipeline);
+    when(jedis.multi()).thenReturn(transaction);
+    when(jedis.mget(eq("Account5+14152222222".getBytes()), eq("Account5+14153333333".getBytes()))).thenReturn(Arrays.asList(AccountCodec.encode(account), null));
+    when(transaction.exec()).thenReturn(Collections.singletonList("OK"));
+
+    List<Pair<String, Long>> devices         = Arrays.asList(new Pair<>("+14152222222", 1L), new Pair<>("+14153333333", 1L));
+    AccountsManager          accountsManager = new AccountsManager(accounts, directoryManager, cacheClient);
 
+    accountsManager.updateLastSeen(devices, 2000);
+
+    ArgumentCaptor<byte[]> captor = ArgumentCaptor.forClass(byte[].class);
+
+    verify(accounts, times(1)).updateLastSeen(eq(devices), eq(2000L));
+    verify(jedis, times(1)).watch(eq("Account5+14152222222".getBytes()), eq("Account5+14153333333".getBytes()));
+    verify(transaction, times(1)).set(eq("Account5+14152222222".getBytes()), captor.capture());
+    verify(transaction, never()).del(any(byte[].class));
+    verify(jedis, never()).del(any(byte[][].class));
+
+    assertEquals(2000, AccountCodec.decode("+14152222222", captor.getValue()).getDevice(1).get().getLastSeen());
+  }
+
+  @Test
+  public void testUpdateLastSeenRaceEvicts() {
+    ReplicatedJedisPool cacheClient      = mock(ReplicatedJedisPool.class);
+    Jedis               jedis            = mock(Jedis.class              );
+    Pipeline            pipeline         = mock(Pipeline.class           );
+    Transaction         transaction      = mock(Transaction.class        );
+    Accounts            accounts         = mock(Accounts.class           );
+    DirectoryManager    directoryManager = mock(DirectoryManager.class   );
+    Account             account          = new Account("+14152222222", new HashSet<>(), new byte[16]);
+
+    when(cacheClient.getWriteResource()).thenReturn(jedis);
+    when(jedis.pipelined()).thenReturn(pipeline);
+    when(jedis.multi()).thenReturn(transaction);
+    when(jedis.mget(eq("Account5+14152222222".getBytes()))).thenReturn(Collections.singletonList(AccountCodec.encode(account)));
+    when(transaction.exec()).thenReturn(null);
+
+    AccountsManager accountsManager = new AccountsManager(accounts, directoryManager, cacheClient);
+    accountsManager.updateLastSeen(Collections.singletonList(new Pair<>("+14152222222", 1L)), 2000);
+
+    verify(jedis, times(1)).del(new byte[][] {"Account5+14152222222".getBytes()});
+    verify(pipeline, times(1)).publish(eq(AccountNearCache.INVALIDATION_ADDRESS.serialize()), eq("+14152222222"));
+  }
+
+  @Test
+  public void testGetAll() {
+    ReplicatedJedisPool cacheClient      = mock(ReplicatedJedisPool.class);
+    Jedis               jedis            = mock(Jedis.class              );
+    Pipeline            pipeline         = mock(Pipeline.class           );
+    Accounts            accounts         = mock(Accounts.class           );
+    DirectoryManager    directoryManager = mock(DirectoryManager.class   );
+    AccountNearCache    nearCache        = new AccountNearCache(100, 1, 1, TimeUnit.MINUTES);
+    Account             cached           = new Account("+14151111111", new HashSet<>(), new byte[16]);
+    Account             stored           = new Account("+14152222222", new HashSet<>(), new byte[16]);
+    Account             nearCached       = new Account("+14154444444", new HashSet<>(), new byte[16]);
+
+    nearCache.put("+14154444444", AccountCodec.encode(nearCached), nearCache.getGeneration());
+
+    when(cacheClient.getReadResource()).thenReturn(jedis);
+    when(cacheClient.getWriteResource()).thenReturn(jedis);
+    when(jedis.pipelined()).thenReturn(pipeline);
+    when(jedis.mget(eq("Account5+14151111111".getBytes()), eq("Account5+14152222222".getBytes()), eq("Account5+14153333333".getBytes()))).thenReturn(Arrays.asList(AccountCodec.encode(cached), null, null));
+    when(accounts.getAll(anyCollection())).thenReturn(Collections.singletonList(stored));
+
+    AccountsManager      accountsManager = new AccountsManager(accounts, directoryManager, cacheClient, Optional.of(nearCache));
+    Map<String, Account> retrieved       = accountsManager.getAll(Arrays.asList("+14151111111", "+14152222222", "+14153333333", "+14154444444", "+14151111111"));
+
+    assertEquals(Arrays.asList("+14151111111", "+14152222222", "+14154444444"), new LinkedList<>(retrieved.keySet()));
+    assertSame(retrieved.get("+14152222222"), stored);
+
+    verify(jedis, times(1)).mget(eq("Account5+14151111111".getBytes()), eq("Account5+14152222222".getBytes()), eq("Account5+14153333333".getBytes()));
+    verify(accounts, times(1)).getAll(eq(Arrays.asList("+14152222222", "+14153333333")));
+    verify(pipeline, times(1)).set(eq("Account5+14152222222".getBytes()), any(byte[].class));
+    verify(pipeline, times(1)).sync();
+    verifyNoMoreInteractions(accounts);
+
+    assertTrue(nearCache.isMissing("+14153333333"));
+    assertTrue(accountsManager.getAll(Collections.singletonList("+14153333333")).isEmpty());
+    verifyNoMoreInteractions(accounts);
+  }
 
 }
@@ -12,6 +12,7 @@ import org.whispersystems.textsecuregcm.storage.Account;
 import org.whispersystems.textsecuregcm.storage.Accounts;
 import org.whispersystems.textsecuregcm.storage.Device;
 import org.whispersystems.textsecuregcm.storage.mappers.AccountRowMapper;
+import org.whispersystems.textsecuregcm.util.Pair;
 
 import java.io.IOException;
 import java.sql.PreparedStatement;
@@ -92,6 +93,28 @@ public class AccountsTest {
     verifyStoredState("+14152221111", retrievedSecond.get(), accountSecond);
   }
 
+  @Test
+  public void testRetrieveAll() {
+    Account accountFirst  = generateAccount("+14151112222", Collections.singleton(generateDevice(1)));
+    Account accountSecond = generateAccount("+14152221111", Collections.singleton(generateDevice(1)));
+    Account accountThird  = generateAccount("+14153331111", Collections.singleton(generateDevice(1)));
+
+    accounts.create(accountFirst);
+    accounts.create(accountSecond);
+    accounts.create(accountThird);
+
+    List<Account> retrieved = accounts.getAll(Arrays.asList("+14151112222", "+14152221111", "+14150000000"));
+
+    assertThat(retrieved.size()).isEqualTo(2);
+
+    for (Account account : retrieved) {
+      if (account.getNumber().equals("+14151112222")) verifyStoredState("+14151112222", account, accountFirst);
+      else                                           verifyStoredState("+14152221111", account, accountSecond);
+    }
+
+    assertThat(accounts.getAll(Collections.emptyList()).size()).isEqualTo(0);
+  }
+
   @Test
   public void testOverwrite() throws Exception {
     Device  device  = generateDevice (1                                            );
@@ -126,6 +149,34 @@ public class AccountsTest {
     verifyStoredState("+14151112222", retrieved.get(), account);
   }
 
+  @Test
+  public void testUpdateLastSeen() {
+    Device first  = new Device(1, "first", "token", "salt", null, null, null, null, true, 1, new SignedPreKey(1, "key", "signature"), 1000, 1000, null, false);
+    Device second = new Device(2, "second", "token", "salt", null, null, null, null, true, 2, new SignedPreKey(2, "key", "signature"), 5000, 1000, null, false);
+
+    Account account = generateAccount("+14151112222", new HashSet<>(Arrays.asList(first, second)));
+    Account other   = generateAccount("+14152221111");
+
+    accounts.create(account);
+    accounts.create(other);
+
+    accounts.updateLastSeen(Arrays.asList(new Pair<>("+14151112222", 1L),
+                                          new Pair<>("+14151112222", 2L),
+                                          new Pair<>("+14151112222", 3L),
+                                          new Pair<>("+14150000000", 1L)),
+                            3000);
+
+    Account retrieved = accounts.get("+14151112222").get();
+
+    assertThat(retrieved.getDevice(1).get().getLastSeen()).isEqualTo(3000);
+    assertThat(retrieved.getDevice(2).get().getLastSeen()).isEqualTo(5000);
+    assertThat(retrieved.getDevice(1).get().getName()).isEqualTo("first");
+    assertThat(retrieved.getDevice(1).get().getSignedPreKey().getKeyId()).isEqualTo(1);
+    assertThat(retrieved.getDevices().size()).isEqualTo(2);
+
+    verifyStoredState("+14152221111", accounts.get("+14152221111").get(), other);
+  }
+
   @Test
   public void testRetrieveFrom() {
     List<Account> users = new ArrayList<>();
@@ -153,6 +204,39 @@ public class AccountsTest {
     }
   }
 
+  @Test
+  public void testRetrieveRange() {
+    for (int i=1;i<=100;i++) {
+      accounts.create(generateAccount("+1" + String.format("%03d", i)));
+    }
+
+    Pair<Long, List<String>> boundaries = accounts.getBoundaries(4);
+
+    assertThat(boundaries.first()).isEqualTo(100L);
+    assertThat(boundaries.second()).isEqualTo(Arrays.asList("+1025", "+1050", "+1075"));
+
+    List<Account> first = accounts.getRange(Optional.empty(), Optional.of("+1025"), 10);
+    assertThat(first.size()).isEqualTo(10);
+    assertThat(first.get(0).getNumber()).isEqualTo("+1001");
+
+    List<Account> middle = accounts.getRange(Optional.of("+1020"), Optional.of("+1025"), 10);
+    assertThat(middle.size()).isEqualTo(5);
+    assertThat(middle.get(0).getNumber()).isEqualTo("+1021");
+    assertThat(middle.get(4).getNumber()).isEqualTo("+1025");
+
+    List<Account> last = accounts.getRange(Optional.of("+1095"), Optional.empty(), 10);
+    assertThat(last.size()).isEqualTo(5);
+    assertThat(last.get(4).getNumber()).isEqualTo("+1100");
+  }
+
+  @Test
+  public void testBoundariesEmpty() {
+    Pair<Long, List<String>> boundaries = accounts.getBoundaries(4);
+
+    assertThat(boundaries.first()).isEqualTo(0L);
+    assertThat(boundaries.second().size()).isEqualTo(0);
+  }
+
   @Test
   public void testVacuum() {
     Device  device  = generateDevice (1                                            );
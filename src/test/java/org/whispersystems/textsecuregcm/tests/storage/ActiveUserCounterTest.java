@@ -24,18 +24,30 @@ import org.whispersystems.textsecuregcm.storage.AccountDatabaseCrawlerRestartExc
 import org.whispersystems.textsecuregcm.storage.Device;
 import org.whispersystems.textsecuregcm.util.Util;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.ScheduledReporter;
 import com.google.common.collect.ImmutableList;
 import io.dropwizard.metrics.MetricsFactory;
+import io.dropwizard.metrics.ReporterFactory;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import redis.clients.jedis.Jedis;
 
+import java.io.IOException;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.Optional;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.clearInvocations;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
@@ -44,13 +56,15 @@ import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
+@SuppressWarnings("unchecked")
 public class ActiveUserCounterTest {
 
   private final String NUMBER_IOS      = "+15551234567";
   private final String NUMBER_ANDROID  = "+5511987654321";
   private final String NUMBER_NODEVICE = "+5215551234567";
 
-  private final String TALLY_KEY       = "active_user_tally";
+  private final String TALLY_KEY       = "active_user_tally_hash";
+  private final String CHUNKS_KEY      = "active_user_tally_chunks";
 
   private final Device iosDevice     = mock(Device.class);
   private final Device androidDevice = mock(Device.class);
@@ -63,10 +77,10 @@ public class ActiveUserCounterTest {
   private final ReplicatedJedisPool jedisPool      = mock(ReplicatedJedisPool.class);
   private final MetricsFactory      metricsFactory = mock(MetricsFactory.class);
 
-  private final ActiveUserCounter activeUserCounter = new ActiveUserCounter(metricsFactory, jedisPool);
+  private ActiveUserCounter activeUserCounter;
 
   @Before
-  public void setup() {
+  public void setup() throws IOException {
 
     long halfDayAgo      = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(12);
     long fortyFiveDayAgo = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(45);
@@ -88,11 +102,13 @@ public class ActiveUserCounterTest {
     when(noDeviceAccount.getNumber()).thenReturn(NUMBER_NODEVICE);
     when(noDeviceAccount.getMasterDevice()).thenReturn(Optional.ofNullable(null));
 
-    when(jedis.get(any(String.class))).thenReturn("{\"fromNumber\":\"+\",\"platforms\":{},\"countries\":{}}");
     when(jedisPool.getWriteResource()).thenReturn(jedis);
     when(jedisPool.getReadResource()).thenReturn(jedis);
+    when(jedis.scriptLoad(anyString())).thenReturn("increment");
     when(metricsFactory.getReporters()).thenReturn(ImmutableList.of());
 
+    activeUserCounter = new ActiveUserCounter(metricsFactory, jedisPool);
+    clearInvocations(jedis, jedisPool);
   }
 
   @Test
@@ -100,7 +116,7 @@ public class ActiveUserCounterTest {
     activeUserCounter.onCrawlStart();
 
     verify(jedisPool, times(1)).getWriteResource();
-    verify(jedis, times(1)).del(any(String.class));
+    verify(jedis, times(1)).del(TALLY_KEY, CHUNKS_KEY, "active_user_tally");
     verify(jedis, times(1)).close();
 
     verifyZeroInteractions(iosDevice);
@@ -118,7 +134,7 @@ public class ActiveUserCounterTest {
     activeUserCounter.onCrawlEnd(Optional.empty());
 
     verify(jedisPool, times(1)).getReadResource();
-    verify(jedis, times(1)).get(any(String.class));
+    verify(jedis, times(1)).hgetAll(TALLY_KEY);
     verify(jedis, times(1)).close();
 
     verify(metricsFactory, times(1)).getReporters();
@@ -147,8 +163,10 @@ public class ActiveUserCounterTest {
     verify(iosDevice, times(0)).getGcmId();
 
     verify(jedisPool, times(1)).getWriteResource();
-    verify(jedis, times(1)).get(any(String.class));
-    verify(jedis, times(1)).set(any(String.class), eq("{\"fromNumber\":\""+NUMBER_IOS+"\",\"platforms\":{\"ios\":[1,1,1,1,1]},\"countries\":{\"1\":[1,1,1,1,1]}}"));
+    Map<String, Long> increments = verifyChunk("sequential:0:" + NUMBER_IOS);
+    verifyIncrements(increments, "platform:ios", 1, 1, 1, 1, 1);
+    verifyIncrements(increments, "country:1", 1, 1, 1, 1, 1);
+    assertThat(increments).hasSize(10);
     verify(jedis, times(1)).close();
 
     verify(metricsFactory, times(0)).getReporters();
@@ -170,10 +188,6 @@ public class ActiveUserCounterTest {
 
     verify(noDeviceAccount, times(1)).getMasterDevice();
 
-    verify(jedisPool, times(1)).getWriteResource();
-    verify(jedis, times(1)).get(eq(TALLY_KEY));
-    verify(jedis, times(1)).set(any(String.class), eq("{\"fromNumber\":\""+NUMBER_NODEVICE+"\",\"platforms\":{},\"countries\":{}}"));
-    verify(jedis, times(1)).close();
 
     verify(metricsFactory, times(0)).getReporters();
 
@@ -207,8 +221,12 @@ public class ActiveUserCounterTest {
     verify(androidDevice, times(1)).getGcmId();
 
     verify(jedisPool, times(1)).getWriteResource();
-    verify(jedis, times(1)).get(eq(TALLY_KEY));
-    verify(jedis, times(1)).set(any(String.class), eq("{\"fromNumber\":\""+NUMBER_IOS+"\",\"platforms\":{\"android\":[0,0,0,1,1],\"ios\":[1,1,1,1,1]},\"countries\":{\"55\":[0,0,0,1,1],\"1\":[1,1,1,1,1]}}"));
+    Map<String, Long> increments = verifyChunk("sequential:0:" + NUMBER_IOS);
+    verifyIncrements(increments, "platform:ios", 1, 1, 1, 1, 1);
+    verifyIncrements(increments, "platform:android", 0, 0, 0, 1, 1);
+    verifyIncrements(increments, "country:1", 1, 1, 1, 1, 1);
+    verifyIncrements(increments, "country:55", 0, 0, 0, 1, 1);
+    assertThat(increments).hasSize(14);
     verify(jedis, times(1)).close();
 
     verify(metricsFactory, times(0)).getReporters();
@@ -224,4 +242,80 @@ public class ActiveUserCounterTest {
     verifyNoMoreInteractions(jedisPool);
   }
 
+  @Test
+  public void testCrawlRangeChunk() throws AccountDatabaseCrawlerRestartException {
+    activeUserCounter.onCrawlChunk("crawl", 3, Optional.of(NUMBER_IOS), Arrays.asList(iosAccount));
+    activeUserCounter.onCrawlChunk("crawl", 3, Optional.of(NUMBER_IOS), Arrays.asList(iosAccount));
+
+    ArgumentCaptor<List<byte[]>> keys = ArgumentCaptor.forClass(List.class);
+    ArgumentCaptor<List<byte[]>> args = ArgumentCaptor.forClass(List.class);
+
+    verify(jedis, times(2)).evalsha(eq("increment".getBytes()), keys.capture(), args.capture());
+
+    assertThat(new String(keys.getValue().get(0))).isEqualTo(TALLY_KEY);
+    assertThat(new String(keys.getValue().get(1))).isEqualTo(CHUNKS_KEY);
+
+    for (List<byte[]> chunkArgs : args.getAllValues()) {
+      assertThat(new String(chunkArgs.get(0))).isEqualTo("crawl:3:" + NUMBER_IOS);
+    }
+  }
+
+  @Test
+  public void testCrawlEndTallies() throws IOException {
+    Map<String, String> tallies = new HashMap<>();
+    tallies.put("platform:ios:daily", "3");
+    tallies.put("platform:ios:yearly", "5");
+    tallies.put("platform:android:yearly", "2");
+    tallies.put("country:1:yearly", "7");
+
+    when(jedis.hgetAll(TALLY_KEY)).thenReturn(tallies);
+
+    MetricsFactory                 reportingFactory = mock(MetricsFactory.class);
+    ReporterFactory                reporterFactory  = mock(ReporterFactory.class);
+    ScheduledReporter              reporter         = mock(ScheduledReporter.class);
+    ArgumentCaptor<MetricRegistry> registry         = ArgumentCaptor.forClass(MetricRegistry.class);
+
+    when(reportingFactory.getReporters()).thenReturn(ImmutableList.of(reporterFactory));
+    when(reporterFactory.build(registry.capture())).thenReturn(reporter);
+
+    new ActiveUserCounter(reportingFactory, jedisPool).onCrawlEnd(Optional.empty());
+
+    verify(reporter).report();
+
+    Map<String, Gauge> gauges = registry.getValue().getGauges();
+
+    assertThat(gauges.get(metricName("daily_active_ios")).getValue()).isEqualTo(3L);
+    assertThat(gauges.get(metricName("weekly_active_ios")).getValue()).isEqualTo(0L);
+    assertThat(gauges.get(metricName("yearly_active_android")).getValue()).isEqualTo(2L);
+    assertThat(gauges.get(metricName("yearly_active_1")).getValue()).isEqualTo(7L);
+    assertThat(gauges.get(metricName("yearly_active")).getValue()).isEqualTo(7L);
+  }
+
+  private Map<String, Long> verifyChunk(String chunkId) {
+    ArgumentCaptor<List<byte[]>> args = ArgumentCaptor.forClass(List.class);
+    verify(jedis, times(1)).evalsha(eq("increment".getBytes()), any(List.class), args.capture());
+
+    assertThat(new String(args.getValue().get(0))).isEqualTo(chunkId);
+
+    Map<String, Long> increments = new HashMap<>();
+
+    for (int i = 1; i < args.getValue().size(); i += 2) {
+      increments.put(new String(args.getValue().get(i)), Long.parseLong(new String(args.getValue().get(i + 1))));
+    }
+
+    return increments;
+  }
+
+  private void verifyIncrements(Map<String, Long> actual, String name, long... increments) {
+    String[] intervals = {"daily", "weekly", "monthly", "quarterly", "yearly"};
+
+    for (int i = 0; i < intervals.length; i++) {
+      assertThat(actual.get(name + ":" + intervals[i])).isEqualTo(increments[i] > 0 ? increments[i] : null);
+    }
+  }
+
+  private static String metricName(String name) {
+    return MetricRegistry.name(ActiveUserCounter.class, name);
+  }
+
 }
@@ -0,0 +1,153 @@
+package org.whispersystems.textsecuregcm.tests.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.whispersystems.dispatch.DispatchManager;
+import org.whispersystems.textsecuregcm.entities.ClientContact;
+import org.whispersystems.textsecuregcm.redis.ReplicatedJedisPool;
+import org.whispersystems.textsecuregcm.storage.DirectoryIndex;
+import org.whispersystems.textsecuregcm.storage.DirectoryManager;
+import org.whispersystems.textsecuregcm.util.Util;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+
+public class DirectoryIndexTest {
+
+  private static final byte[] DIRECTORY_KEY = "directory".getBytes();
+
+  private final ReplicatedJedisPool jedisPool       = mock(ReplicatedJedisPool.class);
+  private final Jedis               jedis           = mock(Jedis.class);
+  private final Pipeline            pipeline        = mock(Pipeline.class);
+  private final DispatchManager     dispatchManager = mock(DispatchManager.class);
+
+  private final byte[] first  = Util.getContactToken("+14151111111");
+  private final byte[] second = Util.getContactToken("+14152222222");
+  private final byte[] third  = Util.getContactToken("+14153333333");
+
+  private DirectoryIndex directoryIndex;
+
+  @Before
+  public void setup() throws Exception {
+    when(jedisPool.getReadResource()).thenReturn(jedis);
+    when(jedisPool.getWriteResource()).thenReturn(jedis);
+    when(jedis.pipelined()).thenReturn(pipeline);
+    when(jedis.hlen(DIRECTORY_KEY)).thenReturn(2L);
+    when(jedis.hscan(eq(DIRECTORY_KEY), eq(ScanParams.SCAN_POINTER_START_BINARY), any(ScanParams.class)))
+        .thenReturn(new ScanResult<>("1".getBytes(), Arrays.asList(entry(first, "{\"v\":true}"))));
+    when(jedis.hscan(eq(DIRECTORY_KEY), eq("1".getBytes()), any(ScanParams.class)))
+        .thenReturn(new ScanResult<>(ScanParams.SCAN_POINTER_START_BINARY, Arrays.asList(entry(second, "{\"r\":\"relay\",\"w\":true}"))));
+
+    directoryIndex = new DirectoryIndex(jedisPool, dispatchManager, 1, TimeUnit.HOURS, 100, 2);
+  }
+
+  @After
+  public void teardown() throws Exception {
+    directoryIndex.stop();
+  }
+
+  @Test
+  public void testLoad() throws Exception {
+    assertThat(directoryIndex.isReady()).isFalse();
+
+    directoryIndex.start();
+    awaitReady();
+
+    verify(dispatchManager).subscribe(DirectoryIndex.UPDATES_CHANNEL, directoryIndex);
+    verify(dispatchManager).subscribe(DirectoryIndex.KEEPALIVE_CHANNEL, directoryIndex);
+
+    List<ClientContact> results = directoryIndex.get(Arrays.asList(third, second, first));
+
+    assertThat(results).hasSize(2);
+    assertThat(results.get(0).getToken()).isEqualTo(second);
+    assertThat(results.get(0).getRelay()).isEqualTo("relay");
+    assertThat(results.get(0).isVoice()).isFalse();
+    assertThat(results.get(0).isVideo()).isTrue();
+    assertThat(results.get(1).getToken()).isEqualTo(first);
+    assertThat(results.get(1).getRelay()).isNull();
+    assertThat(results.get(1).isVoice()).isTrue();
+  }
+
+  @Test
+  public void testUpdates() throws Exception {
+    directoryIndex.start();
+    awaitReady();
+
+    DirectoryManager directoryManager = new DirectoryManager(jedisPool, Optional.of(directoryIndex));
+    directoryManager.add(new ClientContact(third, null, true, true));
+    directoryManager.remove(first);
+
+    ArgumentCaptor<byte[]> messages = ArgumentCaptor.forClass(byte[].class);
+    verify(pipeline, times(2)).publish(eq(DirectoryIndex.UPDATES_CHANNEL.getBytes()), messages.capture());
+
+    for (byte[] message : messages.getAllValues()) {
+      directoryIndex.onDispatchMessage(DirectoryIndex.UPDATES_CHANNEL, message);
+    }
+
+    assertThat(directoryManager.get(first).isPresent()).isFalse();
+    assertThat(directoryManager.get(second).isPresent()).isTrue();
+    assertThat(directoryManager.get(third).get().isVideo()).isTrue();
+
+    verify(jedis, never()).hget(any(byte[].class), any(byte[].class));
+  }
+
+  @Test
+  public void testFallbackBeforeLoad() throws Exception {
+    when(jedis.hget(DIRECTORY_KEY, first)).thenReturn("{\"v\":true}".getBytes());
+
+    DirectoryManager directoryManager = new DirectoryManager(jedisPool, Optional.of(directoryIndex));
+
+    assertThat(directoryManager.get(first).isPresent()).isTrue();
+    verify(jedis).hget(DIRECTORY_KEY, first);
+  }
+
+  @Test
+  public void testOverlayLimit() throws Exception {
+    directoryIndex.start();
+    awaitReady();
+
+    verify(jedis, times(1)).hlen(DIRECTORY_KEY);
+
+    directoryIndex.onDispatchMessage(DirectoryIndex.UPDATES_CHANNEL, removal(first));
+    directoryIndex.onDispatchMessage(DirectoryIndex.UPDATES_CHANNEL, removal(second));
+
+    verify(jedis, after(500).times(1)).hlen(DIRECTORY_KEY);
+
+    directoryIndex.onDispatchMessage(DirectoryIndex.UPDATES_CHANNEL, removal(third));
+
+    verify(jedis, timeout(5000).times(2)).hlen(DIRECTORY_KEY);
+  }
+
+  private void awaitReady() {
+    for (int i=0;i<500 && !directoryIndex.isReady();i++) {
+      Util.sleep(10);
+    }
+
+    assertThat(directoryIndex.isReady()).isTrue();
+  }
+
+  private static byte[] removal(byte[] token) {
+    byte[] message = new byte[1 + token.length];
+    System.arraycopy(token, 0, message, 1, token.length);
+    return message;
+  }
+
+  private static Map.Entry<byte[], byte[]> entry(byte[] token, String value) {
+    return new AbstractMap.SimpleEntry<>(token, value.getBytes());
+  }
+}
@@ -0,0 +1,143 @@
+package org.whispersystems.textsecuregcm.tests.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.whispersystems.textsecuregcm.entities.ClientContact;
+import org.whispersystems.textsecuregcm.redis.ReplicatedJedisPool;
+import org.whispersystems.textsecuregcm.storage.DirectoryManager;
+import org.whispersystems.textsecuregcm.util.Util;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+
+public class DirectoryManagerTest {
+
+  private static final byte[] DIRECTORY_KEY = "directory".getBytes();
+
+  private final ReplicatedJedisPool jedisPool = mock(ReplicatedJedisPool.class);
+  private final Jedis               jedis     = mock(Jedis.class);
+  private final ExecutorService     executor  = Executors.newFixedThreadPool(2);
+
+  private final byte[] first  = Util.getContactToken("+14151111111");
+  private final byte[] second = Util.getContactToken("+14152222222");
+  private final byte[] third  = Util.getContactToken("+14153333333");
+  private final byte[] fourth = Util.getContactToken("+14154444444");
+  private final byte[] fifth  = Util.getContactToken("+14155555555");
+
+  @Before
+  public void setup() {
+    when(jedisPool.getReadResource()).thenReturn(jedis);
+    when(jedis.hmget(eq(DIRECTORY_KEY), any(byte[].class))).thenAnswer(invocation -> values(invocation.getArguments()));
+  }
+
+  @After
+  public void teardown() {
+    executor.shutdown();
+  }
+
+  @Test
+  public void testGetChunked() {
+    DirectoryManager    directoryManager = new DirectoryManager(jedisPool, Optional.empty(), executor, 2, false);
+    List<ClientContact> results          = directoryManager.get(Arrays.asList(first, second, third, fourth, fifth));
+
+    assertThat(results).hasSize(3);
+    assertThat(results.get(0).getToken()).isEqualTo(first);
+    assertThat(results.get(1).getToken()).isEqualTo(third);
+    assertThat(results.get(2).getToken()).isEqualTo(fifth);
+    assertThat(results.get(2).isVoice()).isTrue();
+
+    verify(jedis, times(3)).hmget(eq(DIRECTORY_KEY), any(byte[].class));
+    verify(jedis, times(3)).close();
+    verify(jedisPool, never()).getWriteResource();
+  }
+
+  @Test
+  public void testGetSingleChunk() {
+    DirectoryManager    directoryManager = new DirectoryManager(jedisPool, Optional.empty(), executor, 100, false);
+    List<ClientContact> results          = directoryManager.get(Arrays.asList(first, second));
+
+    assertThat(results).hasSize(1);
+    assertThat(results.get(0).getToken()).isEqualTo(first);
+
+    verify(jedis, times(1)).hmget(eq(DIRECTORY_KEY), any(byte[].class));
+    verify(jedisPool, never()).getWriteResource();
+  }
+
+  @Test
+  public void testGetEmpty() {
+    assertThat(new DirectoryManager(jedisPool, Optional.empty(), executor, 2, false).get(new LinkedList<>())).hasSize(0);
+    verifyZeroInteractions(jedis);
+  }
+
+  @Test
+  public void testGetSingleFromReplica() {
+    when(jedis.hget(DIRECTORY_KEY, first)).thenReturn("{\"v\":true}".getBytes());
+
+    assertThat(new DirectoryManager(jedisPool).get(first).isPresent()).isTrue();
+    verify(jedisPool, never()).getWriteResource();
+  }
+
+  @Test
+  public void testAddCompact() {
+    Pipeline pipeline = mock(Pipeline.class);
+
+    when(jedisPool.getWriteResource()).thenReturn(jedis);
+    when(jedis.pipelined()).thenReturn(pipeline);
+
+    new DirectoryManager(jedisPool, Optional.empty(), executor, 2, true).add(new ClientContact(first, null, true, true));
+    new DirectoryManager(jedisPool, Optional.empty(), executor, 2, true).add(new ClientContact(second, "relay", false, true));
+    new DirectoryManager(jedisPool, Optional.empty(), executor, 2, false).add(new ClientContact(third, null, true, false));
+
+    verify(pipeline).hset(DIRECTORY_KEY, first, new byte[] {3});
+    verify(pipeline).hset(DIRECTORY_KEY, second, new byte[] {6, 'r', 'e', 'l', 'a', 'y'});
+    verify(pipeline).hset(DIRECTORY_KEY, third, "{\"r\":null,\"v\":true,\"w\":false}".getBytes());
+  }
+
+  @Test
+  public void testGetMixedEncodings() {
+    when(jedis.hmget(eq(DIRECTORY_KEY), any(byte[].class))).thenReturn(Arrays.asList("{\"v\":true,\"w\":false}".getBytes(),
+                                                                                      new byte[] {6, 'r', 'e', 'l', 'a', 'y'},
+                                                                                      new byte[] {1}));
+
+    List<ClientContact> results = new DirectoryManager(jedisPool).get(Arrays.asList(first, second, third));
+
+    assertThat(results).hasSize(3);
+    assertThat(results.get(0).isVoice()).isTrue();
+    assertThat(results.get(0).isVideo()).isFalse();
+    assertThat(results.get(1).getRelay()).isEqualTo("relay");
+    assertThat(results.get(1).isVoice()).isFalse();
+    assertThat(results.get(1).isVideo()).isTrue();
+    assertThat(results.get(2).getRelay()).isNull();
+    assertThat(results.get(2).isVoice()).isTrue();
+    assertThat(results.get(2).isVideo()).isFalse();
+  }
+
+  // Tokens at even positions in the request are registered.
+  private List<byte[]> values(Object[] arguments) {
+    List<byte[]> values = new LinkedList<>();
+
+    for (int i=1;i<arguments.length;i++) {
+      byte[] token = (byte[])arguments[i];
+
+      if (Arrays.equals(token, first) || Arrays.equals(token, third) || Arrays.equals(token, fifth)) {
+        values.add("{\"v\":true}".getBytes());
+      } else {
+        values.add(null);
+      }
+    }
+
+    return values;
+  }
+}
@@ -0,0 +1,216 @@
+package org.whispersystems.textsecuregcm.tests.storage;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.whispersystems.textsecuregcm.redis.ReplicatedJedisPool;
+import org.whispersystems.textsecuregcm.storage.KeyRecord;
+import org.whispersystems.textsecuregcm.storage.Keys;
+import org.whispersystems.textsecuregcm.storage.KeysCache;
+import org.whispersystems.textsecuregcm.util.Pair;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Transaction;
+
+@SuppressWarnings("unchecked")
+public class KeysCacheTest {
+
+  private static final byte[] POP_SHA  = "pop".getBytes();
+  private static final byte[] FILL_SHA = "fill".getBytes();
+
+  private final ReplicatedJedisPool jedisPool = mock(ReplicatedJedisPool.class);
+  private final Jedis               jedis     = mock(Jedis.class);
+  private final Keys                keys      = mock(Keys.class);
+
+  @Before
+  public void setup() {
+    when(jedisPool.getWriteResource()).thenReturn(jedis);
+    when(jedis.scriptLoad(anyString())).thenReturn("fill");
+    when(jedis.scriptLoad(contains("ZRANGEBYSCORE"))).thenReturn("pop");
+  }
+
+  @Test
+  public void testClaimFromLoadedPool() throws Exception {
+    when(jedis.evalsha(eq(POP_SHA), anyList(), anyList())).thenReturn(Arrays.asList(2L, "5:publicKey".getBytes()));
+
+    Optional<KeyRecord> claimed = new KeysCache(jedisPool, keys).claim("+14152222222", 1);
+
+    assertThat(claimed.isPresent()).isTrue();
+    assertThat(claimed.get().getNumber()).isEqualTo("+14152222222");
+    assertThat(claimed.get().getDeviceId()).isEqualTo(1);
+    assertThat(claimed.get().getKeyId()).isEqualTo(5);
+    assertThat(claimed.get().getPublicKey()).isEqualTo("publicKey");
+
+    verify(jedis, never()).evalsha(eq(FILL_SHA), anyList(), anyList());
+    verifyZeroInteractions(keys);
+  }
+
+  @Test
+  public void testClaimLoadsPool() throws Exception {
+    when(jedis.evalsha(eq(POP_SHA), anyList(), anyList())).thenReturn(Arrays.asList(0L, new byte[0]), Arrays.asList(2L, "5:publicKey".getBytes()));
+    when(jedis.evalsha(eq(FILL_SHA), anyList(), anyList())).thenReturn(1L);
+    when(jedis.get("prekeys_version::+14152222222::1")).thenReturn("3");
+    when(keys.getAll("+14152222222", 1)).thenReturn(Arrays.asList(new KeyRecord(1, "+14152222222", 1, 5, "publicKey"),
+                                                                  new KeyRecord(2, "+14152222222", 1, 6, "otherKey")));
+
+    Optional<KeyRecord> claimed = new KeysCache(jedisPool, keys).claim("+14152222222", 1);
+
+    assertThat(claimed.isPresent()).isTrue();
+    assertThat(claimed.get().getKeyId()).isEqualTo(5);
+
+    ArgumentCaptor<List<byte[]>> args = ArgumentCaptor.forClass(List.class);
+    verify(jedis).evalsha(eq(FILL_SHA), anyList(), args.capture());
+
+    assertThat(args.getValue()).hasSize(6);
+    assertThat(new String(args.getValue().get(1))).isEqualTo("3");
+    assertThat(new String(args.getValue().get(2))).isEqualTo("5");
+    assertThat(new String(args.getValue().get(3))).isEqualTo("5:publicKey");
+    assertThat(new String(args.getValue().get(5))).isEqualTo("6:otherKey");
+  }
+
+  @Test
+  public void testClaimEmptyPool() throws Exception {
+    when(jedis.evalsha(eq(POP_SHA), anyList(), anyList())).thenReturn(Arrays.asList(1L, new byte[0]));
+
+    assertThat(new KeysCache(jedisPool, keys).claim("+14152222222", 1).isPresent()).isFalse();
+    verifyZeroInteractions(keys);
+  }
+
+  @Test
+  public void testClaimMultipleDevices() throws Exception {
+    when(jedis.evalsha(eq(POP_SHA), anyList(), anyList())).thenReturn(Arrays.asList(2L, "5:publicKey".getBytes(), 0L, new byte[0], 1L, new byte[0]),
+                                                                      Arrays.asList(2L, "7:otherKey".getBytes()));
+    when(jedis.evalsha(eq(FILL_SHA), anyList(), anyList())).thenReturn(1L);
+
+    List<KeyRecord> claimed = new KeysCache(jedisPool, keys).claim(Arrays.asList(new Pair<>("+14152222222", 1L),
+                                                                                 new Pair<>("+14152222222", 2L),
+                                                                                 new Pair<>("+14153333333", 1L)));
+
+    assertThat(claimed).hasSize(2);
+    assertThat(claimed.get(0).getDeviceId()).isEqualTo(1);
+    assertThat(claimed.get(0).getKeyId()).isEqualTo(5);
+    assertThat(claimed.get(1).getNumber()).isEqualTo("+14152222222");
+    assertThat(claimed.get(1).getDeviceId()).isEqualTo(2);
+    assertThat(claimed.get(1).getKeyId()).isEqualTo(7);
+
+    ArgumentCaptor<List<byte[]>> popKeys = ArgumentCaptor.forClass(List.class);
+    verify(jedis, times(2)).evalsha(eq(POP_SHA), popKeys.capture(), anyList());
+
+    assertThat(popKeys.getAllValues().get(0)).hasSize(7);
+    assertThat(popKeys.getAllValues().get(1)).hasSize(3);
+    assertThat(new String(popKeys.getAllValues().get(1).get(1))).isEqualTo("prekeys::+14152222222::2");
+
+    verify(keys).getAll("+14152222222", 2);
+    verifyNoMoreInteractions(keys);
+  }
+
+  @Test
+  public void testInvalidate() throws Exception {
+    Pipeline pipeline = mock(Pipeline.class);
+    when(jedis.pipelined()).thenReturn(pipeline);
+
+    new KeysCache(jedisPool, keys).invalidate("+14152222222", 1);
+
+    verify(pipeline).incr(eq("prekeys_version::+14152222222::1".getBytes()));
+    verify(pipeline).del(eq("prekeys::+14152222222::1".getBytes()));
+    verify(pipeline, never()).del(eq("prekeys_consumed::+14152222222::1".getBytes()));
+    verify(pipeline).sync();
+  }
+
+  @Test
+  public void testReconcileRejectsEarlierLoad() throws Exception {
+    Transaction    transaction = mock(Transaction.class);
+    AtomicInteger  version     = new AtomicInteger(3);
+    CountDownLatch loading     = new CountDownLatch(1);
+    CountDownLatch reconciled  = new CountDownLatch(1);
+
+    KeyRecord consumed  = new KeyRecord(1, "+14152222222", 1, 5, "publicKey");
+    KeyRecord remaining = new KeyRecord(2, "+14152222222", 1, 6, "otherKey");
+
+    when(jedis.multi()).thenReturn(transaction);
+    when(jedis.get("prekeys_version::+14152222222::1")).thenAnswer(invocation -> String.valueOf(version.get()));
+    when(jedis.smembers(eq("prekeys_consumed::+14152222222::1".getBytes()))).thenReturn(new HashSet<>(Collections.singletonList("5:publicKey".getBytes())));
+    when(jedis.spop("prekeys_consumed_devices")).thenAnswer(invocation -> {
+      loading.await();
+      return "+14152222222:1";
+    }).thenReturn(null);
+
+    when(transaction.incr(eq("prekeys_version::+14152222222::1".getBytes()))).thenAnswer(invocation -> {
+      version.incrementAndGet();
+      return null;
+    });
+    when(transaction.exec()).thenAnswer(invocation -> {
+      reconciled.countDown();
+      return null;
+    });
+
+    // The first load reads the database before the reconciler deletes key 5.
+    when(keys.getAll("+14152222222", 1)).thenAnswer(invocation -> {
+      loading.countDown();
+      reconciled.await();
+      return Arrays.asList(consumed, remaining);
+    }).thenReturn(Collections.singletonList(remaining));
+
+    // Stands in for fill.lua's version check.
+    when(jedis.evalsha(eq(FILL_SHA), anyList(), anyList())).thenAnswer(invocation -> {
+      List<byte[]> args = invocation.getArgument(2);
+      return new String(args.get(1)).equals(String.valueOf(version.get())) ? 1L : 0L;
+    });
+    when(jedis.evalsha(eq(POP_SHA), anyList(), anyList())).thenReturn(Arrays.asList(0L, new byte[0]),
+                                                                      Arrays.asList(0L, new byte[0]),
+                                                                      Arrays.asList(2L, "6:otherKey".getBytes()));
+
+    KeysCache keysCache = new KeysCache(jedisPool, keys);
+    keysCache.start();
+
+    Optional<KeyRecord> claimed = keysCache.claim("+14152222222", 1);
+
+    keysCache.stop();
+
+    assertThat(claimed.isPresent()).isTrue();
+    assertThat(claimed.get().getKeyId()).isEqualTo(6);
+
+    ArgumentCaptor<List<byte[]>> fillArgs = ArgumentCaptor.forClass(List.class);
+    verify(jedis, times(2)).evalsha(eq(FILL_SHA), anyList(), fillArgs.capture());
+
+    assertThat(new String(fillArgs.getAllValues().get(0).get(1))).isEqualTo("3");
+    assertThat(new String(fillArgs.getAllValues().get(1).get(1))).isEqualTo("4");
+    assertThat(fillArgs.getAllValues().get(1)).hasSize(4);
+
+    verify(keys).delete(argThat(records -> records.size() == 1 && records.get(0).getKeyId() == 5));
+
+    InOrder inOrder = inOrder(keys, transaction);
+    inOrder.verify(keys).delete(anyList());
+    inOrder.verify(transaction).incr(eq("prekeys_version::+14152222222::1".getBytes()));
+    inOrder.verify(transaction).srem(eq("prekeys_consumed::+14152222222::1".getBytes()), any(byte[].class));
+    inOrder.verify(transaction).exec();
+  }
+
+  @Test
+  public void testGetCount() throws Exception {
+    when(jedis.exists(any(byte[].class))).thenReturn(true);
+    when(jedis.zcount(any(byte[].class), any(byte[].class), any(byte[].class))).thenReturn(7L);
+
+    assertThat(new KeysCache(jedisPool, keys).getCount("+14152222222", 1)).isEqualTo(7);
+    verifyZeroInteractions(keys);
+  }
+
+}
@@ -80,6 +80,38 @@ public class KeysTest {
     assertThat(keys.getCount("+14152222222", 1)).isEqualTo(100);
   }
 
+  @Test
+  public void testAppendKeys() {
+    DataSource dataSource = db.getTestDatabase();
+    Jdbi       jdbi       = Jdbi.create(dataSource);
+    Keys       keys       = new Keys(jdbi);
+
+    List<PreKey> firstPreKeys  = new LinkedList<>();
+    List<PreKey> secondPreKeys = new LinkedList<>();
+
+    for (int i=1;i<=100;i++) {
+      firstPreKeys.add(new PreKey(i, "FirstPublicKey" + i));
+    }
+
+    for (int i=51;i<=150;i++) {
+      secondPreKeys.add(new PreKey(i, "SecondPublicKey" + i));
+    }
+
+    keys.append("+14152222222", 1, firstPreKeys, 120);
+    keys.append("+14152222222", 1, secondPreKeys, 120);
+
+    List<KeyRecord> records = keys.getAll("+14152222222", 1);
+
+    assertThat(records.size()).isEqualTo(120);
+    assertThat(records.get(0).getKeyId()).isEqualTo(31);
+    assertThat(records.get(0).getPublicKey()).isEqualTo("FirstPublicKey31");
+    assertThat(records.get(69).getKeyId()).isEqualTo(100);
+    assertThat(records.get(69).getPublicKey()).isEqualTo("FirstPublicKey100");
+    assertThat(records.get(70).getKeyId()).isEqualTo(101);
+    assertThat(records.get(70).getPublicKey()).isEqualTo("SecondPublicKey101");
+    assertThat(keys.getCount("+14152222222", 2)).isEqualTo(0);
+  }
+
   @Test
   public void testGetForDevice() {
     DataSource dataSource = db.getTestDatabase();
@@ -0,0 +1,58 @@
+package org.whispersystems.textsecuregcm.tests.storage;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.whispersystems.textsecuregcm.storage.AccountsManager;
+import org.whispersystems.textsecuregcm.storage.LastSeenWriter;
+import org.whispersystems.textsecuregcm.util.Pair;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class LastSeenWriterTest {
+
+  @Test
+  public void testCoalescedUpdates() {
+    AccountsManager accountsManager = mock(AccountsManager.class);
+    LastSeenWriter  lastSeenWriter  = new LastSeenWriter(accountsManager, 100, 100, 10);
+
+    lastSeenWriter.update("+14152222222", 1, 86400000L);
+    lastSeenWriter.update("+14152222222", 1, 86400000L);
+    lastSeenWriter.update("+14152222222", 2, 86400000L);
+    lastSeenWriter.update("+14153333333", 1, 86400000L);
+
+    lastSeenWriter.start();
+    lastSeenWriter.stop();
+
+    @SuppressWarnings("unchecked")
+    ArgumentCaptor<List<Pair<String, Long>>> captor = ArgumentCaptor.forClass(List.class);
+
+    verify(accountsManager, times(1)).updateLastSeen(captor.capture(), eq(86400000L));
+    verifyNoMoreInteractions(accountsManager);
+
+    assertThat(captor.getValue()).containsExactlyInAnyOrder(new Pair<>("+14152222222", 1L),
+                                                            new Pair<>("+14152222222", 2L),
+                                                            new Pair<>("+14153333333", 1L));
+  }
+
+  @Test
+  public void testBatchSizeAndOverflow() {
+    AccountsManager accountsManager = mock(AccountsManager.class);
+    LastSeenWriter  lastSeenWriter  = new LastSeenWriter(accountsManager, 5, 2, 10);
+
+    for (int i=0;i<10;i++) {
+      lastSeenWriter.update("+1415222222" + i, 1, 86400000L);
+    }
+
+    lastSeenWriter.start();
+    lastSeenWriter.stop();
+
+    verify(accountsManager, times(3)).updateLastSeen(anyList(), anyLong());
+  }
+
+}
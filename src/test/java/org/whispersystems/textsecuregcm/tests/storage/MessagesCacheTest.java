@@ -0,0 +1,178 @@
+package org.whispersystems.textsecuregcm.tests.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.whispersystems.textsecuregcm.entities.MessageProtos.Envelope;
+import org.whispersystems.textsecuregcm.push.PushSender;
+import org.whispersystems.textsecuregcm.redis.ReplicatedJedisPool;
+import org.whispersystems.textsecuregcm.storage.AccountsManager;
+import org.whispersystems.textsecuregcm.storage.Messages;
+import org.whispersystems.textsecuregcm.storage.MessagesCache;
+import org.whispersystems.textsecuregcm.storage.PubSubManager;
+import org.whispersystems.textsecuregcm.storage.PubSubProtos.PubSubMessage;
+import org.whispersystems.textsecuregcm.websocket.WebsocketAddress;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Tuple;
+
+@SuppressWarnings("unchecked")
+public class MessagesCacheTest {
+
+  private static final byte[] CLAIM_SHA   = "claim".getBytes();
+  private static final byte[] RENEW_SHA   = "renew".getBytes();
+  private static final byte[] RELEASE_SHA = "release".getBytes();
+
+  private static final byte[] QUEUE      = "user_queue::+14152222222::1".getBytes();
+  private static final byte[] LEASE      = "user_queue_persist_lease::+14152222222::1".getBytes();
+  private static final byte[] INDEX      = "user_queue_index".getBytes();
+  private static final byte[] PERSISTING = "user_queue_persisting::+14152222222::1".getBytes();
+  private static final byte[] SECOND     = "user_queue::+14153333333::1".getBytes();
+
+  private final ReplicatedJedisPool jedisPool       = mock(ReplicatedJedisPool.class);
+  private final Jedis               jedis           = mock(Jedis.class);
+  private final Messages            messages        = mock(Messages.class);
+  private final AccountsManager     accountsManager = mock(AccountsManager.class);
+  private final PubSubManager       pubSubManager   = mock(PubSubManager.class);
+  private final PushSender          pushSender      = mock(PushSender.class);
+
+  private MessagesCache messagesCache;
+
+  @Before
+  public void setup() {
+    when(jedisPool.getWriteResource()).thenReturn(jedis);
+    when(jedis.scriptLoad(anyString())).thenReturn("other");
+    when(jedis.scriptLoad(contains("max_time"))).thenReturn("claim");
+    when(jedis.scriptLoad(contains("PEXPIRE"))).thenReturn("renew");
+    when(jedis.scriptLoad(contains("worker_id, current_time"))).thenReturn("release");
+    when(jedis.evalsha(eq(RELEASE_SHA), anyList(), anyList())).thenReturn(1L);
+    when(jedis.zrangeByScore(any(byte[].class), any(byte[].class), any(byte[].class), anyInt(), anyInt()))
+        .thenReturn(new LinkedHashSet<>(Collections.singletonList(QUEUE)), new LinkedHashSet<>());
+  }
+
+  @After
+  public void teardown() throws Exception {
+    if (messagesCache != null) {
+      messagesCache.stop();
+    }
+  }
+
+  @Test
+  public void testClaimUsesDeclaredKeys() throws Exception {
+    when(jedis.evalsha(eq(CLAIM_SHA), anyList(), anyList())).thenReturn(0L);
+
+    start(1);
+
+    ArgumentCaptor<List<byte[]>> keys = ArgumentCaptor.forClass(List.class);
+    ArgumentCaptor<List<byte[]>> args = ArgumentCaptor.forClass(List.class);
+    verify(jedis, timeout(5000)).evalsha(eq(CLAIM_SHA), keys.capture(), args.capture());
+
+    assertThat(keys.getValue()).containsExactly(QUEUE, LEASE, INDEX);
+    assertThat(args.getValue()).hasSize(4);
+
+    verify(jedis, never()).evalsha(eq(RENEW_SHA), anyList(), anyList());
+    verify(jedis, never()).evalsha(eq(RELEASE_SHA), anyList(), anyList());
+  }
+
+  @Test
+  public void testPersistAndRelease() throws Exception {
+    Envelope envelope = Envelope.newBuilder().setType(Envelope.Type.CIPHERTEXT).setServerGuid("3e3d4c4a-7d4e-4a4e-9c1b-6c1c8f8e2a0b").build();
+    Set<Tuple> items  = new LinkedHashSet<>(Collections.singletonList(new Tuple(envelope.toByteArray(), 5D)));
+
+    when(jedis.evalsha(eq(CLAIM_SHA), anyList(), anyList())).thenReturn(1L);
+    when(jedis.evalsha(eq(RENEW_SHA), anyList(), anyList())).thenReturn(1L);
+    when(jedis.zrangeWithScores(QUEUE, 0, 99)).thenReturn(items);
+    when(pubSubManager.publish(any(WebsocketAddress.class), any(PubSubMessage.class))).thenReturn(true);
+
+    start(1);
+
+    ArgumentCaptor<List<byte[]>> keys = ArgumentCaptor.forClass(List.class);
+
+    verify(messages, timeout(5000)).store(anyList(), eq("+14152222222"), eq(1L));
+    verify(jedis, timeout(5000)).evalsha(eq(RELEASE_SHA), keys.capture(), anyList());
+    assertThat(keys.getValue()).containsExactly(QUEUE, LEASE, INDEX, PERSISTING);
+    verify(pubSubManager, timeout(5000)).publish(eq(new WebsocketAddress("+14152222222", 1)), any(PubSubMessage.class));
+    verifyZeroInteractions(pushSender);
+  }
+
+  @Test
+  public void testLeaseLostLeavesPersistingFlag() throws Exception {
+    when(jedis.evalsha(eq(CLAIM_SHA), anyList(), anyList())).thenReturn(1L);
+    when(jedis.evalsha(eq(RENEW_SHA), anyList(), anyList())).thenReturn(0L);
+    when(jedis.evalsha(eq(RELEASE_SHA), anyList(), anyList())).thenReturn(0L);
+
+    start(1);
+
+    verify(jedis, timeout(5000)).evalsha(eq(RELEASE_SHA), anyList(), anyList());
+    verify(jedis, never()).del(PERSISTING);
+    verify(jedis, never()).zrangeWithScores(any(byte[].class), anyLong(), anyLong());
+    verifyZeroInteractions(messages, pubSubManager);
+  }
+
+  @Test
+  public void testWorkersShareQueues() throws Exception {
+    when(jedis.zrangeByScore(any(byte[].class), any(byte[].class), any(byte[].class), anyInt(), anyInt()))
+        .thenReturn(new LinkedHashSet<>(Collections.singletonList(QUEUE)), new LinkedHashSet<>(Collections.singletonList(QUEUE)), new LinkedHashSet<>());
+    when(jedis.evalsha(eq(CLAIM_SHA), anyList(), anyList())).thenReturn(1L, 0L);
+    when(jedis.evalsha(eq(RENEW_SHA), anyList(), anyList())).thenReturn(1L);
+    when(jedis.zrangeWithScores(QUEUE, 0, 99)).thenReturn(new LinkedHashSet<>());
+    when(pubSubManager.publish(any(WebsocketAddress.class), any(PubSubMessage.class))).thenReturn(true);
+
+    start(2);
+
+    verify(jedis, timeout(5000).times(2)).evalsha(eq(CLAIM_SHA), anyList(), anyList());
+    verify(jedis, timeout(5000)).evalsha(eq(RELEASE_SHA), anyList(), anyList());
+    verify(pubSubManager, timeout(5000)).publish(any(WebsocketAddress.class), any(PubSubMessage.class));
+
+    messagesCache.stop();
+    messagesCache = null;
+
+    verify(jedis, times(1)).evalsha(eq(RENEW_SHA), anyList(), anyList());
+    verify(jedis, times(1)).evalsha(eq(RELEASE_SHA), anyList(), anyList());
+  }
+
+  @Test
+  public void testClaimsOneQueueAtATime() throws Exception {
+    when(jedis.zrangeByScore(any(byte[].class), any(byte[].class), any(byte[].class), anyInt(), anyInt()))
+        .thenReturn(new LinkedHashSet<>(Arrays.asList(QUEUE, SECOND)), new LinkedHashSet<>());
+    when(jedis.evalsha(eq(CLAIM_SHA), anyList(), anyList())).thenReturn(1L);
+    when(jedis.evalsha(eq(RENEW_SHA), anyList(), anyList())).thenReturn(1L);
+    when(jedis.zrangeWithScores(any(byte[].class), eq(0L), eq(99L))).thenReturn(new LinkedHashSet<>());
+    when(pubSubManager.publish(any(WebsocketAddress.class), any(PubSubMessage.class))).thenReturn(true);
+
+    start(1);
+
+    verify(jedis, timeout(5000).times(2)).evalsha(eq(RELEASE_SHA), anyList(), anyList());
+
+    InOrder inOrder = inOrder(jedis);
+    inOrder.verify(jedis).evalsha(eq(CLAIM_SHA), argThat(keys -> Arrays.equals(keys.get(0), QUEUE)), anyList());
+    inOrder.verify(jedis).evalsha(eq(RELEASE_SHA), argThat(keys -> Arrays.equals(keys.get(0), QUEUE)), anyList());
+    inOrder.verify(jedis).evalsha(eq(CLAIM_SHA), argThat(keys -> Arrays.equals(keys.get(0), SECOND)), anyList());
+    inOrder.verify(jedis).evalsha(eq(RELEASE_SHA), argThat(keys -> Arrays.equals(keys.get(0), SECOND)), anyList());
+  }
+
+  private void start(int workers) throws Exception {
+    messagesCache = new MessagesCache(jedisPool, messages, accountsManager, 0, workers, 60);
+    messagesCache.setPubSubManager(pubSubManager, pushSender);
+    messagesCache.start();
+  }
+
+}
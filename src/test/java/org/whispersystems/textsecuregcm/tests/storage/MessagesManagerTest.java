@@ -0,0 +1,111 @@
+package org.whispersystems.textsecuregcm.tests.storage;
+
+import org.junit.Test;
+import org.whispersystems.textsecuregcm.entities.MessageProtos.Envelope;
+import org.whispersystems.textsecuregcm.entities.MessagesCursor;
+import org.whispersystems.textsecuregcm.entities.OutgoingMessageEntity;
+import org.whispersystems.textsecuregcm.entities.OutgoingMessageEntityList;
+import org.whispersystems.textsecuregcm.storage.Messages;
+import org.whispersystems.textsecuregcm.storage.MessagesCache;
+import org.whispersystems.textsecuregcm.storage.MessagesManager;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class MessagesManagerTest {
+
+  private final Messages      messages      = mock(Messages.class);
+  private final MessagesCache messagesCache = mock(MessagesCache.class);
+
+  @Test
+  public void testCachedCursorRechecksDatabase() {
+    MessagesCursor cursor = MessagesCursor.START.after(stored(5, 1000))
+                                                .after(cached(20));
+
+    when(messagesCache.get(eq("+14152222222"), eq(1L), eq(20L), anyInt())).thenReturn(list(cached(21), cached(22)));
+    when(messages.load("+14152222222", 1L, 5)).thenReturn(list(stored(9, 1500)));
+
+    OutgoingMessageEntityList result = new MessagesManager(messages, messagesCache).getMessagesForDevice("+14152222222", 1, Optional.of(cursor));
+
+    assertThat(result.getMessages()).extracting("id").containsExactly(21L, 22L, 9L);
+    assertThat(result.hasMore()).isFalse();
+
+    verify(messages).load("+14152222222", 1L, 5);
+  }
+
+  @Test
+  public void testStoredCursorDoesNotRecheck() {
+    MessagesCursor cursor = MessagesCursor.START.after(stored(5, 1000));
+
+    when(messages.load("+14152222222", 1L, 5)).thenReturn(list(stored(6, 1100)));
+    when(messagesCache.get(eq("+14152222222"), eq(1L), eq(0L), anyInt())).thenReturn(new LinkedList<>());
+
+    OutgoingMessageEntityList result = new MessagesManager(messages, messagesCache).getMessagesForDevice("+14152222222", 1, Optional.of(cursor));
+
+    assertThat(result.getMessages()).extracting("id").containsExactly(6L);
+    assertThat(result.hasMore()).isFalse();
+
+    verify(messages, times(1)).load(anyString(), anyLong(), anyLong());
+  }
+
+  @Test
+  public void testFullPageReturnsCursor() {
+    List<OutgoingMessageEntity> page = new LinkedList<>();
+
+    for (int i=1;i<=100;i++) {
+      page.add(stored(i, 1000 + i));
+    }
+
+    when(messages.load("+14152222222", 1L)).thenReturn(page);
+
+    OutgoingMessageEntityList result = new MessagesManager(messages, messagesCache).getMessagesForDevice("+14152222222", 1);
+
+    assertThat(result.hasMore()).isTrue();
+    assertThat(result.getNextCursor().isPresent()).isTrue();
+    assertThat(result.getNextCursor().get().isCached()).isFalse();
+    assertThat(result.getNextCursor().get().getId()).isEqualTo(100);
+    assertThat(result.getCursor()).isEqualTo(result.getNextCursor().get().serialize());
+
+    verifyZeroInteractions(messagesCache);
+  }
+
+  @Test
+  public void testCursorSerialization() {
+    MessagesCursor cursor = MessagesCursor.START.after(stored(5, 1000))
+                                                .after(cached(20));
+
+    MessagesCursor parsed = MessagesCursor.deserialize(cursor.serialize());
+
+    assertThat(parsed.isCached()).isTrue();
+    assertThat(parsed.getId()).isEqualTo(5);
+    assertThat(parsed.getCachedId()).isEqualTo(20);
+  }
+
+  private static OutgoingMessageEntity stored(long id, long timestamp) {
+    return new OutgoingMessageEntity(id, false, UUID.randomUUID(), Envelope.Type.CIPHERTEXT_VALUE, null, timestamp, "+14153333333", 1, null, "hi".getBytes(), 0);
+  }
+
+  private static OutgoingMessageEntity cached(long id) {
+    return new OutgoingMessageEntity(id, true, UUID.randomUUID(), Envelope.Type.CIPHERTEXT_VALUE, null, 2000, "+14153333333", 1, null, "hi".getBytes(), 0);
+  }
+
+  private static List<OutgoingMessageEntity> list(OutgoingMessageEntity... entities) {
+    List<OutgoingMessageEntity> list = new LinkedList<>();
+
+    for (OutgoingMessageEntity entity : entities) {
+      list.add(entity);
+    }
+
+    return list;
+  }
+
+}
@@ -11,6 +11,7 @@ import org.junit.Test;
 import org.whispersystems.textsecuregcm.entities.MessageProtos.Envelope;
 import org.whispersystems.textsecuregcm.entities.OutgoingMessageEntity;
 import org.whispersystems.textsecuregcm.storage.Messages;
+import org.whispersystems.textsecuregcm.util.Pair;
 
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -65,6 +66,31 @@ public class MessagesTest {
     assertThat(resultSet.next()).isFalse();
   }
 
+  @Test
+  public void testStoreBatch() {
+    List<MessageToStore>       inserted = new ArrayList<>(50);
+    List<Pair<UUID, Envelope>> batch    = new ArrayList<>(50);
+
+    for (int i=0;i<50;i++) {
+      MessageToStore message = generateMessageToStore();
+      inserted.add(message);
+      batch.add(new Pair<>(message.guid, message.envelope));
+    }
+
+    List<MessageToStore> unrelated = insertRandom("+14151113333", 1);
+
+    messages.store(batch, "+14151112222", 1);
+
+    verifyInTact(inserted, "+14151112222", 1);
+    verifyInTact(unrelated, "+14151113333", 1);
+  }
+
+  @Test
+  public void testStoreEmptyBatch() {
+    messages.store(new ArrayList<>(), "+14151112222", 1);
+    assertThat(messages.load("+14151112222", 1).isEmpty()).isTrue();
+  }
+
   @Test
   public void testLoad() {
     List<MessageToStore> inserted = new ArrayList<>(50);
@@ -76,8 +102,6 @@ public class MessagesTest {
       messages.store(message.guid, message.envelope, "+14151112222", 1);
     }
 
-    inserted.sort(Comparator.comparingLong(o -> o.envelope.getTimestamp()));
-
     List<OutgoingMessageEntity> retrieved = messages.load("+14151112222", 1);
 
     assertThat(retrieved.size()).isEqualTo(inserted.size());
@@ -88,6 +112,52 @@ public class MessagesTest {
 
   }
 
+  @Test
+  public void testLoadAfter() {
+    List<MessageToStore> inserted = new ArrayList<>(150);
+
+    for (int i=0;i<150;i++) {
+      MessageToStore message = generateMessageToStore();
+      inserted.add(message);
+
+      messages.store(message.guid, message.envelope, "+14151112222", 1);
+    }
+
+    List<OutgoingMessageEntity> firstPage = messages.load("+14151112222", 1);
+    OutgoingMessageEntity       last      = firstPage.get(firstPage.size() - 1);
+    List<OutgoingMessageEntity> nextPage  = messages.load("+14151112222", 1, last.getId());
+
+    assertThat(firstPage.size()).isEqualTo(100);
+    assertThat(nextPage.size()).isEqualTo(50);
+
+    List<OutgoingMessageEntity> retrieved = new ArrayList<>(firstPage);
+    retrieved.addAll(nextPage);
+
+    for (int i=0;i<retrieved.size();i++) {
+      verifyExpected(retrieved.get(i), inserted.get(i).envelope, inserted.get(i).guid);
+    }
+
+    OutgoingMessageEntity end = nextPage.get(nextPage.size() - 1);
+    assertThat(messages.load("+14151112222", 1, end.getId()).isEmpty()).isTrue();
+  }
+
+  @Test
+  public void testLoadAfterOlderTimestamp() {
+    MessageToStore newer = generateMessageToStore();
+    MessageToStore older = new MessageToStore(UUID.randomUUID(), newer.envelope.toBuilder().setTimestamp(newer.envelope.getTimestamp() - 1000).build());
+
+    messages.store(newer.guid, newer.envelope, "+14151112222", 1);
+
+    OutgoingMessageEntity delivered = messages.load("+14151112222", 1).get(0);
+
+    messages.store(older.guid, older.envelope, "+14151112222", 1);
+
+    List<OutgoingMessageEntity> nextPage = messages.load("+14151112222", 1, delivered.getId());
+
+    assertThat(nextPage.size()).isEqualTo(1);
+    verifyExpected(nextPage.get(0), older.envelope, older.guid);
+  }
+
   @Test
   public void removeBySourceDestinationTimestamp() {
     List<MessageToStore>            inserted = insertRandom("+14151112222", 1);
@@ -116,13 +186,50 @@ public class MessagesTest {
     verifyInTact(unrelated, "+14151113333", 2);
   }
 
+  @Test
+  public void removeByDestinationGuids() {
+    List<MessageToStore>        unrelated = insertRandom("+14151113333", 2);
+    List<MessageToStore>        inserted  = insertRandom("+14151112222", 1);
+    MessageToStore              first     = inserted.remove(0);
+    MessageToStore              second    = inserted.remove(0);
+    List<OutgoingMessageEntity> removed   = messages.remove("+14151112222", Arrays.asList(first.guid, second.guid, UUID.randomUUID(), unrelated.get(0).guid));
+
+    removed.sort(Comparator.comparingLong(OutgoingMessageEntity::getId));
+
+    assertThat(removed.size()).isEqualTo(2);
+    verifyExpected(removed.get(0), first.envelope, first.guid);
+    verifyExpected(removed.get(1), second.envelope, second.guid);
+
+    verifyInTact(inserted, "+14151112222", 1);
+    verifyInTact(unrelated, "+14151113333", 2);
+  }
+
+  @Test
+  public void removeByDestinationGuidsDuplicated() {
+    List<MessageToStore> inserted  = insertRandom("+14151112222", 1);
+    MessageToStore       duplicate = inserted.get(0);
+
+    messages.store(duplicate.guid, duplicate.envelope, "+14151112222", 1);
+
+    List<OutgoingMessageEntity> removed = messages.remove("+14151112222", Arrays.asList(duplicate.guid, inserted.get(1).guid));
+
+    removed.sort(Comparator.comparingLong(OutgoingMessageEntity::getId));
+
+    assertThat(removed.size()).isEqualTo(2);
+    verifyExpected(removed.get(0), duplicate.envelope, duplicate.guid);
+    verifyExpected(removed.get(1), inserted.get(1).envelope, inserted.get(1).guid);
+
+    inserted.remove(1);
+    inserted.add(inserted.remove(0));
+
+    verifyInTact(inserted, "+14151112222", 1);
+  }
+
   @Test
   public void removeByDestinationRowId() {
     List<MessageToStore> unrelatedInserted = insertRandom("+14151111111", 1);
     List<MessageToStore> inserted          = insertRandom("+14151112222", 1);
 
-    inserted.sort(Comparator.comparingLong(o -> o.envelope.getTimestamp()));
-
     List<OutgoingMessageEntity> retrieved = messages.load("+14151112222", 1);
 
     int toRemoveIndex = new Random(System.currentTimeMillis()).nextInt(inserted.size() - 1);
@@ -192,8 +299,6 @@ public class MessagesTest {
   }
 
   private void verifyInTact(List<MessageToStore> inserted, String destination, int destinationDevice) {
-    inserted.sort(Comparator.comparingLong(o -> o.envelope.getTimestamp()));
-
     List<OutgoingMessageEntity> retrieved = messages.load(destination, destinationDevice);
 
     assertThat(retrieved.size()).isEqualTo(inserted.size());